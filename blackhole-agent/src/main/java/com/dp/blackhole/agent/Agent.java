@@ -38,6 +38,7 @@ import com.dp.blackhole.protocol.control.QuitAndCleanPB.Clean;
 import com.dp.blackhole.protocol.control.QuitAndCleanPB.InstanceGroup;
 import com.dp.blackhole.protocol.control.QuitAndCleanPB.Quit;
 import com.dp.blackhole.protocol.control.RecoveryRollPB.RecoveryRoll;
+import com.dp.blackhole.protocol.data.RegisterRequest;
 import com.google.protobuf.InvalidProtocolBufferException;
 
 public class Agent implements Runnable {
@@ -60,6 +61,10 @@ public class Agent implements Runnable {
     private final String baseDirWildcard;
     private boolean paasModel = false;
     private LingeringSender linger;
+    private boolean rangeRecovery;
+    private Properties ackConf;
+    private int ackWindow;
+    private long ackWindowBytes;
     
     public Agent() {
         this(null);
@@ -163,6 +168,12 @@ public class Agent implements Runnable {
         
         String supervisorHost = prop.getProperty("supervisor.host");
         int supervisorPort = Integer.parseInt(prop.getProperty("supervisor.port"));
+        rangeRecovery = Boolean.parseBoolean(prop.getProperty("agent.recovery.range", "false"));
+        ackConf = prop;
+        ackWindow = Integer.parseInt(prop.getProperty("agent.ack.window",
+                String.valueOf(RemoteSender.DEFAULT_ACK_WINDOW)));
+        ackWindowBytes = Long.parseLong(prop.getProperty("agent.ack.window.bytes",
+                String.valueOf(RemoteSender.DEFAULT_ACK_WINDOW_BYTES)));
 
         try {    
             listener = new FileListener();
@@ -192,6 +203,22 @@ public class Agent implements Runnable {
         this.linger.shutdown();
     }
     
+    /**
+     * the ack mode of a topic, agent.ack.mode.&lt;topic&gt; or else agent.ack.mode:
+     * none, leader or replicated (the default)
+     */
+    int getAckMode(String topic) {
+        String mode = ackConf.getProperty("agent.ack.mode." + topic, ackConf.getProperty("agent.ack.mode", "replicated"));
+        if ("none".equalsIgnoreCase(mode)) {
+            return RegisterRequest.ACK_NONE;
+        } else if ("leader".equalsIgnoreCase(mode)) {
+            return RegisterRequest.ACK_LEADER;
+        } else if (!"replicated".equalsIgnoreCase(mode)) {
+            LOG.warn("unknown ack mode " + mode + " of " + topic + ", wait for replication");
+        }
+        return RegisterRequest.ACK_REPLICATED;
+    }
+
     public AgentMeta fillUpAppLogsFromConfig(TopicId topicId, AppConfRes confRes) {
         String tailFile = confRes.getWatchFile();
         long rotatePeriod = Long.parseLong(confRes.getRotatePeriod());
@@ -429,7 +456,7 @@ public class Agent implements Runnable {
                         broker = recoveryRoll.getBrokerServer();
                         int recoveryPort = recoveryRoll.getRecoveryPort();
                         rollRecovery = new RollRecovery(Agent.this,
-                                broker, recoveryPort, topicMeta, rollTs, isFinal, persistent);
+                                broker, recoveryPort, topicMeta, rollTs, isFinal, persistent, rangeRecovery);
                         recoveryingMap.put(recoveryKey, rollRecovery);
                         recoveryThreadPool.execute(rollRecovery);
                         return true;
@@ -451,7 +478,8 @@ public class Agent implements Runnable {
                     if ((logReader = topicReaders.get(topicMeta)) != null) {
                         broker = assignBroker.getBrokerServer();
                         int brokerPort = assignBroker.getBrokerPort();
-                        RemoteSender sender = new RemoteSender(topicMeta, broker, brokerPort);
+                        RemoteSender sender = new RemoteSender(topicMeta, broker, brokerPort,
+                                getAckMode(topic), ackWindow, ackWindowBytes);
                         boolean success = sender.initializeRemoteConnection();
                         if (success) {
                             LOG.info(topicId + " TopicReg with ["
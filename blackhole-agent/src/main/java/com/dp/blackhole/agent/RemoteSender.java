@@ -1,8 +1,10 @@
 package com.dp.blackhole.agent;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
+import java.net.SocketException;
 import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
 import java.util.Date;
@@ -30,8 +32,16 @@ import com.dp.blackhole.protocol.data.RollRequest;
 import com.dp.blackhole.storage.ByteBufferMessageSet;
 import com.dp.blackhole.storage.Message;
 
+/**
+ * Sends the lines of a topic to its leader broker. Up to ackWindow batches
+ * are in flight unacknowledged; the MessageAcks are read by an AckReader
+ * thread, so sending only waits when the window is full. With ACK_NONE a
+ * batch is dropped as soon as it is written.
+ */
 public class RemoteSender implements Sender{
     private static final Log LOG = LogFactory.getLog(RemoteSender.class);
+    public static final int DEFAULT_ACK_WINDOW = 8;
+    public static final long DEFAULT_ACK_WINDOW_BYTES = 8 * 1024 * 1024;
     private TopicId topicId;
     private long rollPeriod;
     private String source;
@@ -46,8 +56,22 @@ public class RemoteSender implements Sender{
     private OffsetInfo offsetInfo;
     private long initOffset;
     private Date lastSend;
+    private int ackMode;
+    private int ackWindow;
+    private AckReader ackReader;
     
     public RemoteSender(AgentMeta topicMeta, String broker, int port) {
+        this(topicMeta, broker, port, RegisterRequest.ACK_REPLICATED, DEFAULT_ACK_WINDOW, DEFAULT_ACK_WINDOW_BYTES);
+    }
+    
+    /**
+     * @param ackWindow batches in flight unacknowledged at most
+     * @param ackWindowBytes bytes the unacknowledged batches may keep, every
+     * batch is counted as a full message buffer
+     */
+    public RemoteSender(AgentMeta topicMeta, String broker, int port, int ackMode, int ackWindow,
+            long ackWindowBytes) {
+        this.ackMode = ackMode;
         this.topicId = topicMeta.getTopicId();
         this.source = topicMeta.getSource();
         this.broker = broker;
@@ -57,12 +81,20 @@ public class RemoteSender implements Sender{
         this.minMsgSent = topicMeta.getMinMsgSent();
         this.msgBufSize = topicMeta.getMsgBufSize();
         this.lastSend = new Date();
+        if (msgBufSize > 0) {
+            ackWindow = (int) Math.min(ackWindow, ackWindowBytes / msgBufSize);
+        }
+        this.ackWindow = Math.max(1, ackWindow);
     }
     
     public TopicId getTopicId() {
         return topicId;
     }
     
+    int getAckWindow() {
+        return ackWindow;
+    }
+    
     public String getBroker() {
         return broker;
     }
@@ -77,7 +109,10 @@ public class RemoteSender implements Sender{
 
     public void setOffsetInfo(OffsetInfo offsetInfo) throws IOException {
         this.offsetInfo = offsetInfo;
-        TreeMap<Long, ByteBuffer> reSend = this.offsetInfo.initOffset(this.initOffset);
+        TreeMap<Long, ByteBuffer> reSend;
+        synchronized (offsetInfo) {
+            reSend = this.offsetInfo.initOffset(this.initOffset);
+        }
         for(Entry<Long, ByteBuffer> entry : reSend.entrySet()) {
             ByteBufferMessageSet messages = new ByteBufferMessageSet(entry.getValue());
             LOG.debug("re-send messages offset: " +  entry.getKey() + ", message set size: " + messages.getValidSize());
@@ -86,15 +121,51 @@ public class RemoteSender implements Sender{
             TransferWrap wrap = new TransferWrap(request);
             connection.write(wrap);
         }
-        while (offsetInfo.getMsgQueueSize() >= ParamsKey.TopicConf.DEFAULT_MESSAGE_QUEUE_MIN_ACK) {
-            TransferWrap response = connection.read();
-            MessageAck ackReply = (MessageAck) response.unwrap();
-            LOG.debug("Received message ack of Topic: " + topicId + ", Partition: " + source + ", Offset: "
-                    + ackReply.getOffset());
-            this.offsetInfo.msgAck(ackReply.getOffset());
+        if (ackMode == RegisterRequest.ACK_NONE) {
+            dropSent();
+            return;
+        }
+        ackReader = new AckReader();
+        ackReader.start();
+        awaitAckWindow();
+    }
+
+    /**
+     * the batches written so far need no ack
+     */
+    private void dropSent() {
+        synchronized (offsetInfo) {
+            offsetInfo.msgAck(offsetInfo.getCurrentOffset());
+        }
+    }
+
+    /**
+     * wait until fewer than ackWindow batches are unacknowledged
+     */
+    private void awaitAckWindow() throws IOException {
+        synchronized (offsetInfo) {
+            while (offsetInfo.getMsgQueueSize() >= ackWindow) {
+                if (!connection.isActive()) {
+                    throw new SocketException("connection to " + broker + " closed while waiting for message ack");
+                }
+                try {
+                    offsetInfo.wait(1000L);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("interrupted while waiting for message ack");
+                }
+            }
         }
     }
 
+    /**
+     * send over a connection already registered with the broker
+     */
+    void setConnection(BlockingConnection<TransferWrap> connection) {
+        this.connection = connection;
+        this.messageBuffer = ByteBuffer.allocate(msgBufSize);
+    }
+
     public boolean initializeRemoteConnection() {
         boolean res = false;
         SocketChannel socketChannel = null;
@@ -144,7 +215,8 @@ public class RemoteSender implements Sender{
                 topicId.getTopic(),
                 source,
                 rollPeriod,
-                broker);
+                broker,
+                ackMode);
         TransferWrap wrap = new TransferWrap(request);
         connection.write(wrap);
     }
@@ -186,8 +258,12 @@ public class RemoteSender implements Sender{
     
     @Override
     public boolean canSend() {
-        return messageBuffer.position() != 0
-                && offsetInfo.getMsgQueueSize() < ParamsKey.TopicConf.DEFAULT_MESSAGE_QUEUE_MIN_ACK;
+        if (messageBuffer.position() == 0) {
+            return false;
+        }
+        synchronized (offsetInfo) {
+            return offsetInfo.getMsgQueueSize() < ackWindow;
+        }
     }
     
     @Override
@@ -201,8 +277,11 @@ public class RemoteSender implements Sender{
             messageBuffer.flip();
             ByteBuffer bb = messageBuffer.slice();
             ByteBufferMessageSet messages = new ByteBufferMessageSet(bb);
-            long currentOffset = this.offsetInfo.getCurrentOffset();
-            this.offsetInfo.newMsg(bb, messages.getValidSize());
+            long currentOffset;
+            synchronized (offsetInfo) {
+                currentOffset = this.offsetInfo.getCurrentOffset();
+                this.offsetInfo.newMsg(bb, messages.getValidSize());
+            }
             ProduceRequest request = new ProduceRequest(topicId.getTopic(), source, messages, currentOffset);
             TransferWrap wrap = new TransferWrap(request);
             while (messageNum != 0) {
@@ -214,12 +293,10 @@ public class RemoteSender implements Sender{
                 this.lastSend = new Date();
                 this.lastSend.setTime(this.lastSend.getTime() + 1000L);
             }
-            while (offsetInfo.getMsgQueueSize() >= ParamsKey.TopicConf.DEFAULT_MESSAGE_QUEUE_MIN_ACK) {
-                TransferWrap response = connection.read();
-                MessageAck ackReply = (MessageAck) response.unwrap();
-                LOG.debug("Received message ack of Topic: " + topicId + ", Partition: " + source + ", Offset: "
-                        + ackReply.getOffset());
-                this.offsetInfo.msgAck(ackReply.getOffset());
+            if (ackMode == RegisterRequest.ACK_NONE) {
+                dropSent();
+            } else {
+                awaitAckWindow();
             }
         }
     }
@@ -247,4 +324,42 @@ public class RemoteSender implements Sender{
     public boolean isActive() {
         return connection.isActive();
     }
+
+    /**
+     * reads the MessageAcks of the broker until the connection is closed
+     */
+    class AckReader extends Thread {
+        AckReader() {
+            setName("AckReader-" + topicId + "-" + broker);
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (connection.isActive()) {
+                    TransferWrap response = connection.read();
+                    MessageAck ackReply = (MessageAck) response.unwrap();
+                    LOG.debug("Received message ack of Topic: " + topicId + ", Partition: " + source + ", Offset: "
+                            + ackReply.getOffset());
+                    synchronized (offsetInfo) {
+                        offsetInfo.msgAck(ackReply.getOffset());
+                        offsetInfo.notifyAll();
+                    }
+                }
+            } catch (IOException e) {
+                if (connection.isActive()) {
+                    LOG.error("Fail to read message ack of " + topicId + " from " + broker, e);
+                    connection.close();
+                }
+            } catch (RuntimeException e) {
+                LOG.error("Unexpected reply while reading message ack of " + topicId + " from " + broker, e);
+                connection.close();
+            } finally {
+                synchronized (offsetInfo) {
+                    offsetInfo.notifyAll();
+                }
+            }
+        }
+    }
 }
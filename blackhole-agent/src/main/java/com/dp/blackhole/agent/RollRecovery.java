@@ -1,13 +1,16 @@
 package com.dp.blackhole.agent;
 
 import java.io.BufferedInputStream;
+import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.Socket;
 import java.util.Random;
+import java.util.zip.CRC32;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -33,10 +36,23 @@ public class RollRecovery implements Runnable{
     private File transferFile;
     private boolean isTransferFileCompressed;
     private long startWaitTime;
+    private boolean rangeRecovery;
 
     public RollRecovery(Agent node, String brokerServer, int port,
             AgentMeta topicMeta, final long rollTimestamp, boolean isFinal,
             boolean isPersist) {
+        this(node, brokerServer, port, topicMeta, rollTimestamp, isFinal, isPersist, false);
+    }
+
+    /**
+     * @param rangeRecovery ask the broker which lines of the roll it still
+     * holds and send the rest of the file only, the broker must support
+     * AgentProtocol.VERSION_RANGE_RECOVERY
+     */
+    public RollRecovery(Agent node, String brokerServer, int port,
+            AgentMeta topicMeta, final long rollTimestamp, boolean isFinal,
+            boolean isPersist, boolean rangeRecovery) {
+        this.rangeRecovery = rangeRecovery;
         this.node = node;
         this.brokerServer = brokerServer;
         this.port = port;
@@ -120,6 +136,8 @@ public class RollRecovery implements Runnable{
             }
             
             // send recovery head, report fail in agent if catch exception.
+            long heldStart = -1;
+            long heldLength = 0;
             try {
                 socket = new Socket(brokerServer, port);
                 out = new DataOutputStream(socket.getOutputStream());
@@ -127,14 +145,26 @@ public class RollRecovery implements Runnable{
                 LOG.info("Perpare to Recovery " + transferFile + " for " + rollString 
                         + " offset [" + from + "~" + to + "] " 
                         + " include " + toTransferSize);
-                wrapSendRecoveryHead(false, out, toTransferSize, isTransferFileCompressed, isFinal);
+                boolean askHeld = rangeRecovery && !isTransferFileCompressed;
+                wrapSendRecoveryHead(false, out, toTransferSize, isTransferFileCompressed, isFinal, askHeld);
+                if (askHeld) {
+                    DataInputStream in = new DataInputStream(socket.getInputStream());
+                    heldLength = in.readLong();
+                    long heldCrc = in.readLong();
+                    heldStart = findHeld(heldLength, heldCrc, toTransferSize);
+                    out.writeLong(heldStart);
+                    if (heldStart >= 0) {
+                        LOG.info("broker holds [" + heldStart + "~" + (heldStart + heldLength - 1) + "] of "
+                                + transferFile + ", skip it");
+                    }
+                }
             } catch (IOException e) {
                 LOG.error("Faild to build recovery stream or send protocol header.", e);
                 node.reportRecoveryFail(topicMeta.getTopicId(), topicMeta.getSource(), rollPeriod, rollTimestamp, isFinal);
                 return;
             }
     
-            transferData(rollPeriod, toTransferSize, out, rollString, is, from);
+            transferData(rollPeriod, toTransferSize, out, rollString, is, from, heldStart, heldLength);
         } finally {
             if (is != null) {
                 try {
@@ -148,18 +178,34 @@ public class RollRecovery implements Runnable{
         }
     }
 
+    /**
+     * the heldLength bytes from heldStart on are skipped, if heldStart is not -1
+     */
     private void transferData(long rollPeriod, long toTransferSize,
-            DataOutputStream out, String rollString, InputStream is, long from) {
+            DataOutputStream out, String rollString, InputStream is, long from,
+            long heldStart, long heldLength) {
         int len = 0;
         long transferBytes = 0;
         try {
             LOG.info(transferFile + " is transferring for " + rollString);
             is.skip(from);
-            while (toTransferSize > 0 && (len = is.read(inbuf)) != -1) {
-                if (len > toTransferSize) {
-                    len = (int) toTransferSize;
+            long position = from;
+            while (toTransferSize > 0) {
+                if (position == heldStart) {
+                    skipFully(is, heldLength);
+                    position += heldLength;
+                    toTransferSize -= heldLength;
+                    continue;
+                }
+                long want = Math.min(inbuf.length, toTransferSize);
+                if (heldStart > position) {
+                    want = Math.min(want, heldStart - position);
+                }
+                if ((len = is.read(inbuf, 0, (int) want)) == -1) {
+                    break;
                 }
                 out.write(inbuf, 0, len);
+                position += len;
                 transferBytes += len;
                 toTransferSize -= len;
                 if (throttler != null) {
@@ -174,6 +220,54 @@ public class RollRecovery implements Runnable{
         }
     }
 
+    /**
+     * look for the lines the broker holds at the head and at the tail of
+     * the transfer file, where a broker outage leaves them
+     * @return where they start in the file, or -1
+     */
+    private long findHeld(long heldLength, long heldCrc, long fileSize) throws IOException {
+        if (heldLength <= 0 || heldLength > fileSize) {
+            return -1;
+        }
+        if (crc32(0, heldLength) == heldCrc) {
+            return 0;
+        }
+        if (heldLength < fileSize && crc32(fileSize - heldLength, heldLength) == heldCrc) {
+            return fileSize - heldLength;
+        }
+        LOG.info("the lines broker holds are not found in " + transferFile + ", send the whole file");
+        return -1;
+    }
+
+    private long crc32(long start, long length) throws IOException {
+        CRC32 crc = new CRC32();
+        InputStream in = new FileInputStream(transferFile);
+        try {
+            skipFully(in, start);
+            while (length > 0) {
+                int len = in.read(inbuf, 0, (int) Math.min(inbuf.length, length));
+                if (len == -1) {
+                    throw new EOFException(transferFile + " is shorter than expected");
+                }
+                crc.update(inbuf, 0, len);
+                length -= len;
+            }
+        } finally {
+            in.close();
+        }
+        return crc.getValue();
+    }
+
+    private static void skipFully(InputStream in, long n) throws IOException {
+        while (n > 0) {
+            long skipped = in.skip(n);
+            if (skipped <= 0) {
+                throw new EOFException("can not skip " + n + " more bytes");
+            }
+            n -= skipped;
+        }
+    }
+
     private File findAppropriateTransferFile() {
         File transferFile = null;
         File rolledFile;
@@ -212,18 +306,18 @@ public class RollRecovery implements Runnable{
             } else {
                 LOG.info("No need to recovery the topic which no need persist: " + topicMeta.getTopicId());
             }
-            wrapSendRecoveryHead(true, out, toTransferSize, hasCompressed, isFinal);
+            wrapSendRecoveryHead(true, out, toTransferSize, hasCompressed, isFinal, false);
         } catch (IOException e) {
             LOG.error("Faild to send ignorance protocol header.", e);
             node.reportUnrecoverable(topicMeta.getTopicId(), topicMeta.getSource(), rollPeriod, rollTimestamp, isFinal, isPersist);
         }
     }
 
-    public AgentProtocol wrapSendRecoveryHead(boolean ignore, DataOutputStream out, long fileSize, boolean hasCompressed, boolean isFinal)
-            throws IOException {
+    public AgentProtocol wrapSendRecoveryHead(boolean ignore, DataOutputStream out, long fileSize, boolean hasCompressed, boolean isFinal,
+            boolean askHeld) throws IOException {
         AgentProtocol protocol = new AgentProtocol();
         AgentHead head = protocol.new AgentHead();
-        head.version = AgentProtocol.VERSION_MICOR_BATCH;
+        head.version = askHeld ? AgentProtocol.VERSION_RANGE_RECOVERY : AgentProtocol.VERSION_MICOR_BATCH;
         head.ignore = ignore;
         head.app = topicMeta.getTopic();
         head.source = topicMeta.getSource();
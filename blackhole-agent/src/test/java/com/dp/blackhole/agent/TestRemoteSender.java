@@ -0,0 +1,222 @@
+package com.dp.blackhole.agent;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.net.SocketException;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.dp.blackhole.agent.AgentMeta.TopicId;
+import com.dp.blackhole.network.BlockingConnection;
+import com.dp.blackhole.network.TransferWrap;
+import com.dp.blackhole.protocol.data.MessageAck;
+import com.dp.blackhole.protocol.data.RegisterRequest;
+import com.dp.blackhole.storage.Message;
+
+public class TestRemoteSender {
+    private static final String MAGIC = "b7xq2ra";
+    private AgentMeta meta;
+    private FakeConnection connection;
+
+    @Before
+    public void setUp() {
+        meta = new AgentMeta(new TopicId(MAGIC, null), "/tmp/" + MAGIC, 3600, 3600, 1024, 1L, 5, 4096, 1024 * 1024,
+                1, -1);
+        connection = new FakeConnection();
+    }
+
+    @After
+    public void tearDown() {
+        connection.close();
+    }
+
+    private RemoteSender sender(int ackMode, int ackWindow) throws IOException {
+        return connect(new RemoteSender(meta, "localhost", 0, ackMode, ackWindow,
+                RemoteSender.DEFAULT_ACK_WINDOW_BYTES));
+    }
+
+    private RemoteSender connect(RemoteSender sender) throws IOException {
+        sender.setConnection(connection);
+        sender.setOffsetInfo(new OffsetInfo(0, MAGIC, sender.getSource()));
+        return sender;
+    }
+
+    /**
+     * sends one single line batch per call on its own thread
+     */
+    private Thread send(final RemoteSender sender, final int batches, final AtomicReference<IOException> failure) {
+        Thread thread = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    for (int i = 0; i < batches; i++) {
+                        sender.cacahAndSendLine(("line" + i).getBytes());
+                        sender.sendMessage();
+                    }
+                } catch (IOException e) {
+                    failure.set(e);
+                }
+            }
+        };
+        thread.start();
+        return thread;
+    }
+
+    private void awaitWritten(int count) throws InterruptedException {
+        for (int i = 0; i < 100 && connection.written.size() < count; i++) {
+            Thread.sleep(50);
+        }
+        assertEquals(count, connection.written.size());
+    }
+
+    @Test
+    public void testAckWindow() throws IOException, InterruptedException {
+        RemoteSender sender = sender(RegisterRequest.ACK_LEADER, 2);
+        AtomicReference<IOException> failure = new AtomicReference<IOException>();
+        Thread thread = send(sender, 3, failure);
+        // two batches are in flight, the second waits for an ack
+        awaitWritten(2);
+        Thread.sleep(200);
+        assertTrue(thread.isAlive());
+        assertEquals(2, connection.written.size());
+
+        // an ack of the first batch lets the third go
+        int batch = new Message("line0".getBytes()).getSize();
+        connection.ack(batch);
+        awaitWritten(3);
+        connection.ack(3 * batch);
+        thread.join(5000);
+        assertFalse(thread.isAlive());
+        assertNull(failure.get());
+    }
+
+    @Test
+    public void testDefaultWindow() throws IOException, InterruptedException {
+        // replicated acks with the default window
+        RemoteSender sender = connect(new RemoteSender(meta, "localhost", 0));
+        assertEquals(RemoteSender.DEFAULT_ACK_WINDOW, sender.getAckWindow());
+        assertTrue(RemoteSender.DEFAULT_ACK_WINDOW > 1);
+        AtomicReference<IOException> failure = new AtomicReference<IOException>();
+        Thread thread = send(sender, RemoteSender.DEFAULT_ACK_WINDOW + 1, failure);
+        // a whole window goes out without a single ack
+        awaitWritten(RemoteSender.DEFAULT_ACK_WINDOW);
+        Thread.sleep(200);
+        assertTrue(thread.isAlive());
+        assertEquals(RemoteSender.DEFAULT_ACK_WINDOW, connection.written.size());
+
+        int batch = new Message("line0".getBytes()).getSize();
+        connection.ack(RemoteSender.DEFAULT_ACK_WINDOW * batch);
+        awaitWritten(RemoteSender.DEFAULT_ACK_WINDOW + 1);
+        connection.ack((RemoteSender.DEFAULT_ACK_WINDOW + 1) * batch);
+        thread.join(5000);
+        assertFalse(thread.isAlive());
+        assertNull(failure.get());
+    }
+
+    @Test
+    public void testWindowBoundedByBytes() {
+        // 4096 byte message buffers
+        assertEquals(3, new RemoteSender(meta, "localhost", 0, RegisterRequest.ACK_LEADER, 8, 3 * 4096 + 100)
+                .getAckWindow());
+        assertEquals(1, new RemoteSender(meta, "localhost", 0, RegisterRequest.ACK_LEADER, 8, 100)
+                .getAckWindow());
+    }
+
+    @Test
+    public void testAckNone() throws IOException, InterruptedException {
+        RemoteSender sender = sender(RegisterRequest.ACK_NONE, 1);
+        AtomicReference<IOException> failure = new AtomicReference<IOException>();
+        Thread thread = send(sender, 3, failure);
+        thread.join(5000);
+        assertFalse(thread.isAlive());
+        assertNull(failure.get());
+        assertEquals(3, connection.written.size());
+        // no acks are read
+        assertEquals(0, connection.reads);
+    }
+
+    @Test
+    public void testConnectionLossWakesSender() throws IOException, InterruptedException {
+        RemoteSender sender = sender(RegisterRequest.ACK_REPLICATED, 1);
+        AtomicReference<IOException> failure = new AtomicReference<IOException>();
+        Thread thread = send(sender, 2, failure);
+        awaitWritten(1);
+        Thread.sleep(200);
+        assertTrue(thread.isAlive());
+
+        connection.close();
+        thread.join(5000);
+        assertFalse(thread.isAlive());
+        assertTrue(failure.get() instanceof SocketException);
+        assertEquals(1, connection.written.size());
+    }
+
+    /**
+     * hands out the acks a test feeds it, a read after close fails
+     */
+    private static class FakeConnection implements BlockingConnection<TransferWrap> {
+        private static final TransferWrap CLOSED = new TransferWrap(new MessageAck(false, -1));
+        private volatile boolean active = true;
+        private LinkedBlockingQueue<TransferWrap> acks = new LinkedBlockingQueue<TransferWrap>();
+        private List<TransferWrap> written = Collections.synchronizedList(new ArrayList<TransferWrap>());
+        private volatile int reads;
+
+        void ack(long offset) {
+            acks.add(new TransferWrap(new MessageAck(true, offset)));
+        }
+
+        @Override
+        public boolean isActive() {
+            return active;
+        }
+
+        @Override
+        public SocketChannel getChannel() {
+            return null;
+        }
+
+        @Override
+        public void close() {
+            active = false;
+            acks.add(CLOSED);
+        }
+
+        @Override
+        public TransferWrap read() throws IOException {
+            reads++;
+            TransferWrap wrap;
+            try {
+                wrap = acks.take();
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+            if (wrap == CLOSED) {
+                throw new IOException("connection closed");
+            }
+            return wrap;
+        }
+
+        @Override
+        public int write(TransferWrap entity) throws IOException {
+            if (!active) {
+                throw new IOException("connection closed");
+            }
+            written.add(entity);
+            return 0;
+        }
+
+        @Override
+        public boolean isResolved() {
+            return true;
+        }
+    }
+}
@@ -0,0 +1,228 @@
+package com.dp.blackhole.broker;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.dp.blackhole.common.DaemonThreadFactory;
+import com.dp.blackhole.common.TopicPartitionKey;
+import com.dp.blackhole.network.TransferWrap;
+import com.dp.blackhole.network.TransferWrapNonblockingConnection;
+import com.dp.blackhole.protocol.data.MessageAck;
+import com.dp.blackhole.protocol.data.ProduceRequest;
+import com.dp.blackhole.protocol.data.RegisterRequest;
+import com.dp.blackhole.storage.ByteBufferMessageSet;
+import com.dp.blackhole.storage.GatheringMessageSet;
+
+/**
+ * Appends produce requests to their partitions off the network handler
+ * threads. Every partition has a queue which is drained by at most one
+ * appender thread at a time, so the messages of a partition stay in order,
+ * and all requests queued meanwhile are written with one gathering write.
+ * Producers registered for leader acks get one MessageAck per write. A
+ * marker, e.g. a roll boundary, runs on the queue after every append
+ * submitted before it. A partition queues at most maxQueuedBytes of
+ * requests, submitting more blocks the handler thread until the disk
+ * catches up, so a slow disk pushes back on the producers.
+ */
+public class AppendPipeline {
+    private final Log LOG = LogFactory.getLog(AppendPipeline.class);
+
+    private ExecutorService appenders;
+    private ConcurrentHashMap<TopicPartitionKey, AppendQueue> queues;
+    private int maxBatchBytes;
+    private long maxQueuedBytes;
+
+    public AppendPipeline(int threads, int maxBatchBytes, long maxQueuedBytes) {
+        this.appenders = Executors.newFixedThreadPool(threads, new DaemonThreadFactory("Appender"));
+        this.queues = new ConcurrentHashMap<TopicPartitionKey, AppendQueue>();
+        this.maxBatchBytes = maxBatchBytes;
+        this.maxQueuedBytes = maxQueuedBytes;
+    }
+
+    public void submit(TopicPartitionKey tpKey, OriginMeta originMeta, ProduceRequest request) {
+        submit(tpKey, originMeta, request, null);
+    }
+
+    public void submit(TopicPartitionKey tpKey, OriginMeta originMeta, ProduceRequest request,
+            TransferWrapNonblockingConnection from) {
+        queueOf(tpKey).add(new PendingAppend(originMeta, request, from, null));
+    }
+
+    /**
+     * run marker once the appends submitted for tpKey so far are written
+     */
+    public void submitMarker(TopicPartitionKey tpKey, Runnable marker) {
+        queueOf(tpKey).add(new PendingAppend(null, null, null, marker));
+    }
+
+    private AppendQueue queueOf(TopicPartitionKey tpKey) {
+        AppendQueue queue = queues.get(tpKey);
+        if (queue == null) {
+            AppendQueue newQueue = new AppendQueue(tpKey);
+            queue = queues.putIfAbsent(tpKey, newQueue);
+            if (queue == null) {
+                queue = newQueue;
+            }
+        }
+        return queue;
+    }
+
+    public void remove(TopicPartitionKey tpKey) {
+        queues.remove(tpKey);
+    }
+
+    private static class PendingAppend {
+        final OriginMeta originMeta;
+        final ProduceRequest request;
+        final TransferWrapNonblockingConnection from;
+        final Runnable marker;
+
+        PendingAppend(OriginMeta originMeta, ProduceRequest request, TransferWrapNonblockingConnection from,
+                Runnable marker) {
+            this.originMeta = originMeta;
+            this.request = request;
+            this.from = from;
+            this.marker = marker;
+        }
+    }
+
+    private class AppendQueue implements Runnable {
+        private TopicPartitionKey tpKey;
+        private ConcurrentLinkedQueue<PendingAppend> pending;
+        private AtomicBoolean scheduled;
+        // bytes of the requests queued and not written yet, guarded by this
+        private long queuedBytes;
+
+        AppendQueue(TopicPartitionKey tpKey) {
+            this.tpKey = tpKey;
+            this.pending = new ConcurrentLinkedQueue<PendingAppend>();
+            this.scheduled = new AtomicBoolean(false);
+        }
+
+        void add(PendingAppend append) {
+            if (append.request != null) {
+                reserve(append.request.getMessageSize());
+            }
+            pending.add(append);
+            schedule();
+        }
+
+        /**
+         * wait until size fits in maxQueuedBytes, a request larger than that
+         * is let through alone
+         */
+        private synchronized void reserve(int size) {
+            while (queuedBytes > 0 && queuedBytes + size > maxQueuedBytes) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            queuedBytes += size;
+        }
+
+        private synchronized void release(int size) {
+            queuedBytes -= size;
+            notifyAll();
+        }
+
+        private void schedule() {
+            if (scheduled.compareAndSet(false, true)) {
+                appenders.execute(this);
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                PendingAppend head;
+                while ((head = pending.poll()) != null) {
+                    if (head.marker != null) {
+                        runMarker(head.marker);
+                    } else {
+                        appendBatch(head);
+                    }
+                }
+            } finally {
+                scheduled.set(false);
+                // an add() may have seen scheduled still set
+                if (!pending.isEmpty()) {
+                    schedule();
+                }
+            }
+        }
+
+        private void runMarker(Runnable marker) {
+            try {
+                marker.run();
+            } catch (RuntimeException e) {
+                LOG.error("marker of " + tpKey + " failed", e);
+            }
+        }
+
+        /**
+         * append head and the requests queued behind it for the same leader
+         * term, up to maxBatchBytes
+         */
+        private void appendBatch(PendingAppend head) {
+            OriginMeta originMeta = head.originMeta;
+            List<ProduceRequest> batch = new ArrayList<ProduceRequest>();
+            batch.add(head.request);
+            int bytes = head.request.getMessageSize();
+            TransferWrapNonblockingConnection from = head.from;
+            PendingAppend next;
+            while ((next = pending.peek()) != null && next.marker == null && next.originMeta == originMeta
+                    && bytes + next.request.getMessageSize() <= maxBatchBytes) {
+                pending.poll();
+                batch.add(next.request);
+                bytes += next.request.getMessageSize();
+                from = next.from;
+            }
+            try {
+                append(originMeta, batch, from);
+            } finally {
+                release(bytes);
+            }
+        }
+
+        private void append(OriginMeta originMeta, List<ProduceRequest> batch,
+                TransferWrapNonblockingConnection from) {
+            List<ByteBufferMessageSet> messageSets = new ArrayList<ByteBufferMessageSet>(batch.size());
+            synchronized (originMeta) {
+                long expected = originMeta.getEndOffset();
+                for (ProduceRequest request : batch) {
+                    if (request.offset > expected) {
+                        LOG.fatal("Message may missing.\n" + "RequestOffset: " + request.offset + ".\n"
+                                + originMeta.toString());
+                    }
+                    if (request.offset < expected) {
+                        LOG.fatal("Redundant messages.\n" + "RequestOffset: " + request.offset + ".\n"
+                                + originMeta.toString());
+                    }
+                    messageSets.add((ByteBufferMessageSet) request.getMesssageSet());
+                    expected += request.getMessageSize();
+                }
+                try {
+                    originMeta.append(new GatheringMessageSet(messageSets));
+                    originMeta.newMessage();
+                    if (from != null && originMeta.getAckMode() == RegisterRequest.ACK_LEADER) {
+                        from.send(new TransferWrap(new MessageAck(true, originMeta.getEndOffset())));
+                    }
+                } catch (IOException e) {
+                    LOG.error("IOE catched when appending " + batch.size() + " requests to " + tpKey, e);
+                }
+            }
+        }
+    }
+}
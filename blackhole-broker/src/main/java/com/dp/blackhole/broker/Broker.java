@@ -75,6 +75,15 @@ public class Broker {
         int maxUploadThreads = Integer.parseInt(prop.getProperty("broker.rollmanager.maxUploadThreads", "20"));
         int maxRecoveryThreads = Integer.parseInt(prop.getProperty("broker.rollmanager.maxRecoveryThreads", "10"));
         int recoverySocketTimeout = Integer.parseInt(prop.getProperty("broker.rollmanager.recoverySocketTimeout", "600000"));
+        String recoverySpoolDir = prop.getProperty("broker.rollmanager.recoverySpoolDir", "/tmp/recovery");
+        int compressThreads = Integer.parseInt(prop.getProperty("broker.rollmanager.compressThreads", "0"));
+        long uploadBandwidthPerSec = Long.parseLong(prop.getProperty("broker.rollmanager.uploadBandwidthPerSec", "0"));
+        long uploadOverdueMillis = Long.parseLong(prop.getProperty("broker.rollmanager.uploadOverdueMillis", "600000"));
+        long streamIntervalMillis = Long.parseLong(prop.getProperty("broker.rollmanager.streamIntervalMillis", "0"));
+        int maxHeldRolls = Integer.parseInt(prop.getProperty("broker.rollmanager.maxHeldRolls", "1024"));
+        long heldRollExpireMillis = Long.parseLong(prop.getProperty("broker.rollmanager.heldRollExpireMillis", "3600000"));
+        int compressChunkSize = Integer.parseInt(prop.getProperty("broker.rollmanager.compressChunkSize", "1048576"));
+        int compressMaxPending = Integer.parseInt(prop.getProperty("broker.rollmanager.compressMaxPending", "4"));
 
         boolean enableSecurity = Boolean.parseBoolean(prop.getProperty("broker.hdfs.security.enable", "true"));
         if (enableSecurity) {
@@ -96,11 +105,20 @@ public class Broker {
         
         Cat.logEvent("startup", version);
         LOG.info("Broker startup, version " + version);
-        rollMgr.init(hdfsbasedir, copmressionAlgoName, recoveryPort, clockSyncBufMillis, maxUploadThreads, maxRecoveryThreads, recoverySocketTimeout);
+        rollMgr.setHeldRollLimits(maxHeldRolls, heldRollExpireMillis);
+        rollMgr.setCompressLimits(compressChunkSize, compressMaxPending);
+        rollMgr.init(hdfsbasedir, copmressionAlgoName, recoveryPort, clockSyncBufMillis, maxUploadThreads, maxRecoveryThreads, recoverySocketTimeout, compressThreads,
+                uploadBandwidthPerSec, uploadOverdueMillis, streamIntervalMillis, recoverySpoolDir);
         
         brokerService = new BrokerService(prop);
         brokerService.setDaemon(true);
         brokerService.start();
+        Runtime.getRuntime().addShutdownHook(new Thread("StorageCloser") {
+            @Override
+            public void run() {
+                brokerService.close();
+            }
+        });
         followerConsumer = new FollowerConsumer(brokerService.manager, prop);
         
         // start GenClient
@@ -13,6 +13,7 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import com.dp.blackhole.broker.storage.Partition;
+import com.dp.blackhole.broker.storage.RetentionPolicy;
 import com.dp.blackhole.broker.storage.RollPartition;
 import com.dp.blackhole.broker.storage.StorageManager;
 import com.dp.blackhole.broker.storage.StorageManager.Reporter.ReportEntry;
@@ -42,8 +43,9 @@ import com.dp.blackhole.protocol.data.ProducerRegReply;
 import com.dp.blackhole.protocol.data.RegisterRequest;
 import com.dp.blackhole.protocol.data.ReplicaFetchRep;
 import com.dp.blackhole.protocol.data.ReplicaFetchReq;
+import com.dp.blackhole.protocol.data.ReplicaMultiFetchReq;
 import com.dp.blackhole.protocol.data.RollRequest;
-import com.dp.blackhole.storage.ByteBufferMessageSet;
+import com.dp.blackhole.storage.CompositeMessageSet;
 import com.dp.blackhole.storage.FileMessageSet;
 import com.dp.blackhole.storage.MessageAndOffset;
 import com.dp.blackhole.storage.MessageSet;
@@ -54,6 +56,8 @@ public class BrokerService extends Thread {
     GenServer<TransferWrap, TransferWrapNonblockingConnection, EntityProcessor<TransferWrap, TransferWrapNonblockingConnection>> server;
     StorageManager manager;
     PublisherExecutor executor;
+    AppendPipeline appendPipeline;
+    FetchPurgatory purgatory;
     private Map<TransferWrapNonblockingConnection, ClientDesc> clients;
     int servicePort;
     int numHandler;
@@ -63,6 +67,7 @@ public class BrokerService extends Thread {
     double INSYNC_THRESHOLD_DEFAULT;
     double INSYNC_BUFFER_DEFAULT;
     int MAX_TOLERANCE_DEFAULT;
+    int maxReplicaFetchChunks;
     
     public static void reportPartitionInfo(List<ReportEntry> entrylist) {
         Broker.getSupervisor().reportPartitionInfo(entrylist);
@@ -83,15 +88,27 @@ public class BrokerService extends Thread {
         String storagedir = prop.getProperty("broker.storage.dir");
         int splitThreshold = Integer.parseInt(prop.getProperty("broker.storage.splitThreshold", "536870912"));
         int flushThreshold = Integer.parseInt(prop.getProperty("broker.storage.flushThreshold", "4194304"));
+        int indexInterval = Integer.parseInt(prop.getProperty("broker.storage.indexInterval", "4096"));
+        int loadThreads = Integer.parseInt(prop.getProperty("broker.storage.loadThreads", "8"));
+        long flushInterval = Long.parseLong(prop.getProperty("broker.storage.flushInterval", "1000"));
+        boolean preallocate = Boolean.parseBoolean(prop.getProperty("broker.storage.preallocate", "true"));
         numHandler = Integer.parseInt(prop.getProperty("GenServer.handler.count", "3"));
+        int appendThreads = Integer.parseInt(prop.getProperty("broker.append.threads", "8"));
+        int appendBatchBytes = Integer.parseInt(prop.getProperty("broker.append.maxBatchBytes", "4194304"));
+        long appendQueuedBytes = Long.parseLong(prop.getProperty("broker.append.maxQueuedBytes", "16777216"));
         servicePort = Integer.parseInt(prop.getProperty("broker.service.port"));
         INSYNC_THRESHOLD_DEFAULT = Double.parseDouble(prop.getProperty("broker.follower.insyncThreshold", "0.5"));
         INSYNC_BUFFER_DEFAULT = Double.parseDouble(prop.getProperty("broker.follower.insyncBuffer", "0.3"));
         MAX_TOLERANCE_DEFAULT = Integer.parseInt(prop.getProperty("broker.follower.insyncMaxTolerance", "10"));
+        maxReplicaFetchChunks = Integer.parseInt(prop.getProperty("broker.replica.fetch.maxChunks", "16"));
         clients = new ConcurrentHashMap<TransferWrapNonblockingConnection, BrokerService.ClientDesc>();
         tpKeyConn = new ConcurrentHashMap<TopicPartitionKey, TransferWrapNonblockingConnection>();
         tpKeyOriginMeta = new ConcurrentHashMap<TopicPartitionKey, OriginMeta>();
-        manager = new StorageManager(storagedir, splitThreshold, flushThreshold);
+        manager = new StorageManager(storagedir.split(","), splitThreshold, flushThreshold, indexInterval, loadThreads, flushInterval, preallocate,
+                RetentionPolicy.load(prop));
+        purgatory = new FetchPurgatory();
+        manager.setAppendListener(purgatory);
+        appendPipeline = new AppendPipeline(appendThreads, appendBatchBytes, appendQueuedBytes);
         executor = new PublisherExecutor();
         NonblockingConnectionFactory<TransferWrapNonblockingConnection> factory = new TransferWrapNonblockingConnection.TransferWrapNonblockingConnectionFactory();
         TypedFactory wrappedFactory = new DataMessageTypeFactory();
@@ -99,6 +116,14 @@ public class BrokerService extends Thread {
             (executor, factory, wrappedFactory);
     }
     
+    /**
+     * stop answering held back fetches and close the storage
+     */
+    public void close() {
+        purgatory.shutdown();
+        manager.close();
+    }
+    
     public PublisherExecutor getExecutor() {
         return executor;
     }
@@ -247,6 +272,7 @@ public class BrokerService extends Thread {
                         + " when handling resgiter reqeust");
                 reply = new ProducerRegReply(false, -1L);
             }
+            om.setAckMode(request.ackMode);
             om.setLeaderOnline();
             from.send(new TransferWrap(reply));
         }
@@ -261,56 +287,49 @@ public class BrokerService extends Thread {
             Partition p = manager.getPartition(request.topic, request.partitionId);
             OriginMeta originMeta = tpKeyOriginMeta.get(tpKey);
             if (p != null && originMeta != null) {
-                synchronized (originMeta) {
-                    try {
-                        boolean adjustOffset = false;
-                        if (request.offset > originMeta.getEndOffset()) {
-                            LOG.fatal("Message may missing.\n" + "RequestOffset: " + request.offset + ".\n"
-                                    + originMeta.toString());
-                            adjustOffset = false;
-                        }
-                        if (request.offset < originMeta.getEndOffset()) {
-                            LOG.fatal("Redundant messages.\n" + "RequestOffset: " + request.offset + ".\n"
-                                    + originMeta.toString());
-                            adjustOffset = false;
-                        }
-                        if (adjustOffset) {
-                            long offset = originMeta.getEndOffset();
-                            LOG.debug("Need to adjust offset for Topic: " + topic + ", Partition: " + partition
-                                    + ", Offset: " + offset);
-                            MessageAck repAck = new MessageAck(false, offset);
-                            TransferWrapNonblockingConnection conn = tpKeyConn.get(tpKey);
-                            if (conn != null) {
-                                conn.send(new TransferWrap(repAck));
-                            }
-                            return;
-                        }
-                        originMeta.append((ByteBufferMessageSet) request.getMesssageSet());
-                        originMeta.newMessage();
-                    } catch (IOException e) {
-                        LOG.error("IOE catched", e);
-                    }
-                }
+                // the disk write is left to the appender of the partition
+                appendPipeline.submit(tpKey, originMeta, request, from);
             } else {
                 Util.logError(LOG, null, "can not get partition", request.topic, request.partitionId);
             }
         }
 
-        public void handleFetchRequest(FetchRequest request,
-                TransferWrapNonblockingConnection from) {
-            Partition p = manager.getPartition(request.topic, request.partitionId);
+        public void handleFetchRequest(final FetchRequest request,
+                final TransferWrapNonblockingConnection from) {
+            final Partition p = manager.getPartition(request.topic, request.partitionId);
             if (p == null) {
                 closeClientOfErrorRequest(from, request);
                 return;
             }
-            FileMessageSet messages = p.read(request.offset, request.limit);
-            
+            MessageSet messages = p.readMessages(request.offset, request.limit);
+            int minBytes = Math.min(request.minBytes, request.limit);
+            if (messages != null && messages.getSize() < minBytes && request.maxWait > 0) {
+                // hold the fetch back until enough is appended instead of answering it empty
+                purgatory.watch(new FetchPurgatory.DelayedFetch(p, request.offset, minBytes) {
+                    @Override
+                    protected void complete() {
+                        if (clients.containsKey(from)) {
+                            sendFetchReply(from, p, request, p.readMessages(request.offset, request.limit), true);
+                        }
+                    }
+                }, request.maxWait);
+                return;
+            }
+            sendFetchReply(from, p, request, messages, false);
+        }
+
+        /**
+         * @param held whether the fetch was held back in the purgatory
+         */
+        private void sendFetchReply(TransferWrapNonblockingConnection from, Partition p, FetchRequest request,
+                MessageSet messages, boolean held) {
             TransferWrap reply = null;
             if (messages == null) {
-                reply = new TransferWrap(new FetchReply(p.getId(), messages, MessageAndOffset.OFFSET_OUT_OF_RANGE));
+                reply = new TransferWrap(new FetchReply(p.getId(), messages, MessageAndOffset.OFFSET_OUT_OF_RANGE,
+                        held));
                 LOG.warn("Found offset out of range for " + request);
             } else {
-                reply = new TransferWrap(new FetchReply(p.getId(), messages, request.offset));
+                reply = new TransferWrap(new FetchReply(p.getId(), messages, request.offset, held));
             }
             from.send(reply);
         }
@@ -326,10 +345,16 @@ public class BrokerService extends Thread {
                     closeClientOfErrorRequest(from, request);
                     return;
                 }
-                FileMessageSet messages = p.read(f.offset, f.limit);
+                MessageSet messages = p.readMessages(f.offset, f.limit);
                 partitionList.add(p.getId());
-                messagesList.add(messages);
-                offsetList.add(messages.getOffset());
+                if (messages == null) {
+                    LOG.warn("Found offset out of range for " + f);
+                    messagesList.add(new CompositeMessageSet(new ArrayList<FileMessageSet>(0)));
+                    offsetList.add(MessageAndOffset.OFFSET_OUT_OF_RANGE);
+                } else {
+                    messagesList.add(messages);
+                    offsetList.add(f.offset);
+                }
             }
 
             from.send(new TransferWrap(new MultiFetchReply(partitionList,
@@ -345,47 +370,79 @@ public class BrokerService extends Thread {
             }
             if (request.autoOffset == OffsetRequest.EARLIES_OFFSET) {
                 from.send(new TransferWrap(new OffsetReply(request.topic, request.partition, p.getStartOffset())));
+            } else if (request.autoOffset == OffsetRequest.TIMESTAMP_OFFSET) {
+                long offset = p.getOffsetByTime(request.timestamp);
+                from.send(new TransferWrap(new OffsetReply(request.topic, request.partition, offset,
+                        p.getTimestampOf(offset))));
             } else {
                 from.send(new TransferWrap(new OffsetReply(request.topic, request.partition, p.getEndOffset())));
             }
         }
         
-        public void handleRollRequest(RollRequest request, TransferWrapNonblockingConnection from) {
-            Partition p = manager.getPartition(request.topic, request.partitionId);
+        public void handleRollRequest(final RollRequest request, TransferWrapNonblockingConnection from) {
+            final Partition p = manager.getPartition(request.topic, request.partitionId);
             if (p == null) {
                 closeClientOfErrorRequest(from, request);
                 return;
             }
-            try {
-                RollPartition roll = p.markRollPartition();
-                Broker.getRollMgr().perpareUpload(request.topic, request.partitionId, request.rollPeriod, roll);
-            } catch (IOException e) {
-                LOG.error("Got an IOE", e);
-            }
+            // produce requests sent before the roll request may still be queued for the partition
+            appendPipeline.submitMarker(new TopicPartitionKey(request.topic, request.partitionId), new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        RollPartition roll = p.markRollPartition();
+                        Broker.getRollMgr().perpareUpload(request.topic, request.partitionId, request.rollPeriod, roll);
+                    } catch (IOException e) {
+                        LOG.error("Got an IOE", e);
+                    }
+                }
+            });
         }
         
-        public void handleLastRotateRequest(HaltRequest request, TransferWrapNonblockingConnection from) {
-            Partition p = manager.getPartition(request.topic, request.partitionId);
+        public void handleLastRotateRequest(final HaltRequest request, TransferWrapNonblockingConnection from) {
+            final Partition p = manager.getPartition(request.topic, request.partitionId);
             if (p == null) {
                 closeClientOfErrorRequest(from, request);
                 return;
             }
-            try {
-                RollPartition roll = p.markRollPartition();
-                Broker.getRollMgr().doClean(request.topic, request.partitionId, request.rollPeriod, roll);
-            } catch (IOException e) {
-                LOG.error("Got an IOE", e);
-            }
+            appendPipeline.submitMarker(new TopicPartitionKey(request.topic, request.partitionId), new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        RollPartition roll = p.markRollPartition();
+                        Broker.getRollMgr().doClean(request.topic, request.partitionId, request.rollPeriod, roll);
+                    } catch (IOException e) {
+                        LOG.error("Got an IOE", e);
+                    }
+                }
+            });
         }
 
         public void handleReplicaFetchReq(ReplicaFetchReq request, TransferWrapNonblockingConnection from) {
-            int entropy = request.getEntropy();
-            String leader = request.getBrokerLeader();
-            String follower = request.getBrokerReplica();
-            String topic = request.getTopic();
-            String partition = request.getPartition();
-            long offset = request.getOffset();
-            long id = request.getId();
+            serveReplicaFetch(from, request.getEntropy(), request.getBrokerLeader(), request.getBrokerReplica(),
+                    request.getTopic(), request.getPartition(), request.getOffset(),
+                    ParamsKey.TopicConf.DEFAULT_REPLICA_FETCHSIZE, 1, request.getId(), -1, 0, 0);
+        }
+
+        public void handleReplicaMultiFetchReq(ReplicaMultiFetchReq request, TransferWrapNonblockingConnection from) {
+            for (ReplicaMultiFetchReq.Fetch fetch : request.getFetches()) {
+                int chunks = Math.max(1, Math.min(fetch.chunks, maxReplicaFetchChunks));
+                serveReplicaFetch(from, fetch.entropy, request.getBrokerLeader(), request.getBrokerReplica(),
+                        fetch.topic, fetch.partitionId, fetch.offset, fetch.limit, chunks, fetch.id,
+                        fetch.lastEntropy, request.getMaxWait(), request.getMinBytes());
+            }
+        }
+
+        /**
+         * answer a fetch with up to chunks consecutive replies of at most
+         * limit bytes each, an empty reply ends it early. A fetch finding
+         * nothing new waits up to maxWait millis for minBytes to be appended.
+         * A follower beyond where this partition left lastEntropy, the
+         * entropy of its last message, is sent back to that point.
+         */
+        private void serveReplicaFetch(final TransferWrapNonblockingConnection from, final int entropy,
+                final String leader, final String follower, final String topic, final String partition, long offset,
+                final int limit, final int chunks, final long id, int lastEntropy, int maxWait, int minBytes) {
             LOG.debug("Received replica fetch request Leader: " + leader + ", Replica: " + follower + ", Topic: "
                     + topic + ", Partition: " + partition + ", Offset: " + offset + ", FetchId: " + id);
             TopicPartitionKey tpKey = new TopicPartitionKey(topic, partition);
@@ -393,33 +450,46 @@ public class BrokerService extends Thread {
             if (originMeta == null) {
                 LOG.info("Leader not ready. Send empty replicaFetchReply to follower: " + follower + ", Topic: "
                         + topic + ", Partition: " + partition + ", Offset: " + offset);
-                sendReplicaFetchRep(from, entropy, topic, partition, leader, follower, offset, null, id);
+                sendReplicaFetchRep(from, entropy, topic, partition, leader, follower, offset, null, id, false);
                 return;
             }
             if (!isEqualEntropy(entropy, tpKey)) {
                 LOG.info("Not a valid entropy. Send empty replicaFetchReply to follower: " + follower + ", Topic: "
                         + topic + ", Partition: " + partition + ", Offset: " + offset);
-                sendReplicaFetchRep(from, entropy, topic, partition, leader, follower, offset, null, id);
+                sendReplicaFetchRep(from, entropy, topic, partition, leader, follower, offset, null, id, false);
                 return;
             }
             synchronized (originMeta) {
                 if (!tpKeyOriginMeta.containsKey(tpKey) || !originMeta.isLeaderOnline()
                         || !originMeta.containsFolower(follower) || !originMeta.isActive()) {
-                    sendReplicaFetchRep(from, entropy, topic, partition, leader, follower, offset, null, id);
+                    sendReplicaFetchRep(from, entropy, topic, partition, leader, follower, offset, null, id, false);
                     return;
                 }
                 Partition p = manager.getPartition(topic, partition);
                 FileMessageSet messages = null;
                 HashMap<String, Boolean> syncStatusChanges = null;
-                // TODO these rules may not cover all the situations when follower has errors about offset
-                if (offset < originMeta.getFollowerOffset(follower) || offset < p.getStartOffset() || offset > p.getEndOffset()) {
+                long divergence = lastEntropy < 0 ? -1L : p.getEntropyEndOffset(lastEntropy);
+                if (divergence >= p.getStartOffset() && offset > divergence) {
+                    // the follower went on in an entropy this partition left at divergence,
+                    // it keeps what it has before and truncates the rest
+                    LOG.warn("Follower diverged at " + divergence + ".\n" + "Follower: " + follower + ", Offset: "
+                            + offset + ", LastEntropy: " + lastEntropy + ".\n" + originMeta.toString());
+                    originMeta.initFollowerOffset(follower, divergence);
+                    messages = p.read(divergence, limit);
+                    offset = divergence;
+                } else if (offset < p.getStartOffset() || offset > p.getEndOffset()) {
                     LOG.fatal("Follower offset error.\n" + "Follower: " + follower + ", Offset: " + offset + ".\n"
                             + originMeta.toString());
                     originMeta.initFollowerOffset(follower);
-                    messages = p.read(p.getStartOffset(), ParamsKey.TopicConf.DEFAULT_REPLICA_FETCHSIZE);
+                    messages = p.read(p.getStartOffset(), limit);
                     offset = p.getStartOffset();
                 } else {
-                    messages = p.read(offset, ParamsKey.TopicConf.DEFAULT_REPLICA_FETCHSIZE);
+                    if (offset < originMeta.getFollowerOffset(follower)) {
+                        // the follower truncated, what it still has is a prefix of this partition
+                        LOG.warn("Follower went back to " + offset + ".\n" + originMeta.toString());
+                        originMeta.initFollowerOffset(follower, offset);
+                    }
+                    messages = p.read(offset, limit);
                     syncStatusChanges = originMeta.getStatusChange(follower, offset);
                 }
                 long newLeo = originMeta.getLeo();
@@ -428,25 +498,54 @@ public class BrokerService extends Thread {
                         sendFollowerSyncStatus(p.getEntropy(), topic, partition, change.getKey(), change.getValue());
                     }
                 }
-                LOG.debug("Send Message ACK, " + "Topic: " + topic + ", Partition: " + partition + ", Offset: " + newLeo
-                        + "\n" + originMeta.toString());
-                MessageAck repAck = new MessageAck(true, newLeo);
-                TransferWrapNonblockingConnection conn = tpKeyConn.get(tpKey);
-                if (conn != null) {
-                    conn.send(new TransferWrap(repAck));
+                if (originMeta.getAckMode() == RegisterRequest.ACK_REPLICATED) {
+                    LOG.debug("Send Message ACK, " + "Topic: " + topic + ", Partition: " + partition + ", Offset: "
+                            + newLeo + "\n" + originMeta.toString());
+                    MessageAck repAck = new MessageAck(true, newLeo);
+                    TransferWrapNonblockingConnection conn = tpKeyConn.get(tpKey);
+                    if (conn != null) {
+                        conn.send(new TransferWrap(repAck));
+                    }
                 }
-                sendReplicaFetchRep(from, entropy, topic, partition, leader, follower, offset, messages, id);
+                if (messages != null && messages.getSize() == 0 && maxWait > 0) {
+                    final Partition watched = p;
+                    final long fetchOffset = offset;
+                    purgatory.watch(new FetchPurgatory.DelayedFetch(p, offset, minBytes) {
+                        @Override
+                        protected void complete() {
+                            if (clients.containsKey(from)) {
+                                sendReplicaFetchChunks(from, watched, entropy, topic, partition, leader, follower,
+                                        fetchOffset, watched.read(fetchOffset, limit), limit, chunks, id, true);
+                            }
+                        }
+                    }, maxWait);
+                    return;
+                }
+                sendReplicaFetchChunks(from, p, entropy, topic, partition, leader, follower, offset, messages, limit,
+                        chunks, id, false);
+            }
+        }
+
+        private void sendReplicaFetchChunks(TransferWrapNonblockingConnection conn, Partition p, int entropy,
+                String topic, String partition, String leader, String follower, long offset,
+                FileMessageSet messages, int limit, int chunks, long id, boolean held) {
+            sendReplicaFetchRep(conn, entropy, topic, partition, leader, follower, offset, messages, id, held);
+            for (int i = 1; i < chunks && messages != null && messages.getSize() != 0; i++) {
+                offset += messages.getSize();
+                messages = p.read(offset, limit);
+                sendReplicaFetchRep(conn, entropy, topic, partition, leader, follower, offset, messages, id, held);
             }
         }
 
         private void sendReplicaFetchRep(TransferWrapNonblockingConnection conn, int entropy, String topic,
-                String partition, String leader, String follower, long offset, FileMessageSet messages, long id) {
+                String partition, String leader, String follower, long offset, FileMessageSet messages, long id,
+                boolean held) {
             if (conn != null) {
                 LOG.debug("Send ReplicaFetchReply to follower " + follower + ", Topic: " + topic + ", Partition: "
                         + partition + ", offset: " + offset + ", size: " + (messages == null ? 0 : messages.getSize())
                         + ", FetchId: " + id);
                 TransferWrap reply = new TransferWrap(
-                        new ReplicaFetchRep(entropy, topic, partition, leader, follower, offset, messages, id));
+                        new ReplicaFetchRep(entropy, topic, partition, leader, follower, offset, messages, id, held));
                 conn.send(reply);
             }
         }
@@ -480,6 +579,9 @@ public class BrokerService extends Thread {
             case DataMessageTypeFactory.ReplicaFetchReq:
                 handleReplicaFetchReq((ReplicaFetchReq) request.unwrap(), from);
                 break;
+            case DataMessageTypeFactory.ReplicaMultiFetchReq:
+                handleReplicaMultiFetchReq((ReplicaMultiFetchReq) request.unwrap(), from);
+                break;
             default:
                 LOG.error("unknown message type: " + request.getType());
             }
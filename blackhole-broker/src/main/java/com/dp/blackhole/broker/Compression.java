@@ -2,12 +2,17 @@ package com.dp.blackhole.broker;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
 import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -17,7 +22,6 @@ import org.apache.hadoop.fs.FSDataInputStream;
 import org.apache.hadoop.fs.FSDataOutputStream;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
-import org.apache.hadoop.io.compress.CodecPool;
 import org.apache.hadoop.io.compress.CompressionCodec;
 import org.apache.hadoop.io.compress.CompressionInputStream;
 import org.apache.hadoop.io.compress.CompressionOutputStream;
@@ -25,6 +29,7 @@ import org.apache.hadoop.io.compress.Compressor;
 import org.apache.hadoop.io.compress.Decompressor;
 import org.apache.hadoop.io.compress.DefaultCodec;
 import org.apache.hadoop.io.compress.GzipCodec;
+import org.apache.hadoop.util.NativeCodeLoader;
 import org.apache.hadoop.util.ReflectionUtils;
 
 import com.dp.blackhole.common.ParamsKey;
@@ -44,21 +49,41 @@ public final class Compression {
     }
 
     static class FinishOnFlushCompressionStream extends FilterOutputStream {
+        // finished and nothing written since, the state is reset only on
+        // the next write so that close() does not finish a second time
+        private boolean finished = false;
+
         public FinishOnFlushCompressionStream(CompressionOutputStream cout) {
             super(cout);
         }
 
+        @Override
+        public void write(int b) throws IOException {
+            resetIfFinished();
+            out.write(b);
+        }
+
         @Override
         public void write(byte b[], int off, int len) throws IOException {
+            resetIfFinished();
             out.write(b, off, len);
         }
 
+        private void resetIfFinished() throws IOException {
+            if (finished) {
+                ((CompressionOutputStream) out).resetState();
+                finished = false;
+            }
+        }
+
         @Override
         public void flush() throws IOException {
             CompressionOutputStream cout = (CompressionOutputStream) out;
-            cout.finish();
+            if (!finished) {
+                cout.finish();
+                finished = true;
+            }
             cout.flush();
-            cout.resetState();
         }
     }
 
@@ -69,6 +94,9 @@ public final class Compression {
         LZO(ParamsKey.COMPRESSION_LZO) {
             private static final String defaultClazz = "com.hadoop.compression.lzo.LzopCodec";
             private transient CompressionCodec codec = null;
+            // LzopCodec.createIndexedOutputStream, since hadoop-lzo 0.4.17
+            private transient Method indexedOutputStream = null;
+            private transient boolean indexedOutputStreamChecked = false;
 
             @Override
             public synchronized boolean isSupported() {
@@ -139,6 +167,47 @@ public final class Compression {
                 return bos2;
             }
 
+            @Override
+            public synchronized boolean canIndexInline() {
+                if (!isSupported()) {
+                    return false;
+                }
+                if (!indexedOutputStreamChecked) {
+                    indexedOutputStreamChecked = true;
+                    try {
+                        indexedOutputStream = codec.getClass().getMethod("createIndexedOutputStream",
+                                OutputStream.class, DataOutputStream.class, Compressor.class);
+                    } catch (NoSuchMethodException e) {
+                        LOG.warn("hadoop-lzo can not index while compressing, upgrade it to 0.4.17 or later");
+                    }
+                }
+                return indexedOutputStream != null;
+            }
+
+            @Override
+            public synchronized OutputStream createIndexedCompressionStream(
+                    OutputStream downStream, Compressor compressor,
+                    DataOutputStream indexOut) throws IOException {
+                if (!canIndexInline()) {
+                    throw new IOException("LZO codec can not index while compressing.");
+                }
+                conf.setInt("io.compression.codec.lzo.buffersize", 64 * 1024);
+                CompressionOutputStream cos;
+                try {
+                    cos = (CompressionOutputStream) indexedOutputStream.invoke(codec, downStream,
+                            indexOut, compressor);
+                } catch (IllegalAccessException e) {
+                    throw new IOException(e);
+                } catch (InvocationTargetException e) {
+                    if (e.getCause() instanceof IOException) {
+                        throw (IOException) e.getCause();
+                    }
+                    throw new IOException(e.getCause());
+                }
+                return new BufferedOutputStream(
+                        new FinishOnFlushCompressionStream(cos), DATA_OBUF_SIZE);
+            }
+
             @Override
             public void createIndex(FileSystem fs, Path lzoFile, Path tmp)
                     throws IOException {
@@ -282,6 +351,22 @@ public final class Compression {
             }
         },
 
+        LZ4(ParamsKey.COMPRESSION_LZ4, "org.apache.hadoop.io.compress.Lz4Codec") {
+            @Override
+            public void createIndex(FileSystem fs, Path lzoFile, Path tmp)
+                    throws IOException {
+                throw new UnsupportedOperationException("just lzo can create index");
+            }
+        },
+
+        ZSTD(ParamsKey.COMPRESSION_ZSTD, "org.apache.hadoop.io.compress.ZStandardCodec") {
+            @Override
+            public void createIndex(FileSystem fs, Path lzoFile, Path tmp)
+                    throws IOException {
+                throw new UnsupportedOperationException("just lzo can create index");
+            }
+        },
+
         NONE(ParamsKey.COMPRESSION_NONE) {
             @Override
             CompressionCodec getCodec() {
@@ -331,89 +416,232 @@ public final class Compression {
         private static final int DATA_IBUF_SIZE = 1 * 1024;
         // data output buffer size to absorb small writes from application.
         private static final int DATA_OBUF_SIZE = 4 * 1024;
+        // idle compressors and decompressors kept per algorithm
+        private static final int MAX_POOLED = 32;
+        private final BlockingQueue<Compressor> idleCompressors;
+        private final BlockingQueue<Decompressor> idleDecompressors;
+
+        // codec class of an algorithm backed by a native hadoop codec
+        private final String nativeCodecClass;
+        private transient CompressionCodec nativeCodec = null;
+        private transient boolean nativeCodecLoaded = false;
 
         Algorithm(String name) {
+            this(name, null);
+        }
+
+        Algorithm(String name, String nativeCodecClass) {
             this.compressName = name;
+            this.nativeCodecClass = nativeCodecClass;
+            this.idleCompressors = new ArrayBlockingQueue<Compressor>(MAX_POOLED);
+            this.idleDecompressors = new ArrayBlockingQueue<Decompressor>(MAX_POOLED);
+        }
+
+        /**
+         * load a hadoop codec which only works with the native hadoop
+         * library, null if it is missing
+         */
+        static CompressionCodec loadNativeCodec(String clazz) {
+            try {
+                LOG.info("Trying to load codec class: " + clazz);
+                Class<?> codecClass = Class.forName(clazz);
+                if (!NativeCodeLoader.isNativeCodeLoaded()) {
+                    LOG.warn(clazz + " needs the native hadoop library which is not loaded");
+                    return null;
+                }
+                return (CompressionCodec) ReflectionUtils.newInstance(codecClass, conf);
+            } catch (ClassNotFoundException e) {
+                // not in this hadoop version
+                return null;
+            }
         }
 
         public abstract void createIndex(FileSystem fs, Path lzoFile, Path tmp) throws IOException;
 
-        abstract CompressionCodec getCodec() throws IOException;
+        /*
+         * the defaults below serve the algorithms backed by a native hadoop
+         * codec, the others override them
+         */
+
+        public synchronized boolean isSupported() {
+            if (!nativeCodecLoaded) {
+                if (nativeCodecClass != null) {
+                    nativeCodec = loadNativeCodec(nativeCodecClass);
+                }
+                nativeCodecLoaded = true;
+            }
+            return nativeCodec != null;
+        }
+
+        CompressionCodec getCodec() throws IOException {
+            if (!isSupported()) {
+                throw new IOException(compressName + " codec not available.");
+            }
+            return nativeCodec;
+        }
 
-        public abstract InputStream createDecompressionStream(
+        public InputStream createDecompressionStream(
                 InputStream downStream, Decompressor decompressor,
-                int downStreamBufferSize) throws IOException;
+                int downStreamBufferSize) throws IOException {
+            CompressionCodec codec = getCodec();
+            InputStream bis1 = null;
+            if (downStreamBufferSize > 0) {
+                bis1 = new BufferedInputStream(downStream, downStreamBufferSize);
+            } else {
+                bis1 = downStream;
+            }
+            CompressionInputStream cis = codec.createInputStream(bis1, decompressor);
+            return new BufferedInputStream(cis, DATA_IBUF_SIZE);
+        }
 
-        public abstract OutputStream createCompressionStream(
+        public OutputStream createCompressionStream(
                 OutputStream downStream, Compressor compressor,
-                int downStreamBufferSize) throws IOException;
+                int downStreamBufferSize) throws IOException {
+            CompressionCodec codec = getCodec();
+            OutputStream bos1 = null;
+            if (downStreamBufferSize > 0) {
+                bos1 = new BufferedOutputStream(downStream, downStreamBufferSize);
+            } else {
+                bos1 = downStream;
+            }
+            CompressionOutputStream cos = codec.createOutputStream(bos1, compressor);
+            return new BufferedOutputStream(new FinishOnFlushCompressionStream(cos), DATA_OBUF_SIZE);
+        }
 
-        public abstract boolean isSupported();
+        /**
+         * whether the block index of the compressed data can be written
+         * while compressing, see createIndexedCompressionStream
+         */
+        public boolean canIndexInline() {
+            return false;
+        }
 
+        /**
+         * a compression stream which writes the offset of every compressed
+         * block to indexOut, in the format of the index files createIndex
+         * builds; indexOut is closed with the stream
+         */
+        public OutputStream createIndexedCompressionStream(
+                OutputStream downStream, Compressor compressor,
+                DataOutputStream indexOut) throws IOException {
+            throw new UnsupportedOperationException("just lzo can create index");
+        }
+
+        /**
+         * borrow a compressor, an idle pooled one if there is, hand it back
+         * with returnCompressor
+         */
         public Compressor getCompressor() throws IOException {
             CompressionCodec codec = getCodec();
-            if (codec != null) {
-                Compressor compressor = CodecPool.getCompressor(codec);
+            if (codec == null) {
+                return null;
+            }
+            Compressor compressor = idleCompressors.poll();
+            if (compressor == null) {
+                compressor = codec.createCompressor();
                 if (compressor != null) {
-                    if (compressor.finished()) {
-                        // Somebody returns the compressor to CodecPool but is
-                        // still using
-                        // it.
-                        LOG.warn("Compressor obtained from CodecPool already finished()");
-                    } else {
-                        LOG.debug("Got a compressor: " + compressor.hashCode());
-                    }
-                    /**
-                     * Following statement is necessary to get around bugs in
-                     * 0.18 where a compressor is referenced after returned back
-                     * to the codec pool.
-                     */
-                    compressor.reset();
+                    LOG.debug("Created a compressor: " + compressor.hashCode());
                 }
-                return compressor;
+            } else {
+                LOG.debug("Got a compressor: " + compressor.hashCode());
+                compressor.reset();
             }
-            return null;
+            return compressor;
         }
 
         public void returnCompressor(Compressor compressor) {
             if (compressor != null) {
                 LOG.debug("Return a compressor: " + compressor.hashCode());
-                CodecPool.returnCompressor(compressor);
+                if (!idleCompressors.offer(compressor)) {
+                    compressor.end();
+                }
             }
         }
 
+        /**
+         * borrow a decompressor, an idle pooled one if there is, hand it
+         * back with returnDecompressor
+         */
         public Decompressor getDecompressor() throws IOException {
             CompressionCodec codec = getCodec();
-            if (codec != null) {
-                Decompressor decompressor = CodecPool.getDecompressor(codec);
-                if (decompressor != null) {
-                    if (decompressor.finished()) {
-                        // Somebody returns the decompressor to CodecPool but is
-                        // still using
-                        // it.
-                        LOG.warn("Deompressor obtained from CodecPool already finished()");
-                    } else {
-                        LOG.debug("Got a decompressor: "
-                                + decompressor.hashCode());
-                    }
-                    /**
-                     * Following statement is necessary to get around bugs in
-                     * 0.18 where a decompressor is referenced after returned
-                     * back to the codec pool.
-                     */
-                    decompressor.reset();
-                }
-                return decompressor;
+            if (codec == null) {
+                return null;
             }
-
-            return null;
+            Decompressor decompressor = idleDecompressors.poll();
+            if (decompressor == null) {
+                decompressor = codec.createDecompressor();
+            } else {
+                LOG.debug("Got a decompressor: " + decompressor.hashCode());
+                decompressor.reset();
+            }
+            return decompressor;
         }
 
         public void returnDecompressor(Decompressor decompressor) {
             if (decompressor != null) {
                 LOG.debug("Returned a decompressor: " + decompressor.hashCode());
-                CodecPool.returnDecompressor(decompressor);
+                if (!idleDecompressors.offer(decompressor)) {
+                    decompressor.end();
+                }
+            }
+        }
+
+        /**
+         * a compression stream with a pooled compressor, which is returned
+         * to the pool when the stream is closed
+         */
+        public OutputStream createPooledCompressionStream(OutputStream downStream,
+                int downStreamBufferSize) throws IOException {
+            Compressor compressor = getCompressor();
+            OutputStream stream;
+            try {
+                stream = createCompressionStream(downStream, compressor, downStreamBufferSize);
+            } catch (IOException e) {
+                returnCompressor(compressor);
+                throw e;
             }
+            return returnOnClose(stream, compressor);
+        }
+
+        /**
+         * a pooled compression stream which indexes the compressed blocks
+         * to indexOut, see createIndexedCompressionStream
+         */
+        public OutputStream createPooledIndexedCompressionStream(OutputStream downStream,
+                DataOutputStream indexOut) throws IOException {
+            Compressor compressor = getCompressor();
+            OutputStream stream;
+            try {
+                stream = createIndexedCompressionStream(downStream, compressor, indexOut);
+            } catch (IOException e) {
+                returnCompressor(compressor);
+                throw e;
+            }
+            return returnOnClose(stream, compressor);
+        }
+
+        private OutputStream returnOnClose(OutputStream stream, final Compressor compressor) {
+            return new FilterOutputStream(stream) {
+                private boolean closed = false;
+
+                @Override
+                public void write(byte b[], int off, int len) throws IOException {
+                    out.write(b, off, len);
+                }
+
+                @Override
+                public void close() throws IOException {
+                    if (closed) {
+                        return;
+                    }
+                    closed = true;
+                    try {
+                        out.close();
+                    } finally {
+                        returnCompressor(compressor);
+                    }
+                }
+            };
         }
 
         public String getName() {
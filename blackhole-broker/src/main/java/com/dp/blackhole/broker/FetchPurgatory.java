@@ -0,0 +1,157 @@
+package com.dp.blackhole.broker;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.dp.blackhole.broker.storage.Partition;
+import com.dp.blackhole.common.DaemonThreadFactory;
+
+/**
+ * Holds back fetches which found nothing new, instead of answering them
+ * empty and having the fetcher poll again. A fetch waits until appends to
+ * its partition bring minBytes beyond its offset or maxWait passes, then it
+ * is answered off the appending thread.
+ */
+public class FetchPurgatory implements Partition.AppendListener {
+    private static final Log LOG = LogFactory.getLog(FetchPurgatory.class);
+
+    private ConcurrentHashMap<Partition, ConcurrentLinkedQueue<DelayedFetch>> watchers;
+    private ScheduledExecutorService executor;
+
+    public FetchPurgatory() {
+        this.watchers = new ConcurrentHashMap<Partition, ConcurrentLinkedQueue<DelayedFetch>>();
+        this.executor = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("FetchPurgatory"));
+    }
+
+    /**
+     * a fetch waiting for the end of partition p to pass offset by minBytes
+     */
+    public abstract static class DelayedFetch implements Runnable {
+        private final Partition p;
+        private final long offset;
+        private final int minBytes;
+        private final AtomicBoolean done;
+        private volatile ScheduledFuture<?> expiry;
+
+        public DelayedFetch(Partition p, long offset, int minBytes) {
+            this.p = p;
+            this.offset = offset;
+            this.minBytes = Math.max(1, minBytes);
+            this.done = new AtomicBoolean(false);
+        }
+
+        boolean isSatisfied() {
+            return p.getEndOffset() - offset >= minBytes;
+        }
+
+        boolean take() {
+            return done.compareAndSet(false, true);
+        }
+
+        boolean isDone() {
+            return done.get();
+        }
+
+        /**
+         * answer the fetch with whatever there is now
+         */
+        protected abstract void complete();
+
+        @Override
+        public void run() {
+            try {
+                complete();
+            } catch (RuntimeException e) {
+                LOG.error("failed to answer delayed fetch of " + p.getTopic() + "/" + p.getId() + " at " + offset, e);
+            }
+        }
+    }
+
+    /**
+     * park fetch for up to maxWait millis
+     */
+    public void watch(final DelayedFetch fetch, long maxWait) {
+        ConcurrentLinkedQueue<DelayedFetch> queue = watchers.get(fetch.p);
+        if (queue == null) {
+            ConcurrentLinkedQueue<DelayedFetch> newQueue = new ConcurrentLinkedQueue<DelayedFetch>();
+            queue = watchers.putIfAbsent(fetch.p, newQueue);
+            if (queue == null) {
+                queue = newQueue;
+            }
+        }
+        queue.add(fetch);
+        final ConcurrentLinkedQueue<DelayedFetch> watching = queue;
+        fetch.expiry = executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                watching.remove(fetch);
+                if (fetch.take()) {
+                    fetch.run();
+                }
+            }
+        }, maxWait, TimeUnit.MILLISECONDS);
+        // an append may have come in before the fetch was watched
+        if (fetch.isSatisfied()) {
+            satisfy(watching, fetch);
+        }
+    }
+
+    @Override
+    public void appended(Partition p) {
+        ConcurrentLinkedQueue<DelayedFetch> queue = watchers.get(p);
+        if (queue == null || queue.isEmpty()) {
+            return;
+        }
+        Iterator<DelayedFetch> iter = queue.iterator();
+        while (iter.hasNext()) {
+            DelayedFetch fetch = iter.next();
+            if (fetch.isDone()) {
+                iter.remove();
+            } else if (fetch.isSatisfied()) {
+                satisfy(queue, fetch);
+            }
+        }
+    }
+
+    private void satisfy(ConcurrentLinkedQueue<DelayedFetch> queue, DelayedFetch fetch) {
+        if (!fetch.take()) {
+            return;
+        }
+        queue.remove(fetch);
+        ScheduledFuture<?> expiry = fetch.expiry;
+        if (expiry != null) {
+            expiry.cancel(false);
+        }
+        executor.execute(fetch);
+    }
+
+    /**
+     * drop the watchers of a partition gone from this broker, its fetches
+     * still expire
+     */
+    @Override
+    public void removed(Partition p) {
+        watchers.remove(p);
+    }
+
+    public int waiting() {
+        int n = 0;
+        for (ConcurrentLinkedQueue<DelayedFetch> queue : watchers.values()) {
+            n += queue.size();
+        }
+        return n;
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+}
@@ -1,42 +1,58 @@
 package com.dp.blackhole.broker;
 
-import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
-import java.net.Socket;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
-import org.apache.hadoop.io.compress.Compressor;
 
 import com.dp.blackhole.common.ParamsKey;
 
+/**
+ * Uploads a roll which an agent recovered into a local spool file, the
+ * spool is deleted afterwards. Lines of the roll still held locally are
+ * merged in where the agent found them in its file.
+ */
 public class HDFSRecovery implements Runnable{
     private static final Log LOG = LogFactory.getLog(HDFSRecovery.class);
     private RollManager mgr;
     private FileSystem fs;
-    private static final int DEFAULT_BUFSIZE = 8192;
-    private Socket client;
+    private static final int DEFAULT_BUFSIZE = 64 * 1024;
+    private File spool;
     private boolean recoverySuccess;
     private RollIdent ident;
     private long fileSize;
     private boolean hasCompressed;
+    private HeldRoll held;
+    private long heldStart;
 
-    public HDFSRecovery(RollManager mgr, FileSystem fs, Socket socket, RollIdent roll, long fileSize, boolean hasCompressed) {
+    public HDFSRecovery(RollManager mgr, FileSystem fs, File spool, RollIdent roll, long fileSize, boolean hasCompressed) {
         this.mgr = mgr;
         this.fs = fs;
         this.ident = roll;
         this.recoverySuccess = false;
-        this.client = socket;
+        this.spool = spool;
         this.fileSize = fileSize;
         this.hasCompressed = hasCompressed;
     }
     
+    /**
+     * the spool lacks the held lines, which start at heldStart of the file
+     */
+    public void setHeld(HeldRoll held, long heldStart) {
+        this.held = held;
+        this.heldStart = heldStart;
+    }
+    
     @Override
     public void run() {
         OutputStream out = null;
+        InputStream in = null;
         String normalPathname;
         try {
             if (hasCompressed) {
@@ -57,11 +73,25 @@ public class HDFSRecovery implements Runnable{
                 if (hasCompressed) {
                     out = fs.create(recoveryPath);
                 } else {
-                    Compressor compressor = mgr.getDefaultCompressionAlgo().getCompressor();
-                    out = mgr.getDefaultCompressionAlgo()
-                            .createCompressionStream(fs.create(recoveryPath), compressor, 0);
+                    out = mgr.getDefaultCompressionAlgo().createPooledCompressionStream(fs.create(recoveryPath), 0);
+                }
+                in = new FileInputStream(spool);
+                if (held != null) {
+                    long before = heldStart;
+                    while (before > 0 && (len = in.read(buf, 0, (int) Math.min(buf.length, before))) != -1) {
+                        out.write(buf, 0, len);
+                        uploadSize += len;
+                        before -= len;
+                    }
+                    try {
+                        held.writeTo(out);
+                    } catch (IOException e) {
+                        // the partition no longer has it, the next recovery takes the whole file
+                        mgr.dropHeldRoll(ident);
+                        throw e;
+                    }
+                    uploadSize += held.getLength();
                 }
-                DataInputStream in = new DataInputStream(client.getInputStream());
                 while((len = in.read(buf)) != -1) {
                     out.write(buf, 0, len);
                     uploadSize += len;
@@ -109,13 +139,16 @@ public class HDFSRecovery implements Runnable{
                 }
                 out = null;
             }
-            if (client != null && !client.isClosed()) {
+            if (in != null) {
                 try {
-                    client.close();
+                    in.close();
                 } catch (IOException e) {
-                    LOG.warn("Cound not close the socket from " + client.getInetAddress(), e);
+                    LOG.warn("Cound not close the spool " + spool, e);
                 }
-                client = null;
+                in = null;
+            }
+            if (!spool.delete()) {
+                LOG.warn("Cound not delete the spool " + spool);
             }
             if (!recoverySuccess) {
                 try {
@@ -1,30 +1,29 @@
 package com.dp.blackhole.broker;
 
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
-import java.nio.channels.Channels;
 import java.nio.channels.GatheringByteChannel;
-import java.nio.channels.WritableByteChannel;
-import java.nio.charset.Charset;
-import java.util.Iterator;
+import java.util.concurrent.ExecutorService;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.fs.FSDataInputStream;
 import org.apache.hadoop.fs.FSDataOutputStream;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
-import org.apache.hadoop.io.compress.Compressor;
 
 import com.dp.blackhole.broker.Compression.Algorithm;
+import com.dp.blackhole.broker.ftp.FTPUpload;
 import com.dp.blackhole.broker.storage.Partition;
 import com.dp.blackhole.broker.storage.StorageManager;
 import com.dp.blackhole.broker.storage.RollPartition;
 import com.dp.blackhole.common.ParamsKey;
 import com.dp.blackhole.common.Util;
+import com.dp.blackhole.network.TransferThrottler;
 import com.dp.blackhole.storage.ByteBufferMessageSet;
 import com.dp.blackhole.storage.FileMessageSet;
-import com.dp.blackhole.storage.MessageAndOffset;
 
 public class HDFSUpload implements Runnable {
     private static final Log LOG = LogFactory.getLog(HDFSUpload.class);
@@ -36,13 +35,53 @@ public class HDFSUpload implements Runnable {
     private boolean uploadSuccess;
     private String compression;
     private final int BufferSize = 4 * 1024 * 1024;
+    private final int WriteBlockSize = 1024 * 1024;
+    private final int MirrorBufferSize = 16 * 1024 * 1024;
+    private final long MIRROR_WAIT_TIME_MILLIS = 60 * 1000;
+    private static final int DEFAULT_CHECKPOINT_SIZE = 64 * 1024 * 1024;
     private final int UPLOAD_RETRY_NUM = 3;
+    private static final long DEFAULT_MIN_WAIT_MILLIS = 10 * 1000;
     private final long WAIT_TIME_MILLIS = 3 * 60 * 1000;
+    private static final String RESUME_SUFFIX = ".resume";
     private boolean networkError = false;
     private Algorithm compressionAlgo;
+    private ExecutorService compressPool;
+    private int compressChunkSize;
+    private int compressMaxPending;
+    private int checkpointSize;
+    private long minWaitMillis;
+    private FTPUpload mirror;
+    private TransferThrottler throttler;
+    private StreamingUpload stream;
+    // roll offset and tmp file length of the last checkpoint, -1 if none
+    private long checkpointOffset = -1;
+    private long checkpointLength;
 
     public HDFSUpload(RollManager mgr, StorageManager manager, FileSystem fs, RollIdent ident, RollPartition roll,
             String compression) {
+        this(mgr, manager, fs, ident, roll, compression, null, 0, 0);
+    }
+
+    /**
+     * @param compressPool if not null, rolls are compressed in chunks on it
+     * where the algorithm allows
+     * @param compressChunkSize bytes compressed per chunk
+     * @param compressMaxPending chunks buffered per upload at most
+     */
+    public HDFSUpload(RollManager mgr, StorageManager manager, FileSystem fs, RollIdent ident, RollPartition roll,
+            String compression, ExecutorService compressPool, int compressChunkSize, int compressMaxPending) {
+        this(mgr, manager, fs, ident, roll, compression, compressPool, compressChunkSize, compressMaxPending,
+                DEFAULT_CHECKPOINT_SIZE, DEFAULT_MIN_WAIT_MILLIS);
+    }
+
+    /**
+     * @param checkpointSize bytes uploaded between resumable checkpoints
+     * @param minWaitMillis first wait before an upload is retried, doubled
+     * on every retry
+     */
+    HDFSUpload(RollManager mgr, StorageManager manager, FileSystem fs, RollIdent ident, RollPartition roll,
+            String compression, ExecutorService compressPool, int compressChunkSize, int compressMaxPending,
+            int checkpointSize, long minWaitMillis) {
         this.mgr = mgr;
         this.manager = manager;
         this.fs = fs;
@@ -50,48 +89,149 @@ public class HDFSUpload implements Runnable {
         this.roll = roll;
         this.uploadSuccess = false;
         this.compression = compression;
+        this.compressPool = compressPool;
+        this.compressChunkSize = compressChunkSize;
+        this.compressMaxPending = compressMaxPending;
+        this.checkpointSize = checkpointSize;
+        this.minWaitMillis = minWaitMillis;
+    }
+
+    /**
+     * mirror the roll to ftp from the same read, sharing the compressed
+     * stream when the roll is gz compressed anyway. If the hdfs upload or
+     * the mirror fails, the ftp upload goes on alone
+     */
+    public void setMirror(FTPUpload mirror) {
+        this.mirror = mirror;
+    }
+
+    /**
+     * cap the read rate of the upload, shared by all uploads of the broker
+     */
+    public void setThrottler(TransferThrottler throttler) {
+        this.throttler = throttler;
+    }
+
+    /**
+     * the roll was streamed to hdfs while open, only its tail is left
+     */
+    public void setStream(StreamingUpload stream) {
+        this.stream = stream;
     }
 
     @Override
     public void run() {
-        for (int i = 0; i < UPLOAD_RETRY_NUM; i++) {
+        if (stream != null && finishStream()) {
+            mgr.reportUpload(ident, compression, true);
+            return;
+        }
+        // retries back off exponentially while no progress is made
+        int failures = 0;
+        long waitMillis = minWaitMillis;
+        for (int i = 1; ; i++) {
+            long lastCheckpoint = checkpointOffset;
             uploadRoll();
-            if (!uploadSuccess && networkError) {
-                if (i + 1 == UPLOAD_RETRY_NUM)
-                    break;
-                try {
-                    Thread.sleep(WAIT_TIME_MILLIS);
-                } catch (InterruptedException e) {
-                    LOG.error("sleep error: " + e);
-                }
-                LOG.warn((i + 1) + " time to retry upload " + ident);
-                networkError = false;
-            } else {
+            if (uploadSuccess || !networkError) {
+                break;
+            }
+            if (checkpointOffset > lastCheckpoint) {
+                failures = 0;
+                waitMillis = minWaitMillis;
+            }
+            if (++failures == UPLOAD_RETRY_NUM) {
                 break;
             }
+            try {
+                // jittered, so uploads failed together do not retry together
+                Thread.sleep(waitMillis / 2 + (long) (Math.random() * waitMillis));
+            } catch (InterruptedException e) {
+                LOG.error("sleep error: " + e);
+            }
+            LOG.warn(i + " time to retry upload " + ident
+                    + (checkpointOffset >= 0 ? " from checkpoint " + checkpointOffset : ""));
+            waitMillis = Math.min(waitMillis * 2, WAIT_TIME_MILLIS);
+            networkError = false;
+        }
+        if (!uploadSuccess && checkpointOffset >= 0) {
+            checkpointOffset = -1;
+            deleteQuietly(new Path(mgr.getTempHdfsPath(ident)));
         }
         mgr.reportUpload(ident, compression, uploadSuccess);
     }
 
+    /**
+     * whether a failed upload can continue from its last checkpoint, which
+     * takes a format where compressed members may be concatenated
+     */
+    private boolean isResumable() {
+        return compressionAlgo == Algorithm.GZ && mirror == null;
+    }
+
     private void uploadRoll() {
-        ByteBuffer newline = ByteBuffer.wrap("\n".getBytes(Charset.forName("UTF-8")));
-        WritableByteChannel outChannel = null;
+        UploadWriter writer = null;
         try {
             compressionAlgo = Compression.getCompressionAlgorithmByName(this.compression);
+            if (!compressionAlgo.isSupported()) {
+                throw new IllegalArgumentException(this.compression + " is not supported on this broker");
+            }
         } catch (IllegalArgumentException e) {
+            LOG.warn(e.getMessage() + ", upload " + ident + " with gz");
             compressionAlgo = Compression.getCompressionAlgorithmByName(ParamsKey.COMPRESSION_GZ);
             this.compression = ParamsKey.COMPRESSION_GZ;
         }
 
         Path tmp = new Path(mgr.getTempHdfsPath(ident));
+        Path tmpIndex = tmp.suffix(ParamsKey.LZO_INDEX_SUFFIX);
         FSDataOutputStream fsDataOutputStream = null;
+        FSDataOutputStream indexOut = null;
         OutputStream out = null;
+        MirrorOutputStream mirrorOut = null;
+        boolean resumable = isResumable();
         try {
             String dfsPath = mgr.getRollHdfsPath(ident, compressionAlgo.getName());
-            fsDataOutputStream = fs.create(tmp, true);
-            Compressor compressor = compressionAlgo.getCompressor();
-            out = compressionAlgo.createCompressionStream(fsDataOutputStream, compressor, 0);
-            outChannel = Channels.newChannel(out);
+            if (resumable && checkpointOffset >= 0) {
+                try {
+                    fsDataOutputStream = resume(tmp);
+                } catch (IOException e) {
+                    checkpointOffset = -1;
+                    networkError = true;
+                    throw e;
+                }
+            } else {
+                checkpointOffset = -1;
+                fsDataOutputStream = fs.create(tmp, true);
+            }
+            OutputStream remote = openMirror();
+            OutputStream raw = fsDataOutputStream;
+            if (remote != null && compressionAlgo == Algorithm.GZ) {
+                // ftp takes gz, share the compressed stream
+                raw = mirrorOut = new MirrorOutputStream(fsDataOutputStream, remote, MirrorBufferSize);
+            } else if (resumable) {
+                // every checkpoint closes a member, not the file
+                raw = new FilterOutputStream(fsDataOutputStream) {
+                    @Override
+                    public void write(byte[] b, int off, int len) throws IOException {
+                        out.write(b, off, len);
+                    }
+
+                    @Override
+                    public void close() throws IOException {
+                        flush();
+                    }
+                };
+            }
+            if (compressionAlgo.canIndexInline()) {
+                // index the blocks as they are written, saving a second read
+                indexOut = fs.create(tmpIndex, true);
+                out = compressionAlgo.createPooledIndexedCompressionStream(raw, indexOut);
+            } else {
+                out = openCompressionStream(raw);
+            }
+            if (remote != null && mirrorOut == null) {
+                out = mirrorOut = new MirrorOutputStream(out,
+                        Algorithm.GZ.createPooledCompressionStream(remote, 0), MirrorBufferSize);
+            }
+            writer = new UploadWriter(out, WriteBlockSize);
 
             ByteBuffer buffer = ByteBuffer.allocate(BufferSize);
             ByteBufferChannel channel = new ByteBufferChannel(buffer);
@@ -102,8 +242,9 @@ public class HDFSUpload implements Runnable {
                 channel.close();
                 return;
             }
-            long start = roll.startOffset;
+            long start = checkpointOffset >= 0 ? checkpointOffset : roll.startOffset;
             long end = roll.startOffset + roll.length;
+            long lastCheckpoint = start;
             LOG.debug("Uploading " + ident + " in partition: " + p + " [" + start + "~" + end + "]");
             while (start < end) {
                 long size = end - start;
@@ -115,40 +256,56 @@ public class HDFSUpload implements Runnable {
                             + Util.toTupleString(start, end, limit) + " when Uploading " + ident);
                 }
 
+                if (throttler != null) {
+                    throttler.throttle(fms.getSize());
+                }
                 fetchFileMessageSet(channel, fms);
                 buffer.flip();
                 ByteBufferMessageSet bms = new ByteBufferMessageSet(buffer, start);
                 long realRead = bms.getValidSize();
-
-                Iterator<MessageAndOffset> iter = bms.getItertor();
-                while (iter.hasNext()) {
-                    MessageAndOffset mo = iter.next();
+                try {
+                    writer.write(bms);
+                } catch (IOException e) {
+                    networkError = true;
+                    throw e;
+                }
+                buffer.clear();
+                start += realRead;
+                if (resumable && start - lastCheckpoint >= checkpointSize && start < end) {
                     try {
-                        outChannel.write(mo.getMessage().payload());
-                        outChannel.write(newline);
+                        writer.close();
+                        out = null;
+                        fsDataOutputStream.hflush();
                     } catch (IOException e) {
                         networkError = true;
                         throw e;
                     }
-                    newline.clear();
-
+                    checkpointOffset = lastCheckpoint = start;
+                    checkpointLength = fsDataOutputStream.getPos();
+                    out = openCompressionStream(raw);
+                    writer = new UploadWriter(out, WriteBlockSize);
                 }
-                buffer.clear();
-                start += realRead;
             }
             try {
-                outChannel.close();
+                writer.close();
+                // closed with the writer
+                out = null;
+                fsDataOutputStream.close();
             } catch (IOException e) {
                 networkError = true;
                 throw e;
             }
+            if (mirrorOut != null) {
+                completeMirror(mirrorOut);
+            }
 
             Path dst = new Path(dfsPath);
-            if (!HDFSUtil.retryRename(fs, tmp, dst)) {
+            if (!HDFSUtil.retryRenameWithIndex(fs, tmp, indexOut != null ? tmpIndex : null, dst)) {
                 networkError = true;
                 throw new IOException("Faild to rename tmp to " + dst);
             }
             uploadSuccess = true;
+            p.markUploaded(roll.startOffset, end);
         } catch (IOException e) {
             LOG.error("IOE cached: ", e);
         } finally {
@@ -165,28 +322,138 @@ public class HDFSUpload implements Runnable {
             } catch (IOException e1) {
             }
             try {
-                if (outChannel != null) {
-                    outChannel.close();
+                if (indexOut != null) {
+                    indexOut.close();
                 }
-            } catch (IOException e) {
+            } catch (IOException e1) {
             }
-            try {
-                if (fs.exists(tmp)) {
-                    HDFSUtil.retryDelete(fs, tmp);
-                }
-            } catch (IOException e) {
+            // kept to resume from the checkpoint
+            if (checkpointOffset < 0) {
+                deleteQuietly(tmp);
             }
-            Path tmpIndex = tmp.suffix(ParamsKey.LZO_INDEX_SUFFIX);
-            try {
-                if (fs.exists(tmpIndex)) {
-                    HDFSUtil.retryDelete(fs, tmpIndex);
+            deleteQuietly(tmpIndex);
+            if (mirrorOut != null) {
+                mirrorOut.abortMirror();
+            }
+            if (mirror != null) {
+                mirror.abort();
+                mirrorAlone();
+            }
+        }
+    }
+
+    private OutputStream openCompressionStream(OutputStream raw) throws IOException {
+        if (compressPool != null && ParallelCompressionStream.isSupported(compressionAlgo)) {
+            return new ParallelCompressionStream(raw, compressionAlgo, compressPool,
+                    compressChunkSize, compressMaxPending);
+        }
+        return compressionAlgo.createPooledCompressionStream(raw, 0);
+    }
+
+    /**
+     * recreate tmp with the data up to the last checkpoint. hdfs can not
+     * truncate what the failed attempt wrote after it, so the compressed
+     * prefix is copied, which is far cheaper than compressing it again
+     */
+    private FSDataOutputStream resume(Path tmp) throws IOException {
+        Path failed = tmp.suffix(RESUME_SUFFIX);
+        if (!fs.rename(tmp, failed)) {
+            throw new IOException("Faild to rename " + tmp + " to " + failed);
+        }
+        FSDataOutputStream resumed = fs.create(tmp, true);
+        FSDataInputStream in = null;
+        try {
+            in = fs.open(failed);
+            byte[] buf = new byte[64 * 1024];
+            long remaining = checkpointLength;
+            while (remaining > 0) {
+                int n = in.read(buf, 0, (int) Math.min(buf.length, remaining));
+                if (n < 0) {
+                    throw new IOException(failed + " is shorter than its checkpoint " + checkpointLength);
                 }
-            } catch (IOException e) {
+                resumed.write(buf, 0, n);
+                remaining -= n;
+            }
+        } catch (IOException e) {
+            resumed.close();
+            throw e;
+        } finally {
+            if (in != null) {
+                in.close();
+            }
+            deleteQuietly(failed);
+        }
+        LOG.info("resume upload of " + ident + " from " + checkpointOffset);
+        return resumed;
+    }
+
+    private void deleteQuietly(Path path) {
+        try {
+            if (fs.exists(path)) {
+                HDFSUtil.retryDelete(fs, path);
+            }
+        } catch (IOException e) {
+        }
+    }
+
+    private boolean finishStream() {
+        long end = roll.startOffset + roll.length;
+        try {
+            Path tmp = stream.finish(end);
+            Path dst = new Path(mgr.getRollHdfsPath(ident, stream.getCompression()));
+            if (!HDFSUtil.retryRenameWithIndex(fs, tmp, stream.getIndex(), dst)) {
+                throw new IOException("Faild to rename " + tmp + " to " + dst);
             }
+            roll.p.markUploaded(roll.startOffset, end);
+            LOG.info("finished streaming upload of " + ident);
+            return true;
+        } catch (IOException e) {
+            LOG.error("failed to finish streaming upload of " + ident + ", upload it whole", e);
+            stream.abort();
+            return false;
+        }
+    }
+
+    private OutputStream openMirror() {
+        if (mirror == null) {
+            return null;
         }
+        try {
+            return mirror.open();
+        } catch (IOException e) {
+            LOG.error("failed to start ftp upload of " + ident + ", upload to hdfs only", e);
+            mirror.abort();
+            mirror = null;
+            return null;
+        }
+    }
+
+    private void completeMirror(MirrorOutputStream mirrorOut) {
+        try {
+            if (!mirrorOut.awaitMirror(MIRROR_WAIT_TIME_MILLIS)) {
+                LOG.error("ftp mirror of " + ident + " failed");
+                return;
+            }
+            mirror.complete();
+            mirror = null;
+        } catch (InterruptedException e) {
+            LOG.error("interrupted waiting for ftp mirror of " + ident);
+        } catch (IOException e) {
+            LOG.error("failed to complete ftp upload of " + ident, e);
+        }
+    }
+
+    /**
+     * the ftp upload of a roll not mirrored whole reads the roll on its own
+     */
+    private void mirrorAlone() {
+        LOG.info("ftp upload of " + ident + " goes on apart from hdfs");
+        Thread ftpThread = new Thread(mirror);
+        ftpThread.start();
+        mirror = null;
     }
 
-    private void fetchFileMessageSet(GatheringByteChannel channel, FileMessageSet messages) throws IOException {
+    static void fetchFileMessageSet(GatheringByteChannel channel, FileMessageSet messages) throws IOException {
         int read = 0;
         int limit = messages.getSize();
         while (read < limit) {
@@ -194,7 +461,7 @@ public class HDFSUpload implements Runnable {
         }
     }
 
-    private int fetchChunk(GatheringByteChannel channel, FileMessageSet messages, int start, int limit)
+    private static int fetchChunk(GatheringByteChannel channel, FileMessageSet messages, int start, int limit)
             throws IOException {
         int read = 0;
         while (read < limit) {
@@ -5,6 +5,8 @@ import java.io.IOException;
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
 
+import com.dp.blackhole.common.ParamsKey;
+
 public class HDFSUtil {
     private static final int REPEATE = 3;
     private static final int RETRY_SLEEP_TIME = 3000;
@@ -41,4 +43,25 @@ public class HDFSUtil {
         }
         return false;
     }
+    
+    /**
+     * rename src to dst, and its index if not null next to dst beforehand,
+     * so that dst never shows up without the index
+     */
+    public static boolean retryRenameWithIndex(FileSystem fs, Path src, Path srcIndex, Path dst) {
+        Path dstIndex = null;
+        if (srcIndex != null) {
+            dstIndex = dst.suffix(ParamsKey.LZO_INDEX_SUFFIX);
+            if (!retryRename(fs, srcIndex, dstIndex)) {
+                return false;
+            }
+        }
+        if (!retryRename(fs, src, dst)) {
+            if (dstIndex != null) {
+                retryDelete(fs, dstIndex);
+            }
+            return false;
+        }
+        return true;
+    }
 }
@@ -0,0 +1,109 @@
+package com.dp.blackhole.broker;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+import com.dp.blackhole.broker.storage.Partition;
+import com.dp.blackhole.broker.storage.RollPartition;
+import com.dp.blackhole.common.Util;
+import com.dp.blackhole.storage.ByteBufferMessageSet;
+import com.dp.blackhole.storage.FileMessageSet;
+
+/**
+ * The lines of a roll still in the local partition after its upload failed.
+ * A recovery of the roll only needs the parts of the agent's file around
+ * them, the agent finds them by their length and crc32.
+ */
+public class HeldRoll {
+    private static final int BufferSize = 4 * 1024 * 1024;
+    private static final int WriteBlockSize = 1024 * 1024;
+
+    private RollPartition roll;
+    private long length;
+    private long crc;
+
+    private HeldRoll(RollPartition roll) {
+        this.roll = roll;
+    }
+
+    /**
+     * read the roll once to learn the length and crc32 of its lines
+     */
+    public static HeldRoll of(RollPartition roll) throws IOException {
+        HeldRoll held = new HeldRoll(roll);
+        final CRC32 checksum = new CRC32();
+        final long[] count = new long[1];
+        held.writeTo(new CheckedOutputStream(new OutputStream() {
+            @Override
+            public void write(int b) {
+                count[0]++;
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+                count[0] += len;
+            }
+        }, checksum));
+        held.length = count[0];
+        held.crc = checksum.getValue();
+        return held;
+    }
+
+    public long getLength() {
+        return length;
+    }
+
+    public long getCrc() {
+        return crc;
+    }
+
+    /**
+     * write the lines of the roll to out as an upload would, out is neither
+     * flushed nor closed
+     */
+    public void writeTo(final OutputStream out) throws IOException {
+        UploadWriter writer = new UploadWriter(new FilterOutputStream(out) {
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+            }
+
+            @Override
+            public void flush() {
+            }
+
+            @Override
+            public void close() {
+            }
+        }, WriteBlockSize);
+        Partition p = roll.p;
+        ByteBuffer buffer = ByteBuffer.allocate(BufferSize);
+        ByteBufferChannel channel = new ByteBufferChannel(buffer);
+        long start = roll.startOffset;
+        long end = roll.startOffset + roll.length;
+        while (start < end) {
+            long size = end - start;
+            int limit = (int) ((size > BufferSize) ? BufferSize : size);
+            FileMessageSet fms = p.read(start, limit);
+            if (fms == null) {
+                throw new IOException("can't get FileMessageSet from partition " + p + " with "
+                        + Util.toTupleString(start, end, limit));
+            }
+            HDFSUpload.fetchFileMessageSet(channel, fms);
+            buffer.flip();
+            ByteBufferMessageSet bms = new ByteBufferMessageSet(buffer, start);
+            long realRead = bms.getValidSize();
+            if (realRead == 0) {
+                throw new IOException("no valid message in partition " + p + " at " + start);
+            }
+            writer.write(bms);
+            buffer.clear();
+            start += realRead;
+        }
+        writer.close();
+    }
+}
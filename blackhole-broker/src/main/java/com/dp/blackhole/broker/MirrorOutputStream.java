@@ -0,0 +1,145 @@
+package com.dp.blackhole.broker;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Writes to a primary stream and mirrors every write to a second one. The
+ * mirror is written by its own thread from a bounded buffer, a mirror
+ * falling behind the buffer or failing is dropped, it never slows down or
+ * fails the writes to the primary.
+ */
+public class MirrorOutputStream extends OutputStream {
+    private static final Log LOG = LogFactory.getLog(MirrorOutputStream.class);
+    private static final byte[] END = new byte[0];
+
+    private OutputStream primary;
+    private OutputStream mirror;
+    private long maxPendingBytes;
+    private LinkedBlockingQueue<byte[]> pending;
+    private AtomicLong pendingBytes;
+    private volatile boolean mirrorFailed;
+    private volatile boolean mirrorClosed;
+    private Thread writer;
+
+    public MirrorOutputStream(OutputStream primary, OutputStream mirror, long maxPendingBytes) {
+        this.primary = primary;
+        this.mirror = mirror;
+        this.maxPendingBytes = maxPendingBytes;
+        this.pending = new LinkedBlockingQueue<byte[]>();
+        this.pendingBytes = new AtomicLong();
+        this.mirrorFailed = false;
+        this.mirrorClosed = false;
+        this.writer = new Thread(new MirrorWriter(), "MirrorWriter");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        primary.write(b, off, len);
+        if (mirrorFailed || len == 0) {
+            return;
+        }
+        if (pendingBytes.addAndGet(len) > maxPendingBytes) {
+            dropMirror("mirror falls more than " + maxPendingBytes + " bytes behind", null);
+            return;
+        }
+        byte[] copy = new byte[len];
+        System.arraycopy(b, off, copy, 0, len);
+        pending.add(copy);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        primary.flush();
+    }
+
+    /**
+     * close the primary, the mirror is closed once it has written what is
+     * buffered, see awaitMirror
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            primary.close();
+        } finally {
+            pending.add(END);
+        }
+    }
+
+    /**
+     * wait for the mirror to write what is buffered and close
+     * @return whether the mirror got every write, it is dropped if not done
+     * in timeoutMillis
+     */
+    public boolean awaitMirror(long timeoutMillis) throws InterruptedException {
+        writer.join(timeoutMillis);
+        if (writer.isAlive()) {
+            dropMirror("mirror not done in " + timeoutMillis + "ms", null);
+        }
+        return mirrorClosed && !mirrorFailed;
+    }
+
+    /**
+     * give up the mirror, e.g. once the primary failed
+     */
+    public void abortMirror() {
+        if (!mirrorFailed) {
+            mirrorFailed = true;
+            pending.clear();
+            pending.add(END);
+        }
+    }
+
+    private void dropMirror(String reason, IOException e) {
+        if (mirrorFailed) {
+            return;
+        }
+        LOG.warn(reason + ", go on with the primary stream only", e);
+        abortMirror();
+    }
+
+    public boolean isMirrorFailed() {
+        return mirrorFailed;
+    }
+
+    private class MirrorWriter implements Runnable {
+        @Override
+        public void run() {
+            try {
+                while (!mirrorFailed) {
+                    byte[] b = pending.take();
+                    if (b == END) {
+                        break;
+                    }
+                    mirror.write(b);
+                    pendingBytes.addAndGet(-b.length);
+                }
+                if (!mirrorFailed) {
+                    mirror.close();
+                    mirrorClosed = true;
+                    return;
+                }
+            } catch (InterruptedException e) {
+                dropMirror("mirror interrupted", null);
+            } catch (IOException e) {
+                dropMirror("mirror stream failed", e);
+            }
+            try {
+                mirror.close();
+            } catch (IOException e) {
+            }
+        }
+    }
+}
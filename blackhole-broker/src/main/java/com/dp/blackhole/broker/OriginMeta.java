@@ -10,7 +10,8 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import com.dp.blackhole.broker.storage.Partition;
-import com.dp.blackhole.storage.ByteBufferMessageSet;
+import com.dp.blackhole.protocol.data.RegisterRequest;
+import com.dp.blackhole.storage.MessageSet;
 
 public class OriginMeta {
     private final Log LOG = LogFactory.getLog(OriginMeta.class);
@@ -26,6 +27,7 @@ public class OriginMeta {
     private double insync_threshold;
     private double insync_buffer;
     private int max_tolerance;
+    private volatile int ackMode;
 
     private enum Status {
         INSYNC, INSYNC_READY, OUTOFSYNC, OUTOFSYNC_READY
@@ -48,6 +50,19 @@ public class OriginMeta {
         this.insync_threshold = insync_threshold;
         this.insync_buffer = insync_buffer;
         this.max_tolerance = tolerance;
+        this.ackMode = RegisterRequest.ACK_REPLICATED;
+    }
+
+    /**
+     * when the producer of this partition wants MessageAcks, one of the
+     * RegisterRequest.ACK_ modes
+     */
+    public int getAckMode() {
+        return ackMode;
+    }
+
+    public void setAckMode(int ackMode) {
+        this.ackMode = ackMode;
     }
 
     public long getEndOffset() {
@@ -62,6 +77,10 @@ public class OriginMeta {
         setFollowerOffset(follower, this.flusher.getStartOffset());
     }
 
+    public void initFollowerOffset(String follower, long offset) {
+        setFollowerOffset(follower, offset);
+    }
+
     public HashMap<String, Boolean> getStatusChange(String follower, long offset) {
         setFollowerOffset(follower, offset);
         HashMap<String, Boolean> re = checkSyncStatus(follower);
@@ -236,7 +255,7 @@ public class OriginMeta {
         flusher.flush();
     }
 
-    public void append(ByteBufferMessageSet messageSet) throws IOException {
+    public void append(MessageSet messageSet) throws IOException {
         flusher.append(messageSet);
     }
 
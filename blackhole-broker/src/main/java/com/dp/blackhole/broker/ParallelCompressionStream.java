@@ -0,0 +1,140 @@
+package com.dp.blackhole.broker;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import com.dp.blackhole.broker.Compression.Algorithm;
+
+/**
+ * Splits the written data into chunks, compresses every chunk as an
+ * independent member on a shared pool and writes the members downstream in
+ * order. Concatenated gzip members are a valid gzip stream, so the output
+ * stays readable by the standard codecs.
+ */
+public class ParallelCompressionStream extends OutputStream {
+    private OutputStream out;
+    private Algorithm algo;
+    private ExecutorService pool;
+    private int chunkSize;
+    private int maxPending;
+    private byte[] chunk;
+    private int count;
+    private LinkedList<Future<byte[]>> pending;
+
+    public ParallelCompressionStream(OutputStream out, Algorithm algo, ExecutorService pool,
+            int chunkSize, int maxPending) {
+        this.out = out;
+        this.algo = algo;
+        this.pool = pool;
+        this.chunkSize = chunkSize;
+        this.maxPending = maxPending;
+        this.chunk = new byte[chunkSize];
+        this.count = 0;
+        this.pending = new LinkedList<Future<byte[]>>();
+    }
+
+    /**
+     * @return whether members of algo can be concatenated into one file
+     */
+    public static boolean isSupported(Algorithm algo) {
+        return algo == Algorithm.GZ;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        if (count == chunkSize) {
+            submitChunk();
+        }
+        chunk[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        while (len > 0) {
+            if (count == chunkSize) {
+                submitChunk();
+            }
+            int n = Math.min(len, chunkSize - count);
+            System.arraycopy(b, off, chunk, count, n);
+            count += n;
+            off += n;
+            len -= n;
+        }
+    }
+
+    private void submitChunk() throws IOException {
+        if (count == 0) {
+            return;
+        }
+        while (pending.size() >= maxPending) {
+            writeMember(pending.removeFirst());
+        }
+        pending.addLast(pool.submit(new CompressTask(chunk, count)));
+        chunk = new byte[chunkSize];
+        count = 0;
+    }
+
+    private void writeMember(Future<byte[]> member) throws IOException {
+        try {
+            out.write(member.get());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while waiting for a compressed chunk");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("failed to compress a chunk", e.getCause());
+        }
+    }
+
+    /**
+     * write all pending members downstream
+     */
+    @Override
+    public void flush() throws IOException {
+        submitChunk();
+        while (!pending.isEmpty()) {
+            writeMember(pending.removeFirst());
+        }
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            for (Future<byte[]> member : pending) {
+                member.cancel(true);
+            }
+            pending.clear();
+            out.close();
+        }
+    }
+
+    private class CompressTask implements Callable<byte[]> {
+        private byte[] data;
+        private int length;
+
+        CompressTask(byte[] data, int length) {
+            this.data = data;
+            this.length = length;
+        }
+
+        @Override
+        public byte[] call() throws IOException {
+            ByteArrayOutputStream member = new ByteArrayOutputStream(length / 4);
+            OutputStream cos = algo.createPooledCompressionStream(member, 0);
+            cos.write(data, 0, length);
+            cos.close();
+            return member.toByteArray();
+        }
+    }
+}
@@ -0,0 +1,425 @@
+package com.dp.blackhole.broker;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.dp.blackhole.common.AgentProtocol;
+import com.dp.blackhole.broker.storage.RollPartition;
+import com.dp.blackhole.common.AgentProtocol.AgentHead;
+import com.dp.blackhole.common.DaemonThreadFactory;
+import com.dp.blackhole.common.Util;
+
+/**
+ * Accepts the rolls agents recover on one selector thread instead of a
+ * thread per socket. Each stream is spooled to a local file as fast as the
+ * disk takes it, and handed to the roll manager for the hdfs upload once it
+ * is complete, so a slow hdfs holds neither agent sockets nor threads.
+ *
+ * Agents speaking VERSION_RANGE_RECOVERY are told which lines of the roll
+ * are still held here, and only send the rest of their file.
+ */
+public class RecoveryServer extends Thread {
+    private static final Log LOG = LogFactory.getLog(RecoveryServer.class);
+    private static final int READ_BUFFER_SIZE = 1024 * 1024;
+    private static final int MAX_HEAD_SIZE = 64 * 1024;
+    private static final long IDLE_CHECK_INTERVAL = 1000;
+    static final String SPOOL_SUFFIX = ".spool";
+
+    private RollManager mgr;
+    private File spoolDir;
+    private long idleTimeout;
+    private ServerSocketChannel server;
+    private Selector selector;
+    private ByteBuffer buffer;
+    private AtomicLong spoolId;
+    private ExecutorService heldRollReader;
+    private ConcurrentLinkedQueue<RecoveryConnection> measured;
+    private volatile boolean running = true;
+
+    public RecoveryServer(RollManager mgr, int port, String spoolDir, long idleTimeout) throws IOException {
+        this.mgr = mgr;
+        this.spoolDir = new File(spoolDir);
+        this.idleTimeout = idleTimeout;
+        this.buffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+        this.spoolId = new AtomicLong();
+        this.heldRollReader = Executors.newSingleThreadExecutor(new DaemonThreadFactory("HeldRollReader"));
+        this.measured = new ConcurrentLinkedQueue<RecoveryConnection>();
+        cleanSpoolDir();
+        selector = Selector.open();
+        server = ServerSocketChannel.open();
+        server.socket().setReuseAddress(true);
+        server.socket().bind(new InetSocketAddress(port));
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+        this.setName("RecoveryServer");
+        this.setDaemon(true);
+    }
+
+    /**
+     * spools left by a previous run are incomplete or were never uploaded,
+     * the agents recover those rolls again. Only spool files are deleted,
+     * whatever else is in the dir is left alone
+     */
+    private void cleanSpoolDir() throws IOException {
+        if (!spoolDir.isDirectory() && !spoolDir.mkdirs()) {
+            throw new IOException("can not create recovery spool dir " + spoolDir);
+        }
+        File[] spools = spoolDir.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) {
+                return file.isFile() && file.getName().endsWith(SPOOL_SUFFIX);
+            }
+        });
+        if (spools == null) {
+            throw new IOException("can not list recovery spool dir " + spoolDir);
+        }
+        for (File spool : spools) {
+            if (!spool.delete()) {
+                LOG.warn("can not delete stale spool " + spool);
+            }
+        }
+    }
+
+    public void close() {
+        running = false;
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        long lastIdleCheck = Util.getTS();
+        while (running) {
+            try {
+                selector.select(IDLE_CHECK_INTERVAL);
+                Iterator<SelectionKey> iter = selector.selectedKeys().iterator();
+                while (iter.hasNext()) {
+                    SelectionKey key = iter.next();
+                    iter.remove();
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                    } else if (key.isReadable()) {
+                        read(key);
+                    } else if (key.isWritable()) {
+                        write(key);
+                    }
+                }
+                RecoveryConnection conn;
+                while ((conn = measured.poll()) != null) {
+                    if (conn.key.isValid()) {
+                        conn.reply();
+                    }
+                }
+                long now = Util.getTS();
+                if (now - lastIdleCheck >= IDLE_CHECK_INTERVAL) {
+                    closeIdleConnections(now);
+                    lastIdleCheck = now;
+                }
+            } catch (IOException e) {
+                LOG.error("error in recovery server: ", e);
+            }
+        }
+        heldRollReader.shutdownNow();
+        for (SelectionKey key : selector.keys()) {
+            if (key.attachment() != null) {
+                ((RecoveryConnection) key.attachment()).fail("recovery server closed");
+            }
+        }
+        try {
+            selector.close();
+            server.close();
+        } catch (IOException e) {
+            LOG.error("error closing recovery server", e);
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = server.accept()) != null) {
+            LOG.debug("Socket(Recovery) connected from " + channel.socket().getInetAddress().getHostName());
+            channel.configureBlocking(false);
+            SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+            key.attach(new RecoveryConnection(key, channel));
+        }
+    }
+
+    private void read(SelectionKey key) {
+        RecoveryConnection conn = (RecoveryConnection) key.attachment();
+        try {
+            buffer.clear();
+            int num = conn.channel.read(buffer);
+            if (num == -1) {
+                conn.complete();
+                return;
+            }
+            conn.lastActive = Util.getTS();
+            buffer.flip();
+            if (conn.roll == null) {
+                conn.readHead(buffer);
+            }
+            if (conn.heldStartBuf != null) {
+                conn.readHeldStart(buffer);
+            }
+            if (conn.spoolChannel != null && conn.heldStartBuf == null) {
+                conn.spool(buffer);
+            }
+        } catch (IOException e) {
+            LOG.error("recovery stream of " + conn + " broken", e);
+            conn.fail(e.getMessage());
+        }
+    }
+
+    private void write(SelectionKey key) {
+        RecoveryConnection conn = (RecoveryConnection) key.attachment();
+        try {
+            conn.writeReply();
+        } catch (IOException e) {
+            LOG.error("recovery stream of " + conn + " broken", e);
+            conn.fail(e.getMessage());
+        }
+    }
+
+    private void closeIdleConnections(long now) {
+        for (SelectionKey key : selector.keys()) {
+            RecoveryConnection conn = (RecoveryConnection) key.attachment();
+            if (conn != null && now - conn.lastActive > idleTimeout) {
+                conn.fail("no data for " + (now - conn.lastActive) + "ms");
+            }
+        }
+    }
+
+    private class RecoveryConnection {
+        private SelectionKey key;
+        private SocketChannel channel;
+        private ByteBuffer head;
+        private RollIdent roll;
+        private long size;
+        private boolean hasCompressed;
+        private File spool;
+        private FileChannel spoolChannel;
+        private HeldRoll held;
+        private ByteBuffer reply;
+        private ByteBuffer heldStartBuf;
+        private long heldStart = -1;
+        private long received;
+        private long lastActive;
+
+        RecoveryConnection(SelectionKey key, SocketChannel channel) {
+            this.key = key;
+            this.channel = channel;
+            this.head = ByteBuffer.allocate(256);
+            this.lastActive = Util.getTS();
+        }
+
+        /**
+         * gather bytes until the head parses, what follows it is data
+         */
+        void readHead(ByteBuffer data) throws IOException {
+            int num = Math.min(data.remaining(), MAX_HEAD_SIZE - head.position());
+            if (num == 0) {
+                throw new IOException("recovery head exceeds " + MAX_HEAD_SIZE + " bytes");
+            }
+            if (head.remaining() < num) {
+                int capacity = Math.min(MAX_HEAD_SIZE, Math.max(head.capacity() * 2, head.position() + num));
+                ByteBuffer bigger = ByteBuffer.allocate(capacity);
+                head.flip();
+                bigger.put(head);
+                head = bigger;
+            }
+            ByteBuffer part = data.duplicate();
+            part.limit(part.position() + num);
+            head.put(part);
+            data.position(data.position() + num);
+
+            ByteArrayInputStream bytes = new ByteArrayInputStream(head.array(), 0, head.position());
+            AgentProtocol protocol = new AgentProtocol();
+            AgentHead agentHead = protocol.new AgentHead();
+            try {
+                protocol.recieveHead(new DataInputStream(bytes), agentHead);
+            } catch (EOFException e) {
+                // not all of the head arrived yet
+                return;
+            }
+            int consumed = head.position() - bytes.available();
+
+            roll = new RollIdent();
+            roll.topic = agentHead.app;
+            // be compatible with old version
+            if (AgentProtocol.isMicroBatch(agentHead.version)) {
+                roll.source = agentHead.source;
+            } else {
+                roll.source = Util.getRemoteHost(channel.socket());
+                if (agentHead.source != null) {
+                    roll.source += "#" + agentHead.source;
+                }
+            }
+            roll.period = agentHead.period;
+            roll.ts = agentHead.ts;
+            roll.isFinal = agentHead.isFinal;
+            roll.persistent = agentHead.isPersist;
+
+            if (agentHead.ignore) {
+                close();
+                mgr.markIgnored(roll);
+                return;
+            }
+            LOG.info("start to spool recovery of roll " + roll);
+            size = agentHead.size;
+            hasCompressed = agentHead.hasCompressed;
+            spool = new File(spoolDir, mgr.getFileName(roll) + "." + spoolId.incrementAndGet() + SPOOL_SUFFIX);
+            spoolChannel = new FileOutputStream(spool).getChannel();
+            ByteBuffer rest = ByteBuffer.wrap(head.array(), consumed, head.position() - consumed);
+            head = null;
+            if (agentHead.version != AgentProtocol.VERSION_RANGE_RECOVERY) {
+                spool(rest);
+                return;
+            }
+            if (rest.hasRemaining()) {
+                throw new IOException("data arrived before the held lines were told");
+            }
+            key.interestOps(0);
+            final RollPartition heldPartition = hasCompressed ? null : mgr.getHeldRoll(roll);
+            if (heldPartition == null) {
+                reply();
+                return;
+            }
+            heldRollReader.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        held = HeldRoll.of(heldPartition);
+                    } catch (IOException e) {
+                        LOG.warn("can not read the held lines of " + roll + ", recover the whole file", e);
+                        mgr.dropHeldRoll(roll);
+                    }
+                    measured.add(RecoveryConnection.this);
+                    selector.wakeup();
+                }
+            });
+        }
+
+        /**
+         * tell the agent the length and crc32 of the held lines
+         */
+        void reply() {
+            reply = ByteBuffer.allocate(16);
+            reply.putLong(held != null ? held.getLength() : 0);
+            reply.putLong(held != null ? held.getCrc() : 0);
+            reply.flip();
+            // a reply read by another thread counts as activity
+            lastActive = Util.getTS();
+            key.interestOps(SelectionKey.OP_WRITE);
+        }
+
+        void writeReply() throws IOException {
+            channel.write(reply);
+            if (!reply.hasRemaining()) {
+                reply = null;
+                heldStartBuf = ByteBuffer.allocate(8);
+                key.interestOps(SelectionKey.OP_READ);
+            }
+        }
+
+        /**
+         * read where in its file the agent found the held lines
+         */
+        void readHeldStart(ByteBuffer data) throws IOException {
+            while (data.hasRemaining() && heldStartBuf.hasRemaining()) {
+                heldStartBuf.put(data.get());
+            }
+            if (heldStartBuf.hasRemaining()) {
+                return;
+            }
+            heldStartBuf.flip();
+            heldStart = heldStartBuf.getLong();
+            heldStartBuf = null;
+            if (heldStart >= 0) {
+                if (held == null || heldStart + held.getLength() > size) {
+                    throw new IOException("the agent placed the held lines at " + heldStart + " of " + size);
+                }
+                LOG.info("held lines of " + roll + " found at " + heldStart + ", " + (size - held.getLength())
+                        + " of " + size + " bytes to recover");
+            }
+        }
+
+        void spool(ByteBuffer data) throws IOException {
+            while (data.hasRemaining()) {
+                received += spoolChannel.write(data);
+            }
+        }
+
+        void complete() {
+            if (roll == null || spoolChannel == null) {
+                LOG.warn("recovery connection " + this + " closed before the head was read");
+                close();
+                return;
+            }
+            if (reply != null || heldStartBuf != null) {
+                fail("closed before the held lines were placed");
+                return;
+            }
+            long expected = heldStart >= 0 ? size - held.getLength() : size;
+            if (received != expected) {
+                fail("recoverying not finished. Except: " + expected + " Actual:" + received);
+                return;
+            }
+            close();
+            mgr.recover(roll, spool, size, hasCompressed, heldStart >= 0 ? held : null, heldStart);
+        }
+
+        void fail(String reason) {
+            close();
+            if (spool != null) {
+                spool.delete();
+            }
+            if (roll != null && spoolChannel != null) {
+                LOG.error("recovery of " + roll + " failed: " + reason);
+                mgr.failRecovery(roll);
+            }
+        }
+
+        private void close() {
+            key.attach(null);
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                LOG.warn("Cound not close the recovery socket of " + this, e);
+            }
+            if (spoolChannel != null) {
+                try {
+                    spoolChannel.close();
+                } catch (IOException e) {
+                    LOG.warn("Cound not close the spool " + spool, e);
+                }
+            }
+        }
+
+        @Override
+        public String toString() {
+            return roll != null ? roll.toString() : String.valueOf(channel.socket().getRemoteSocketAddress());
+        }
+    }
+}
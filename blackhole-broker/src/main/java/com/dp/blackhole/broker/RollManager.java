@@ -1,14 +1,16 @@
 package com.dp.blackhole.broker;
 
-import java.io.DataInputStream;
+import java.io.File;
 import java.io.IOException;
-import java.net.ServerSocket;
-import java.net.Socket;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -23,11 +25,11 @@ import com.dp.blackhole.broker.ftp.FTPUpload;
 import com.dp.blackhole.broker.storage.Partition;
 import com.dp.blackhole.broker.storage.RollPartition;
 import com.dp.blackhole.broker.storage.StorageManager;
-import com.dp.blackhole.common.AgentProtocol;
-import com.dp.blackhole.common.AgentProtocol.AgentHead;
+import com.dp.blackhole.common.DaemonThreadFactory;
 import com.dp.blackhole.common.PBwrap;
 import com.dp.blackhole.common.ParamsKey;
 import com.dp.blackhole.common.Util;
+import com.dp.blackhole.network.TransferThrottler;
 import com.dp.blackhole.protocol.control.MessagePB.Message;
 import com.dp.blackhole.protocol.control.RollIDPB.RollID;
 
@@ -35,30 +37,54 @@ public class RollManager {
     private final static Log LOG = LogFactory.getLog(RollManager.class);
     private static final String TMP_SUFFIX = ".tmp";
     private static final String R_SUFFIX = ".r";
+    private static final String STREAM_SUFFIX = ".stream";
+    private static final long RECOVERY_FAIL_DELAY = 10 * 1000;
     private ConcurrentHashMap<RollIdent, RollPartition> rolls;
+    private ConcurrentHashMap<RollIdent, Held> heldRolls = new ConcurrentHashMap<RollIdent, Held>();
+    private int maxHeldRolls = 1024;
+    private long heldRollExpireMillis = 3600 * 1000;
     private String hdfsbase;
     private String defaultCompression;
     private int port;
     private FileSystem fs;
-    private ExecutorService uploadPool;
+    private UploadScheduler uploadScheduler;
+    private TransferThrottler uploadThrottler;
     private ExecutorService recoveryPool;
-    private RecoveryAcceptor accepter;
+    private ScheduledExecutorService recoveryFailReporter;
+    private ExecutorService compressPool;
+    private int compressChunkSize = 1024 * 1024;
+    private int compressMaxPending = 4;
+    private RecoveryServer recoveryServer;
     private long clockSyncBufMillis;
     private Algorithm defaultCompressionAlgo;
+    private ConcurrentHashMap<String, StreamingUpload> openStreams;
+    private ConcurrentHashMap<RollIdent, StreamingUpload> sealedStreams;
+    private ConcurrentLinkedQueue<StreamingUpload> discardedStreams;
+    private StreamingUploader streamer;
     
     public Algorithm getDefaultCompressionAlgo() {
         return defaultCompressionAlgo;
     }
     
     public void init(String hdfsbase, String defaultCompression, int port, long clockSyncBufMillis, 
-            int maxUploadThreads, int maxRecoveryThreads, int recoverySocketTimeout) throws IOException {
+            int maxUploadThreads, int maxRecoveryThreads, int recoverySocketTimeout, int compressThreads,
+            long uploadBandwidthPerSec, long uploadOverdueMillis, long streamIntervalMillis,
+            String recoverySpoolDir) throws IOException {
         this.hdfsbase = hdfsbase;
         this.defaultCompression = defaultCompression;
         this.port = port;
         this.clockSyncBufMillis = clockSyncBufMillis;
         this.defaultCompressionAlgo = Compression.getCompressionAlgorithmByName(defaultCompression);
-        uploadPool = Executors.newFixedThreadPool(maxUploadThreads);
+        uploadScheduler = new UploadScheduler(maxUploadThreads, uploadOverdueMillis);
+        if (uploadBandwidthPerSec > 0) {
+            uploadThrottler = new TransferThrottler(uploadBandwidthPerSec);
+        }
         recoveryPool = Executors.newFixedThreadPool(maxRecoveryThreads);
+        recoveryFailReporter = Executors.newSingleThreadScheduledExecutor(
+                new DaemonThreadFactory("RecoveryFailReporter"));
+        if (compressThreads > 0) {
+            compressPool = Executors.newFixedThreadPool(compressThreads, new DaemonThreadFactory("Compressor"));
+        }
         Configuration conf = new Configuration();
         if (conf.get("io.compression.codecs") == null) {
             conf.set("io.compression.codecs",
@@ -74,11 +100,37 @@ public class RollManager {
         }
         fs = (new Path(hdfsbase)).getFileSystem(conf);
         rolls = new ConcurrentHashMap<RollIdent, RollPartition>();
-        accepter = new RecoveryAcceptor(recoverySocketTimeout);
-        accepter.start();
+        recoveryServer = new RecoveryServer(this, port, recoverySpoolDir, recoverySocketTimeout);
+        recoveryServer.start();
+        openStreams = new ConcurrentHashMap<String, StreamingUpload>();
+        sealedStreams = new ConcurrentHashMap<RollIdent, StreamingUpload>();
+        discardedStreams = new ConcurrentLinkedQueue<StreamingUpload>();
+        if (streamIntervalMillis > 0 && defaultCompressionAlgo.isSupported()) {
+            streamer = new StreamingUploader(streamIntervalMillis);
+            streamer.start();
+        }
         LOG.info("roll manager started");
     }
     
+    /**
+     * rolls held for recovery are kept in memory only, a restarted broker
+     * recovers them in full; at most maxHeldRolls are held, none longer than
+     * expireMillis
+     */
+    public void setHeldRollLimits(int maxHeldRolls, long expireMillis) {
+        this.maxHeldRolls = maxHeldRolls;
+        this.heldRollExpireMillis = expireMillis;
+    }
+    
+    /**
+     * an upload compressing in parallel buffers up to maxPending chunks of
+     * chunkSize bytes besides the one being filled
+     */
+    public void setCompressLimits(int chunkSize, int maxPending) {
+        this.compressChunkSize = chunkSize;
+        this.compressMaxPending = maxPending;
+    }
+    
     public boolean perpareUpload(String app, String source, long period, RollPartition rollPartition) {
         boolean ret;
         RollIdent ident = getRollIdent(app, source, period);
@@ -86,6 +138,7 @@ public class RollManager {
             rolls.put(ident, rollPartition);
             Message message = PBwrap.wrapReadyUpload(ident.topic, ident.source, ident.period, ident.ts);
             Broker.getSupervisor().send(message);
+            rollStream(ident, rollPartition, false);
             ret = true;
         } else {
             LOG.fatal("register a exists roll: " + ident);
@@ -101,6 +154,7 @@ public class RollManager {
             rolls.put(ident, roll);
             Message message = PBwrap.wrapRollClean(ident.topic, ident.source, ident.period);
             Broker.getSupervisor().send(message);
+            rollStream(ident, roll, true);
             ret = true;
         } else {
             LOG.fatal("register a exists roll: " + ident);
@@ -120,7 +174,11 @@ public class RollManager {
         
         RollPartition roll = rolls.get(ident);
         
+        StreamingUpload stream = sealedStreams.remove(ident);
         if (roll == null) {
+            if (stream != null) {
+                discardedStreams.add(stream);
+            }
             LOG.error("can not find roll by rollident " + ident);
             reportUpload(ident, rollID.getCompression(), false);
             return false;
@@ -128,18 +186,25 @@ public class RollManager {
         
         LOG.info("start to upload roll " + ident);
         StorageManager manager = Broker.getBrokerService().getPersistentManager();
-        HDFSUpload upload = new HDFSUpload(this, manager, fs, ident, roll, rollID.getCompression());
-        uploadPool.execute(upload);
-        //start a ftp uploader which need uploading to work with HDFS in parallel.
+        HDFSUpload upload = new HDFSUpload(this, manager, fs, ident, roll, rollID.getCompression(),
+                compressPool, compressChunkSize, compressMaxPending);
+        //the ftp upload is fed from the same read of the roll as the hdfs one
         //ftp uploader use gz compression algo by default
         FTPConfigration ftpConf;
         if ((ftpConf = FTPConfigrationLoader.getFTPConfigration(ident.topic)) != null) {
             Partition p = manager.getPartition(ident.topic, ident.source);
             LOG.info("start to ftp " + ident);
-            FTPUpload ftpUpload = new FTPUpload(this, ftpConf, ident, roll, p);
-            Thread ftpThread = new Thread(ftpUpload);
-            ftpThread.start();
+            upload.setMirror(new FTPUpload(this, ftpConf, ident, roll, p));
+        }
+        if (stream != null) {
+            if (ftpConf == null && stream.getCompression().equals(rollID.getCompression())) {
+                upload.setStream(stream);
+            } else {
+                discardedStreams.add(stream);
+            }
         }
+        upload.setThrottler(uploadThrottler);
+        uploadScheduler.submit(ident, upload);
         return true;
     }
 
@@ -152,7 +217,50 @@ public class RollManager {
         
         LOG.info("start to mark unrecoverable roll " + ident);
         HDFSMarker marker = new HDFSMarker(this, fs, ident);
-        uploadPool.execute(marker);
+        uploadScheduler.submit(ident, marker);
+        discardStream(ident);
+        dropHeldRoll(ident);
+    }
+    
+    /**
+     * seal the streaming upload of the roll just marked, and start streaming
+     * the next roll of the partition unless it is the last one
+     */
+    private void rollStream(RollIdent ident, RollPartition roll, boolean last) {
+        if (streamer == null) {
+            return;
+        }
+        String key = ident.topic + '@' + ident.source;
+        StreamingUpload stream = openStreams.remove(key);
+        if (stream != null) {
+            if (stream.getIdent().ts == ident.ts && stream.getStartOffset() == roll.startOffset) {
+                stream.seal(roll.startOffset + roll.length);
+                sealedStreams.put(ident, stream);
+            } else {
+                LOG.warn("streaming upload of " + stream.getIdent() + " does not match roll " + ident);
+                discardedStreams.add(stream);
+            }
+        }
+        // ftp mirrors read the roll whole
+        if (!last && FTPConfigrationLoader.getFTPConfigration(ident.topic) == null) {
+            RollIdent next = new RollIdent();
+            next.topic = ident.topic;
+            next.source = ident.source;
+            next.period = ident.period;
+            next.ts = ident.ts + ident.period * 1000;
+            openStreams.put(key, new StreamingUpload(fs, next, new Path(getStreamingHdfsPath(next)), roll.p,
+                    roll.startOffset + roll.length, defaultCompressionAlgo, uploadThrottler));
+        }
+    }
+    
+    private void discardStream(RollIdent ident) {
+        if (sealedStreams == null) {
+            return;
+        }
+        StreamingUpload stream = sealedStreams.remove(ident);
+        if (stream != null) {
+            discardedStreams.add(stream);
+        }
     }
     
     private RollIdent getRollIdent(String app, String source, long period) {
@@ -243,27 +351,112 @@ public class RollManager {
         return getParentPath(hdfsbase, ident) + getFileName(ident) + TMP_SUFFIX;
     }
 
+    public String getStreamingHdfsPath(RollIdent ident) {
+        return getParentPath(hdfsbase, ident) + getFileName(ident) + STREAM_SUFFIX + TMP_SUFFIX;
+    }
+
     public String getRecoveryHdfsPath(RollIdent ident) {
         return getParentPath(hdfsbase, ident) + getFileName(ident) + R_SUFFIX;
     }
     
+    void markIgnored(RollIdent roll) {
+        LOG.info("ignore and mark unrecoverable roll " + roll);
+        HDFSMarker marker = new HDFSMarker(this, fs, roll);
+        uploadScheduler.submit(roll, marker);
+        reportRecovery(roll, true);
+    }
+    
+    /**
+     * upload a roll the agent recovered into the local spool file, the held
+     * lines, if any, belong at heldStart of the agent's file
+     */
+    void recover(RollIdent roll, File spool, long size, boolean hasCompressed, HeldRoll held, long heldStart) {
+        LOG.info("start to recovery roll " + roll);
+        HDFSRecovery recovery = new HDFSRecovery(this, fs, spool, roll, size, hasCompressed);
+        if (held != null) {
+            recovery.setHeld(held, heldStart);
+        }
+        recoveryPool.execute(recovery);
+    }
+    
+    /**
+     * @return the local data of a roll whose upload failed, or null
+     */
+    RollPartition getHeldRoll(RollIdent roll) {
+        Held held = heldRolls.get(roll);
+        if (held == null) {
+            return null;
+        }
+        if (held.isExpired(Util.getTS() - heldRollExpireMillis)) {
+            heldRolls.remove(roll, held);
+            LOG.info("held roll " + roll + " expired");
+            return null;
+        }
+        return held.roll;
+    }
+    
+    void dropHeldRoll(RollIdent roll) {
+        heldRolls.remove(roll);
+    }
+    
+    void holdRoll(RollIdent ident, RollPartition roll) {
+        if (maxHeldRolls <= 0) {
+            return;
+        }
+        long notBefore = Util.getTS() - heldRollExpireMillis;
+        RollIdent oldest = null;
+        long oldestSince = Long.MAX_VALUE;
+        for (Map.Entry<RollIdent, Held> entry : heldRolls.entrySet()) {
+            Held held = entry.getValue();
+            if (held.isExpired(notBefore)) {
+                heldRolls.remove(entry.getKey(), held);
+            } else if (held.since < oldestSince) {
+                oldest = entry.getKey();
+                oldestSince = held.since;
+            }
+        }
+        if (oldest != null && heldRolls.size() >= maxHeldRolls) {
+            LOG.warn("too many held rolls, " + oldest + " will be recovered in full");
+            heldRolls.remove(oldest);
+        }
+        heldRolls.put(ident, new Held(roll, Util.getTS()));
+    }
+    
+    /**
+     * report a recovery broken off, after a while so it is not retried at once
+     */
+    void failRecovery(final RollIdent roll) {
+        recoveryFailReporter.schedule(new Runnable() {
+            @Override
+            public void run() {
+                reportRecovery(roll, false);
+            }
+        }, RECOVERY_FAIL_DELAY, TimeUnit.MILLISECONDS);
+    }
+    
     public void reportRecovery(RollIdent ident, boolean recoverySuccess) {
         Message message;
         if (recoverySuccess) {
             message = PBwrap.wrapRecoverySuccess(ident.topic, ident.source, ident.period, ident.ts, ident.isFinal, ident.persistent);
+            dropHeldRoll(ident);
         } else {
             message = PBwrap.wrapRecoveryFail(ident.topic, ident.source, ident.period, ident.ts, ident.isFinal);
         }
+        discardStream(ident);
         Broker.getSupervisor().send(message);
     }
 
     public void reportUpload(RollIdent ident, String compression, boolean uploadSuccess) {
-        rolls.remove(ident);
+        RollPartition roll = rolls.remove(ident);
         
         if (uploadSuccess) {
             Message message = PBwrap.wrapUploadSuccess(ident.topic, ident.source, ident.period, ident.ts, ident.isFinal, ident.persistent, compression);
             Broker.getSupervisor().send(message);
         } else {
+            if (roll != null) {
+                // the recovery of the roll needs to fetch only what is not held here
+                holdRoll(ident, roll);
+            }
             Message message = PBwrap.wrapUploadFail(ident.topic, ident.source, ident.period, ident.ts, ident.isFinal, compression);
             Broker.getSupervisor().send(message);
         }
@@ -276,13 +469,22 @@ public class RollManager {
     
     public void close() {
         LOG.info("shutdown broker node");
-        uploadPool.shutdownNow();
+        uploadScheduler.shutdown();
+        if (streamer != null) {
+            streamer.close();
+            for (StreamingUpload stream : openStreams.values()) {
+                stream.abort();
+            }
+            for (StreamingUpload stream : sealedStreams.values()) {
+                stream.abort();
+            }
+        }
         recoveryPool.shutdownNow();
-        try {
-            accepter.close();
-        } catch (IOException e1) {
-            LOG.error(e1.getMessage());
+        recoveryFailReporter.shutdownNow();
+        if (compressPool != null) {
+            compressPool.shutdownNow();
         }
+        recoveryServer.close();
         try {
             fs.close();
         } catch (IOException e) {
@@ -290,68 +492,70 @@ public class RollManager {
         }
     }
     
-    private class RecoveryAcceptor extends Thread {
-        private boolean running = true;
-        private ServerSocket server;
-        private int recoverySocketTimeout;
+    /**
+     * advances the streaming uploads of all rolls, and drops the discarded
+     * ones, off the network handler threads
+     */
+    private class StreamingUploader extends Thread {
+        private volatile boolean running = true;
+        private long interval;
         
-        public RecoveryAcceptor(int recoverySocketTimeout) throws IOException {
-            this.recoverySocketTimeout = recoverySocketTimeout;
-            this.server = new ServerSocket(port);
-            this.setName("RecoveryAcceptor");
+        public StreamingUploader(long interval) {
+            this.interval = interval;
+            this.setName("StreamingUploader");
             this.setDaemon(true);
         }
         
-        public void close() throws IOException {
-            server.close();
+        public void close() {
+            running = false;
+            interrupt();
         }
         
         @Override
         public void run() {
             while (running) {
                 try {
-                    Socket socket = server.accept();
-                    LOG.debug("Socket(Recovery) connected from " + socket.getInetAddress().getHostName());
-                    socket.setSoTimeout(recoverySocketTimeout);
-                    
-                    DataInputStream in = new DataInputStream(socket.getInputStream());
-                    
-                    AgentProtocol protocol = new AgentProtocol();
-                    AgentHead head = protocol.new AgentHead();
-                    
-                    protocol.recieveHead(in, head);
-
-                    RollIdent roll = new RollIdent();
-                    roll.topic = head.app;
-                    // be compatible with old version
-                    if (head.version == AgentProtocol.VERSION_MICOR_BATCH) {
-                        roll.source = head.source;
-                    } else {
-                        roll.source = Util.getRemoteHost(socket);
-                        if (head.source != null) {
-                            roll.source += "#" + head.source;
-                        }
-                    }
-                    roll.period = head.period;
-                    roll.ts = head.ts;
-                    roll.isFinal = head.isFinal;
-                    roll.persistent = head.isPersist;
-                    
-                    if (head.ignore) {
-                        LOG.info("ignore and mark unrecoverable roll " + roll);
-                        HDFSMarker marker = new HDFSMarker(RollManager.this, fs, roll);
-                        uploadPool.execute(marker);
-                        reportRecovery(roll, true);
-                    } else {
-                        LOG.info("start to recovery roll " + roll);
-                        HDFSRecovery recovery = new HDFSRecovery(
-                                RollManager.this, fs, socket, roll, head.size, head.hasCompressed);
-                        recoveryPool.execute(recovery);
-                    }
-                } catch (IOException e) {
-                    LOG.error("error in acceptor: ", e);
+                    Thread.sleep(interval);
+                } catch (InterruptedException e) {
+                    continue;
                 }
+                StreamingUpload discarded;
+                while ((discarded = discardedStreams.poll()) != null) {
+                    discarded.abort();
+                }
+                for (StreamingUpload stream : openStreams.values()) {
+                    advance(stream);
+                }
+                for (StreamingUpload stream : sealedStreams.values()) {
+                    advance(stream);
+                }
+            }
+        }
+
+        /**
+         * a stream failing unexpectedly is aborted alone, the others go on
+         */
+        private void advance(StreamingUpload stream) {
+            try {
+                stream.advance();
+            } catch (RuntimeException e) {
+                LOG.error("streaming upload of " + stream.getIdent() + " failed unexpectedly, abort it", e);
+                stream.abort();
             }
         }
     }
+
+    private static class Held {
+        final RollPartition roll;
+        final long since;
+
+        Held(RollPartition roll, long since) {
+            this.roll = roll;
+            this.since = since;
+        }
+
+        boolean isExpired(long notBefore) {
+            return since < notBefore;
+        }
+    }
 }
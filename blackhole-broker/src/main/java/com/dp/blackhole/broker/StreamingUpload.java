@@ -0,0 +1,217 @@
+package com.dp.blackhole.broker;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+
+import com.dp.blackhole.broker.Compression.Algorithm;
+import com.dp.blackhole.broker.storage.Partition;
+import com.dp.blackhole.common.ParamsKey;
+import com.dp.blackhole.network.TransferThrottler;
+import com.dp.blackhole.storage.ByteBufferMessageSet;
+import com.dp.blackhole.storage.FileMessageSet;
+
+/**
+ * Uploads a roll while it is still open. What has been appended to the
+ * partition is compressed into a temporary hdfs file continuously, so at the
+ * roll boundary only the tail is left to write before the file is renamed.
+ * A streaming upload which fails for any reason is dropped, and the roll is
+ * uploaded whole as before.
+ */
+public class StreamingUpload {
+    private static final Log LOG = LogFactory.getLog(StreamingUpload.class);
+    private final int BufferSize = 1024 * 1024;
+    private final int WriteBlockSize = 1024 * 1024;
+    private FileSystem fs;
+    private RollIdent ident;
+    private Partition p;
+    private Algorithm compressionAlgo;
+    private TransferThrottler throttler;
+    private Path tmp;
+    private long startOffset;
+    private long uploadedOffset;
+    private volatile long endOffset = Long.MAX_VALUE;
+    private volatile boolean failed;
+    private FSDataOutputStream fsDataOutputStream;
+    private Path tmpIndex;
+    private FSDataOutputStream indexOut;
+    private UploadWriter writer;
+
+    public StreamingUpload(FileSystem fs, RollIdent ident, Path tmp, Partition p, long startOffset,
+            Algorithm compressionAlgo, TransferThrottler throttler) {
+        this.fs = fs;
+        this.ident = ident;
+        this.tmp = tmp;
+        this.p = p;
+        this.startOffset = startOffset;
+        this.uploadedOffset = startOffset;
+        this.compressionAlgo = compressionAlgo;
+        this.throttler = throttler;
+    }
+
+    public RollIdent getIdent() {
+        return ident;
+    }
+
+    public long getStartOffset() {
+        return startOffset;
+    }
+
+    public String getCompression() {
+        return compressionAlgo.getName();
+    }
+
+    /**
+     * @return the block index written along the file, or null
+     */
+    public Path getIndex() {
+        return tmpIndex;
+    }
+
+    /**
+     * the roll was marked at endOffset, stop streaming beyond it
+     */
+    public void seal(long endOffset) {
+        this.endOffset = endOffset;
+    }
+
+    /**
+     * upload what has been appended since the last call
+     */
+    public synchronized void advance() {
+        if (failed) {
+            return;
+        }
+        try {
+            uploadTo(Math.min(endOffset, p.getEndOffset()));
+        } catch (IOException e) {
+            LOG.error("streaming upload of " + ident + " failed, it will be uploaded at the roll boundary", e);
+            abort();
+        }
+    }
+
+    /**
+     * write the tail of the roll up to end and close the file
+     * @return the temporary file holding the whole roll
+     */
+    public synchronized Path finish(long end) throws IOException {
+        if (failed) {
+            throw new IOException("streaming upload of " + ident + " has failed");
+        }
+        if (uploadedOffset > end) {
+            throw new IOException("streamed " + ident + " to " + uploadedOffset + " beyond its end " + end);
+        }
+        open();
+        uploadTo(end);
+        if (uploadedOffset != end) {
+            throw new IOException("streamed " + ident + " to " + uploadedOffset + " short of its end " + end);
+        }
+        writer.close();
+        writer = null;
+        fsDataOutputStream.close();
+        fsDataOutputStream = null;
+        if (indexOut != null) {
+            indexOut.close();
+            indexOut = null;
+        }
+        return tmp;
+    }
+
+    /**
+     * drop the streaming upload and its temporary file
+     */
+    public synchronized void abort() {
+        failed = true;
+        try {
+            if (writer != null) {
+                writer.close();
+            }
+        } catch (IOException e) {
+        }
+        writer = null;
+        try {
+            if (fsDataOutputStream != null) {
+                fsDataOutputStream.close();
+            }
+        } catch (IOException e) {
+        }
+        fsDataOutputStream = null;
+        try {
+            if (indexOut != null) {
+                indexOut.close();
+            }
+        } catch (IOException e) {
+        }
+        indexOut = null;
+        try {
+            if (fs.exists(tmp)) {
+                HDFSUtil.retryDelete(fs, tmp);
+            }
+            if (tmpIndex != null && fs.exists(tmpIndex)) {
+                HDFSUtil.retryDelete(fs, tmpIndex);
+            }
+        } catch (IOException e) {
+        }
+    }
+
+    private void open() throws IOException {
+        if (writer != null) {
+            return;
+        }
+        fsDataOutputStream = fs.create(tmp, true);
+        OutputStream out;
+        if (compressionAlgo.canIndexInline()) {
+            tmpIndex = tmp.suffix(ParamsKey.LZO_INDEX_SUFFIX);
+            indexOut = fs.create(tmpIndex, true);
+            out = compressionAlgo.createPooledIndexedCompressionStream(fsDataOutputStream, indexOut);
+        } else {
+            out = compressionAlgo.createPooledCompressionStream(fsDataOutputStream, 0);
+        }
+        writer = new UploadWriter(out, WriteBlockSize);
+        LOG.info("start streaming upload of " + ident + " from " + startOffset);
+    }
+
+    private void uploadTo(long end) throws IOException {
+        if (uploadedOffset >= end) {
+            return;
+        }
+        open();
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(BufferSize, end - uploadedOffset));
+        ByteBufferChannel channel = new ByteBufferChannel(buffer);
+        while (uploadedOffset < end) {
+            int limit = (int) Math.min(buffer.capacity(), end - uploadedOffset);
+            FileMessageSet fms = p.read(uploadedOffset, limit);
+            if (fms == null) {
+                throw new IOException("can't get FileMessageSet from partition " + p + " at "
+                        + uploadedOffset + " when streaming " + ident);
+            }
+            if (fms.getSize() > buffer.capacity()) {
+                // a single message larger than the buffer is read whole
+                buffer = ByteBuffer.allocate((int) fms.getSize());
+                channel = new ByteBufferChannel(buffer);
+            }
+            if (throttler != null) {
+                throttler.throttle(fms.getSize());
+            }
+            HDFSUpload.fetchFileMessageSet(channel, fms);
+            buffer.flip();
+            ByteBufferMessageSet bms = new ByteBufferMessageSet(buffer, uploadedOffset);
+            long realRead = bms.getValidSize();
+            if (realRead == 0) {
+                // the last message is still being appended
+                break;
+            }
+            writer.write(bms);
+            buffer.clear();
+            uploadedOffset += realRead;
+            // the roll may be sealed meanwhile
+            end = Math.min(end, endOffset);
+        }
+    }
+}
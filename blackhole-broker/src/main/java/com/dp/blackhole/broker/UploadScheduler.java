@@ -0,0 +1,159 @@
+package com.dp.blackhole.broker;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.dp.blackhole.common.Util;
+
+/**
+ * Runs uploads on a fixed number of workers, fair between topics. A free
+ * worker takes the next roll of the topic with the fewest running uploads
+ * which was served longest ago, so a small topic is not queued behind all
+ * rolls of a large one. Within a topic older rolls go first, and a roll
+ * waiting longer than overdueMillis goes before any fairness.
+ */
+public class UploadScheduler {
+    private static final Log LOG = LogFactory.getLog(UploadScheduler.class);
+
+    private final Map<String, TopicQueue> topics = new HashMap<String, TopicQueue>();
+    private final List<Worker> workers;
+    private final long overdueMillis;
+    private long sequence;
+    private volatile boolean running;
+
+    public UploadScheduler(int threads, long overdueMillis) {
+        this.overdueMillis = overdueMillis;
+        this.running = true;
+        this.workers = new ArrayList<Worker>(threads);
+        for (int i = 0; i < threads; i++) {
+            Worker worker = new Worker(i);
+            workers.add(worker);
+            worker.start();
+        }
+    }
+
+    public void submit(RollIdent ident, Runnable task) {
+        synchronized (topics) {
+            TopicQueue queue = topics.get(ident.topic);
+            if (queue == null) {
+                queue = new TopicQueue();
+                topics.put(ident.topic, queue);
+            }
+            queue.pending.add(new UploadTask(ident, task, Util.getTS()));
+            topics.notify();
+        }
+    }
+
+    public int getPendingCount() {
+        synchronized (topics) {
+            int count = 0;
+            for (TopicQueue queue : topics.values()) {
+                count += queue.pending.size();
+            }
+            return count;
+        }
+    }
+
+    public void shutdown() {
+        running = false;
+        for (Worker worker : workers) {
+            worker.interrupt();
+        }
+    }
+
+    /**
+     * called holding the lock on topics
+     */
+    private TopicQueue selectTopic() {
+        long now = Util.getTS();
+        TopicQueue overdue = null;
+        TopicQueue fair = null;
+        for (TopicQueue queue : topics.values()) {
+            UploadTask head = queue.pending.peek();
+            if (head == null) {
+                continue;
+            }
+            if (now - head.submitTime > overdueMillis
+                    && (overdue == null || head.submitTime < overdue.pending.peek().submitTime)) {
+                overdue = queue;
+            }
+            if (fair == null || queue.running < fair.running
+                    || (queue.running == fair.running && queue.lastServed < fair.lastServed)) {
+                fair = queue;
+            }
+        }
+        return overdue != null ? overdue : fair;
+    }
+
+    private static class TopicQueue {
+        final PriorityQueue<UploadTask> pending = new PriorityQueue<UploadTask>();
+        int running;
+        long lastServed;
+    }
+
+    private static class UploadTask implements Comparable<UploadTask> {
+        final RollIdent ident;
+        final Runnable task;
+        final long submitTime;
+
+        UploadTask(RollIdent ident, Runnable task, long submitTime) {
+            this.ident = ident;
+            this.task = task;
+            this.submitTime = submitTime;
+        }
+
+        @Override
+        public int compareTo(UploadTask o) {
+            if (ident.ts != o.ident.ts) {
+                return ident.ts < o.ident.ts ? -1 : 1;
+            }
+            if (submitTime != o.submitTime) {
+                return submitTime < o.submitTime ? -1 : 1;
+            }
+            return 0;
+        }
+    }
+
+    private class Worker extends Thread {
+        Worker(int id) {
+            setName("UploadWorker-" + id);
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                TopicQueue queue;
+                UploadTask task;
+                synchronized (topics) {
+                    while ((queue = selectTopic()) == null) {
+                        try {
+                            topics.wait();
+                        } catch (InterruptedException e) {
+                            LOG.info(getName() + " interrupted, exit");
+                            return;
+                        }
+                    }
+                    task = queue.pending.poll();
+                    queue.running++;
+                    queue.lastServed = ++sequence;
+                }
+                try {
+                    task.task.run();
+                } catch (Throwable t) {
+                    LOG.error("upload of " + task.ident + " failed", t);
+                } finally {
+                    synchronized (topics) {
+                        queue.running--;
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package com.dp.blackhole.broker;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+
+import com.dp.blackhole.storage.ByteBufferMessageSet;
+import com.dp.blackhole.storage.MessageAndOffset;
+
+/**
+ * Writes the payloads of uploaded messages, one per line, to a
+ * (compression) stream. Lines are assembled into a large block first, so
+ * the stream gets one write call per block instead of two per message.
+ */
+public class UploadWriter {
+    private static final byte NEWLINE = '\n';
+
+    private OutputStream out;
+    private byte[] block;
+    private int count;
+
+    public UploadWriter(OutputStream out, int blockSize) {
+        this.out = out;
+        this.block = new byte[blockSize];
+        this.count = 0;
+    }
+
+    public void write(ByteBufferMessageSet messages) throws IOException {
+        Iterator<MessageAndOffset> iter = messages.getItertor();
+        while (iter.hasNext()) {
+            writeLine(iter.next().getMessage().payload());
+        }
+    }
+
+    public void writeLine(ByteBuffer payload) throws IOException {
+        int length = payload.remaining();
+        if (length + 1 > block.length - count) {
+            flushBlock();
+        }
+        if (length + 1 > block.length) {
+            // larger than a block, pass it through
+            if (payload.hasArray()) {
+                out.write(payload.array(), payload.arrayOffset() + payload.position(), length);
+                // leave the payload consumed, as the gets do
+                payload.position(payload.limit());
+            } else {
+                byte[] bytes = new byte[length];
+                payload.get(bytes);
+                out.write(bytes);
+            }
+            out.write(NEWLINE);
+            return;
+        }
+        payload.get(block, count, length);
+        count += length;
+        block[count++] = NEWLINE;
+    }
+
+    private void flushBlock() throws IOException {
+        if (count > 0) {
+            out.write(block, 0, count);
+            count = 0;
+        }
+    }
+
+    public void flush() throws IOException {
+        flushBlock();
+        out.flush();
+    }
+
+    public void close() throws IOException {
+        flushBlock();
+        out.close();
+    }
+}
@@ -20,11 +20,22 @@ public class FollowerConsumer {
 
     private int followerResendTime;
     private long followerResendDelay;
+    private int followerFetchers;
+    private int followerFetchChunks;
+    private int followerFetchMaxWait;
+    private int followerFetchMinBytes;
+    private boolean followerMultiFetch;
 
     public FollowerConsumer(StorageManager storageManager, Properties prop) {
         this.storageManager = storageManager;
         this.followerResendTime = Integer.parseInt(prop.getProperty("broker.follower.resend.time", "3"));
         this.followerResendDelay = Long.parseLong(prop.getProperty("broker.follower.resend.delay", "1"));
+        this.followerFetchers = Integer.parseInt(prop.getProperty("broker.follower.fetchers", "4"));
+        this.followerFetchChunks = Integer.parseInt(prop.getProperty("broker.follower.fetch.chunks", "8"));
+        this.followerFetchMaxWait = Integer.parseInt(prop.getProperty("broker.follower.fetch.maxWait", "500"));
+        this.followerFetchMinBytes = Integer.parseInt(prop.getProperty("broker.follower.fetch.minBytes", "1"));
+        // leaders before ReplicaMultiFetchReq can't decode it, enable once every broker is upgraded
+        this.followerMultiFetch = Boolean.parseBoolean(prop.getProperty("broker.follower.fetch.multi", "false"));
     }
 
     public void stopFollowerIfExists(TopicPartitionKey tpKey) throws IOException {
@@ -81,7 +92,9 @@ public class FollowerConsumer {
         if (ffg != null) {
             ffg.addReplica(tpKey, p);
         } else {
-            FollowerFetcherGroup newffg = new FollowerFetcherGroup(brokerLeader, brokerLeaderPort, followerResendTime, followerResendDelay);
+            FollowerFetcherGroup newffg = new FollowerFetcherGroup(brokerLeader, brokerLeaderPort, followerResendTime, followerResendDelay,
+                    followerFetchers, followerFetchChunks, followerFetchMaxWait, followerFetchMinBytes,
+                    followerMultiFetch);
             this.leaderFetcherGroup.put(brokerLeader, newffg);
             newffg.start();
             newffg.addReplica(tpKey, p);
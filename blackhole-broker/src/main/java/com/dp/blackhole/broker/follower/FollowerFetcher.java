@@ -2,11 +2,16 @@ package com.dp.blackhole.broker.follower;
 
 import java.io.IOException;
 import java.nio.channels.ClosedChannelException;
+import java.util.ArrayList;
 import java.util.Iterator;
+import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -22,8 +27,19 @@ import com.dp.blackhole.network.TransferWrapNonblockingConnection;
 import com.dp.blackhole.protocol.data.DataMessageTypeFactory;
 import com.dp.blackhole.protocol.data.ReplicaFetchRep;
 import com.dp.blackhole.protocol.data.ReplicaFetchReq;
+import com.dp.blackhole.protocol.data.ReplicaMultiFetchReq;
+import com.dp.blackhole.protocol.data.ReplicaMultiFetchReq.Fetch;
 import com.dp.blackhole.storage.ByteBufferMessageSet;
 
+/**
+ * Fetches the partitions a leader has for this broker. Each partition has
+ * one fetch at a time, which the leader answers with several replies, more
+ * while the partition lags behind; the fetches of all partitions queued
+ * meanwhile go out in one ReplicaMultiFetchReq. The leader holds a fetch
+ * which finds nothing new back for up to maxWait millis. Without multiFetch,
+ * for leaders which predate ReplicaMultiFetchReq, every fetch goes out as a
+ * ReplicaFetchReq of one reply.
+ */
 public class FollowerFetcher extends Thread {
     private final Log LOG = LogFactory.getLog(FollowerFetcher.class);
 
@@ -33,10 +49,24 @@ public class FollowerFetcher extends Thread {
     private FFetcherProcessor ffp;
     private GenClient<TransferWrap, TransferWrapNonblockingConnection, FFetcherProcessor> client;
     private ConcurrentHashMap<TopicPartitionKey, ReplicaMeta> tpKeyReplicaMeta;
-    private ScheduledExecutorService retryPool;
+    private volatile ScheduledExecutorService retryPool;
+    private int maxChunks;
+    private int maxWait;
+    private int minBytes;
+    private boolean multiFetch;
+    private ConcurrentLinkedQueue<Fetch> pendingFetches;
+    private AtomicBoolean flushScheduled;
 
     public FollowerFetcher(String brokerLeader, int brokerLeaderPort, String localhost,
-            ConcurrentHashMap<TopicPartitionKey, ReplicaMeta> tpKeyReplicaMeta) {
+            ConcurrentHashMap<TopicPartitionKey, ReplicaMeta> tpKeyReplicaMeta, int maxChunks, int maxWait,
+            int minBytes, boolean multiFetch) {
+        this.multiFetch = multiFetch;
+        // a ReplicaFetchReq is answered with a single reply
+        this.maxChunks = multiFetch ? maxChunks : 1;
+        this.maxWait = maxWait;
+        this.minBytes = minBytes;
+        this.pendingFetches = new ConcurrentLinkedQueue<Fetch>();
+        this.flushScheduled = new AtomicBoolean(false);
         this.brokerLeader = brokerLeader;
         this.brokerLeaderPort = brokerLeaderPort;
         this.localhost = localhost;
@@ -50,16 +80,48 @@ public class FollowerFetcher extends Thread {
     public void addReplica(String topic, String partition, Partition p, int resendTime, long resendDelay) {
         TopicPartitionKey tpKey = new TopicPartitionKey(topic, partition);
         if (!tpKeyReplicaMeta.containsKey(tpKey)) {
-            ReplicaMeta rm = new ReplicaMeta(brokerLeader, p, resendTime, resendDelay);
-            synchronized (tpKeyReplicaMeta) {
-                tpKeyReplicaMeta.put(tpKey, rm);
-                if (ffp.connection != null) {
-                    ffp.sendReplicaFetchReq(topic, partition, rm.getOffset(), rm.getEntropy(), 0L, 1);
-                }
+            adoptReplica(tpKey, new ReplicaMeta(brokerLeader, p, resendTime, resendDelay));
+        }
+    }
+
+    /**
+     * take over a replica fetched so far by another fetcher of the leader,
+     * replies to the fetch in flight there are dropped as stale. The fetch
+     * starts on the retry pool, callers may hold the lock of another replica.
+     */
+    public void adoptReplica(TopicPartitionKey tpKey, ReplicaMeta rm) {
+        synchronized (tpKeyReplicaMeta) {
+            tpKeyReplicaMeta.put(tpKey, rm);
+            if (ffp.connection != null) {
+                ffp.fetchLater(tpKey.getTopic(), tpKey.getPartition());
             }
         }
     }
 
+    public ReplicaMeta releaseReplica(TopicPartitionKey tpKey) {
+        return tpKeyReplicaMeta.remove(tpKey);
+    }
+
+    public ReplicaMeta getReplicaMeta(TopicPartitionKey tpKey) {
+        return tpKeyReplicaMeta.get(tpKey);
+    }
+
+    public int replicaCount() {
+        return tpKeyReplicaMeta.size();
+    }
+
+    /**
+     * handles the replies on the connection to the leader
+     */
+    public EntityProcessor<TransferWrap, TransferWrapNonblockingConnection> getProcessor() {
+        return ffp;
+    }
+
+    public TopicPartitionKey anyReplica() {
+        Iterator<TopicPartitionKey> iter = tpKeyReplicaMeta.keySet().iterator();
+        return iter.hasNext() ? iter.next() : null;
+    }
+
     private boolean isEqualEntropy(int newEntropy, String topic, String partition, ReplicaMeta rm) {
         int oldEntropy = rm.getEntropy();
         LOG.debug("ValidReplicaReplyEntropy: compare new entropy: " + newEntropy + " and old entropy: " + oldEntropy
@@ -92,8 +154,7 @@ public class FollowerFetcher extends Thread {
                 Iterator<TopicPartitionKey> iter = tpKeyReplicaMeta.keySet().iterator();
                 while (iter.hasNext()) {
                     TopicPartitionKey tpKey = iter.next();
-                    ReplicaMeta rm = tpKeyReplicaMeta.get(tpKey);
-                    sendReplicaFetchReq(tpKey.getTopic(), tpKey.getPartition(), rm.getOffset(), rm.getEntropy(), 0L, 1);
+                    fetch(tpKey.getTopic(), tpKey.getPartition(), 0L);
                 }
             }
         }
@@ -103,6 +164,7 @@ public class FollowerFetcher extends Thread {
             retryPool.shutdown();
             retryPool = null;
             this.connection = null;
+            pendingFetches.clear();
             LOG.info("Fetcher " + this + " disconnected but will reconnect to " + connection);
         }
 
@@ -133,22 +195,45 @@ public class FollowerFetcher extends Thread {
             }
         }
 
-        private void sendReplicaFetchReq(String topic, String partition, long offset, int entropy, long delay,
-                long id) {
+        /**
+         * start a new fetch of the partition from what was appended, after
+         * delay millis if delay is positive
+         */
+        private void fetch(String topic, String partition, long delay) {
             ReplicaMeta rm = tpKeyReplicaMeta.get(new TopicPartitionKey(topic, partition));
-            if (rm == null || !rm.isActive()) {
+            ScheduledExecutorService pool = retryPool;
+            if (rm == null || !rm.isActive() || pool == null) {
                 return;
             }
-            if (delay > 0L) {
-                RetryTask rt = new RetryTask(this.connection, topic, partition, offset, entropy, id);
-                retryPool.schedule(rt, delay, TimeUnit.MILLISECONDS);
+            try {
+                if (delay > 0L) {
+                    pool.schedule(new RetryTask(this.connection, topic, partition), delay, TimeUnit.MILLISECONDS);
+                    return;
+                }
+                Fetch fetch;
+                synchronized (rm) {
+                    long id = rm.nextFetch();
+                    fetch = new Fetch(rm.getEntropy(), topic, partition, rm.getOffset(),
+                            ParamsKey.TopicConf.DEFAULT_REPLICA_FETCHSIZE, rm.getChunks(), id, rm.getLastEntropy());
+                }
+                pendingFetches.add(fetch);
+                if (flushScheduled.compareAndSet(false, true)) {
+                    pool.execute(new FlushTask());
+                }
+            } catch (RejectedExecutionException e) {
+                // disconnected, all partitions are fetched again on connect
+            }
+        }
+
+        private void fetchLater(String topic, String partition) {
+            ScheduledExecutorService pool = retryPool;
+            if (pool == null) {
                 return;
             }
-            if (connection != null) {
-                LOG.debug("Fetcher: " + this + ", Send replica fetch request to Leader: " + brokerLeader + " Topic: "
-                        + topic + ", Partition: " + partition + ", Offset: " + offset + ", FetchId: " + id);
-                connection.send(new TransferWrap(new ReplicaFetchReq(entropy, topic, partition, brokerLeader, localhost,
-                        offset, ParamsKey.TopicConf.DEFAULT_REPLICA_FETCHSIZE, id)));
+            try {
+                pool.execute(new RetryTask(this.connection, topic, partition));
+            } catch (RejectedExecutionException e) {
+                // disconnected, all partitions are fetched again on connect
             }
         }
 
@@ -172,8 +257,29 @@ public class FollowerFetcher extends Thread {
                 if (!isEqualEntropy(reply.getEntropy(), topic, partition, rm)) {
                     return;
                 }
-                rm.updateFetchId(id + 1);
-                if (rm.getOffset() != -1 && rm.getOffset() != offset) {
+                if (id != rm.getFetchId()) {
+                    LOG.debug("Fetcher: " + this + ", drop reply of stale fetch " + id + " of " + tpKey);
+                    return;
+                }
+                boolean done = rm.replyReceived(size == 0);
+                if (rm.getOffset() != -1 && offset < rm.getOffset()) {
+                    LOG.warn("Truncate diverged replica. Leader: " + reply.getBrokerLeader() + ", Topic: " + topic
+                            + ", Partition: " + partition + ", oldOffset: " + rm.getOffset() + ", newOffset: "
+                            + offset);
+                    try {
+                        rm.truncate(offset);
+                    } catch (IOException e) {
+                        // the leader answers the next fetch with the same divergence, start over there instead
+                        LOG.error("fail to truncate " + tpKey + " to " + offset + ", cleanup segments", e);
+                        try {
+                            rm.adjustOffset(offset);
+                        } catch (IOException ioe) {
+                            LOG.error("IOE catched", ioe);
+                            fetch(topic, partition, 0L);
+                            return;
+                        }
+                    }
+                } else if (rm.getOffset() != -1 && rm.getOffset() != offset) {
                     LOG.fatal("Need to adjust offset. Leader: " + reply.getBrokerLeader() + ", Topic: " + topic
                             + ", Partition: " + partition + ", oldOffset: " + rm.getOffset() + ", newOffset: " + offset
                             + ", Size: " + size + "\n"
@@ -182,19 +288,11 @@ public class FollowerFetcher extends Thread {
                         rm.adjustOffset(offset);
                     } catch (IOException e) {
                         LOG.error("IOE catched", e);
-                        sendReplicaFetchReq(topic, partition, offset, rm.getEntropy(), 0L, rm.getFetchId());
+                        fetch(topic, partition, 0L);
                         return;
                     }
                 }
-                if (size == 0) {
-                    rm.updateResend();
-                    if (rm.whetherDelay()) {
-                        sendReplicaFetchReq(topic, partition, rm.getOffset(), rm.getEntropy(), rm.getResendDelay(),
-                                rm.getFetchId());
-                        return;
-                    }
-                    sendReplicaFetchReq(topic, partition, rm.getOffset(), rm.getEntropy(), 0L, rm.getFetchId());
-                } else {
+                if (size != 0) {
                     rm.initResend();
                     try {
                         ByteBufferMessageSet messageSet = (ByteBufferMessageSet) reply.getMessageSet();
@@ -205,12 +303,59 @@ public class FollowerFetcher extends Thread {
                         rm.append(messageSet);
                         long newOffset = rm.getOffset() + messageSet.getValidSize();
                         rm.setOffset(newOffset);
-                        sendReplicaFetchReq(topic, partition, rm.getOffset(), rm.getEntropy(), 0L, rm.getFetchId());
                     } catch (IOException e) {
                         LOG.error("IOE catched", e);
-                        sendReplicaFetchReq(topic, partition, rm.getOffset(), rm.getEntropy(), 0L, rm.getFetchId());
+                        // the rest of this fetch is stale once the next one starts
+                        fetch(topic, partition, 0L);
+                        return;
+                    }
+                }
+                if (!done) {
+                    return;
+                }
+                rm.adaptChunks(size == 0, maxChunks);
+                if (rm.fetchHasData()) {
+                    fetch(topic, partition, 0L);
+                    return;
+                }
+                if (reply.isHeld()) {
+                    // the leader already waited for new messages
+                    rm.initResend();
+                    fetch(topic, partition, 0L);
+                    return;
+                }
+                rm.updateResend();
+                fetch(topic, partition, rm.whetherDelay() ? rm.getResendDelay() : 0L);
+            }
+        }
+
+        /**
+         * send the fetches queued so far in one request
+         */
+        class FlushTask implements Runnable {
+            @Override
+            public void run() {
+                flushScheduled.set(false);
+                List<Fetch> fetches = new ArrayList<Fetch>();
+                Fetch fetch;
+                while ((fetch = pendingFetches.poll()) != null) {
+                    fetches.add(fetch);
+                }
+                TransferWrapNonblockingConnection conn = connection;
+                if (fetches.isEmpty() || conn == null) {
+                    return;
+                }
+                LOG.debug("Fetcher: " + FollowerFetcher.this + ", Send replica fetch request to Leader: "
+                        + brokerLeader + " " + fetches);
+                if (!multiFetch) {
+                    for (Fetch f : fetches) {
+                        conn.send(new TransferWrap(new ReplicaFetchReq(f.entropy, f.topic, f.partitionId, brokerLeader,
+                                localhost, f.offset, f.limit, f.id)));
                     }
+                    return;
                 }
+                conn.send(new TransferWrap(new ReplicaMultiFetchReq(brokerLeader, localhost, maxWait, minBytes,
+                        fetches)));
             }
         }
 
@@ -218,24 +363,17 @@ public class FollowerFetcher extends Thread {
             private TransferWrapNonblockingConnection conn;
             private String topic;
             private String partition;
-            private long offset;
-            private int entropy;
-            private long id;
 
-            public RetryTask(TransferWrapNonblockingConnection conn, String topic, String partition, long offset,
-                    int entropy, long id) {
+            public RetryTask(TransferWrapNonblockingConnection conn, String topic, String partition) {
                 this.conn = conn;
                 this.topic = topic;
                 this.partition = partition;
-                this.offset = offset;
-                this.entropy = entropy;
-                this.id = id;
             }
 
             @Override
             public void run() {
                 if (this.conn != null) {
-                    sendReplicaFetchReq(topic, partition, offset, entropy, 0L, id);
+                    fetch(topic, partition, 0L);
                 }
             }
         }
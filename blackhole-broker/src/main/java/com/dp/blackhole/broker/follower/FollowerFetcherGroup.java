@@ -3,55 +3,78 @@ package com.dp.blackhole.broker.follower;
 import java.util.ArrayList;
 import java.util.concurrent.ConcurrentHashMap;
 
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
 import com.dp.blackhole.broker.storage.Partition;
 import com.dp.blackhole.common.TopicPartitionKey;
 import com.dp.blackhole.common.Util;
 
+/**
+ * The fetchers of the partitions replicated from one leader, each with its
+ * own connection and selector thread. A new replica goes to the fetcher
+ * with the fewest, and removals are balanced out by moving replicas from
+ * the busiest fetcher to the idlest.
+ */
 public class FollowerFetcherGroup {
+    private final Log LOG = LogFactory.getLog(FollowerFetcherGroup.class);
+
     private String brokerLeader;
     private int brokerLeaderPort;
-    private ArrayList<FetcherInfo> fetcherList = new ArrayList<FetcherInfo>();
+    private ArrayList<FollowerFetcher> fetcherList = new ArrayList<FollowerFetcher>();
     private int resendTime;
     private long resendDelay;
+    private int numFetchers;
+    private int maxChunks;
+    private int maxWait;
+    private int minBytes;
+    private boolean multiFetch;
 
-    public FollowerFetcherGroup(String brokerLeader, int brokerLeaderPort, int followerResendTime, long followerResendDelay) {
+    public FollowerFetcherGroup(String brokerLeader, int brokerLeaderPort, int followerResendTime, long followerResendDelay,
+            int numFetchers, int maxChunks, int maxWait, int minBytes, boolean multiFetch) {
+        this.multiFetch = multiFetch;
+        this.numFetchers = Math.max(1, numFetchers);
+        this.maxChunks = maxChunks;
+        this.maxWait = maxWait;
+        this.minBytes = minBytes;
         this.brokerLeader = brokerLeader;
         this.brokerLeaderPort = brokerLeaderPort;
         this.resendTime = followerResendTime;
         this.resendDelay = followerResendDelay;
     }
 
-    public void start() {
-        ConcurrentHashMap<TopicPartitionKey, ReplicaMeta> tpKeyReplicaMeta = new ConcurrentHashMap<TopicPartitionKey, ReplicaMeta>();
-        FollowerFetcher fFetcher = new FollowerFetcher(this.brokerLeader, this.brokerLeaderPort, Util.getLocalHost(),
-                tpKeyReplicaMeta);
-        fFetcher.start();
-        fetcherList.add(new FetcherInfo(fFetcher, tpKeyReplicaMeta));
+    public synchronized void start() {
+        for (int i = 0; i < numFetchers; i++) {
+            FollowerFetcher fFetcher = new FollowerFetcher(this.brokerLeader, this.brokerLeaderPort, Util.getLocalHost(),
+                    new ConcurrentHashMap<TopicPartitionKey, ReplicaMeta>(), maxChunks, maxWait, minBytes, multiFetch);
+            fFetcher.setName("FollowerFetcher-" + brokerLeader + "-" + i);
+            fFetcher.start();
+            addFetcher(fFetcher);
+        }
     }
 
-    public void addReplica(TopicPartitionKey tpKey, Partition p) {
-        // TODO determin whether we should init a new fetcher and choose the
-        // right fetcher
-        for (FetcherInfo fFetcher : fetcherList) {
-            if (fFetcher.followerFetcher != null) {
-                fFetcher.followerFetcher.addReplica(tpKey.getTopic(), tpKey.getPartition(), p, resendTime, resendDelay);
-            }
-        }
+    synchronized void addFetcher(FollowerFetcher fFetcher) {
+        fetcherList.add(fFetcher);
     }
 
-    public boolean containsReplica(TopicPartitionKey tpKey) {
-        for (FetcherInfo fFetcher : fetcherList) {
-            if (fFetcher.tpKeyReplicaMeta.contains(tpKey)) {
-                return true;
-            }
+    public synchronized void addReplica(TopicPartitionKey tpKey, Partition p) {
+        if (containsReplica(tpKey)) {
+            return;
+        }
+        FollowerFetcher idlest = idlest();
+        if (idlest != null) {
+            idlest.addReplica(tpKey.getTopic(), tpKey.getPartition(), p, resendTime, resendDelay);
         }
-        return false;
     }
 
-    public ReplicaMeta getReplicaMeta(TopicPartitionKey tpKey) {
+    public synchronized boolean containsReplica(TopicPartitionKey tpKey) {
+        return getReplicaMeta(tpKey) != null;
+    }
+
+    public synchronized ReplicaMeta getReplicaMeta(TopicPartitionKey tpKey) {
         ReplicaMeta rm = null;
-        for (FetcherInfo fFetcher : fetcherList) {
-            rm = fFetcher.tpKeyReplicaMeta.get(tpKey);
+        for (FollowerFetcher fFetcher : fetcherList) {
+            rm = fFetcher.getReplicaMeta(tpKey);
             if (rm != null) {
                 break;
             }
@@ -59,26 +82,54 @@ public class FollowerFetcherGroup {
         return rm;
     }
 
-    protected boolean removeReplica(TopicPartitionKey tpKey) {
-        boolean re = false;
-        for (FetcherInfo fFetcher : fetcherList) {
-            if (fFetcher.tpKeyReplicaMeta.containsKey(tpKey)) {
-                fFetcher.tpKeyReplicaMeta.remove(tpKey);
-                re = true;
-                break;
+    protected synchronized boolean removeReplica(TopicPartitionKey tpKey) {
+        for (FollowerFetcher fFetcher : fetcherList) {
+            if (fFetcher.releaseReplica(tpKey) != null) {
+                rebalance();
+                return true;
             }
         }
-        return re;
+        return false;
     }
 
-    private class FetcherInfo {
-        private FollowerFetcher followerFetcher;
-        private ConcurrentHashMap<TopicPartitionKey, ReplicaMeta> tpKeyReplicaMeta;
+    /**
+     * move replicas until the fetchers differ by at most one replica
+     */
+    private void rebalance() {
+        while (true) {
+            FollowerFetcher busiest = busiest();
+            FollowerFetcher idlest = idlest();
+            if (busiest == null || busiest.replicaCount() - idlest.replicaCount() <= 1) {
+                return;
+            }
+            TopicPartitionKey tpKey = busiest.anyReplica();
+            ReplicaMeta rm = tpKey == null ? null : busiest.releaseReplica(tpKey);
+            if (rm == null) {
+                return;
+            }
+            LOG.info("move replica " + tpKey.getTopic() + "/" + tpKey.getPartition() + " of leader " + brokerLeader
+                    + " from " + busiest.getName() + " to " + idlest.getName());
+            idlest.adoptReplica(tpKey, rm);
+        }
+    }
 
-        private FetcherInfo(FollowerFetcher followerFetcher,
-                ConcurrentHashMap<TopicPartitionKey, ReplicaMeta> tpKeyReplicaMeta) {
-            this.followerFetcher = followerFetcher;
-            this.tpKeyReplicaMeta = tpKeyReplicaMeta;
+    private FollowerFetcher idlest() {
+        FollowerFetcher idlest = null;
+        for (FollowerFetcher fFetcher : fetcherList) {
+            if (idlest == null || fFetcher.replicaCount() < idlest.replicaCount()) {
+                idlest = fFetcher;
+            }
+        }
+        return idlest;
+    }
+
+    private FollowerFetcher busiest() {
+        FollowerFetcher busiest = null;
+        for (FollowerFetcher fFetcher : fetcherList) {
+            if (busiest == null || fFetcher.replicaCount() > busiest.replicaCount()) {
+                busiest = fFetcher;
+            }
         }
+        return busiest;
     }
 }
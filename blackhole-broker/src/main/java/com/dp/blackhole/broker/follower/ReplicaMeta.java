@@ -16,6 +16,9 @@ public class ReplicaMeta {
     private int resendCounter;
     private int resendTime;
     private long resendDelay;
+    private int chunks;
+    private int chunksLeft;
+    private boolean fetchHasData;
 
     public ReplicaMeta(String brokerLeader, Partition flusher, int resendTime, long resendDelay) {
         this.fetchId = 0L;
@@ -26,6 +29,7 @@ public class ReplicaMeta {
         this.resendCounter = 0;
         this.resendTime = resendTime;
         this.resendDelay = resendDelay;
+        this.chunks = 1;
     }
 
     public long getOffset() {
@@ -66,8 +70,17 @@ public class ReplicaMeta {
         flusher.flush();
     }
 
+    /**
+     * drop the messages from offset on, where this replica diverged from
+     * the leader
+     */
     public void truncate(long offset) throws IOException {
         flusher.truncate(offset);
+        this.offset = offset;
+    }
+
+    public int getLastEntropy() {
+        return flusher.getLastEntropy();
     }
 
     public void updateResend() {
@@ -89,11 +102,52 @@ public class ReplicaMeta {
         return this.resendDelay;
     }
 
-    public void updateFetchId(long id) {
-        this.fetchId = id;
+    public long getFetchId() {
+        return this.fetchId;
     }
 
-    public long getFetchId() {
+    /**
+     * start a new fetch of up to getChunks() replies, replies to older
+     * fetches are stale from now on
+     */
+    public long nextFetch() {
+        this.fetchId++;
+        this.chunksLeft = chunks;
+        this.fetchHasData = false;
         return this.fetchId;
     }
+
+    public int getChunks() {
+        return this.chunks;
+    }
+
+    /**
+     * count a reply of the current fetch
+     * @return whether the fetch is done
+     */
+    public boolean replyReceived(boolean empty) {
+        if (empty) {
+            chunksLeft = 0;
+        } else {
+            chunksLeft--;
+            fetchHasData = true;
+        }
+        return chunksLeft <= 0;
+    }
+
+    public boolean fetchHasData() {
+        return this.fetchHasData;
+    }
+
+    /**
+     * a fetch which got all its chunks is behind the leader, fetch more per
+     * round trip; one which ran out of messages is caught up
+     */
+    public void adaptChunks(boolean caughtUp, int maxChunks) {
+        if (caughtUp) {
+            chunks = Math.max(1, chunks / 2);
+        } else {
+            chunks = Math.min(maxChunks, chunks * 2);
+        }
+    }
 }
@@ -3,22 +3,18 @@ package com.dp.blackhole.broker.ftp;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
-import java.nio.channels.Channels;
 import java.nio.channels.GatheringByteChannel;
-import java.nio.channels.WritableByteChannel;
-import java.nio.charset.Charset;
-import java.util.Iterator;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.apache.commons.net.ftp.FTPClient;
 import org.apache.commons.net.ftp.FTPReply;
-import org.apache.hadoop.io.compress.Compressor;
 
 import com.dp.blackhole.broker.ByteBufferChannel;
 import com.dp.blackhole.broker.Compression;
 import com.dp.blackhole.broker.RollIdent;
 import com.dp.blackhole.broker.RollManager;
+import com.dp.blackhole.broker.UploadWriter;
 import com.dp.blackhole.broker.Compression.Algorithm;
 import com.dp.blackhole.broker.storage.Partition;
 import com.dp.blackhole.broker.storage.RollPartition;
@@ -26,7 +22,6 @@ import com.dp.blackhole.common.ParamsKey;
 import com.dp.blackhole.common.Util;
 import com.dp.blackhole.storage.ByteBufferMessageSet;
 import com.dp.blackhole.storage.FileMessageSet;
-import com.dp.blackhole.storage.MessageAndOffset;
 
 public class FTPUpload implements Runnable {
     private static final Log LOG = LogFactory.getLog(FTPUpload.class);
@@ -36,7 +31,12 @@ public class FTPUpload implements Runnable {
     private RollPartition roll;
     private Partition partition;
     private int BufferSize = 4 * 1024 * 1024;
-    private ByteBuffer newline;
+    private int WriteBlockSize = 1024 * 1024;
+    private static final int CONNECT_TIMEOUT_MILLIS = 30 * 1000;
+    private static final int DATA_TIMEOUT_MILLIS = 60 * 1000;
+    private FTPClient ftp;
+    private String remoteFilename;
+    private String remoteTempFilename;
     
     public FTPUpload(RollManager mgr, FTPConfigration configration, RollIdent ident, RollPartition roll, Partition partition) {
         this.mgr = mgr;
@@ -44,56 +44,20 @@ public class FTPUpload implements Runnable {
         this.ident = ident;
         this.roll = roll;
         this.partition = partition;
-        this.newline = ByteBuffer.wrap("\n".getBytes(Charset.forName("UTF-8")));
     }
     
     @Override
     public void run() {
-        FTPClient ftp = new FTPClient();
-        String remoteTempFilename = null;
         OutputStream out = null;
         try {
-            int reply;
-            ftp.connect(configration.getUrl(), configration.getPort());
-            ftp.login(configration.getUsername(), configration.getPassword());
-            reply = ftp.getReplyCode();
-            if (!FTPReply.isPositiveCompletion(reply)) {
-                ftp.disconnect();
-                LOG.error("FTPReply is " + reply + ", disconnected.");
-                return;
-            }
-            ftp.setFileTransferMode(FTPClient.BINARY_FILE_TYPE);
-            ftp.setFileType(FTPClient.BINARY_FILE_TYPE);
-            if(!ftp.changeWorkingDirectory("/")) {
-                throw new IOException("Can not change to root dir /");
-            }
-            String remoteDir = mgr.getParentPath(configration.getRootDir(), ident);
-            ftpCreateDirectoryTree(ftp, remoteDir);
-            LOG.debug("Current FTP working directory is: " + ftp.printWorkingDirectory());
-            String remoteFilename = mgr.getGZCompressedFileName(ident);
-            remoteTempFilename = "." + remoteFilename + ".tmp";
+            OutputStream remote = open();
             Algorithm compressionAlgo = Compression.getCompressionAlgorithmByName(ParamsKey.COMPRESSION_GZ);
-            Compressor compressor = compressionAlgo.getCompressor();
-            out = compressionAlgo.createCompressionStream(
-                    ftp.storeFileStream(remoteTempFilename), compressor, 0);
+            out = compressionAlgo.createPooledCompressionStream(remote, 0);
             remoteWrite(out);
-            
-            if (!ftp.completePendingCommand()) {
-                throw new IOException("Unfinished upload " + remoteFilename);
-            }
-            if(!ftp.rename(remoteTempFilename, remoteFilename)) {
-                throw new IOException("Unfinished rename to " + remoteFilename);
-            }
-            LOG.info(remoteFilename + " uploaded.");
-            ftp.logout();
+            out = null;
+            complete();
         } catch (IOException e) {
             LOG.error("Oops, got an excepion.", e);
-            if (ftp.isConnected() && remoteTempFilename != null) {
-                try {
-                    ftp.deleteFile(remoteTempFilename);
-                } catch (IOException e1) {
-                }
-            }
         } finally {
             if (out != null) {
                 try {
@@ -101,17 +65,82 @@ public class FTPUpload implements Runnable {
                 } catch (IOException e) {
                 }
             }
-            if (ftp.isConnected()) {
-                try {
-                    ftp.disconnect();
-                } catch (IOException e) {
-                }
+            abort();
+        }
+    }
+    
+    /**
+     * connect and start storing the roll to a temp file
+     * @return the raw stream to the remote temp file, the caller writes
+     * the gz compressed roll to it, closes it and then calls complete()
+     */
+    public OutputStream open() throws IOException {
+        ftp = new FTPClient();
+        ftp.setSocketFactory(new TimeoutSocketFactory(CONNECT_TIMEOUT_MILLIS));
+        ftp.setDefaultTimeout(DATA_TIMEOUT_MILLIS);
+        ftp.setDataTimeout(DATA_TIMEOUT_MILLIS);
+        ftp.connect(configration.getUrl(), configration.getPort());
+        ftp.login(configration.getUsername(), configration.getPassword());
+        int reply = ftp.getReplyCode();
+        if (!FTPReply.isPositiveCompletion(reply)) {
+            throw new IOException("FTPReply is " + reply);
+        }
+        ftp.setFileTransferMode(FTPClient.BINARY_FILE_TYPE);
+        ftp.setFileType(FTPClient.BINARY_FILE_TYPE);
+        if(!ftp.changeWorkingDirectory("/")) {
+            throw new IOException("Can not change to root dir /");
+        }
+        String remoteDir = mgr.getParentPath(configration.getRootDir(), ident);
+        ftpCreateDirectoryTree(ftp, remoteDir);
+        LOG.debug("Current FTP working directory is: " + ftp.printWorkingDirectory());
+        remoteFilename = mgr.getGZCompressedFileName(ident);
+        remoteTempFilename = "." + remoteFilename + ".tmp";
+        OutputStream remote = ftp.storeFileStream(remoteTempFilename);
+        if (remote == null) {
+            throw new IOException("Can not store " + remoteTempFilename + ", FTPReply is " + ftp.getReplyCode());
+        }
+        return remote;
+    }
+    
+    /**
+     * finish the upload after the stream returned by open() was closed
+     */
+    public void complete() throws IOException {
+        if (!ftp.completePendingCommand()) {
+            throw new IOException("Unfinished upload " + remoteFilename);
+        }
+        if(!ftp.rename(remoteTempFilename, remoteFilename)) {
+            throw new IOException("Unfinished rename to " + remoteFilename);
+        }
+        remoteTempFilename = null;
+        LOG.info(remoteFilename + " uploaded.");
+        ftp.logout();
+    }
+    
+    /**
+     * drop an unfinished upload and disconnect, nothing to do once completed
+     */
+    public void abort() {
+        if (ftp == null) {
+            return;
+        }
+        if (ftp.isConnected() && remoteTempFilename != null) {
+            try {
+                ftp.deleteFile(remoteTempFilename);
+            } catch (IOException e) {
             }
         }
+        if (ftp.isConnected()) {
+            try {
+                ftp.disconnect();
+            } catch (IOException e) {
+            }
+        }
+        ftp = null;
     }
     
     private void remoteWrite(OutputStream out) throws IOException {
-        WritableByteChannel compressionFtpChannel =  Channels.newChannel(out);
+        UploadWriter writer = new UploadWriter(out, WriteBlockSize);
         ByteBuffer buffer = ByteBuffer.allocate(BufferSize);
         ByteBufferChannel channel = new ByteBufferChannel(buffer);
         
@@ -132,18 +161,11 @@ public class FTPUpload implements Runnable {
             buffer.flip();
             ByteBufferMessageSet bms = new ByteBufferMessageSet(buffer, start);
             long realRead = bms.getValidSize();
-            
-            Iterator<MessageAndOffset> iter = bms.getItertor();
-            while (iter.hasNext()) {
-                MessageAndOffset mo = iter.next();
-                compressionFtpChannel.write(mo.getMessage().payload());
-                compressionFtpChannel.write(newline);
-                newline.clear();
-            }
+            writer.write(bms);
             buffer.clear();
             start += realRead;
         }
-        compressionFtpChannel.close();
+        writer.close();
     }
     
     private void fetchFileMessageSet(GatheringByteChannel channel, FileMessageSet messages) throws IOException {
@@ -0,0 +1,37 @@
+package com.dp.blackhole.broker.ftp;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+import org.apache.commons.net.DefaultSocketFactory;
+
+/**
+ * Connects control and data sockets of an ftp client with a timeout, the
+ * default factory waits for the system one.
+ */
+class TimeoutSocketFactory extends DefaultSocketFactory {
+    private int connectTimeout;
+
+    TimeoutSocketFactory(int connectTimeout) {
+        this.connectTimeout = connectTimeout;
+    }
+
+    @Override
+    public Socket createSocket(String host, int port) throws IOException {
+        return createSocket(InetAddress.getByName(host), port);
+    }
+
+    @Override
+    public Socket createSocket(InetAddress address, int port) throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(address, port), connectTimeout);
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+        return socket;
+    }
+}
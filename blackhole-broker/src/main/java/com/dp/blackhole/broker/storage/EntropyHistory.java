@@ -0,0 +1,155 @@
+package com.dp.blackhole.broker.storage;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Properties;
+import java.util.TreeMap;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * The offset each entropy (leader term) of a partition started at, kept in
+ * the partition directory. A follower and its leader share the messages up
+ * to where the leader moved past the entropy of the follower's last message,
+ * so only what the follower has beyond that needs to be truncated.
+ */
+class EntropyHistory {
+    private static final Log LOG = LogFactory.getLog(EntropyHistory.class);
+    static final String ENTROPY_FILE = ".entropy";
+
+    private File file;
+    private TreeMap<Integer, Long> starts;
+
+    EntropyHistory(File dir) {
+        this.file = new File(dir, ENTROPY_FILE);
+        this.starts = new TreeMap<Integer, Long>();
+        load();
+    }
+
+    private void load() {
+        if (!file.exists()) {
+            return;
+        }
+        Properties checkpoint = new Properties();
+        InputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            checkpoint.load(in);
+            for (Entry<Object, Object> entry : checkpoint.entrySet()) {
+                starts.put(Integer.parseInt((String) entry.getKey()), Long.parseLong((String) entry.getValue()));
+            }
+        } catch (IOException e) {
+            LOG.warn("failed to read " + file + ", entropy history is lost", e);
+            starts.clear();
+        } catch (NumberFormatException e) {
+            LOG.warn("malformed " + file + ", entropy history is lost", e);
+            starts.clear();
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    private void store() {
+        Properties checkpoint = new Properties();
+        for (Entry<Integer, Long> entry : starts.entrySet()) {
+            checkpoint.setProperty(String.valueOf(entry.getKey()), String.valueOf(entry.getValue()));
+        }
+        File tmp = new File(file.getParentFile(), ENTROPY_FILE + ".tmp");
+        OutputStream out = null;
+        try {
+            out = new FileOutputStream(tmp);
+            checkpoint.store(out, "start offsets of entropies");
+            ((FileOutputStream) out).getFD().sync();
+            out.close();
+            out = null;
+            if (!tmp.renameTo(file)) {
+                throw new IOException("failed to rename " + tmp);
+            }
+        } catch (IOException e) {
+            LOG.error("failed to write entropy history to " + file, e);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                }
+            }
+        }
+    }
+
+    /**
+     * messages from offset on belong to entropy. The current entropy again
+     * is ignored; a lower one means the entropies were numbered anew, e.g.
+     * by a supervisor which lost its count, and the history before it can
+     * no longer be compared, so it starts over from offset
+     */
+    synchronized void start(int entropy, long offset) {
+        if (!starts.isEmpty() && starts.lastKey() == entropy) {
+            return;
+        }
+        if (!starts.isEmpty() && starts.lastKey() > entropy) {
+            LOG.warn("entropy " + entropy + " below " + starts.lastKey() + " in " + file
+                    + ", restart entropy history at " + offset);
+            starts.clear();
+        }
+        starts.put(entropy, offset);
+        store();
+    }
+
+    /**
+     * messages from offset on are gone, entropies started after it start
+     * there without messages
+     */
+    synchronized void truncate(long offset) {
+        boolean changed = false;
+        for (Map.Entry<Integer, Long> entry : starts.entrySet()) {
+            if (entry.getValue() > offset) {
+                entry.setValue(offset);
+                changed = true;
+            }
+        }
+        if (changed) {
+            store();
+        }
+    }
+
+    /**
+     * @return the entropy of the message before endOffset, or -1 if unknown
+     */
+    synchronized int lastEntropy(long endOffset) {
+        int last = -1;
+        for (Map.Entry<Integer, Long> entry : starts.entrySet()) {
+            if (entry.getValue() < endOffset) {
+                last = entry.getKey();
+            }
+        }
+        return last;
+    }
+
+    /**
+     * @return where the messages of entropy and older ones end, at most
+     *         endOffset, or -1 if entropy is outside the history
+     */
+    synchronized long endOffsetOf(int entropy, long endOffset) {
+        if (starts.isEmpty() || entropy < starts.firstKey() || entropy > starts.lastKey()) {
+            return -1L;
+        }
+        Map.Entry<Integer, Long> next = starts.higherEntry(entropy);
+        if (next == null) {
+            return endOffset;
+        }
+        return Math.min(next.getValue(), endOffset);
+    }
+}
@@ -0,0 +1,171 @@
+package com.dp.blackhole.broker.storage;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.dp.blackhole.common.Util;
+
+/**
+ * Flushes dirty partitions in the background, so appending threads never
+ * wait for fsync. A partition is flushed once it has more than its
+ * flushThreshold bytes unflushed, or flushInterval millis after its last
+ * flush. Appenders crossing the byte threshold wake the scheduler up early.
+ * Segments closed by a roll are synced here as well.
+ */
+public class FlushScheduler extends Thread {
+    private final Log LOG = LogFactory.getLog(FlushScheduler.class);
+
+    private ConcurrentHashMap<String, ConcurrentHashMap<String, Partition>> storage;
+    private long flushInterval;
+    private long checkInterval;
+    private long reportInterval = 60 * 1000l;
+    private final ConcurrentLinkedQueue<Segment> closed = new ConcurrentLinkedQueue<Segment>();
+    private final Object signal = new Object();
+    private boolean signaled;
+    private volatile boolean running;
+
+    // fsync latency metrics
+    private final AtomicLong flushCount = new AtomicLong();
+    private final AtomicLong flushNanos = new AtomicLong();
+    private final AtomicLong maxFlushNanos = new AtomicLong();
+    private long reportedCount;
+    private long reportedNanos;
+
+    public FlushScheduler(ConcurrentHashMap<String, ConcurrentHashMap<String, Partition>> storage,
+            long flushInterval, long checkInterval) {
+        this.storage = storage;
+        this.flushInterval = flushInterval;
+        this.checkInterval = checkInterval;
+        this.running = true;
+        setName("FlushScheduler");
+        setDaemon(true);
+    }
+
+    public void requestFlush() {
+        synchronized (signal) {
+            signaled = true;
+            signal.notify();
+        }
+    }
+
+    /**
+     * sync a segment which was just closed by a roll
+     */
+    public void flushClosed(Segment segment) {
+        closed.add(segment);
+        requestFlush();
+    }
+
+    public void shutdown() {
+        running = false;
+        requestFlush();
+    }
+
+    public long getFlushCount() {
+        return flushCount.get();
+    }
+
+    public long getTotalFlushMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(flushNanos.get());
+    }
+
+    public long getMaxFlushMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(maxFlushNanos.get());
+    }
+
+    private void flushClosed() {
+        Segment segment;
+        while ((segment = closed.poll()) != null) {
+            long start = System.nanoTime();
+            try {
+                segment.sync();
+            } catch (IOException e) {
+                LOG.error("failed to flush closed segment " + segment.file, e);
+                continue;
+            }
+            record(System.nanoTime() - start);
+        }
+    }
+
+    private void flushDirty() {
+        long now = Util.getTS();
+        for (Map<String, Partition> partitions : storage.values()) {
+            for (Partition p : partitions.values()) {
+                long unflushed = p.getUnflushSize();
+                if (unflushed == 0) {
+                    continue;
+                }
+                if (unflushed < p.flushThreshold && now - p.getLastFlushTime() < flushInterval) {
+                    continue;
+                }
+                long start = System.nanoTime();
+                try {
+                    // the segment length is recovered by verification after a crash
+                    if (!p.flush(false)) {
+                        continue;
+                    }
+                } catch (IOException e) {
+                    LOG.error("failed to flush " + p, e);
+                    continue;
+                }
+                record(System.nanoTime() - start);
+            }
+        }
+    }
+
+    private void record(long nanos) {
+        flushCount.incrementAndGet();
+        flushNanos.addAndGet(nanos);
+        long max = maxFlushNanos.get();
+        while (nanos > max && !maxFlushNanos.compareAndSet(max, nanos)) {
+            max = maxFlushNanos.get();
+        }
+    }
+
+    private void report() {
+        long count = flushCount.get();
+        long nanos = flushNanos.get();
+        long max = maxFlushNanos.getAndSet(0);
+        long deltaCount = count - reportedCount;
+        if (deltaCount != 0) {
+            LOG.info("flushed " + deltaCount + " times in last " + reportInterval / 1000 + " seconds, avg "
+                    + TimeUnit.NANOSECONDS.toMicros((nanos - reportedNanos) / deltaCount) + "us, max "
+                    + TimeUnit.NANOSECONDS.toMicros(max) + "us");
+        }
+        reportedCount = count;
+        reportedNanos = nanos;
+    }
+
+    @Override
+    public void run() {
+        LOG.info("start flush scheduler at interval " + flushInterval + "ms");
+        long lastReport = Util.getTS();
+        while (running) {
+            synchronized (signal) {
+                if (!signaled) {
+                    try {
+                        signal.wait(checkInterval);
+                    } catch (InterruptedException e) {
+                        LOG.error(e.getMessage());
+                    }
+                }
+                signaled = false;
+            }
+            flushClosed();
+            flushDirty();
+            long now = Util.getTS();
+            if (now - lastReport >= reportInterval) {
+                report();
+                lastReport = now;
+            }
+        }
+        flushClosed();
+    }
+}
@@ -0,0 +1,186 @@
+package com.dp.blackhole.broker.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Sparse index of message boundaries in a segment file.
+ *
+ * Offsets in blackhole are byte positions in the partition, so an offset maps
+ * to the file position (offset - segment start offset). Each entry is the
+ * relative offset of a message start, and at most one entry is kept per
+ * indexInterval bytes appended. A lookup finds the closest boundary below a
+ * position, so only a small range of message headers has to be scanned.
+ */
+public class OffsetIndex {
+    public static final Log LOG = LogFactory.getLog(OffsetIndex.class);
+
+    public static final int ENTRY_SIZE = Integer.SIZE / 8;
+
+    private String file;
+    private FileChannel channel;
+    private int indexInterval;
+    private volatile int[] entries;
+    private volatile int size;
+    private long lastIndexed;
+    private boolean existed;
+    private final ByteBuffer entryBuf;
+
+    public OffsetIndex(String parent, long offset, int indexInterval) throws IOException {
+        this.file = getFilePath(parent, offset);
+        this.existed = new File(file).exists();
+        // the index of a readonly segment may still need to be rebuilt
+        channel = new RandomAccessFile(file, "rw").getChannel();
+        this.indexInterval = indexInterval;
+        this.entries = new int[16];
+        this.size = 0;
+        this.lastIndexed = 0;
+        this.entryBuf = ByteBuffer.allocate(ENTRY_SIZE);
+    }
+
+    public static String getFilePath(String parent, long offset) {
+        return parent + '/' + offset + ".index";
+    }
+
+    /**
+     * load entries from the index file, return false if the file is
+     * missing or inconsistent with a segment of the given length and should
+     * be rebuilt. Entries lost from the tail only make lookups less precise.
+     */
+    public synchronized boolean load(long segmentLength) throws IOException {
+        if (!existed && segmentLength != 0) {
+            return false;
+        }
+        long fileSize = channel.size();
+        if (fileSize % ENTRY_SIZE != 0) {
+            return false;
+        }
+        int count = (int) (fileSize / ENTRY_SIZE);
+        ByteBuffer buf = ByteBuffer.allocate(count * ENTRY_SIZE);
+        long position = 0;
+        while (buf.hasRemaining()) {
+            int num = channel.read(buf, position);
+            if (num == -1) {
+                return false;
+            }
+            position += num;
+        }
+        buf.flip();
+        int[] loaded = new int[Math.max(count, 16)];
+        int last = 0;
+        for (int i = 0; i < count; i++) {
+            int entry = buf.getInt();
+            if (entry <= last || entry >= segmentLength) {
+                return false;
+            }
+            loaded[i] = entry;
+            last = entry;
+        }
+        entries = loaded;
+        size = count;
+        lastIndexed = last;
+        channel.position(fileSize);
+        return true;
+    }
+
+    /**
+     * record a message boundary at relative offset position if at least
+     * indexInterval bytes were appended since the last entry
+     */
+    public synchronized void maybeAppend(long position) throws IOException {
+        if (position - lastIndexed < indexInterval) {
+            return;
+        }
+        entryBuf.clear();
+        entryBuf.putInt((int) position);
+        entryBuf.flip();
+        while (entryBuf.hasRemaining()) {
+            channel.write(entryBuf);
+        }
+        int[] current = entries;
+        if (size == current.length) {
+            current = Arrays.copyOf(current, current.length * 2);
+        }
+        current[size] = (int) position;
+        entries = current;
+        size++;
+        lastIndexed = position;
+    }
+
+    /**
+     * find the largest indexed message boundary which is not greater than
+     * position; 0 (the segment start) is always a boundary
+     */
+    public int lookup(long position) {
+        int n = size;
+        int[] current = entries;
+        int low = 0;
+        int high = n - 1;
+        int found = 0;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (current[mid] <= position) {
+                found = current[mid];
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * drop all entries not less than position
+     */
+    public synchronized void truncateTo(long position) throws IOException {
+        int n = size;
+        while (n > 0 && entries[n - 1] >= position) {
+            n--;
+        }
+        size = n;
+        lastIndexed = n == 0 ? 0 : entries[n - 1];
+        channel.truncate((long) n * ENTRY_SIZE);
+        channel.position((long) n * ENTRY_SIZE);
+    }
+
+    public synchronized void reset() throws IOException {
+        truncateTo(0);
+    }
+
+    public int entries() {
+        return size;
+    }
+
+    public void flush() throws IOException {
+        channel.force(false);
+    }
+
+    public void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            LOG.error("Oops, failed to close index channel", e);
+        }
+    }
+
+    void markDeleted() {
+        File f = new File(file);
+        File deleted = new File(file + Segment.DELETED_SUFFIX);
+        if (f.renameTo(deleted)) {
+            file = deleted.getPath();
+        }
+    }
+
+    public void destory() {
+        close();
+        File f = new File(file);
+        f.delete();
+    }
+}
@@ -3,44 +3,85 @@ package com.dp.blackhole.broker.storage;
 import java.io.File;
 import java.io.FileFilter;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import com.dp.blackhole.common.Util;
+import com.dp.blackhole.storage.CompositeMessageSet;
 import com.dp.blackhole.storage.FileMessageSet;
 import com.dp.blackhole.storage.MessageSet;
 
+/**
+ * The segments of a partition are kept in an immutable array which is
+ * replaced as a whole on every change (copy-on-write), so readers never
+ * lock. Changes are serialized on segmentsLock, and removed segments are
+ * deleted after the new array was published, outside the lock.
+ */
 public class Partition {
     private final Log Log = LogFactory.getLog(Partition.class);
     
+    static final String PREALLOCATED_FILE = "next.prealloc";
+    
     private String topic;
     private String id;
-    private List<Segment> segments;
+    private volatile Segment[] segments;
     private File dir;
-    private final ReentrantReadWriteLock lock;
+    private final Object segmentsLock = new Object();
     private RollPartition roll;
     private int entropy;
+    private EntropyHistory entropyHistory;
+    private volatile FlushScheduler flusher;
+    private volatile long lastFlushTime;
+    private volatile SegmentPreallocator preallocator;
+    private volatile File preallocated;
+    private final AtomicBoolean preallocationRequested = new AtomicBoolean(false);
+    private volatile SegmentDeleter deleter;
+    private volatile StorageDir storageDir;
+    private volatile AppendListener appendListener;
+    // data below uploadedOffset is in HDFS, later uploads finished out of order wait in uploadedRanges
+    private long uploadedOffset;
+    private TreeMap<Long, Long> uploadedRanges = new TreeMap<Long, Long>();
     
     int splitThreshold;
     int flushThreshold;
+    int indexInterval;
     
     public Partition(String basedir, String _topic, String _id, int splitThreshold, int flushThreshold) throws IOException {
+        this(basedir, _topic, _id, splitThreshold, flushThreshold, Segment.DEFAULT_INDEX_INTERVAL);
+    }
+    
+    public Partition(String basedir, String _topic, String _id, int splitThreshold, int flushThreshold,
+            int indexInterval) throws IOException {
+        this(basedir, _topic, _id, splitThreshold, flushThreshold, indexInterval, -1L);
+    }
+    
+    /**
+     * @param cleanEndOffset end offset recorded on clean shutdown, or -1;
+     * the last segment is not verified if it still ends there
+     */
+    public Partition(String basedir, String _topic, String _id, int splitThreshold, int flushThreshold,
+            int indexInterval, long cleanEndOffset) throws IOException {
         dir = new File(basedir + "/" + _topic + "/" + _id);
         topic = _topic;
         id = _id;
-        segments = new ArrayList<Segment>();
+        segments = new Segment[0];
         this.splitThreshold = splitThreshold;
         this.flushThreshold = flushThreshold;
-        lock = new ReentrantReadWriteLock();
+        this.indexInterval = indexInterval;
         roll = new RollPartition(this);
-        loadSegments();
+        loadSegments(cleanEndOffset);
+        this.entropyHistory = new EntropyHistory(dir);
+        this.lastFlushTime = Util.getTS();
         this.entropy = 0;
     }
     
@@ -48,23 +89,56 @@ public class Partition {
         return id;
     }
     
+    public String getTopic() {
+        return topic;
+    }
+    
     public int getEntropy() {
         return this.entropy;
     }
 
     public boolean updateEntropy(int entropy) {
         this.entropy = entropy;
+        entropyHistory.start(entropy, getEndOffset());
         return true;
     }
 
+    /**
+     * @return the entropy the last message was written in, or -1 if unknown
+     */
+    public int getLastEntropy() {
+        return entropyHistory.lastEntropy(getEndOffset());
+    }
+
+    /**
+     * @return the offset this partition moved past the given entropy at,
+     *         the end offset for the current one, or -1 if unknown; a
+     *         replica whose last message was written in that entropy holds
+     *         the same messages up to there
+     */
+    public long getEntropyEndOffset(int entropy) {
+        return entropyHistory.endOffsetOf(entropy, getEndOffset());
+    }
+
     long getFileOffset(File f) {
         int dot = f.getName().lastIndexOf('.');
         String offset = f.getName().substring(0, dot);
         return Long.parseLong(offset);
     }
     
-    void loadSegments() throws IOException {
+    void loadSegments(long cleanEndOffset) throws IOException {
         Util.checkDir(dir);
+        new File(dir, PREALLOCATED_FILE).delete();
+        File[] deletedFiles = dir.listFiles(new FileFilter() {
+            
+            @Override
+            public boolean accept(File pathname) {
+                return pathname.getName().endsWith(Segment.DELETED_SUFFIX);
+            }
+        });
+        for (File f : deletedFiles) {
+            f.delete();
+        }
         
         File[] segmentFiles = dir.listFiles(new FileFilter() {
             
@@ -84,21 +158,42 @@ public class Partition {
             } 
         });
         
+        Segment[] loaded = new Segment[segmentFiles.length];
         for (int i = 0; i < segmentFiles.length; i++) {
             boolean verify;
             boolean readonly;
             if (i == segmentFiles.length-1) {
-                verify = true;
+                long end = getFileOffset(segmentFiles[i]) + segmentFiles[i].length();
+                verify = (end != cleanEndOffset);
+                if (!verify) {
+                    Log.info("skip verifying " + segmentFiles[i] + " of " + topic + "/" + id + " after clean shutdown");
+                }
                 readonly = false;
             } else {
                 verify = false;
                 readonly = true;
+                // a crash may leave the preallocated tail of a rolled segment behind
+                long length = getFileOffset(segmentFiles[i+1]) - getFileOffset(segmentFiles[i]);
+                if (segmentFiles[i].length() > length) {
+                    Log.info("trim " + segmentFiles[i] + " of " + topic + "/" + id + " to " + length);
+                    RandomAccessFile raf = new RandomAccessFile(segmentFiles[i], "rw");
+                    try {
+                        raf.setLength(length);
+                    } finally {
+                        raf.close();
+                    }
+                }
+            }
+            Segment segment = new Segment(dir.getAbsolutePath(), getFileOffset(segmentFiles[i]), verify, readonly, splitThreshold, flushThreshold, indexInterval);
+            if (readonly) {
+                // closed before the restart, let it expire from its last write
+                segment.setCloseTimestamp(segmentFiles[i].lastModified());
             }
-            Segment segment = new Segment(dir.getAbsolutePath(), getFileOffset(segmentFiles[i]), verify, readonly, splitThreshold, flushThreshold);
-            segments.add(segment);
+            loaded[i] = segment;
         }
+        segments = loaded;
         
-        Segment s = unprotectedGetLastSegment();
+        Segment s = getLastSegment();
         if (s == null) {
             roll.startOffset = 0;
         } else {
@@ -107,61 +202,190 @@ public class Partition {
     }
     
     private Segment addSegment(long offset) throws IOException {
-        Segment segment = new Segment(dir.getAbsolutePath(), offset, false, false, splitThreshold, flushThreshold);
-        lock.writeLock().lock();
-        try {
-            segments.add(segment);
-        } finally {
-            lock.writeLock().unlock();
-        }
+        Segment segment = new Segment(dir.getAbsolutePath(), offset, false, false, splitThreshold, flushThreshold, indexInterval);
+        addSegment(segment);
         return segment;
     }
     
-    private Segment unprotectedGetFirstSegment() {
-        if (segments.size() == 0) {
-            return null;
+    private void addSegment(Segment segment) {
+        synchronized (segmentsLock) {
+            Segment[] current = segments;
+            Segment[] updated = Arrays.copyOf(current, current.length + 1);
+            updated[current.length] = segment;
+            segments = updated;
         }
-        return segments.get(0);
     }
-
+    
     private Segment getFirstSegment() {
-        lock.readLock().lock();
-        try {
-            return unprotectedGetFirstSegment();
-        } finally {
-            lock.readLock().unlock();
+        Segment[] current = segments;
+        if (current.length == 0) {
+            return null;
         }
+        return current[0];
     }
-
-    private Segment unprotectedGetLastSegment() {
-        if (segments.size() == 0) {
+    
+    private Segment getLastSegment() {
+        Segment[] current = segments;
+        if (current.length == 0) {
             return null;
         }
-        return segments.get(segments.size() - 1);
+        return current[current.length - 1];
     }
     
-    private Segment getLastSegment() {
-        lock.readLock().lock();
-        try {
-            return unprotectedGetLastSegment();
-        } finally {
-            lock.readLock().unlock();
+    private void destory(List<Segment> removed) {
+        SegmentDeleter d = deleter;
+        for (Segment s : removed) {
+            if (d != null) {
+                d.delete(s);
+            } else {
+                s.destory();
+            }
+        }
+    }
+    
+    private void retire(Segment replaced) {
+        SegmentDeleter d = deleter;
+        if (d != null) {
+            d.close(replaced);
+        } else {
+            replaced.close();
         }
     }
     
+    /**
+     * delete removed segments in the background instead of on the calling thread
+     */
+    void setDeleter(SegmentDeleter deleter) {
+        this.deleter = deleter;
+    }
+    
+    /**
+     * told about every append, after the messages can be read
+     */
+    public interface AppendListener {
+        void appended(Partition p);
+        
+        /**
+         * p is gone from its storage manager, no more appends follow
+         */
+        void removed(Partition p);
+    }
+    
+    void setAppendListener(AppendListener appendListener) {
+        this.appendListener = appendListener;
+    }
+    
     public void append(MessageSet messages) throws IOException {
+        try {
+            doAppend(messages);
+        } catch (IOException e) {
+            failed(e);
+            throw e;
+        }
+        AppendListener l = appendListener;
+        if (l != null) {
+            l.appended(this);
+        }
+    }
+    
+    private void doAppend(MessageSet messages) throws IOException {
         Segment segment = getLastSegment();
         if (segment == null) {
             segment = addSegment(0);
         }
+        long start = segment.getEndOffset();
         long offset = segment.append(messages);
+        StorageDir d = storageDir;
+        if (d != null) {
+            d.recordAppend(segment.getEndOffset() - start);
+        }
         if (offset != 0) {
-            segment.flush();
-            segment.setCloseTimestamp(Util.getTS());
+            rollSegment(segment, offset);
+            return;
+        }
+        if (segment.getUnflushSize() > flushThreshold) {
+            FlushScheduler f = flusher;
+            if (f != null) {
+                f.requestFlush();
+            } else {
+                flush();
+            }
+        }
+        SegmentPreallocator p = preallocator;
+        if (p != null && segment.getEndOffset() - segment.getStartOffset() > splitThreshold / 2
+                && preallocationRequested.compareAndSet(false, true)) {
+            p.request(this);
+        }
+    }
+    
+    /**
+     * close the full segment and continue at offset, in the preallocated
+     * file if it is ready; the closed segment is synced in the background
+     */
+    private void rollSegment(Segment segment, long offset) throws IOException {
+        segment.trim();
+        segment.setCloseTimestamp(Util.getTS());
+        FlushScheduler f = flusher;
+        if (f != null) {
+            f.flushClosed(segment);
+        } else {
+            segment.sync();
+        }
+        
+        File next = preallocated;
+        preallocated = null;
+        preallocationRequested.set(false);
+        if (next != null && next.renameTo(new File(Segment.getFilePath(dir.getAbsolutePath(), offset)))) {
+            addSegment(new Segment(dir.getAbsolutePath(), offset, false, false, splitThreshold, flushThreshold,
+                    indexInterval, true));
+        } else {
             addSegment(offset);
         }
     }
     
+    /**
+     * create the file of the next segment ahead of time, called by
+     * SegmentPreallocator
+     */
+    void preallocate() throws IOException {
+        File f = new File(dir, PREALLOCATED_FILE);
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        try {
+            raf.setLength(splitThreshold);
+        } finally {
+            raf.close();
+        }
+        preallocated = f;
+    }
+    
+    void setPreallocator(SegmentPreallocator preallocator) {
+        this.preallocator = preallocator;
+    }
+    
+    /**
+     * give the unused preallocated space back, so the partition files hold
+     * exactly the data again (e.g. before a clean shutdown)
+     */
+    void trim() throws IOException {
+        Segment segment = getLastSegment();
+        if (segment != null) {
+            segment.trim();
+        }
+        File next = preallocated;
+        preallocated = null;
+        if (next != null) {
+            next.delete();
+        }
+    }
+    
+    /**
+     * hand over flushing to a background scheduler instead of flushing
+     * inline on the appending thread
+     */
+    void setFlusher(FlushScheduler flusher) {
+        this.flusher = flusher;
+    }
+    
     public RollPartition markRollPartition() throws IOException {
         RollPartition ret = null;
         long endoffset;
@@ -171,6 +395,8 @@ public class Partition {
         }
         segment.flush();
         endoffset = segment.getEndOffset();
+        // a roll boundary is a natural point to seek to by time
+        segment.markTime(Util.getTS());
         
         roll.length = endoffset - roll.startOffset;
         ret = roll;
@@ -197,45 +423,47 @@ public class Partition {
     }
     
     public Segment findSegment(long offset) {
-        lock.readLock().lock();
-        try {
-            if (segments.size() == 0) {
-                return null;
-            }
-            int high = segments.size() -1;
-            Segment last = segments.get(high);
-            // TODO check last.getEndOffset() == offset condition
-            if (last.contains(offset) || last.getEndOffset() == offset) {
-                return last;
-            } else if (last.getEndOffset() < offset) {
-                return null;
-            }
-            
-            int low = 0;
-            Segment first = segments.get(0);
-            if (first.contains(offset)) {
-                return first;
-            } else if (first.getStartOffset() > offset) {
-                return null;
-            }
-            
-            while (low <= high) {
-                int mid = (low + high)/2;
-                Segment found = segments.get(mid);
-                if (found.contains(offset)) {
-                    return found;
-                } else if (found.getStartOffset() > offset) {
-                    high = mid -1;
-                } else {
-                    low = mid +1;
-                }
-            }
+        return findSegment(segments, offset);
+    }
+    
+    private static Segment findSegment(Segment[] segments, long offset) {
+        if (segments.length == 0) {
             return null;
-        } finally {
-            lock.readLock().unlock();
         }
+        int high = segments.length -1;
+        Segment last = segments[high];
+        // TODO check last.getEndOffset() == offset condition
+        if (last.contains(offset) || last.getEndOffset() == offset) {
+            return last;
+        } else if (last.getEndOffset() < offset) {
+            return null;
+        }
+        
+        int low = 0;
+        Segment first = segments[0];
+        if (first.contains(offset)) {
+            return first;
+        } else if (first.getStartOffset() > offset) {
+            return null;
+        }
+        
+        while (low <= high) {
+            int mid = (low + high)/2;
+            Segment found = segments[mid];
+            if (found.contains(offset)) {
+                return found;
+            } else if (found.getStartOffset() > offset) {
+                high = mid -1;
+            } else {
+                low = mid +1;
+            }
+        }
+        return null;
     }
     
+    /**
+     * read a message-aligned range starting at offset, see Segment.read
+     */
     public FileMessageSet read(long offset, int length) {
         Segment segment = findSegment(offset);
         if (segment == null) {
@@ -244,76 +472,295 @@ public class Partition {
         return segment.read(offset, length);
     }
     
+    /**
+     * like read, but a read reaching the end of a closed segment goes on
+     * with the following segments until length is filled, so fetches
+     * straddling a segment boundary are not cut short
+     */
+    public MessageSet readMessages(long offset, int length) {
+        Segment[] current = segments;
+        Segment segment = findSegment(current, offset);
+        if (segment == null) {
+            return null;
+        }
+        FileMessageSet first = segment.read(offset, length);
+        int i = Arrays.asList(current).indexOf(segment);
+        if (first.getSize() >= length || i < 0 || i == current.length - 1
+                || offset + first.getSize() != segment.getEndOffset()) {
+            return first;
+        }
+        List<FileMessageSet> parts = new ArrayList<FileMessageSet>();
+        parts.add(first);
+        int remaining = length - first.getSize();
+        for (i++; i < current.length && remaining > 0; i++) {
+            Segment next = current[i];
+            FileMessageSet part = next.read(next.getStartOffset(), remaining);
+            // a message larger than what is left goes to the next fetch
+            if (part.getSize() == 0 || part.getSize() > remaining) {
+                break;
+            }
+            parts.add(part);
+            remaining -= part.getSize();
+            if (next.getStartOffset() + part.getSize() != next.getEndOffset()) {
+                break;
+            }
+        }
+        return parts.size() == 1 ? first : new CompositeMessageSet(parts);
+    }
+    
+    /**
+     * find where to start reading to get everything appended since
+     * timestamp; the start offset if the partition has nothing indexed
+     * that old
+     */
+    public long getOffsetByTime(long timestamp) {
+        Segment[] current = segments;
+        for (int i = current.length - 1; i >= 0; i--) {
+            long offset = current[i].lookupTime(timestamp);
+            if (offset >= 0) {
+                return offset;
+            }
+        }
+        return getStartOffset();
+    }
+    
+    /**
+     * @return the recorded append time of the message set at offset, or -1
+     */
+    public long getTimestampOf(long offset) {
+        Segment segment = findSegment(offset);
+        return segment == null ? -1 : segment.timestampOf(offset);
+    }
+    
     // for test only
     List<Segment> getSegments() {
-        return segments;
+        return Arrays.asList(segments);
     }
     
     public void cleanupSegments(long current, long threshold) {
-        lock.writeLock().lock();
-        try {
-            Iterator<Segment> iter = segments.iterator();
-            while(iter.hasNext()) {
-                Segment s = iter.next();
+        List<Segment> removed = new ArrayList<Segment>();
+        synchronized (segmentsLock) {
+            List<Segment> kept = new ArrayList<Segment>();
+            for (Segment s : segments) {
                 if (threshold == 0) {
                     s.setCloseTimestamp(current);
                 }
                 // the segment has not been closed (splitted)
                 if (s.getCloseTimestamp() != 0 && current - s.getCloseTimestamp() >= threshold) {
                     Log.info("cleanup segment: " + s + " for " + id);
-                    iter.remove();
-                    s.destory();
+                    removed.add(s);
+                } else {
+                    kept.add(s);
                 }
             }
-        } finally {
-            lock.writeLock().unlock();
+            if (removed.isEmpty()) {
+                return;
+            }
+            segments = kept.toArray(new Segment[kept.size()]);
         }
+        destory(removed);
     }
 
+    /**
+     * remove the oldest closed segments as long as the partition stays at
+     * least retentionBytes large without them
+     */
+    public void cleanupSegmentsBySize(long retentionBytes) {
+        while (true) {
+            Segment[] current = segments;
+            if (current.length < 2) {
+                return;
+            }
+            Segment first = current[0];
+            long size = current[current.length - 1].getEndOffset() - first.getStartOffset();
+            if (size - first.getLength() < retentionBytes) {
+                return;
+            }
+            Log.info("cleanup segment: " + first + " for " + id + ", size " + size + " exceeds " + retentionBytes);
+            if (!removeOldestSegment(first)) {
+                return;
+            }
+        }
+    }
+    
+    /**
+     * remove the first segment if it is still the given one and closed
+     * @return true if removed
+     */
+    boolean removeOldestSegment(Segment expected) {
+        synchronized (segmentsLock) {
+            Segment[] current = segments;
+            if (current.length < 2 || current[0] != expected) {
+                return false;
+            }
+            segments = Arrays.copyOfRange(current, 1, current.length);
+        }
+        List<Segment> removed = new ArrayList<Segment>(1);
+        removed.add(expected);
+        destory(removed);
+        return true;
+    }
+    
+    Segment getOldestClosedSegment() {
+        Segment[] current = segments;
+        if (current.length < 2) {
+            return null;
+        }
+        return current[0];
+    }
+    
+    /**
+     * record that [start, end) was uploaded to HDFS
+     */
+    public synchronized void markUploaded(long start, long end) {
+        if (end <= start) {
+            return;
+        }
+        if (uploadedOffset < getStartOffset()) {
+            // nothing before the start offset is left to upload, e.g. after a restart
+            uploadedOffset = getStartOffset();
+        }
+        uploadedRanges.put(start, end);
+        Iterator<Map.Entry<Long, Long>> iter = uploadedRanges.entrySet().iterator();
+        while (iter.hasNext()) {
+            Map.Entry<Long, Long> range = iter.next();
+            if (range.getKey() > uploadedOffset) {
+                break;
+            }
+            uploadedOffset = Math.max(uploadedOffset, range.getValue());
+            iter.remove();
+        }
+    }
+    
+    public synchronized boolean isUploaded(Segment segment) {
+        return segment.getEndOffset() <= uploadedOffset;
+    }
+    
     public void reInitSegment(long startOffset) throws IOException {
         addSegment(startOffset);
         this.roll.startOffset = startOffset;
+        entropyHistory.truncate(startOffset);
     }
 
     public void flush() throws IOException {
+        flush(true);
+    }
+    
+    /**
+     * @return true if there was any data to flush
+     */
+    boolean flush(boolean metadata) throws IOException {
         Segment segment = getLastSegment();
         if (segment == null) {
-            return;
+            return false;
         }
-        segment.flush();
+        boolean flushed;
+        try {
+            flushed = segment.flush(metadata);
+        } catch (IOException e) {
+            failed(e);
+            throw e;
+        }
+        lastFlushTime = Util.getTS();
+        return flushed;
+    }
+    
+    /**
+     * a write error means the directory of the partition has failed
+     */
+    private void failed(IOException e) {
+        StorageDir d = storageDir;
+        if (d != null) {
+            d.fail(e);
+        }
+    }
+    
+    void setStorageDir(StorageDir storageDir) {
+        this.storageDir = storageDir;
+    }
+    
+    public StorageDir getStorageDir() {
+        return storageDir;
+    }
+    
+    /**
+     * close all segment files, e.g. when the partition goes offline
+     */
+    void close() {
+        for (Segment s : segments) {
+            s.close();
+        }
+    }
+    
+    long getUnflushSize() {
+        Segment segment = getLastSegment();
+        if (segment == null) {
+            return 0;
+        }
+        return segment.getUnflushSize();
+    }
+    
+    long getLastFlushTime() {
+        return lastFlushTime;
     }
 
+    /**
+     * drop the messages from offset on; only when nothing before offset is
+     * held here the partition starts over at offset
+     */
     public void truncate(long offset) throws IOException {
+        List<Segment> removed = new ArrayList<Segment>();
+        Segment replaced = null;
+        boolean startOver = false;
         try {
-            lock.writeLock().lock();
-            Segment s = this.getLastSegment();
-            if (s == null) {
-                throw new IOException("fail to find last segment");
-            }
-            if (s.getEndOffset() <= offset) {
-                return;
-            }
-            s = findSegment(offset);
-            if (s == null) {
-                throw new IOException("fail to find segment for offset: " + offset);
-            }
-            int index = segments.indexOf(s);
-            int size = segments.size();
-            if (index != -1) {
-                for (int i = size - 1; i > index; i--) {
-                    Segment tmp = segments.get(i);
-                    segments.remove(i);
-                    tmp.destory();
+            synchronized (segmentsLock) {
+                Segment[] current = segments;
+                if (current.length == 0 || offset < current[0].getStartOffset()) {
+                    startOver = true;
+                } else if (current[current.length - 1].getEndOffset() <= offset) {
+                    return;
+                } else {
+                    Segment s = findSegment(current, offset);
+                    if (s == null) {
+                        throw new IOException("fail to find segment for offset: " + offset);
+                    }
+                    int index = Arrays.asList(current).indexOf(s);
+                    if (index != -1) {
+                        Segment[] kept = Arrays.copyOf(current, index + 1);
+                        try {
+                            if (index < current.length - 1) {
+                                // a closed segment loaded after a restart is read only
+                                Segment reopened = new Segment(dir.getAbsolutePath(), s.getStartOffset(), false, false,
+                                        splitThreshold, flushThreshold, indexInterval);
+                                // fetches may still read the old one
+                                replaced = s;
+                                s = reopened;
+                                kept[index] = s;
+                            }
+                            removed.addAll(Arrays.asList(current).subList(index + 1, current.length));
+                            segments = kept;
+                            s.truncate(offset);
+                        } catch (IOException e) {
+                            failed(e);
+                            throw e;
+                        }
+                        // the segment is the active one again, it must not expire
+                        s.setCloseTimestamp(0);
+                    }
                 }
-                s.channel.truncate(offset);
             }
-        } catch (IOException e) {
-            Log.error("fail to truncate segement topic: " + this.topic + ", partition: "
-                    + this.id + ", offset: " + offset + "\n" + e);
+            entropyHistory.truncate(offset);
+        } finally {
+            destory(removed);
+            if (replaced != null) {
+                retire(replaced);
+            }
+        }
+        if (startOver) {
+            Log.warn("nothing before offset " + offset + " in topic: " + this.topic + ", partition: " + this.id
+                    + ", start over there");
             this.cleanupSegments(Util.getTS(), 0);
             this.reInitSegment(offset);
-        } finally {
-            lock.writeLock().unlock();
         }
     }
 
@@ -321,6 +768,7 @@ public class Partition {
     public String toString() {
         return "Partition [topic=" + topic + ", id=" + id + ", dir=" + dir
                 + ", splitThreshold=" + splitThreshold
-                + ", flushThreshold=" + flushThreshold + "]";
+                + ", flushThreshold=" + flushThreshold
+                + ", indexInterval=" + indexInterval + "]";
     }
 }
@@ -0,0 +1,93 @@
+package com.dp.blackhole.broker.storage;
+
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * How long and how much data the broker keeps. Time and size limits apply
+ * per partition and can be overridden per topic, e.g.
+ * broker.storage.retention.ms.&lt;topic&gt;; a size of -1 means no limit.
+ * When the disk usage exceeds diskHighWatermark, closed segments are evicted
+ * regardless of the limits, those already uploaded to HDFS first. A segment
+ * not uploaded yet is only evicted once it was closed for evictMinAge.
+ */
+public class RetentionPolicy {
+    public static final String RETENTION_MS = "broker.storage.retention.ms";
+    public static final String RETENTION_BYTES = "broker.storage.retention.bytes";
+
+    private long retentionMillis;
+    private long retentionBytes;
+    private double diskHighWatermark;
+    private long cleanInterval;
+    private long deleteDelay;
+    private long evictMinAge;
+    private Map<String, Long> topicRetentionMillis;
+    private Map<String, Long> topicRetentionBytes;
+
+    public RetentionPolicy(long retentionMillis, long retentionBytes, double diskHighWatermark,
+            long cleanInterval, long deleteDelay, long evictMinAge) {
+        this.retentionMillis = retentionMillis;
+        this.retentionBytes = retentionBytes;
+        this.diskHighWatermark = diskHighWatermark;
+        this.cleanInterval = cleanInterval;
+        this.deleteDelay = deleteDelay;
+        this.evictMinAge = evictMinAge;
+        this.topicRetentionMillis = new ConcurrentHashMap<String, Long>();
+        this.topicRetentionBytes = new ConcurrentHashMap<String, Long>();
+    }
+
+    public static RetentionPolicy load(Properties prop) {
+        RetentionPolicy policy = new RetentionPolicy(
+                Long.parseLong(prop.getProperty(RETENTION_MS, "86400000")),
+                Long.parseLong(prop.getProperty(RETENTION_BYTES, "-1")),
+                Double.parseDouble(prop.getProperty("broker.storage.diskHighWatermark", "0.8")),
+                Long.parseLong(prop.getProperty("broker.storage.cleanInterval", "60000")),
+                Long.parseLong(prop.getProperty("broker.storage.deleteDelay", "60000")),
+                Long.parseLong(prop.getProperty("broker.storage.evictMinAge", "21600000")));
+        for (String key : prop.stringPropertyNames()) {
+            if (key.startsWith(RETENTION_MS + ".")) {
+                policy.setTopicRetentionMillis(key.substring(RETENTION_MS.length() + 1),
+                        Long.parseLong(prop.getProperty(key)));
+            } else if (key.startsWith(RETENTION_BYTES + ".")) {
+                policy.setTopicRetentionBytes(key.substring(RETENTION_BYTES.length() + 1),
+                        Long.parseLong(prop.getProperty(key)));
+            }
+        }
+        return policy;
+    }
+
+    public void setTopicRetentionMillis(String topic, long millis) {
+        topicRetentionMillis.put(topic, millis);
+    }
+
+    public void setTopicRetentionBytes(String topic, long bytes) {
+        topicRetentionBytes.put(topic, bytes);
+    }
+
+    public long getRetentionMillis(String topic) {
+        Long millis = topicRetentionMillis.get(topic);
+        return millis == null ? retentionMillis : millis;
+    }
+
+    public long getRetentionBytes(String topic) {
+        Long bytes = topicRetentionBytes.get(topic);
+        return bytes == null ? retentionBytes : bytes;
+    }
+
+    public double getDiskHighWatermark() {
+        return diskHighWatermark;
+    }
+
+    public long getCleanInterval() {
+        return cleanInterval;
+    }
+
+    public long getDeleteDelay() {
+        return deleteDelay;
+    }
+
+    public long getEvictMinAge() {
+        return evictMinAge;
+    }
+}
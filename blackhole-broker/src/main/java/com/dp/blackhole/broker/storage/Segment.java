@@ -10,6 +10,7 @@ import java.util.concurrent.atomic.AtomicLong;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import com.dp.blackhole.common.Util;
 import com.dp.blackhole.storage.FileMessageSet;
 import com.dp.blackhole.storage.Message;
 import com.dp.blackhole.storage.MessageSet;
@@ -18,17 +19,39 @@ public class Segment {
 
     public static final Log LOG = LogFactory.getLog(Segment.class);
     
+    public static final int DEFAULT_INDEX_INTERVAL = 4096;
+    public static final String DELETED_SUFFIX = ".deleted";
+    // millis between append times recorded in the time index
+    public static final long TIME_INDEX_INTERVAL = 1000;
+    // version and crc of an empty message, anything smaller is a zero filled tail
+    private static final int MIN_MESSAGE_SIZE = (Byte.SIZE + Long.SIZE)/8;
+    
     FileChannel channel;
     String file;
+    OffsetIndex index;
+    TimeIndex timeIndex;
     private long startOffset;
     private AtomicLong endOffset;
-    private long unflushSize;
+    private AtomicLong unflushSize;
     
     private long closeTimestamp;
     int splitThreshold;
     int flushThreshold;
     
     public Segment(String parent, long offset, boolean verify, boolean readonly, int splitThreshold, int flushThreshold) throws IOException {
+        this(parent, offset, verify, readonly, splitThreshold, flushThreshold, DEFAULT_INDEX_INTERVAL);
+    }
+    
+    public Segment(String parent, long offset, boolean verify, boolean readonly, int splitThreshold, int flushThreshold,
+            int indexInterval) throws IOException {
+        this(parent, offset, verify, readonly, splitThreshold, flushThreshold, indexInterval, false);
+    }
+    
+    /**
+     * @param preallocated the file was sized ahead of time and holds no data yet
+     */
+    Segment(String parent, long offset, boolean verify, boolean readonly, int splitThreshold, int flushThreshold,
+            int indexInterval, boolean preallocated) throws IOException {
         file = getFilePath(parent, offset);
         if (!readonly) {
             channel = new RandomAccessFile(getFilePath(parent, offset), "rw").getChannel();
@@ -36,13 +59,31 @@ public class Segment {
             channel = new RandomAccessFile(getFilePath(parent, offset), "r").getChannel();
         }
         startOffset = offset;
-        if (!verify) {
-            endOffset = new AtomicLong(startOffset + channel.size());
+        index = new OffsetIndex(parent, offset, indexInterval);
+        timeIndex = new TimeIndex(parent, offset, TIME_INDEX_INTERVAL);
+        if (preallocated) {
+            index.reset();
+            timeIndex.truncateTo(0);
+            channel.position(0);
+            endOffset = new AtomicLong(startOffset);
+        } else if (!verify) {
+            long length = channel.size();
+            channel.position(length);
+            endOffset = new AtomicLong(startOffset + length);
+            if (!index.load(length)) {
+                LOG.info("rebuild offset index of " + file);
+                rebuildIndex(length);
+            }
+            timeIndex.load(length);
         } else {
+            // the active segment is scanned anyway, so its index is rebuilt on the way
+            index.reset();
             long effectiveLength = verifySegment();
             channel.position(effectiveLength);
             endOffset = new AtomicLong(startOffset + effectiveLength);
+            timeIndex.load(effectiveLength);
         }
+        this.unflushSize = new AtomicLong(0);
         this.flushThreshold = flushThreshold;
         this.splitThreshold = splitThreshold;
         this.closeTimestamp = 0;
@@ -54,12 +95,16 @@ public class Segment {
         } catch (IOException e) {
             LOG.error("Oops, failed to close channel", e);
         }
+        index.close();
+        timeIndex.close();
     }
     
     private long verifySegment() throws IOException {
         long effectiveLength = 0;
         long remaining = channel.size();
         ByteBuffer sizeBuf = ByteBuffer.allocate(Integer.SIZE/8);
+        // reused across messages, grown for the largest one
+        ByteBuffer messageBuf = ByteBuffer.allocate(64 * 1024);
         while (remaining > 0) {
             if (remaining < Integer.SIZE/8) {
                 break;
@@ -78,10 +123,14 @@ public class Segment {
             sizeBuf.flip();
             int messageSize = sizeBuf.getInt();
             sizeBuf.rewind();
-            if (remaining-4 < messageSize) {
+            if (messageSize < MIN_MESSAGE_SIZE || remaining-4 < messageSize) {
                 break;
             }
-            ByteBuffer messageBuf = ByteBuffer.allocate(messageSize);
+            if (messageBuf.capacity() < messageSize) {
+                messageBuf = ByteBuffer.allocate(messageSize);
+            }
+            messageBuf.clear();
+            messageBuf.limit(messageSize);
             while (messageBuf.hasRemaining()) {
                 int num = channel.read(messageBuf);
                 if (num == -1) {
@@ -93,10 +142,11 @@ public class Segment {
                 break;
             }
             messageBuf.flip();
-            Message message = new Message(messageBuf);
+            Message message = new Message(messageBuf.slice());
             if (!message.valid()) {
                 break;
             }
+            index.maybeAppend(effectiveLength);
             effectiveLength += read;
             remaining -= read;
         }
@@ -106,6 +156,52 @@ public class Segment {
         return effectiveLength;
     }
     
+    private void rebuildIndex(long length) throws IOException {
+        index.reset();
+        ByteBuffer sizeBuf = ByteBuffer.allocate(Integer.SIZE/8);
+        long position = 0;
+        while (position + Integer.SIZE/8 <= length) {
+            index.maybeAppend(position);
+            int messageSize = readMessageSize(sizeBuf, position);
+            if (messageSize < 0) {
+                break;
+            }
+            position += Integer.SIZE/8 + messageSize;
+        }
+    }
+    
+    private int readMessageSize(ByteBuffer sizeBuf, long position) throws IOException {
+        sizeBuf.clear();
+        while (sizeBuf.hasRemaining()) {
+            int num = channel.read(sizeBuf, position + sizeBuf.position());
+            if (num == -1) {
+                return -1;
+            }
+        }
+        sizeBuf.flip();
+        return sizeBuf.getInt();
+    }
+    
+    /**
+     * find the last message boundary not greater than offset, starting from
+     * the given boundary
+     */
+    private long alignOffset(long from, long offset) throws IOException {
+        long position = Math.max(from, index.lookup(offset - startOffset) + startOffset);
+        ByteBuffer sizeBuf = ByteBuffer.allocate(Integer.SIZE/8);
+        while (true) {
+            int messageSize = readMessageSize(sizeBuf, position - startOffset);
+            if (messageSize < 0) {
+                return position;
+            }
+            long next = position + Integer.SIZE/8 + messageSize;
+            if (next > offset) {
+                return position;
+            }
+            position = next;
+        }
+    }
+    
     public long getStartOffset() {
         return startOffset;
     }
@@ -114,17 +210,17 @@ public class Segment {
         return endOffset.get();
     }
 
-    private String getFilePath(String parent, long start_offset) {
+    static String getFilePath(String parent, long start_offset) {
         return parent + '/' + start_offset + ".blackhole";
     }
 
     long append(MessageSet messages) throws IOException {
+        // message sets are appended as whole messages, so the current end is a boundary
+        index.maybeAppend(endOffset.get() - startOffset);
+        timeIndex.maybeAppend(Util.getTS(), endOffset.get() - startOffset, false);
         long written = messages.write(channel, 0 ,messages.getSize());
-        unflushSize += written;
+        unflushSize.addAndGet(written);
         endOffset.addAndGet(written);
-        if (unflushSize > flushThreshold) {
-            flush();
-        }
         long length = endOffset.get() - startOffset;
         if (length > splitThreshold) {
             return startOffset + length;
@@ -133,12 +229,40 @@ public class Segment {
     }
     
     public void flush() throws IOException {
-        if (unflushSize == 0) {
-            return;
+        flush(true);
+    }
+    
+    /**
+     * @param metadata whether file metadata (e.g. length) has to be synced
+     * as well, see FileChannel.force
+     * @return true if there was any data to flush
+     */
+    public boolean flush(boolean metadata) throws IOException {
+        long pending = unflushSize.get();
+        if (pending == 0) {
+            return false;
         }
 
+        channel.force(metadata);
+        index.flush();
+        timeIndex.flush();
+        unflushSize.addAndGet(-pending);
+        return true;
+    }
+    
+    /**
+     * force data and metadata of a closed segment, whether or not anything
+     * is left unflushed, since trim() changed its length
+     */
+    void sync() throws IOException {
         channel.force(true);
-        unflushSize = 0;
+        index.flush();
+        timeIndex.flush();
+        unflushSize.set(0);
+    }
+    
+    public long getUnflushSize() {
+        return unflushSize.get();
     }
 
     public boolean contains(long offset) {
@@ -149,14 +273,53 @@ public class Segment {
         }
     }
 
+    /**
+     * read at most length bytes from offset, which must be a message
+     * boundary. The returned message set ends at a message boundary as well,
+     * but always contains at least one message if there is any.
+     */
     public FileMessageSet read(long offset, int length) {
         long endOffset = getEndOffset();
-        if (offset + length > endOffset) {
+        if (offset + length >= endOffset) {
             length = (int) (endOffset - offset);
+        } else {
+            try {
+                long aligned = alignOffset(offset, offset + length);
+                if (aligned == offset) {
+                    // the first message is larger than length, send it as a whole
+                    int messageSize = readMessageSize(ByteBuffer.allocate(Integer.SIZE/8), offset - startOffset);
+                    if (messageSize >= 0) {
+                        aligned = Math.min(endOffset, offset + Integer.SIZE/8 + messageSize);
+                    }
+                }
+                if (aligned > offset) {
+                    length = (int) (aligned - offset);
+                }
+            } catch (IOException e) {
+                LOG.error("failed to align read of " + this + " at " + offset + ", fall back to unaligned read", e);
+            }
         }
         return new FileMessageSet(channel, offset - startOffset, length);
     }
     
+    /**
+     * cut off the preallocated space behind the last message, so the file
+     * length is the segment length again once the segment is closed
+     */
+    void trim() throws IOException {
+        long length = getEndOffset() - startOffset;
+        if (channel.size() > length) {
+            channel.truncate(length);
+        }
+    }
+    
+    public void truncate(long offset) throws IOException {
+        channel.truncate(offset - startOffset);
+        index.truncateTo(offset - startOffset);
+        timeIndex.truncateTo(offset - startOffset);
+        endOffset.set(offset);
+    }
+    
     @Override
     public String toString() {
        return "segment[" + startOffset + "," + endOffset.get() + "]/" + closeTimestamp;
@@ -170,6 +333,49 @@ public class Segment {
         closeTimestamp = ts;
     }
     
+    /**
+     * record that data appended from now on starts at the current end,
+     * e.g. at a roll boundary
+     */
+    void markTime(long timestamp) throws IOException {
+        timeIndex.maybeAppend(timestamp, getEndOffset() - startOffset, true);
+    }
+    
+    /**
+     * @return the offset of the last message set appended not after
+     * timestamp, or -1 if this segment has nothing that old indexed
+     */
+    long lookupTime(long timestamp) {
+        long position = timeIndex.lookup(timestamp);
+        return position < 0 ? -1 : startOffset + position;
+    }
+    
+    /**
+     * @return the recorded append time of the message set at offset, or -1
+     */
+    long timestampOf(long offset) {
+        return timeIndex.timestampOf(offset - startOffset);
+    }
+    
+    long getLength() {
+        return getEndOffset() - startOffset;
+    }
+    
+    /**
+     * rename the files out of the way, so the segment is not loaded again
+     * after a restart; the channel stays open for reads in flight until
+     * destory()
+     */
+    void markDeleted() {
+        File f = new File(file);
+        File deleted = new File(file + DELETED_SUFFIX);
+        if (f.renameTo(deleted)) {
+            file = deleted.getPath();
+        }
+        index.markDeleted();
+        timeIndex.markDeleted();
+    }
+    
     public void destory() {
         try {
             channel.close();
@@ -178,5 +384,7 @@ public class Segment {
         }
         File f = new File(file);
         f.delete();
+        index.destory();
+        timeIndex.destory();
     }
 }
@@ -0,0 +1,56 @@
+package com.dp.blackhole.broker.storage;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.dp.blackhole.common.DaemonThreadFactory;
+
+/**
+ * Deletes segments which were removed from their partition. The files are
+ * renamed at once and deleted after deleteDelay millis, so neither the
+ * cleaner nor the partition lock waits for the file system, and fetches
+ * still reading a removed segment can finish.
+ */
+public class SegmentDeleter {
+    private final Log LOG = LogFactory.getLog(SegmentDeleter.class);
+
+    private ScheduledExecutorService executor;
+    private long deleteDelay;
+
+    public SegmentDeleter(long deleteDelay) {
+        this.deleteDelay = deleteDelay;
+        this.executor = Executors.newSingleThreadScheduledExecutor(new DaemonThreadFactory("SegmentDeleter"));
+    }
+
+    public void delete(final Segment segment) {
+        segment.markDeleted();
+        executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                LOG.debug("delete " + segment.file);
+                segment.destory();
+            }
+        }, deleteDelay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * close a segment replaced by another one on the same file, after the
+     * fetches still reading it can finish
+     */
+    public void close(final Segment segment) {
+        executor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                segment.close();
+            }
+        }, deleteDelay, TimeUnit.MILLISECONDS);
+    }
+
+    public void shutdown() {
+        executor.shutdown();
+    }
+}
@@ -0,0 +1,52 @@
+package com.dp.blackhole.broker.storage;
+
+import java.io.IOException;
+import java.util.concurrent.LinkedBlockingQueue;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Creates the file of the next segment of a partition while the active one
+ * is still filling up, so a roll only has to rename a ready file instead of
+ * creating and growing a new one on the append path.
+ */
+public class SegmentPreallocator extends Thread {
+    private final Log LOG = LogFactory.getLog(SegmentPreallocator.class);
+
+    private LinkedBlockingQueue<Partition> requests;
+    private volatile boolean running;
+
+    public SegmentPreallocator() {
+        this.requests = new LinkedBlockingQueue<Partition>();
+        this.running = true;
+        setName("SegmentPreallocator");
+        setDaemon(true);
+    }
+
+    public void request(Partition partition) {
+        requests.add(partition);
+    }
+
+    public void shutdown() {
+        running = false;
+        interrupt();
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            Partition partition;
+            try {
+                partition = requests.take();
+            } catch (InterruptedException e) {
+                continue;
+            }
+            try {
+                partition.preallocate();
+            } catch (IOException e) {
+                LOG.error("failed to preallocate next segment of " + partition, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package com.dp.blackhole.broker.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.dp.blackhole.common.Util;
+
+/**
+ * One of the data directories of a broker, usually a disk of its own.
+ * Tracks the write load of the partitions placed here, and whether the
+ * directory is still usable; once an I/O error marks it offline it stays
+ * offline until the broker restarts.
+ */
+public class StorageDir {
+    private final File path;
+    private final StorageManager manager;
+    private final AtomicBoolean online = new AtomicBoolean(true);
+    private final AtomicInteger partitions = new AtomicInteger();
+    private final AtomicLong appended = new AtomicLong();
+    private long sampledAppended;
+    private long sampledTime;
+    private double writeRate;
+
+    public StorageDir(String path) {
+        this(path, null);
+    }
+
+    /**
+     * @param manager is told when the directory fails
+     */
+    StorageDir(String path, StorageManager manager) {
+        this.path = new File(path);
+        this.manager = manager;
+        this.sampledTime = Util.getTS();
+    }
+
+    public String getPath() {
+        return path.getAbsolutePath();
+    }
+
+    public File getFile() {
+        return path;
+    }
+
+    public boolean isOnline() {
+        return online.get();
+    }
+
+    /**
+     * @return true if this call took the directory offline
+     */
+    boolean markOffline() {
+        return online.compareAndSet(true, false);
+    }
+
+    /**
+     * take the directory offline after an I/O error
+     */
+    void fail(IOException e) {
+        if (markOffline() && manager != null) {
+            manager.offline(this, e);
+        }
+    }
+
+    void addPartition() {
+        partitions.incrementAndGet();
+    }
+
+    void removePartition() {
+        partitions.decrementAndGet();
+    }
+
+    public int getPartitionCount() {
+        return partitions.get();
+    }
+
+    void recordAppend(long bytes) {
+        appended.addAndGet(bytes);
+    }
+
+    /**
+     * bytes appended per second, smoothed over the samples taken by
+     * successive calls
+     */
+    public synchronized double getWriteRate() {
+        long now = Util.getTS();
+        long elapsed = now - sampledTime;
+        if (elapsed >= 1000) {
+            long total = appended.get();
+            double current = (total - sampledAppended) * 1000.0 / elapsed;
+            writeRate = writeRate == 0 ? current : 0.5 * writeRate + 0.5 * current;
+            sampledAppended = total;
+            sampledTime = now;
+        }
+        return writeRate;
+    }
+
+    public long getUsableSpace() {
+        return path.getUsableSpace();
+    }
+
+    public long getTotalSpace() {
+        return path.getTotalSpace();
+    }
+
+    @Override
+    public String toString() {
+        return "StorageDir [path=" + path + ", online=" + online.get() + ", partitions=" + partitions.get() + "]";
+    }
+}
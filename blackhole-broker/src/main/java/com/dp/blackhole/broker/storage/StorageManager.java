@@ -1,42 +1,76 @@
 package com.dp.blackhole.broker.storage;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.PriorityQueue;
+import java.util.Properties;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 import com.dp.blackhole.broker.BrokerService;
+import com.dp.blackhole.common.DaemonThreadFactory;
 import com.dp.blackhole.common.Util;
 
 public class StorageManager {
     private final Log Log = LogFactory.getLog(StorageManager.class);
     
+    public static final String CLEAN_SHUTDOWN_FILE = ".clean_shutdown";
+    
     private ConcurrentHashMap<String, ConcurrentHashMap<String, Partition>> storage;
     
-    private String basedir;
+    private List<StorageDir> dirs;
     private int flushThreshold;
     private int splitThreshold;
+    private int indexInterval;
+    private int loadThreads;
+    private FlushScheduler flusher;
+    private SegmentPreallocator preallocator;
+    private SegmentDeleter deleter;
+    private RetentionPolicy retention;
+    private volatile Partition.AppendListener appendListener;
     
-    private ConcurrentHashMap<String, Long> rollPeriodMap;
-    
-    public StorageManager(String basedir, int splitThreshold, int flushThreshold) throws IOException {
-        this.basedir = basedir;
+    /**
+     * @param basedirs data directories, partitions are spread over them
+     */
+    public StorageManager(String[] basedirs, int splitThreshold, int flushThreshold, int indexInterval,
+            int loadThreads, long flushInterval, boolean preallocate, RetentionPolicy retention) throws IOException {
+        this.dirs = new ArrayList<StorageDir>();
+        for (String basedir : basedirs) {
+            dirs.add(new StorageDir(basedir.trim(), this));
+        }
         this.splitThreshold = splitThreshold;
         this.flushThreshold = flushThreshold;
+        this.indexInterval = indexInterval;
+        this.loadThreads = loadThreads;
         storage = new ConcurrentHashMap<String, ConcurrentHashMap<String,Partition>>();
-        rollPeriodMap = new ConcurrentHashMap<String, Long>();
+        this.retention = retention;
+        deleter = new SegmentDeleter(retention.getDeleteDelay());
+        flusher = new FlushScheduler(storage, flushInterval, Math.min(flushInterval, 100));
+        if (preallocate) {
+            preallocator = new SegmentPreallocator();
+        }
         
-        // currently, clean storage when broker start for simplicity;
-        // so load() has not effect
-//        Util.rmr(new File(basedir));
         load();
+        flusher.start();
+        if (preallocator != null) {
+            preallocator.start();
+        }
         
         Reporter r = new Reporter();
         r.setDaemon(true);
@@ -47,17 +81,18 @@ public class StorageManager {
         c.start();
     }
     
-    public void storageRollPeriod(String topic, long period) {
-        rollPeriodMap.put(topic, period);
-    }
-    
     public void removePartition(String topic, String partitionId) {
         Map<String, Partition> map = storage.get(topic);
         if (map != null) {
             Partition p = map.get(partitionId);
             if (p != null) {
                 p.cleanupSegments(Util.getTS(), 0);
-                map.remove(partitionId);
+                if (map.remove(partitionId, p)) {
+                    if (p.getStorageDir() != null) {
+                        p.getStorageDir().removePartition();
+                    }
+                    notifyRemoved(p);
+                }
             } else {
                 Util.logError(Log, null, "can to get partition when remove", topic, partitionId);
             }
@@ -73,24 +108,277 @@ public class StorageManager {
     }
 
     private void load() throws IOException {
-        File baseDir = new File(basedir);
-        Util.checkDir(baseDir);
-        File[] topicDirs = baseDir.listFiles();
-        for (File topicDir : topicDirs) {
-            if (!topicDir.isDirectory()) {
+        ExecutorService loader = Executors.newFixedThreadPool(loadThreads, new DaemonThreadFactory("PartitionLoader"));
+        try {
+            List<Future<Partition>> futures = new ArrayList<Future<Partition>>();
+            List<StorageDir> owners = new ArrayList<StorageDir>();
+            for (final StorageDir dir : dirs) {
+                File[] topicDirs;
+                try {
+                    Util.checkDir(dir.getFile());
+                    topicDirs = dir.getFile().listFiles();
+                    if (topicDirs == null) {
+                        throw new IOException("failed to list " + dir.getPath());
+                    }
+                } catch (IOException e) {
+                    dir.fail(e);
+                    continue;
+                }
+                final Properties checkpoint = readCleanShutdownCheckpoint(dir.getFile());
+                for (File topicDir : topicDirs) {
+                    if (!topicDir.isDirectory()) {
+                        continue;
+                    }
+                    File[] partitionDirs = topicDir.listFiles();
+                    final String topic = topicDir.getName();
+                    storage.putIfAbsent(topic, new ConcurrentHashMap<String, Partition>());
+                    for (File partitionDir : partitionDirs) {
+                        final String partitionId = partitionDir.getName();
+                        futures.add(loader.submit(new Callable<Partition>() {
+                            @Override
+                            public Partition call() throws Exception {
+                                String cleanEndOffset = checkpoint.getProperty(topic + "/" + partitionId);
+                                return new Partition(dir.getPath(), topic, partitionId, splitThreshold, flushThreshold,
+                                        indexInterval, cleanEndOffset == null ? -1L : Long.parseLong(cleanEndOffset));
+                            }
+                        }));
+                        owners.add(dir);
+                    }
+                }
+            }
+            int loaded = 0;
+            for (int i = 0; i < futures.size(); i++) {
+                StorageDir dir = owners.get(i);
+                Partition partition;
+                try {
+                    partition = futures.get(i).get();
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    dir.fail(cause instanceof IOException ? (IOException) cause
+                            : new IOException("failed to load partition", cause));
+                    continue;
+                }
+                if (!dir.isOnline() || !addLoadedPartition(partition, dir)) {
+                    partition.close();
+                    continue;
+                }
+                loaded++;
+            }
+            int online = 0;
+            for (StorageDir dir : dirs) {
+                if (dir.isOnline()) {
+                    online++;
+                }
+            }
+            if (online == 0) {
+                throw new IOException("none of the storage dirs " + dirs + " is usable");
+            }
+            Log.info("loaded " + loaded + " partitions from " + online + " of " + dirs.size() + " dirs with "
+                    + loadThreads + " threads");
+        } catch (InterruptedException e) {
+            throw new IOException("interrupted when loading partitions", e);
+        } finally {
+            loader.shutdownNow();
+        }
+    }
+    
+    /**
+     * a partition found in more than one dir (e.g. recreated while its dir was
+     * offline) is served from the copy which has more data
+     */
+    private boolean addLoadedPartition(Partition partition, StorageDir dir) {
+        ConcurrentHashMap<String, Partition> map = storage.get(partition.getTopic());
+        Partition existing = map.get(partition.getId());
+        if (existing != null) {
+            Log.warn("found " + partition.getTopic() + "/" + partition.getId() + " in both "
+                    + existing.getStorageDir().getPath() + " and " + dir.getPath());
+            if (existing.getEndOffset() >= partition.getEndOffset()) {
+                return false;
+            }
+            existing.getStorageDir().removePartition();
+            existing.close();
+        }
+        register(partition, dir);
+        map.put(partition.getId(), partition);
+        return true;
+    }
+    
+    private void register(Partition partition, StorageDir dir) {
+        partition.setFlusher(flusher);
+        partition.setPreallocator(preallocator);
+        partition.setDeleter(deleter);
+        partition.setAppendListener(appendListener);
+        partition.setStorageDir(dir);
+        dir.addPartition();
+    }
+    
+    /**
+     * tell listener about the appends to all partitions, present and future
+     */
+    public void setAppendListener(Partition.AppendListener listener) {
+        this.appendListener = listener;
+        for (ConcurrentHashMap<String, Partition> map : storage.values()) {
+            for (Partition p : map.values()) {
+                p.setAppendListener(listener);
+            }
+        }
+    }
+    
+    /**
+     * take the partitions of a failed dir offline, the rest of the broker
+     * keeps serving; a partition which is created again afterwards is placed
+     * on another dir
+     */
+    void offline(StorageDir dir, IOException e) {
+        Log.error("storage dir " + dir.getPath() + " failed, take its partitions offline", e);
+        for (ConcurrentHashMap<String, Partition> map : storage.values()) {
+            for (Partition p : map.values()) {
+                if (p.getStorageDir() == dir && map.remove(p.getId(), p)) {
+                    Log.warn("partition " + p.getTopic() + "/" + p.getId() + " is offline");
+                    dir.removePartition();
+                    notifyRemoved(p);
+                    p.close();
+                }
+            }
+        }
+    }
+    
+    private void notifyRemoved(Partition p) {
+        Partition.AppendListener l = appendListener;
+        if (l != null) {
+            l.removed(p);
+        }
+    }
+    
+    /**
+     * place a new partition on the online dir with the lowest expected write
+     * load per free byte; a new partition is expected to write as much as an
+     * average one
+     */
+    StorageDir selectDir() throws IOException {
+        double totalRate = 0;
+        int totalPartitions = 0;
+        for (StorageDir dir : dirs) {
+            if (dir.isOnline()) {
+                totalRate += dir.getWriteRate();
+                totalPartitions += dir.getPartitionCount();
+            }
+        }
+        double partitionRate = Math.max(1.0, totalRate / Math.max(1, totalPartitions));
+        StorageDir selected = null;
+        double selectedScore = 0;
+        for (StorageDir dir : dirs) {
+            long usable = dir.getUsableSpace();
+            if (!dir.isOnline() || usable <= 0) {
                 continue;
             }
-            File[] partitionDirs = topicDir.listFiles();
-            String topic = topicDir.getName();
-            ConcurrentHashMap<String, Partition> partitions = new ConcurrentHashMap<String, Partition>();
-            storage.put(topic, partitions);
-            for (File partitionDir : partitionDirs) {
-                String partitionId = partitionDir.getName();
-                Partition partition = new Partition(basedir, topic, partitionId, splitThreshold, flushThreshold);
-                partitions.put(partitionId, partition);
+            double load = Math.max(dir.getWriteRate(), dir.getPartitionCount() * partitionRate) + partitionRate;
+            double score = load / usable;
+            if (selected == null || score < selectedScore) {
+                selected = dir;
+                selectedScore = score;
+            }
+        }
+        if (selected == null) {
+            throw new IOException("no storage dir is online in " + dirs);
+        }
+        return selected;
+    }
+    
+    public List<StorageDir> getStorageDirs() {
+        return dirs;
+    }
+
+    /**
+     * read and remove the checkpoint written by a graceful close(), so any
+     * crash after startup forces verification again next time
+     */
+    private Properties readCleanShutdownCheckpoint(File basedir) {
+        Properties checkpoint = new Properties();
+        File file = new File(basedir, CLEAN_SHUTDOWN_FILE);
+        if (!file.exists()) {
+            return checkpoint;
+        }
+        InputStream in = null;
+        try {
+            in = new FileInputStream(file);
+            checkpoint.load(in);
+        } catch (IOException e) {
+            Log.warn("failed to read " + file + ", verify all partitions", e);
+            checkpoint.clear();
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                }
+            }
+            if (!file.delete()) {
+                Log.error("failed to delete " + file + ", verify all partitions");
+                checkpoint.clear();
+            }
+        }
+        return checkpoint;
+    }
+
+    /**
+     * flush all partitions and record their end offsets, so the next startup
+     * can skip verifying the segments which were not touched after that
+     */
+    public void close() {
+        deleter.shutdown();
+        if (preallocator != null) {
+            preallocator.shutdown();
+        }
+        flusher.shutdown();
+        Map<StorageDir, Properties> checkpoints = new HashMap<StorageDir, Properties>();
+        for (StorageDir dir : dirs) {
+            if (dir.isOnline()) {
+                checkpoints.put(dir, new Properties());
+            }
+        }
+        for (Entry<String, ConcurrentHashMap<String, Partition>> topicEntry : storage.entrySet()) {
+            for (Partition p : topicEntry.getValue().values()) {
+                try {
+                    p.trim();
+                    p.flush();
+                    Properties checkpoint = checkpoints.get(p.getStorageDir());
+                    if (checkpoint != null) {
+                        checkpoint.setProperty(topicEntry.getKey() + "/" + p.getId(), String.valueOf(p.getEndOffset()));
+                    }
+                } catch (IOException e) {
+                    Log.error("failed to flush " + p + " when closing", e);
+                }
+            }
+        }
+        for (Entry<StorageDir, Properties> entry : checkpoints.entrySet()) {
+            writeCleanShutdownCheckpoint(entry.getKey().getFile(), entry.getValue());
+        }
+    }
+    
+    private void writeCleanShutdownCheckpoint(File basedir, Properties checkpoint) {
+        File tmp = new File(basedir, CLEAN_SHUTDOWN_FILE + ".tmp");
+        OutputStream out = null;
+        try {
+            out = new FileOutputStream(tmp);
+            checkpoint.store(out, "end offsets on clean shutdown");
+            ((FileOutputStream) out).getFD().sync();
+            out.close();
+            out = null;
+            if (!tmp.renameTo(new File(basedir, CLEAN_SHUTDOWN_FILE))) {
+                throw new IOException("failed to rename " + tmp);
+            }
+            Log.info("wrote clean shutdown checkpoint of " + checkpoint.size() + " partitions to " + basedir);
+        } catch (IOException e) {
+            Log.error("failed to write clean shutdown checkpoint to " + basedir, e);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                }
             }
         }
-        
     }
 
     public Partition getPartition(String topic, String partitionId) {
@@ -132,8 +420,19 @@ public class StorageManager {
         // add new partition if not exist
         Partition partition = map.get(partitionId);
         if (partition == null) {
-            Partition newPartition = new Partition(basedir, topic, partitionId, splitThreshold, flushThreshold);
-            map.putIfAbsent(partitionId, newPartition);
+            StorageDir dir = selectDir();
+            Partition newPartition;
+            try {
+                newPartition = new Partition(dir.getPath(), topic, partitionId, splitThreshold, flushThreshold, indexInterval);
+            } catch (IOException e) {
+                dir.fail(e);
+                throw e;
+            }
+            register(newPartition, dir);
+            if (map.putIfAbsent(partitionId, newPartition) != null) {
+                dir.removePartition();
+                newPartition.close();
+            }
             return true;
         } else {
             return false;
@@ -148,6 +447,10 @@ public class StorageManager {
         return splitThreshold;
     }
     
+    public FlushScheduler getFlusher() {
+        return flusher;
+    }
+    
     public class Reporter extends Thread {
         
         public class ReportEntry {
@@ -217,40 +520,82 @@ public class StorageManager {
     }
     
     public class Cleanner extends Thread {
-        private long thresholdDaily = 24 * 3600 * 1000l;
-        private long thresholdCritical = 6 * 3600 * 1000l;
-        private long interval = 600 * 1000l;
-        private File storageDir;
-        private long totalSpace;
+        private long interval;
         
         public Cleanner() {
-            this.storageDir = new File(StorageManager.this.basedir);
-            this.totalSpace = storageDir.getTotalSpace();
+            this.interval = retention.getCleanInterval();
         }
         
         private void cleanup() {
             long current = Util.getTS();
+            for (Map.Entry<String, ConcurrentHashMap<String, Partition>> entry : storage.entrySet()) {
+                String topic = entry.getKey();
+                long retentionMillis = retention.getRetentionMillis(topic);
+                long retentionBytes = retention.getRetentionBytes(topic);
+                for (Partition p : entry.getValue().values()) {
+                    if (retentionMillis > 0) {
+                        p.cleanupSegments(current, retentionMillis);
+                    }
+                    if (retentionBytes >= 0) {
+                        p.cleanupSegmentsBySize(retentionBytes);
+                    }
+                }
+            }
+            for (StorageDir dir : dirs) {
+                if (!dir.isOnline()) {
+                    continue;
+                }
+                // sampled every round, so placement sees a recent write rate
+                dir.getWriteRate();
+                long totalSpace = dir.getTotalSpace();
+                long used = totalSpace - dir.getUsableSpace();
+                long excess = used - (long) (totalSpace * retention.getDiskHighWatermark());
+                if (excess > 0) {
+                    Log.info(dir.getPath() + " disk usage over " + retention.getDiskHighWatermark()
+                            + ", evict " + excess + " bytes of closed segments");
+                    evict(dir, excess);
+                }
+            }
+        }
+        
+        /**
+         * remove the oldest closed segments across the partitions of dir until
+         * bytes are freed, segments already uploaded go first; segments not
+         * uploaded yet are kept until they are evictMinAge old
+         */
+        private void evict(StorageDir dir, long bytes) {
+            long notBefore = Util.getTS() - retention.getEvictMinAge();
+            PriorityQueue<Candidate> candidates = new PriorityQueue<Candidate>();
             for (Map<String, Partition> m : storage.values()) {
                 for (Partition p : m.values()) {
-                    p.cleanupSegments(current, thresholdDaily);
+                    if (p.getStorageDir() != dir) {
+                        continue;
+                    }
+                    Candidate c = Candidate.of(p, notBefore);
+                    if (c != null) {
+                        candidates.add(c);
+                    }
                 }
             }
-            long usableSpace = storageDir.getUsableSpace();
-            // usable space is less than 1/5 total space
-            if (5 * usableSpace < totalSpace) {
-                Log.info(storageDir + " disk usage over 80%, cleanup segments which preserved over "
-                        + thresholdCritical / 1000 + " seconds");
-                for (Map.Entry<String, ConcurrentHashMap<String, Partition>> entry : storage.entrySet()) {
-                    String topic = entry.getKey();
-                    Long rollPeriod = rollPeriodMap.get(topic);
-                    if (rollPeriod != null && rollPeriod.longValue() <= 3600) {
-                        Map<String, Partition> m = entry.getValue();
-                        for (Partition p : m.values()) {
-                            p.cleanupSegments(current, thresholdCritical);
-                        }
-                    }
+            long freed = 0;
+            while (freed < bytes && !candidates.isEmpty()) {
+                Candidate c = candidates.poll();
+                if (!c.partition.removeOldestSegment(c.segment)) {
+                    continue;
+                }
+                Log.info("evict segment: " + c.segment + " of " + c.partition.getTopic() + "/"
+                        + c.partition.getId() + (c.uploaded ? "" : ", not uploaded yet"));
+                freed += c.segment.getLength();
+                Candidate next = Candidate.of(c.partition, notBefore);
+                if (next != null) {
+                    candidates.add(next);
                 }
             }
+            if (freed < bytes) {
+                Log.fatal(dir.getPath() + " still over disk high watermark by " + (bytes - freed)
+                        + " bytes, nothing left to evict before it is uploaded or " + retention.getEvictMinAge()
+                        + "ms old");
+            }
         }
         
         @Override
@@ -266,4 +611,40 @@ public class StorageManager {
             }
         }
     }
+    
+    static class Candidate implements Comparable<Candidate> {
+        final Partition partition;
+        final Segment segment;
+        final boolean uploaded;
+        
+        Candidate(Partition partition, Segment segment) {
+            this.partition = partition;
+            this.segment = segment;
+            this.uploaded = partition.isUploaded(segment);
+        }
+        
+        /**
+         * @return the oldest closed segment of p if it may be evicted, it was
+         *         uploaded or closed before notBefore
+         */
+        static Candidate of(Partition p, long notBefore) {
+            Segment s = p.getOldestClosedSegment();
+            if (s == null) {
+                return null;
+            }
+            Candidate c = new Candidate(p, s);
+            if (!c.uploaded && (s.getCloseTimestamp() == 0 || s.getCloseTimestamp() > notBefore)) {
+                return null;
+            }
+            return c;
+        }
+        
+        @Override
+        public int compareTo(Candidate o) {
+            if (uploaded != o.uploaded) {
+                return uploaded ? -1 : 1;
+            }
+            return Long.valueOf(segment.getCloseTimestamp()).compareTo(o.segment.getCloseTimestamp());
+        }
+    }
 }
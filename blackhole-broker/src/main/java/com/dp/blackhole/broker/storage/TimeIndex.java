@@ -0,0 +1,204 @@
+package com.dp.blackhole.broker.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Sparse index from append time to message boundaries in a segment.
+ *
+ * Messages carry no timestamp, so the broker records the wall-clock time a
+ * message set was appended at, together with its relative offset, at most
+ * once per indexInterval millis, and at every roll boundary. A lookup finds
+ * the last boundary appended not after a given time; the data from there on
+ * covers everything appended since that time.
+ */
+public class TimeIndex {
+    public static final Log LOG = LogFactory.getLog(TimeIndex.class);
+
+    public static final int ENTRY_SIZE = (Long.SIZE + Integer.SIZE) / 8;
+
+    private String file;
+    private FileChannel channel;
+    private long indexInterval;
+    private volatile long[] timestamps;
+    private volatile int[] positions;
+    private volatile int size;
+    private final ByteBuffer entryBuf;
+
+    public TimeIndex(String parent, long offset, long indexInterval) throws IOException {
+        this.file = getFilePath(parent, offset);
+        channel = new RandomAccessFile(file, "rw").getChannel();
+        this.indexInterval = indexInterval;
+        this.timestamps = new long[16];
+        this.positions = new int[16];
+        this.size = 0;
+        this.entryBuf = ByteBuffer.allocate(ENTRY_SIZE);
+    }
+
+    public static String getFilePath(String parent, long offset) {
+        return parent + '/' + offset + ".timeindex";
+    }
+
+    /**
+     * load entries from the index file, entries beyond a segment of the given
+     * length or out of order are dropped; append times which were lost can
+     * not be rebuilt, lookups fall back to older entries then
+     */
+    public synchronized void load(long segmentLength) throws IOException {
+        long fileSize = channel.size();
+        int count = (int) (fileSize / ENTRY_SIZE);
+        ByteBuffer buf = ByteBuffer.allocate(count * ENTRY_SIZE);
+        long position = 0;
+        while (buf.hasRemaining()) {
+            int num = channel.read(buf, position);
+            if (num == -1) {
+                break;
+            }
+            position += num;
+        }
+        buf.flip();
+        long[] loadedTimestamps = new long[Math.max(count, 16)];
+        int[] loadedPositions = new int[Math.max(count, 16)];
+        int n = 0;
+        while (buf.remaining() >= ENTRY_SIZE) {
+            long ts = buf.getLong();
+            int pos = buf.getInt();
+            if (pos >= segmentLength || (n > 0 && (ts < loadedTimestamps[n - 1] || pos < loadedPositions[n - 1]))) {
+                break;
+            }
+            loadedTimestamps[n] = ts;
+            loadedPositions[n] = pos;
+            n++;
+        }
+        timestamps = loadedTimestamps;
+        positions = loadedPositions;
+        size = n;
+        if ((long) n * ENTRY_SIZE != fileSize) {
+            LOG.info("drop " + (count - n) + " invalid entries of " + file);
+            channel.truncate((long) n * ENTRY_SIZE);
+        }
+        channel.position((long) n * ENTRY_SIZE);
+    }
+
+    /**
+     * record that the message set at relative offset position was appended
+     * at timestamp, if at least indexInterval millis passed since the last
+     * entry or force is set
+     */
+    public synchronized void maybeAppend(long timestamp, long position, boolean force) throws IOException {
+        int n = size;
+        if (n > 0) {
+            if (positions[n - 1] == position) {
+                return;
+            }
+            if (!force && timestamp - timestamps[n - 1] < indexInterval) {
+                return;
+            }
+            // the clock went backwards, keep the index ordered
+            timestamp = Math.max(timestamp, timestamps[n - 1]);
+        }
+        entryBuf.clear();
+        entryBuf.putLong(timestamp);
+        entryBuf.putInt((int) position);
+        entryBuf.flip();
+        while (entryBuf.hasRemaining()) {
+            channel.write(entryBuf);
+        }
+        long[] currentTimestamps = timestamps;
+        int[] currentPositions = positions;
+        if (n == currentTimestamps.length) {
+            currentTimestamps = Arrays.copyOf(currentTimestamps, n * 2);
+            currentPositions = Arrays.copyOf(currentPositions, n * 2);
+        }
+        currentTimestamps[n] = timestamp;
+        currentPositions[n] = (int) position;
+        timestamps = currentTimestamps;
+        positions = currentPositions;
+        size = n + 1;
+    }
+
+    /**
+     * @return the relative offset of the last entry appended not after
+     * timestamp, or -1 if the first entry is later
+     */
+    public synchronized long lookup(long timestamp) {
+        int low = 0;
+        int high = size - 1;
+        long found = -1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            if (timestamps[mid] <= timestamp) {
+                found = positions[mid];
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * @return the append time of the entry at relative offset position, or -1
+     */
+    public synchronized long timestampOf(long position) {
+        for (int i = size - 1; i >= 0; i--) {
+            if (positions[i] == position) {
+                return timestamps[i];
+            }
+            if (positions[i] < position) {
+                break;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * drop all entries not less than position
+     */
+    public synchronized void truncateTo(long position) throws IOException {
+        int n = size;
+        while (n > 0 && positions[n - 1] >= position) {
+            n--;
+        }
+        size = n;
+        channel.truncate((long) n * ENTRY_SIZE);
+        channel.position((long) n * ENTRY_SIZE);
+    }
+
+    public int entries() {
+        return size;
+    }
+
+    public void flush() throws IOException {
+        channel.force(false);
+    }
+
+    public void close() {
+        try {
+            channel.close();
+        } catch (IOException e) {
+            LOG.error("Oops, failed to close time index channel", e);
+        }
+    }
+
+    void markDeleted() {
+        File f = new File(file);
+        File deleted = new File(file + Segment.DELETED_SUFFIX);
+        if (f.renameTo(deleted)) {
+            file = deleted.getPath();
+        }
+    }
+
+    public void destory() {
+        close();
+        File f = new File(file);
+        f.delete();
+    }
+}
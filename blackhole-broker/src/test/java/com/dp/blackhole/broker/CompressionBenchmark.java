@@ -0,0 +1,120 @@
+package com.dp.blackhole.broker;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Random;
+
+import org.apache.hadoop.io.compress.Decompressor;
+
+import com.dp.blackhole.broker.Compression.Algorithm;
+
+/**
+ * Compares the supported algorithms on log payloads, run it as
+ * CompressionBenchmark [logfile] [rounds]. Without a log file, access log
+ * like lines are generated. Not run with the unit tests.
+ */
+public class CompressionBenchmark {
+
+    public static void main(String[] args) throws IOException {
+        byte[] data = args.length > 0 ? readFile(new File(args[0])) : generateLogs(64 * 1024 * 1024);
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        System.out.println("payload " + data.length + " bytes, " + rounds + " rounds");
+        System.out.println(String.format("%-6s %10s %14s %14s", "algo", "ratio", "compress MB/s", "decompress MB/s"));
+        for (String name : Compression.getSupportedAlgorithms()) {
+            Algorithm algo = Compression.getCompressionAlgorithmByName(name);
+            byte[] compressed = compress(algo, data);
+            long compressNanos = 0;
+            long decompressNanos = 0;
+            for (int i = 0; i < rounds; i++) {
+                long begin = System.nanoTime();
+                compressed = compress(algo, data);
+                compressNanos += System.nanoTime() - begin;
+                begin = System.nanoTime();
+                decompress(algo, compressed);
+                decompressNanos += System.nanoTime() - begin;
+            }
+            System.out.println(String.format("%-6s %10.3f %14.1f %14.1f", name,
+                    (double) compressed.length / data.length,
+                    throughput(data.length, rounds, compressNanos),
+                    throughput(data.length, rounds, decompressNanos)));
+        }
+    }
+
+    private static double throughput(long bytes, int rounds, long nanos) {
+        return bytes * rounds / 1024.0 / 1024.0 / (nanos / 1e9);
+    }
+
+    private static byte[] compress(Algorithm algo, byte[] data) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(data.length / 4);
+        OutputStream out = algo.createPooledCompressionStream(bos, 0);
+        UploadWriterBlocks.write(out, data);
+        out.close();
+        return bos.toByteArray();
+    }
+
+    private static long decompress(Algorithm algo, byte[] compressed) throws IOException {
+        Decompressor decompressor = algo.getDecompressor();
+        try {
+            InputStream in = algo.createDecompressionStream(new ByteArrayInputStream(compressed), decompressor, 0);
+            byte[] buf = new byte[64 * 1024];
+            long total = 0;
+            int n;
+            while ((n = in.read(buf)) != -1) {
+                total += n;
+            }
+            in.close();
+            return total;
+        } finally {
+            algo.returnDecompressor(decompressor);
+        }
+    }
+
+    private static byte[] readFile(File file) throws IOException {
+        byte[] data = new byte[(int) file.length()];
+        FileInputStream in = new FileInputStream(file);
+        try {
+            int off = 0;
+            int n;
+            while (off < data.length && (n = in.read(data, off, data.length - off)) != -1) {
+                off += n;
+            }
+        } finally {
+            in.close();
+        }
+        return data;
+    }
+
+    private static byte[] generateLogs(int size) {
+        Random random = new Random(42);
+        String[] paths = {"/shop/detail", "/search", "/review/list", "/api/v1/deal", "/user/login"};
+        String[] agents = {"Mozilla/5.0 (Windows NT 6.1)", "Mozilla/5.0 (iPhone; CPU iPhone OS 7_0)", "Dalvik/1.6.0"};
+        StringBuilder sb = new StringBuilder(size + 1024);
+        while (sb.length() < size) {
+            sb.append("10.1.").append(random.nextInt(256)).append('.').append(random.nextInt(256))
+              .append(" - - [18/Oct/2014:10:").append(10 + random.nextInt(50)).append(':')
+              .append(10 + random.nextInt(50)).append(" +0800] \"GET ")
+              .append(paths[random.nextInt(paths.length)]).append("?id=").append(random.nextInt(1000000))
+              .append(" HTTP/1.1\" 200 ").append(random.nextInt(20000)).append(" \"")
+              .append(agents[random.nextInt(agents.length)]).append("\" ").append(random.nextInt(500))
+              .append("ms\n");
+        }
+        return sb.toString().getBytes();
+    }
+
+    /**
+     * writes like the upload path does, in 1MB blocks
+     */
+    private static class UploadWriterBlocks {
+        static void write(OutputStream out, byte[] data) throws IOException {
+            int block = 1024 * 1024;
+            for (int off = 0; off < data.length; off += block) {
+                out.write(data, off, Math.min(block, data.length - off));
+            }
+        }
+    }
+}
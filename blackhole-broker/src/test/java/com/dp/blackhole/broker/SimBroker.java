@@ -40,7 +40,7 @@ public class SimBroker extends Broker {
         prop.load(ClassLoader.getSystemResourceAsStream("config.properties"));
         String compressionAlgoName = prop.getProperty("broker.hdfs.compression.default");
         try {
-            Broker.getRollMgr().init("/tmp/hdfs", compressionAlgoName, port, 5000, 1, 1, 60000);
+            Broker.getRollMgr().init("/tmp/hdfs", compressionAlgoName, port, 5000, 1, 1, 60000, 0, 0, 600000, 0, "/tmp/testRecoverySpool");
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -0,0 +1,206 @@
+package com.dp.blackhole.broker;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.After;
+import org.junit.Test;
+import org.mockito.ArgumentMatcher;
+
+import com.dp.blackhole.broker.storage.Partition;
+import com.dp.blackhole.common.TopicPartitionKey;
+import com.dp.blackhole.common.Util;
+import com.dp.blackhole.network.TransferWrap;
+import com.dp.blackhole.network.TransferWrapNonblockingConnection;
+import com.dp.blackhole.protocol.data.MessageAck;
+import com.dp.blackhole.protocol.data.ProduceRequest;
+import com.dp.blackhole.protocol.data.RegisterRequest;
+import com.dp.blackhole.storage.ByteBufferMessageSet;
+import com.dp.blackhole.storage.Message;
+import com.dp.blackhole.storage.MessageAndOffset;
+
+public class TestAppendPipeline {
+
+    @After
+    public void tearDown() throws Exception {
+        SimBroker.deleteTmpFile("testAppendPipeline");
+    }
+
+    @Test
+    public void testAppendInOrder() throws IOException, InterruptedException {
+        File testdir = new File("/tmp/testAppendPipeline");
+        if (testdir.exists()) {
+            Util.rmr(testdir);
+        }
+        testdir.mkdirs();
+        Partition p = new Partition(testdir.getAbsolutePath(), "test", "localhost-1", 1024 * 1024, 1024);
+        OriginMeta originMeta = new OriginMeta("test", "localhost-1", "localhost", new HashMap<String, Boolean>(),
+                0, p, 0.5, 0.3, 10);
+        TopicPartitionKey tpKey = new TopicPartitionKey("test", "localhost-1");
+        AppendPipeline pipeline = new AppendPipeline(2, 64, 1024 * 1024);
+
+        long offset = 0;
+        for (int i = 0; i < 100; i++) {
+            ByteBuffer buffer = ByteBuffer.allocate(16);
+            new Message(String.format("%03d", i).getBytes()).write(buffer);
+            buffer.flip();
+            pipeline.submit(tpKey, originMeta, new ProduceRequest("test", "localhost-1",
+                    new ByteBufferMessageSet(buffer), offset));
+            offset += 16;
+        }
+        for (int i = 0; i < 100 && originMeta.getEndOffset() < offset; i++) {
+            Thread.sleep(50);
+        }
+        assertEquals(offset, originMeta.getEndOffset());
+
+        ByteBuffer read = ByteBuffer.allocate((int) offset);
+        p.read(0, (int) offset).write(new ByteBufferChannel(read), 0, (int) offset);
+        read.flip();
+        int i = 0;
+        Iterator<MessageAndOffset> iter = new ByteBufferMessageSet(read, 0).getItertor();
+        while (iter.hasNext()) {
+            ByteBuffer payload = iter.next().getMessage().payload();
+            byte[] bytes = new byte[payload.remaining()];
+            payload.get(bytes);
+            assertEquals(String.format("%03d", i++), new String(bytes));
+        }
+        assertEquals(100, i);
+    }
+
+    @Test
+    public void testLeaderAck() throws IOException, InterruptedException {
+        File testdir = new File("/tmp/testAppendPipeline");
+        if (testdir.exists()) {
+            Util.rmr(testdir);
+        }
+        testdir.mkdirs();
+        Partition p = new Partition(testdir.getAbsolutePath(), "test", "localhost-1", 1024 * 1024, 1024);
+        OriginMeta originMeta = new OriginMeta("test", "localhost-1", "localhost", new HashMap<String, Boolean>(),
+                0, p, 0.5, 0.3, 10);
+        originMeta.setAckMode(RegisterRequest.ACK_LEADER);
+        TopicPartitionKey tpKey = new TopicPartitionKey("test", "localhost-1");
+        TransferWrapNonblockingConnection from = mock(TransferWrapNonblockingConnection.class);
+        AppendPipeline pipeline = new AppendPipeline(2, 64, 1024 * 1024);
+
+        long offset = 0;
+        for (int i = 0; i < 10; i++) {
+            ByteBuffer buffer = ByteBuffer.allocate(16);
+            new Message(String.format("%03d", i).getBytes()).write(buffer);
+            buffer.flip();
+            pipeline.submit(tpKey, originMeta, new ProduceRequest("test", "localhost-1",
+                    new ByteBufferMessageSet(buffer), offset), from);
+            offset += 16;
+        }
+        for (int i = 0; i < 100 && originMeta.getEndOffset() < offset; i++) {
+            Thread.sleep(50);
+        }
+        assertEquals(offset, originMeta.getEndOffset());
+        // the ack of the last write may go out just after its append shows
+        final long end = offset;
+        verify(from, timeout(5000)).send(argThat(new ArgumentMatcher<TransferWrap>() {
+            @Override
+            public boolean matches(Object argument) {
+                return ((MessageAck) ((TransferWrap) argument).unwrap()).getOffset() == end;
+            }
+        }));
+    }
+
+    @Test
+    public void testMarkerAfterQueuedAppends() throws IOException, InterruptedException {
+        File testdir = new File("/tmp/testAppendPipeline");
+        if (testdir.exists()) {
+            Util.rmr(testdir);
+        }
+        testdir.mkdirs();
+        Partition p = new Partition(testdir.getAbsolutePath(), "test", "localhost-1", 1024 * 1024, 1024);
+        final OriginMeta originMeta = new OriginMeta("test", "localhost-1", "localhost",
+                new HashMap<String, Boolean>(), 0, p, 0.5, 0.3, 10);
+        TopicPartitionKey tpKey = new TopicPartitionKey("test", "localhost-1");
+        AppendPipeline pipeline = new AppendPipeline(2, 64, 1024 * 1024);
+
+        long offset = 0;
+        for (int i = 0; i < 50; i++) {
+            ByteBuffer buffer = ByteBuffer.allocate(16);
+            new Message(String.format("%03d", i).getBytes()).write(buffer);
+            buffer.flip();
+            pipeline.submit(tpKey, originMeta, new ProduceRequest("test", "localhost-1",
+                    new ByteBufferMessageSet(buffer), offset));
+            offset += 16;
+        }
+        final AtomicLong seen = new AtomicLong(-1);
+        final CountDownLatch latch = new CountDownLatch(1);
+        pipeline.submitMarker(tpKey, new Runnable() {
+            @Override
+            public void run() {
+                seen.set(originMeta.getEndOffset());
+                latch.countDown();
+            }
+        });
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertEquals(offset, seen.get());
+    }
+
+    @Test
+    public void testBackpressure() throws IOException, InterruptedException {
+        File testdir = new File("/tmp/testAppendPipeline");
+        if (testdir.exists()) {
+            Util.rmr(testdir);
+        }
+        testdir.mkdirs();
+        Partition p = new Partition(testdir.getAbsolutePath(), "test", "localhost-1", 1024 * 1024, 1024);
+        final OriginMeta originMeta = new OriginMeta("test", "localhost-1", "localhost",
+                new HashMap<String, Boolean>(), 0, p, 0.5, 0.3, 10);
+        final TopicPartitionKey tpKey = new TopicPartitionKey("test", "localhost-1");
+        // four 16 byte requests fit in the queue
+        final AppendPipeline pipeline = new AppendPipeline(2, 64, 64);
+
+        // a stalled disk, the appender of the partition hangs in the marker
+        final CountDownLatch stalled = new CountDownLatch(1);
+        pipeline.submitMarker(tpKey, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    stalled.await();
+                } catch (InterruptedException e) {
+                }
+            }
+        });
+        final AtomicLong submitted = new AtomicLong();
+        Thread handler = new Thread() {
+            @Override
+            public void run() {
+                for (int i = 0; i < 6; i++) {
+                    ByteBuffer buffer = ByteBuffer.allocate(16);
+                    new Message(String.format("%03d", i).getBytes()).write(buffer);
+                    buffer.flip();
+                    pipeline.submit(tpKey, originMeta, new ProduceRequest("test", "localhost-1",
+                            new ByteBufferMessageSet(buffer), i * 16));
+                    submitted.incrementAndGet();
+                }
+            }
+        };
+        handler.start();
+        Thread.sleep(300);
+        // the handler waits instead of queueing without bound
+        assertTrue(handler.isAlive());
+        assertEquals(4, submitted.get());
+
+        stalled.countDown();
+        handler.join(5000);
+        assertFalse(handler.isAlive());
+        assertEquals(6, submitted.get());
+        for (int i = 0; i < 100 && originMeta.getEndOffset() < 6 * 16; i++) {
+            Thread.sleep(50);
+        }
+        assertEquals(6 * 16, originMeta.getEndOffset());
+    }
+}
@@ -0,0 +1,65 @@
+package com.dp.blackhole.broker;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import org.apache.hadoop.io.compress.Decompressor;
+
+import org.junit.Test;
+
+import com.dp.blackhole.broker.Compression.Algorithm;
+import com.dp.blackhole.common.ParamsKey;
+
+public class TestCompression {
+
+    @Test
+    public void testAlgorithms() {
+        assertSame(Algorithm.LZ4, Compression.getCompressionAlgorithmByName(ParamsKey.COMPRESSION_LZ4));
+        assertSame(Algorithm.ZSTD, Compression.getCompressionAlgorithmByName(ParamsKey.COMPRESSION_ZSTD));
+        for (String name : Compression.getSupportedAlgorithms()) {
+            assertTrue(Compression.getCompressionAlgorithmByName(name).isSupported());
+        }
+        // only lzo files are indexed
+        assertFalse(Algorithm.GZ.canIndexInline());
+        assertFalse(Algorithm.LZ4.canIndexInline());
+    }
+
+    @Test
+    public void testPooledStream() throws IOException {
+        byte[] data = new byte[256 * 1024];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) ('a' + i % 7);
+        }
+        // the same pooled compressor serves both rounds
+        for (int round = 0; round < 2; round++) {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            OutputStream out = Algorithm.GZ.createPooledCompressionStream(bos, 0);
+            out.write(data);
+            out.close();
+            byte[] compressed = bos.toByteArray();
+            assertTrue(compressed.length < data.length);
+
+            Decompressor decompressor = Algorithm.GZ.getDecompressor();
+            ByteArrayOutputStream restored = new ByteArrayOutputStream();
+            try {
+                InputStream in = Algorithm.GZ.createDecompressionStream(new ByteArrayInputStream(compressed),
+                        decompressor, 0);
+                byte[] buf = new byte[4096];
+                int n;
+                while ((n = in.read(buf)) != -1) {
+                    restored.write(buf, 0, n);
+                }
+                in.close();
+            } finally {
+                Algorithm.GZ.returnDecompressor(decompressor);
+            }
+            assertTrue(Arrays.equals(data, restored.toByteArray()));
+        }
+    }
+}
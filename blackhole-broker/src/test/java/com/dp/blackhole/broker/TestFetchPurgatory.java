@@ -0,0 +1,114 @@
+package com.dp.blackhole.broker;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.dp.blackhole.broker.storage.Partition;
+import com.dp.blackhole.broker.storage.RetentionPolicy;
+import com.dp.blackhole.broker.storage.Segment;
+import com.dp.blackhole.broker.storage.StorageManager;
+import com.dp.blackhole.common.Util;
+import com.dp.blackhole.storage.ByteBufferMessageSet;
+import com.dp.blackhole.storage.Message;
+
+public class TestFetchPurgatory {
+    private Partition p;
+    private FetchPurgatory purgatory;
+
+    @Before
+    public void setUp() throws IOException {
+        File testdir = new File("/tmp/testFetchPurgatory");
+        if (testdir.exists()) {
+            Util.rmr(testdir);
+        }
+        testdir.mkdirs();
+        p = new Partition(testdir.getAbsolutePath(), "test", "localhost-1", 1024 * 1024, 1024);
+        purgatory = new FetchPurgatory();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        purgatory.shutdown();
+        SimBroker.deleteTmpFile("testFetchPurgatory");
+    }
+
+    private void append() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(16);
+        new Message("abc".getBytes()).write(buffer);
+        buffer.flip();
+        p.append(new ByteBufferMessageSet(buffer));
+        purgatory.appended(p);
+    }
+
+    private FetchPurgatory.DelayedFetch countDown(final CountDownLatch latch, long offset, int minBytes) {
+        return new FetchPurgatory.DelayedFetch(p, offset, minBytes) {
+            @Override
+            protected void complete() {
+                latch.countDown();
+            }
+        };
+    }
+
+    @Test
+    public void testCompleteOnAppend() throws IOException, InterruptedException {
+        CountDownLatch latch = new CountDownLatch(1);
+        purgatory.watch(countDown(latch, p.getEndOffset(), 1), 60000);
+        assertEquals(1, purgatory.waiting());
+        append();
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertEquals(0, purgatory.waiting());
+    }
+
+    @Test
+    public void testWaitForMinBytes() throws IOException, InterruptedException {
+        CountDownLatch latch = new CountDownLatch(1);
+        purgatory.watch(countDown(latch, p.getEndOffset(), 1024), 60000);
+        append();
+        assertFalse(latch.await(200, TimeUnit.MILLISECONDS));
+        assertEquals(1, purgatory.waiting());
+    }
+
+    @Test
+    public void testExpire() throws InterruptedException {
+        CountDownLatch latch = new CountDownLatch(1);
+        purgatory.watch(countDown(latch, p.getEndOffset(), 1), 100);
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        assertEquals(0, purgatory.waiting());
+    }
+
+    @Test
+    public void testSatisfiedWhenWatched() throws IOException, InterruptedException {
+        long offset = p.getEndOffset();
+        append();
+        CountDownLatch latch = new CountDownLatch(1);
+        purgatory.watch(countDown(latch, offset, 1), 60000);
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testRemovedPartition() throws IOException, InterruptedException {
+        StorageManager manager = new StorageManager(new String[] {"/tmp/testFetchPurgatory/storage"}, 1024 * 1024,
+                1024, Segment.DEFAULT_INDEX_INTERVAL, 1, 1000, false, RetentionPolicy.load(new Properties()));
+        manager.setAppendListener(purgatory);
+        manager.createPartition("test", "localhost-2");
+        p = manager.getPartition("test", "localhost-2");
+        CountDownLatch latch = new CountDownLatch(1);
+        purgatory.watch(countDown(latch, p.getEndOffset(), 1), 200);
+        assertEquals(1, purgatory.waiting());
+        manager.removePartition("test", "localhost-2");
+        assertEquals(0, purgatory.waiting());
+        // the fetch is still answered when it expires
+        assertTrue(latch.await(5, TimeUnit.SECONDS));
+        manager.close();
+    }
+}
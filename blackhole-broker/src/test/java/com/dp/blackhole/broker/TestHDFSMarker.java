@@ -41,7 +41,7 @@ public class TestHDFSMarker {
     public void testMark() throws IOException, InterruptedException {
         new SimBroker(port);
         HDFSMarker marker = new HDFSMarker(SimBroker.getRollMgr(), fs, SimBroker.getRollIdent(MAGIC));
-        SimBroker.getRollMgr().init("/tmp/hdfs", compressionAlgoName, port, 5000, 1, 1, 60000);
+        SimBroker.getRollMgr().init("/tmp/hdfs", compressionAlgoName, port, 5000, 1, 1, 60000, 0, 0, 600000, 0, "/tmp/testRecoverySpool");
         Thread thread = new Thread(marker);
         thread.start();
         thread.join();
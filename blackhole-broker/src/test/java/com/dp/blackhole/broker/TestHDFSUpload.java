@@ -3,20 +3,34 @@ package com.dp.blackhole.broker;
 
 import static org.junit.Assert.*;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.net.URI;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Properties;
+import java.util.zip.GZIPInputStream;
 
 import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
 import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.FilterFileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.fs.RawLocalFileSystem;
+import org.apache.hadoop.fs.permission.FsPermission;
 import org.apache.hadoop.io.compress.Compressor;
+import org.apache.hadoop.util.Progressable;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -28,6 +42,7 @@ import com.dp.blackhole.broker.Compression.Algorithm;
 import com.dp.blackhole.broker.storage.Partition;
 import com.dp.blackhole.broker.storage.StorageManager;
 import com.dp.blackhole.broker.storage.RollPartition;
+import com.dp.blackhole.common.ParamsKey;
 import com.dp.blackhole.common.Util;
 import com.dp.blackhole.storage.ByteBufferMessageSet;
 import com.dp.blackhole.storage.Message;
@@ -94,6 +109,141 @@ public class TestHDFSUpload {
         fis.close();
     }
     
+    @Test
+    public void testUploadStreamed() throws InterruptedException, IOException {
+        RollIdent ident = getRollIdent(MAGIC);
+        
+        Partition p = createPartition();
+        File streamFile = new File(getRealFile() + ".stream.tmp");
+        StreamingUpload stream = new StreamingUpload(fs, ident, new Path(streamFile.getPath()), p, 0,
+                compressionAlgo, null);
+        
+        appendData(p);
+        stream.advance();
+        assertTrue(streamFile.exists());
+        appendData(p);
+        
+        RollPartition roll1 = p.markRollPartition();
+        stream.seal(roll1.startOffset + roll1.length);
+        
+        appendData(p);
+        // data of the next roll is not streamed
+        stream.advance();
+        
+        RollManager mgr = mock(RollManager.class);
+        when(mgr.getRollHdfsPath(ident, compressionAlgo.getName())).thenReturn(getRealFile()+"."+compressionAlgo.getName());
+        StorageManager manager = mock(StorageManager.class);
+        
+        HDFSUpload writer = new HDFSUpload(mgr, manager, fs, ident, roll1, compressionAlgo.getName());
+        writer.setStream(stream);
+        writer.run();
+        verify(mgr).reportUpload(ident, compressionAlgo.getName(), true);
+        assertFalse(streamFile.exists());
+        
+        FileInputStream fis = new FileInputStream(expect);
+        String expectedMD5 = org.apache.commons.codec.digest.DigestUtils.md5Hex(fis);
+        String actualMDS = org.apache.commons.codec.digest.DigestUtils
+                .md5Hex(new FileInputStream(getRealFile() + "." + compressionAlgo.getName()));
+        assertEquals("md5sum not equals", expectedMD5, actualMDS);
+        fis.close();
+    }
+    
+    @Test
+    public void testResumeFromCheckpoint() throws IOException {
+        RollIdent ident = getRollIdent(MAGIC);
+        
+        Partition p = createPartition();
+        for (int n = 0; n < 5; n++) {
+            appendData(p);
+        }
+        RollPartition roll1 = p.markRollPartition();
+        
+        String dst = getRealFile() + "." + ParamsKey.COMPRESSION_GZ;
+        RollManager mgr = mock(RollManager.class);
+        when(mgr.getRollHdfsPath(ident, ParamsKey.COMPRESSION_GZ)).thenReturn(dst);
+        when(mgr.getTempHdfsPath(ident)).thenReturn(getRealFile() + ".tmp");
+        StorageManager manager = mock(StorageManager.class);
+        when(manager.getPartition(ident.topic, ident.source)).thenReturn(p);
+        FlakyFileSystem flakyFs = new FlakyFileSystem();
+        
+        // checkpoint after every segment read, the second one fails
+        HDFSUpload upload = new HDFSUpload(mgr, manager, flakyFs, ident, roll1, ParamsKey.COMPRESSION_GZ,
+                null, 0, 0, 1, 10);
+        upload.run();
+        verify(mgr).reportUpload(ident, ParamsKey.COMPRESSION_GZ, true);
+        assertEquals(1, flakyFs.resumed);
+        // gz is not indexed, the data file is published last
+        assertEquals(new Path(dst), flakyFs.renamed.get(flakyFs.renamed.size() - 1));
+        for (Path renamed : flakyFs.renamed) {
+            assertFalse(renamed.getName().endsWith(ParamsKey.LZO_INDEX_SUFFIX));
+        }
+        
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new GZIPInputStream(new FileInputStream(dst))));
+        for (int n = 0; n < 5; n++) {
+            for (int i = 0; i < 65; i++) {
+                assertEquals(Integer.toString(i), reader.readLine());
+            }
+        }
+        assertNull(reader.readLine());
+        reader.close();
+        new File(dst).delete();
+    }
+    
+    /**
+     * fails the second hflush of the first file created, and renames of
+     * the data file if failDataRename; renames are recorded in order
+     */
+    static class FlakyFileSystem extends FilterFileSystem {
+        int created = 0;
+        int resumed = 0;
+        boolean failDataRename = false;
+        List<Path> renamed = new ArrayList<Path>();
+        
+        FlakyFileSystem() throws IOException {
+            super(new RawLocalFileSystem());
+            initialize(URI.create("file:///"), new Configuration());
+        }
+        
+        @Override
+        public FSDataOutputStream create(Path f, FsPermission permission, boolean overwrite, int bufferSize,
+                short replication, long blockSize, Progressable progress) throws IOException {
+            final FSDataOutputStream out = super.create(f, permission, overwrite, bufferSize, replication,
+                    blockSize, progress);
+            if (created++ > 0) {
+                return out;
+            }
+            return new FSDataOutputStream(out, null) {
+                private int flushes = 0;
+                
+                @Override
+                public void hflush() throws IOException {
+                    if (++flushes == 2) {
+                        throw new IOException("injected failure");
+                    }
+                    super.hflush();
+                }
+            };
+        }
+        
+        @Override
+        public boolean rename(Path src, Path dst) throws IOException {
+            if (failDataRename && !dst.getName().endsWith(ParamsKey.LZO_INDEX_SUFFIX)) {
+                throw new IOException("injected failure");
+            }
+            renamed.add(dst);
+            return super.rename(src, dst);
+        }
+        
+        @Override
+        public FSDataInputStream open(Path f, int bufferSize) throws IOException {
+            if (f.getName().endsWith(".resume")) {
+                resumed++;
+            }
+            return super.open(f, bufferSize);
+        }
+    }
+    
     public RollIdent getRollIdent(String appName) {
         RollIdent rollIdent = new RollIdent();
         rollIdent.topic = appName;
@@ -0,0 +1,69 @@
+package com.dp.blackhole.broker;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.hadoop.fs.Path;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.dp.blackhole.broker.TestHDFSUpload.FlakyFileSystem;
+import com.dp.blackhole.common.ParamsKey;
+import com.dp.blackhole.common.Util;
+
+public class TestHDFSUtil {
+    private File testdir = new File("/tmp/testHDFSUtil");
+    private FlakyFileSystem fs;
+    private Path src;
+    private Path srcIndex;
+    private Path dst;
+    private Path dstIndex;
+
+    @Before
+    public void setUp() throws IOException {
+        if (testdir.exists()) {
+            Util.rmr(testdir);
+        }
+        testdir.mkdirs();
+        fs = new FlakyFileSystem();
+        src = new Path(testdir.getAbsolutePath(), "data.tmp");
+        srcIndex = new Path(testdir.getAbsolutePath(), "data.tmp" + ParamsKey.LZO_INDEX_SUFFIX);
+        dst = new Path(testdir.getAbsolutePath(), "data.lzo");
+        dstIndex = dst.suffix(ParamsKey.LZO_INDEX_SUFFIX);
+        fs.create(src).close();
+        fs.create(srcIndex).close();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        fs.close();
+        Util.rmr(testdir);
+    }
+
+    @Test
+    public void testRenameIndexBeforeData() throws IOException {
+        assertTrue(HDFSUtil.retryRenameWithIndex(fs, src, srcIndex, dst));
+        assertEquals(2, fs.renamed.size());
+        assertEquals(dstIndex, fs.renamed.get(0));
+        assertEquals(dst, fs.renamed.get(1));
+        assertTrue(fs.exists(dst));
+        assertTrue(fs.exists(dstIndex));
+        assertFalse(fs.exists(src));
+        assertFalse(fs.exists(srcIndex));
+    }
+
+    @Test
+    public void testOrphanIndexDeletedOnDataFailure() throws IOException {
+        fs.failDataRename = true;
+        assertFalse(HDFSUtil.retryRenameWithIndex(fs, src, srcIndex, dst));
+        // the index went first, it is removed again, the data stays unpublished
+        assertEquals(1, fs.renamed.size());
+        assertEquals(dstIndex, fs.renamed.get(0));
+        assertFalse(fs.exists(dstIndex));
+        assertFalse(fs.exists(dst));
+        assertTrue(fs.exists(src));
+    }
+}
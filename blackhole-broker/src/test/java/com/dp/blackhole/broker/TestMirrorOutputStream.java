@@ -0,0 +1,69 @@
+package com.dp.blackhole.broker;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Test;
+
+public class TestMirrorOutputStream {
+
+    @Test
+    public void testMirrored() throws IOException, InterruptedException {
+        ByteArrayOutputStream primary = new ByteArrayOutputStream();
+        ByteArrayOutputStream mirror = new ByteArrayOutputStream();
+        MirrorOutputStream out = new MirrorOutputStream(primary, mirror, 1024);
+        out.write("hello ".getBytes());
+        out.write('w');
+        out.write("xxorldxx".getBytes(), 2, 4);
+        out.close();
+        assertTrue(out.awaitMirror(5000));
+        assertEquals("hello world", primary.toString());
+        assertEquals("hello world", mirror.toString());
+    }
+
+    @Test
+    public void testSlowMirrorDropped() throws IOException, InterruptedException {
+        final CountDownLatch release = new CountDownLatch(1);
+        OutputStream stuck = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                }
+            }
+        };
+        ByteArrayOutputStream primary = new ByteArrayOutputStream();
+        MirrorOutputStream out = new MirrorOutputStream(primary, stuck, 16);
+        for (int i = 0; i < 3; i++) {
+            out.write("0123456789".getBytes());
+        }
+        // the primary is not held up by the mirror
+        assertEquals(30, primary.size());
+        assertTrue(out.isMirrorFailed());
+        out.close();
+        release.countDown();
+        assertFalse(out.awaitMirror(5000));
+    }
+
+    @Test
+    public void testFailedMirror() throws IOException, InterruptedException {
+        OutputStream broken = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                throw new IOException("broken");
+            }
+        };
+        ByteArrayOutputStream primary = new ByteArrayOutputStream();
+        MirrorOutputStream out = new MirrorOutputStream(primary, broken, 1024);
+        out.write("hello".getBytes());
+        out.close();
+        assertFalse(out.awaitMirror(5000));
+        assertTrue(out.isMirrorFailed());
+        assertEquals("hello", primary.toString());
+    }
+}
@@ -0,0 +1,44 @@
+package com.dp.blackhole.broker;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.Test;
+
+import com.dp.blackhole.broker.Compression.Algorithm;
+
+public class TestParallelCompressionStream {
+
+    @Test
+    public void testConcatenatedGzipMembers() throws IOException {
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        ParallelCompressionStream out = new ParallelCompressionStream(compressed, Algorithm.GZ, pool, 100, 2);
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 200; i++) {
+            String line = i + "\n";
+            expected.append(line);
+            out.write(line.getBytes());
+        }
+        out.close();
+        pool.shutdown();
+
+        // every member is read back in order by a standard gzip reader
+        InputStream in = new GZIPInputStream(new ByteArrayInputStream(compressed.toByteArray()));
+        ByteArrayOutputStream uncompressed = new ByteArrayOutputStream();
+        byte[] buf = new byte[256];
+        int n;
+        while ((n = in.read(buf)) != -1) {
+            uncompressed.write(buf, 0, n);
+        }
+        in.close();
+        assertEquals(expected.toString(), uncompressed.toString());
+    }
+}
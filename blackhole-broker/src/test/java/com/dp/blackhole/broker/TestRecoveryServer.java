@@ -0,0 +1,161 @@
+package com.dp.blackhole.broker;
+
+import static org.junit.Assert.*;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Matchers.isNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.zip.CRC32;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.After;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import com.dp.blackhole.broker.storage.Partition;
+import com.dp.blackhole.broker.storage.RollPartition;
+import com.dp.blackhole.common.AgentProtocol;
+import com.dp.blackhole.common.AgentProtocol.AgentHead;
+
+public class TestRecoveryServer {
+    private static final int port = 40011;
+    private static final int rangePort = 40012;
+    private static final String SPOOL_DIR = "/tmp/testRecoveryServer";
+
+    @After
+    public void tearDown() throws Exception {
+        SimBroker.deleteTmpFile("testRecoveryServer");
+    }
+
+    private void sendHead(DataOutputStream out, int version, boolean ignore, long size) throws IOException {
+        AgentProtocol protocol = new AgentProtocol();
+        AgentHead head = protocol.new AgentHead();
+        head.version = version;
+        head.ignore = ignore;
+        head.app = "test";
+        head.source = "localhost-1";
+        head.period = 3600;
+        head.ts = SimBroker.rollTS;
+        head.size = size;
+        protocol.sendHead(out, head);
+    }
+
+    private void send(boolean ignore, long size, byte[] data) throws IOException {
+        Socket socket = new Socket("localhost", port);
+        DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+        sendHead(out, AgentProtocol.VERSION_MICOR_BATCH, ignore, size);
+        out.write(data);
+        out.flush();
+        socket.close();
+    }
+
+    @Test
+    public void testSpool() throws IOException {
+        RollManager mgr = mock(RollManager.class);
+        when(mgr.getFileName(any(RollIdent.class))).thenReturn("localhost-1@test_2013-01-01.15");
+        RecoveryServer server = new RecoveryServer(mgr, port, SPOOL_DIR, 60000);
+        server.start();
+
+        byte[] data = new byte[3 * 1024 * 1024];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        send(false, data.length, data);
+        ArgumentCaptor<RollIdent> roll = ArgumentCaptor.forClass(RollIdent.class);
+        ArgumentCaptor<File> spool = ArgumentCaptor.forClass(File.class);
+        verify(mgr, timeout(5000)).recover(roll.capture(), spool.capture(), eq((long) data.length), eq(false),
+                (HeldRoll) isNull(), eq(-1L));
+        assertEquals("test", roll.getValue().topic);
+        assertEquals("localhost-1", roll.getValue().source);
+        assertEquals(SimBroker.rollTS, roll.getValue().ts);
+        FileInputStream in = new FileInputStream(spool.getValue());
+        assertArrayEquals(data, IOUtils.toByteArray(in));
+        in.close();
+
+        // a stream cut short is not uploaded
+        send(false, data.length + 1, data);
+        verify(mgr, timeout(5000)).failRecovery(any(RollIdent.class));
+        assertEquals(1, new File(SPOOL_DIR).list().length);
+
+        send(true, 0, new byte[0]);
+        verify(mgr, timeout(5000)).markIgnored(any(RollIdent.class));
+        server.close();
+    }
+
+    @Test
+    public void testRangeRecovery() throws IOException {
+        File dir = new File(SPOOL_DIR + "/partition");
+        dir.mkdirs();
+        Partition p = new Partition(dir.getAbsolutePath(), "test", "localhost-1", 1024 * 1024, 1024);
+        TestHDFSUpload.appendData(p);
+        RollPartition heldPartition = p.markRollPartition();
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        for (int i = 0; i < 65; i++) {
+            expected.write((i + "\n").getBytes());
+        }
+        byte[] heldLines = expected.toByteArray();
+        CRC32 crc = new CRC32();
+        crc.update(heldLines);
+
+        RollManager mgr = mock(RollManager.class);
+        when(mgr.getFileName(any(RollIdent.class))).thenReturn("localhost-1@test_2013-01-01.15");
+        when(mgr.getHeldRoll(any(RollIdent.class))).thenReturn(heldPartition);
+        RecoveryServer server = new RecoveryServer(mgr, rangePort, SPOOL_DIR + "/spool", 60000);
+        server.start();
+
+        // the broker went down for the first lines of the roll
+        byte[] missed = "early-0\nearly-1\n".getBytes();
+        long size = missed.length + heldLines.length;
+        Socket socket = new Socket("localhost", rangePort);
+        DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+        DataInputStream in = new DataInputStream(socket.getInputStream());
+        sendHead(out, AgentProtocol.VERSION_RANGE_RECOVERY, false, size);
+        assertEquals(heldLines.length, in.readLong());
+        assertEquals(crc.getValue(), in.readLong());
+        out.writeLong(missed.length);
+        out.write(missed);
+        out.flush();
+        socket.close();
+
+        ArgumentCaptor<File> spool = ArgumentCaptor.forClass(File.class);
+        ArgumentCaptor<HeldRoll> held = ArgumentCaptor.forClass(HeldRoll.class);
+        verify(mgr, timeout(5000)).recover(any(RollIdent.class), spool.capture(), eq(size), eq(false),
+                held.capture(), eq((long) missed.length));
+        FileInputStream spooled = new FileInputStream(spool.getValue());
+        assertArrayEquals(missed, IOUtils.toByteArray(spooled));
+        spooled.close();
+        ByteArrayOutputStream merged = new ByteArrayOutputStream();
+        held.getValue().writeTo(merged);
+        assertArrayEquals(heldLines, merged.toByteArray());
+        server.close();
+    }
+
+    @Test
+    public void testCleanOnlySpools() throws IOException {
+        File dir = new File(SPOOL_DIR + "/clean");
+        dir.mkdirs();
+        File stale = new File(dir, "localhost-1@test_2013-01-01.15.1" + RecoveryServer.SPOOL_SUFFIX);
+        File other = new File(dir, "keep.me");
+        File sub = new File(dir, "sub");
+        assertTrue(stale.createNewFile());
+        assertTrue(other.createNewFile());
+        assertTrue(sub.mkdir());
+        RecoveryServer server = new RecoveryServer(mock(RollManager.class), 40013, dir.getPath(), 60000);
+        server.start();
+        server.close();
+        assertFalse(stale.exists());
+        assertTrue(other.exists());
+        assertTrue(sub.isDirectory());
+    }
+}
@@ -0,0 +1,153 @@
+package com.dp.blackhole.broker;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import com.dp.blackhole.broker.follower.FollowerFetcher;
+import com.dp.blackhole.broker.follower.ReplicaMeta;
+import com.dp.blackhole.broker.storage.Partition;
+import com.dp.blackhole.common.TopicPartitionKey;
+import com.dp.blackhole.common.Util;
+import com.dp.blackhole.network.EntityProcessor;
+import com.dp.blackhole.network.TransferWrap;
+import com.dp.blackhole.network.TransferWrapNonblockingConnection;
+import com.dp.blackhole.protocol.data.ReplicaFetchRep;
+import com.dp.blackhole.protocol.data.ReplicaMultiFetchReq;
+import com.dp.blackhole.storage.ByteBufferMessageSet;
+import com.dp.blackhole.storage.Message;
+import com.dp.blackhole.storage.MessageSet;
+
+/**
+ * A follower which was leader in an entropy its new leader never saw is
+ * sent back to where the two diverged, through the leader's replica fetch
+ * handling and the follower's fetcher.
+ */
+public class TestReplicaDivergence {
+    private static final String TOPIC = "test";
+    private static final String PARTITION = "localhost-1";
+    private static final String FOLLOWER = "follower";
+
+    private File testdir = new File("/tmp/testReplicaDivergence");
+    private BrokerService leader;
+    private Partition followerPartition;
+    private FollowerFetcher fetcher;
+
+    @Before
+    public void setUp() throws IOException {
+        if (testdir.exists()) {
+            Util.rmr(testdir);
+        }
+        Properties prop = new Properties();
+        prop.setProperty("broker.storage.dir", testdir.getAbsolutePath() + "/leader");
+        prop.setProperty("broker.service.port", "0");
+        leader = new BrokerService(prop);
+        leader.manager.createPartition(TOPIC, PARTITION);
+        followerPartition = new Partition(testdir.getAbsolutePath() + "/follower", TOPIC, PARTITION, 1024 * 1024,
+                1024);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (fetcher != null) {
+            fetcher.getProcessor().OnDisconnected(null);
+        }
+        leader.close();
+        SimBroker.deleteTmpFile("testReplicaDivergence");
+    }
+
+    private void append(Partition p, String prefix, int count) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(16 * count);
+        for (int i = 0; i < count; i++) {
+            new Message(String.format("%s%02d", prefix, i).getBytes()).write(buffer);
+        }
+        buffer.flip();
+        p.append(new ByteBufferMessageSet(buffer));
+    }
+
+    private byte[] content(Partition p) throws IOException {
+        int size = (int) (p.getEndOffset() - p.getStartOffset());
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        p.read(p.getStartOffset(), size).write(new ByteBufferChannel(buffer), 0, size);
+        return buffer.array();
+    }
+
+    /**
+     * what the follower reads off the wire for a reply the leader sent
+     */
+    private TransferWrap received(TransferWrap sent) throws IOException {
+        ReplicaFetchRep rep = (ReplicaFetchRep) sent.unwrap();
+        MessageSet messages = rep.getMessageSet();
+        ByteBufferMessageSet read = null;
+        if (messages != null && messages.getSize() != 0) {
+            ByteBuffer buffer = ByteBuffer.allocate(messages.getSize());
+            messages.write(new ByteBufferChannel(buffer), 0, messages.getSize());
+            buffer.flip();
+            read = new ByteBufferMessageSet(buffer, rep.getOffset());
+        }
+        return new TransferWrap(new ReplicaFetchRep(rep.getEntropy(), rep.getTopic(), rep.getPartition(),
+                rep.getBrokerLeader(), rep.getBrokerReplica(), rep.getOffset(), read, rep.getId()));
+    }
+
+    @Test
+    public void testTruncateAtDivergence() throws IOException {
+        Partition leaderPartition = leader.manager.getPartition(TOPIC, PARTITION);
+        // both hold what was written in entropy 1
+        leaderPartition.updateEntropy(1);
+        followerPartition.updateEntropy(1);
+        append(leaderPartition, "a", 10);
+        append(followerPartition, "a", 10);
+        // the follower led entropy 2 alone and got messages nobody else has
+        followerPartition.updateEntropy(2);
+        append(followerPartition, "b", 5);
+        // then the other broker was elected for entropy 3
+        leader.manager.updateEntropy(TOPIC, PARTITION, 3);
+        append(leaderPartition, "c", 3);
+        followerPartition.updateEntropy(3);
+        assertEquals(240, followerPartition.getEndOffset());
+        assertEquals(208, leaderPartition.getEndOffset());
+
+        HashMap<String, Boolean> followers = new HashMap<String, Boolean>();
+        followers.put(FOLLOWER, true);
+        leader.addLeader(TOPIC, PARTITION, followers);
+        leader.tpKeyOriginMeta.get(new TopicPartitionKey(TOPIC, PARTITION)).setLeaderOnline();
+
+        fetcher = new FollowerFetcher("leader", 0, FOLLOWER, new ConcurrentHashMap<TopicPartitionKey, ReplicaMeta>(),
+                1, 0, 1, true);
+        fetcher.addReplica(TOPIC, PARTITION, followerPartition, 3, 1000L);
+        EntityProcessor<TransferWrap, TransferWrapNonblockingConnection> processor = fetcher.getProcessor();
+        TransferWrapNonblockingConnection toLeader = mock(TransferWrapNonblockingConnection.class);
+        processor.OnConnected(toLeader);
+
+        ArgumentCaptor<TransferWrap> requests = ArgumentCaptor.forClass(TransferWrap.class);
+        verify(toLeader, timeout(5000)).send(requests.capture());
+        ReplicaMultiFetchReq request = (ReplicaMultiFetchReq) requests.getValue().unwrap();
+        ReplicaMultiFetchReq.Fetch fetch = request.getFetches().get(0);
+        assertEquals(240, fetch.offset);
+        assertEquals(2, fetch.lastEntropy);
+
+        TransferWrapNonblockingConnection toFollower = mock(TransferWrapNonblockingConnection.class);
+        leader.getExecutor().handleReplicaMultiFetchReq(request, toFollower);
+        ArgumentCaptor<TransferWrap> replies = ArgumentCaptor.forClass(TransferWrap.class);
+        verify(toFollower).send(replies.capture());
+        ReplicaFetchRep reply = (ReplicaFetchRep) replies.getValue().unwrap();
+        // entropy 2 is unknown to the leader, it moved on from entropy 1 at 160
+        assertEquals(160, reply.getOffset());
+
+        processor.process(received(replies.getValue()), toLeader);
+        assertEquals(208, followerPartition.getEndOffset());
+        assertArrayEquals(content(leaderPartition), content(followerPartition));
+        assertEquals(3, followerPartition.getLastEntropy());
+    }
+}
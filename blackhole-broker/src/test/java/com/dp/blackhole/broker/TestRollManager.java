@@ -0,0 +1,48 @@
+package com.dp.blackhole.broker;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import org.junit.Test;
+
+import com.dp.blackhole.broker.storage.RollPartition;
+
+public class TestRollManager {
+
+    private RollIdent ident(long ts) {
+        RollIdent ident = new RollIdent();
+        ident.topic = "test";
+        ident.source = "localhost";
+        ident.period = 3600;
+        ident.ts = ts;
+        return ident;
+    }
+
+    @Test
+    public void testHeldRollsBounded() throws InterruptedException {
+        RollManager mgr = new RollManager();
+        mgr.setHeldRollLimits(2, 3600 * 1000);
+        RollPartition first = mock(RollPartition.class);
+        RollPartition second = mock(RollPartition.class);
+        RollPartition third = mock(RollPartition.class);
+        mgr.holdRoll(ident(1), first);
+        Thread.sleep(2);
+        mgr.holdRoll(ident(2), second);
+        Thread.sleep(2);
+        mgr.holdRoll(ident(3), third);
+        assertNull(mgr.getHeldRoll(ident(1)));
+        assertSame(second, mgr.getHeldRoll(ident(2)));
+        assertSame(third, mgr.getHeldRoll(ident(3)));
+    }
+
+    @Test
+    public void testHeldRollsExpire() throws InterruptedException {
+        RollManager mgr = new RollManager();
+        mgr.setHeldRollLimits(10, 50);
+        RollPartition roll = mock(RollPartition.class);
+        mgr.holdRoll(ident(1), roll);
+        assertSame(roll, mgr.getHeldRoll(ident(1)));
+        Thread.sleep(100);
+        assertNull(mgr.getHeldRoll(ident(1)));
+    }
+}
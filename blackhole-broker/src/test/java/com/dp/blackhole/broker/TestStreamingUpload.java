@@ -0,0 +1,78 @@
+package com.dp.blackhole.broker;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.dp.blackhole.broker.Compression.Algorithm;
+import com.dp.blackhole.broker.storage.Partition;
+import com.dp.blackhole.common.Util;
+import com.dp.blackhole.storage.ByteBufferMessageSet;
+import com.dp.blackhole.storage.Message;
+
+public class TestStreamingUpload {
+    private File testdir = new File("/tmp/testStreamingUpload");
+
+    @Before
+    public void setUp() throws IOException {
+        if (testdir.exists()) {
+            Util.rmr(testdir);
+        }
+        testdir.mkdirs();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        SimBroker.deleteTmpFile("testStreamingUpload");
+    }
+
+    private long append(Partition p, byte[] payload) throws IOException {
+        Message message = new Message(payload);
+        ByteBuffer buffer = ByteBuffer.allocate(message.getSize());
+        message.write(buffer);
+        buffer.flip();
+        p.append(new ByteBufferMessageSet(buffer));
+        return message.getSize();
+    }
+
+    @Test
+    public void testMessageLargerThanBuffer() throws IOException {
+        Partition p = new Partition(testdir.getAbsolutePath(), "test", "localhost-1", 16 * 1024 * 1024, 1024);
+        byte[] large = new byte[2 * 1024 * 1024];
+        Arrays.fill(large, (byte) 'x');
+        long end = append(p, "small".getBytes());
+        end += append(p, large);
+
+        RollIdent ident = new RollIdent();
+        ident.topic = "test";
+        ident.source = "localhost-1";
+        ident.period = 3600;
+        ident.ts = Util.getTS();
+        FileSystem fs = FileSystem.get(new Configuration());
+        Path tmp = new Path(testdir.getAbsolutePath(), "stream.tmp");
+        StreamingUpload stream = new StreamingUpload(fs, ident, tmp, p, 0, Algorithm.GZ, null);
+        stream.advance();
+        assertEquals(tmp, stream.finish(end));
+
+        BufferedReader reader = new BufferedReader(new InputStreamReader(
+                new GZIPInputStream(new FileInputStream(new File(tmp.toUri().getPath())))));
+        assertEquals("small", reader.readLine());
+        assertEquals(new String(large), reader.readLine());
+        assertNull(reader.readLine());
+        reader.close();
+    }
+}
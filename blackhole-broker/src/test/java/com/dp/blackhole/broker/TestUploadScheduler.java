@@ -0,0 +1,69 @@
+package com.dp.blackhole.broker;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class TestUploadScheduler {
+
+    private RollIdent ident(String topic, long ts) {
+        RollIdent ident = new RollIdent();
+        ident.topic = topic;
+        ident.source = "localhost";
+        ident.period = 3600;
+        ident.ts = ts;
+        return ident;
+    }
+
+    @Test
+    public void testFairness() throws InterruptedException {
+        UploadScheduler scheduler = new UploadScheduler(1, 600000);
+        final List<String> order = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch blocker = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(6);
+        scheduler.submit(ident("big", 0), new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    blocker.await();
+                } catch (InterruptedException e) {
+                }
+                order.add("big-0");
+                done.countDown();
+            }
+        });
+        // wait for the worker to take the first roll
+        for (int i = 0; i < 100 && scheduler.getPendingCount() > 0; i++) {
+            Thread.sleep(10);
+        }
+        for (final long ts : new long[] {3, 1, 2}) {
+            scheduler.submit(ident("big", ts), new Runnable() {
+                @Override
+                public void run() {
+                    order.add("big-" + ts);
+                    done.countDown();
+                }
+            });
+        }
+        for (final long ts : new long[] {2, 1}) {
+            scheduler.submit(ident("small", ts), new Runnable() {
+                @Override
+                public void run() {
+                    order.add("small-" + ts);
+                    done.countDown();
+                }
+            });
+        }
+        blocker.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        scheduler.shutdown();
+        // topics take turns, older rolls first within a topic
+        assertEquals("[big-0, small-1, big-1, small-2, big-2, big-3]", order.toString());
+    }
+}
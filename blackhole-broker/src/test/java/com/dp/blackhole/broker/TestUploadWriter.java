@@ -0,0 +1,60 @@
+package com.dp.blackhole.broker;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import com.dp.blackhole.storage.ByteBufferMessageSet;
+import com.dp.blackhole.storage.Message;
+
+public class TestUploadWriter {
+
+    class CountingOutputStream extends ByteArrayOutputStream {
+        int writes;
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) {
+            writes++;
+            super.write(b, off, len);
+        }
+
+        @Override
+        public synchronized void write(int b) {
+            writes++;
+            super.write(b);
+        }
+    }
+
+    @Test
+    public void testWriteLines() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(1024);
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 20; i++) {
+            String line = "line" + i;
+            new Message(line.getBytes()).write(buffer);
+            expected.append(line).append('\n');
+        }
+        buffer.flip();
+
+        CountingOutputStream out = new CountingOutputStream();
+        UploadWriter writer = new UploadWriter(out, 64);
+        writer.write(new ByteBufferMessageSet(buffer, 0));
+        // a payload larger than the block is passed through
+        byte[] large = new byte[100];
+        Arrays.fill(large, (byte) 'x');
+        ByteBuffer payload = ByteBuffer.wrap(large);
+        writer.writeLine(payload);
+        assertEquals(0, payload.remaining());
+        expected.append(new String(large)).append('\n');
+        writer.close();
+
+        assertEquals(expected.toString(), out.toString());
+        // 130 bytes of short lines in 64 byte blocks, then the large line
+        assertEquals(5, out.writes);
+    }
+}
@@ -0,0 +1,63 @@
+package com.dp.blackhole.broker.follower;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import com.dp.blackhole.broker.SimBroker;
+import com.dp.blackhole.broker.storage.Partition;
+import com.dp.blackhole.common.TopicPartitionKey;
+import com.dp.blackhole.common.Util;
+import com.dp.blackhole.network.TransferWrap;
+import com.dp.blackhole.network.TransferWrapNonblockingConnection;
+import com.dp.blackhole.protocol.data.DataMessageTypeFactory;
+import com.dp.blackhole.protocol.data.ReplicaFetchReq;
+
+public class TestFollowerFetcher {
+    private File testdir = new File("/tmp/testFollowerFetcher");
+    private FollowerFetcher fetcher;
+
+    @Before
+    public void setUp() throws IOException {
+        if (testdir.exists()) {
+            Util.rmr(testdir);
+        }
+        testdir.mkdirs();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if (fetcher != null) {
+            fetcher.getProcessor().OnDisconnected(null);
+        }
+        SimBroker.deleteTmpFile("testFollowerFetcher");
+    }
+
+    @Test
+    public void testSingleFetchesWithoutMultiFetch() throws IOException {
+        Partition p = new Partition(testdir.getAbsolutePath(), "test", "localhost-1", 1024 * 1024, 1024);
+        fetcher = new FollowerFetcher("leader", 0, "follower", new ConcurrentHashMap<TopicPartitionKey, ReplicaMeta>(),
+                8, 500, 1, false);
+        fetcher.addReplica("test", "localhost-1", p, 3, 1000L);
+        TransferWrapNonblockingConnection toLeader = mock(TransferWrapNonblockingConnection.class);
+        fetcher.getProcessor().OnConnected(toLeader);
+
+        ArgumentCaptor<TransferWrap> requests = ArgumentCaptor.forClass(TransferWrap.class);
+        verify(toLeader, timeout(5000)).send(requests.capture());
+        // a leader which predates ReplicaMultiFetchReq understands it
+        assertEquals(DataMessageTypeFactory.ReplicaFetchReq, requests.getValue().getType());
+        ReplicaFetchReq request = (ReplicaFetchReq) requests.getValue().unwrap();
+        assertEquals("test", request.getTopic());
+        assertEquals(0L, request.getOffset().longValue());
+        // and answers it with one reply
+        assertEquals(1, fetcher.getReplicaMeta(new TopicPartitionKey("test", "localhost-1")).getChunks());
+    }
+}
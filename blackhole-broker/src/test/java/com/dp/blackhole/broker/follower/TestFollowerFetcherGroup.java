@@ -0,0 +1,181 @@
+package com.dp.blackhole.broker.follower;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+import com.dp.blackhole.broker.SimBroker;
+import com.dp.blackhole.broker.storage.Partition;
+import com.dp.blackhole.common.TopicPartitionKey;
+import com.dp.blackhole.common.Util;
+import com.dp.blackhole.network.TransferWrap;
+import com.dp.blackhole.network.TransferWrapNonblockingConnection;
+import com.dp.blackhole.protocol.data.ReplicaFetchRep;
+import com.dp.blackhole.protocol.data.ReplicaMultiFetchReq;
+import com.dp.blackhole.storage.ByteBufferMessageSet;
+import com.dp.blackhole.storage.Message;
+
+public class TestFollowerFetcherGroup {
+    private File testdir = new File("/tmp/testFollowerFetcherGroup");
+    private List<FollowerFetcher> connected = new ArrayList<FollowerFetcher>();
+
+    @Before
+    public void setUp() throws IOException {
+        if (testdir.exists()) {
+            Util.rmr(testdir);
+        }
+        testdir.mkdirs();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        for (FollowerFetcher fetcher : connected) {
+            fetcher.getProcessor().OnDisconnected(null);
+        }
+        SimBroker.deleteTmpFile("testFollowerFetcherGroup");
+    }
+
+    private FollowerFetcher newFetcher(FollowerFetcherGroup group) {
+        FollowerFetcher fetcher = new FollowerFetcher("leader", 0, "follower",
+                new ConcurrentHashMap<TopicPartitionKey, ReplicaMeta>(), 1, 0, 1, true);
+        group.addFetcher(fetcher);
+        return fetcher;
+    }
+
+    private TransferWrapNonblockingConnection connect(FollowerFetcher fetcher) {
+        TransferWrapNonblockingConnection toLeader = mock(TransferWrapNonblockingConnection.class);
+        fetcher.getProcessor().OnConnected(toLeader);
+        connected.add(fetcher);
+        return toLeader;
+    }
+
+    private Partition partition(String id) throws IOException {
+        return new Partition(testdir.getAbsolutePath(), "test", id, 1024 * 1024, 1024);
+    }
+
+    private TopicPartitionKey key(String id) {
+        return new TopicPartitionKey("test", id);
+    }
+
+    /**
+     * the last fetch of partition id sent on toLeader
+     */
+    private ReplicaMultiFetchReq.Fetch sentFetch(TransferWrapNonblockingConnection toLeader, String id) {
+        ArgumentCaptor<TransferWrap> requests = ArgumentCaptor.forClass(TransferWrap.class);
+        verify(toLeader, atLeastOnce()).send(requests.capture());
+        ReplicaMultiFetchReq.Fetch found = null;
+        for (TransferWrap request : requests.getAllValues()) {
+            for (ReplicaMultiFetchReq.Fetch fetch : ((ReplicaMultiFetchReq) request.unwrap()).getFetches()) {
+                if (fetch.partitionId.equals(id)) {
+                    found = fetch;
+                }
+            }
+        }
+        return found;
+    }
+
+    private ReplicaMultiFetchReq.Fetch awaitFetch(TransferWrapNonblockingConnection toLeader, String id)
+            throws InterruptedException {
+        ReplicaMultiFetchReq.Fetch fetch = null;
+        for (int i = 0; i < 100 && fetch == null; i++) {
+            Thread.sleep(50);
+            fetch = sentFetch(toLeader, id);
+        }
+        assertNotNull(fetch);
+        return fetch;
+    }
+
+    private TransferWrap reply(ReplicaMultiFetchReq.Fetch fetch) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(16);
+        new Message("abc".getBytes()).write(buffer);
+        buffer.flip();
+        return new TransferWrap(new ReplicaFetchRep(fetch.entropy, fetch.topic, fetch.partitionId, "leader",
+                "follower", fetch.offset, new ByteBufferMessageSet(buffer, fetch.offset), fetch.id));
+    }
+
+    @Test
+    public void testLeastLoadedPlacement() throws IOException {
+        FollowerFetcherGroup group = new FollowerFetcherGroup("leader", 0, 3, 1000L, 2, 1, 0, 1, true);
+        FollowerFetcher first = newFetcher(group);
+        FollowerFetcher second = newFetcher(group);
+        first.addReplica("test", "localhost-1", partition("localhost-1"), 3, 1000L);
+        first.addReplica("test", "localhost-2", partition("localhost-2"), 3, 1000L);
+
+        group.addReplica(key("localhost-3"), partition("localhost-3"));
+        group.addReplica(key("localhost-4"), partition("localhost-4"));
+        assertNotNull(second.getReplicaMeta(key("localhost-3")));
+        assertNotNull(second.getReplicaMeta(key("localhost-4")));
+        group.addReplica(key("localhost-5"), partition("localhost-5"));
+        assertEquals(5, first.replicaCount() + second.replicaCount());
+        assertTrue(group.containsReplica(key("localhost-5")));
+        // added twice is kept once
+        group.addReplica(key("localhost-5"), partition("localhost-5"));
+        assertEquals(5, first.replicaCount() + second.replicaCount());
+    }
+
+    @Test
+    public void testRebalanceAfterRemoval() throws IOException {
+        FollowerFetcherGroup group = new FollowerFetcherGroup("leader", 0, 3, 1000L, 2, 1, 0, 1, true);
+        FollowerFetcher first = newFetcher(group);
+        FollowerFetcher second = newFetcher(group);
+        for (int i = 1; i <= 4; i++) {
+            group.addReplica(key("localhost-" + i), partition("localhost-" + i));
+        }
+        assertEquals(2, first.replicaCount());
+        assertEquals(2, second.replicaCount());
+
+        // empty the second fetcher, one replica of the first moves over
+        for (int i = 1; i <= 4; i++) {
+            if (second.getReplicaMeta(key("localhost-" + i)) != null) {
+                assertTrue(group.removeReplica(key("localhost-" + i)));
+            }
+        }
+        assertEquals(1, first.replicaCount());
+        assertEquals(1, second.replicaCount());
+        assertFalse(group.removeReplica(key("localhost-9")));
+    }
+
+    @Test
+    public void testMoveWithFetchInFlight() throws IOException, InterruptedException {
+        FollowerFetcherGroup group = new FollowerFetcherGroup("leader", 0, 3, 1000L, 2, 1, 0, 1, true);
+        FollowerFetcher first = newFetcher(group);
+        FollowerFetcher second = newFetcher(group);
+        TransferWrapNonblockingConnection firstConn = connect(first);
+        TransferWrapNonblockingConnection secondConn = connect(second);
+        Partition[] partitions = new Partition[4];
+        for (int i = 1; i <= 3; i++) {
+            partitions[i] = partition("localhost-" + i);
+            group.addReplica(key("localhost-" + i), partitions[i]);
+        }
+        assertNotNull(second.getReplicaMeta(key("localhost-2")));
+        awaitFetch(firstConn, "localhost-1");
+        awaitFetch(firstConn, "localhost-3");
+
+        // removing the replica of the second fetcher moves one of the first over
+        assertTrue(group.removeReplica(key("localhost-2")));
+        String moving = second.getReplicaMeta(key("localhost-1")) != null ? "localhost-1" : "localhost-3";
+        ReplicaMultiFetchReq.Fetch inFlight = sentFetch(firstConn, moving);
+        ReplicaMultiFetchReq.Fetch current = awaitFetch(secondConn, moving);
+        assertTrue(current.id > inFlight.id);
+        Partition p = partitions[moving.equals("localhost-1") ? 1 : 3];
+
+        // the reply to the fetch sent before the move is stale on both fetchers
+        first.getProcessor().process(reply(inFlight), firstConn);
+        second.getProcessor().process(reply(inFlight), secondConn);
+        assertEquals(0, p.getEndOffset());
+
+        second.getProcessor().process(reply(current), secondConn);
+        assertEquals(16, p.getEndOffset());
+    }
+}
@@ -0,0 +1,43 @@
+package com.dp.blackhole.broker.follower;
+
+import static org.junit.Assert.*;
+import static org.mockito.Mockito.mock;
+
+import org.junit.Test;
+
+import com.dp.blackhole.broker.storage.Partition;
+
+public class TestReplicaMeta {
+
+    @Test
+    public void testAdaptChunks() {
+        ReplicaMeta rm = new ReplicaMeta("leader", mock(Partition.class), 3, 1);
+        assertEquals(1, rm.getChunks());
+
+        // a fetch which got all its replies lags behind
+        long id = rm.nextFetch();
+        assertTrue(rm.replyReceived(false));
+        rm.adaptChunks(false, 8);
+        assertEquals(2, rm.getChunks());
+
+        assertEquals(id + 1, rm.nextFetch());
+        assertFalse(rm.replyReceived(false));
+        assertTrue(rm.replyReceived(false));
+        assertTrue(rm.fetchHasData());
+        rm.adaptChunks(false, 8);
+        rm.adaptChunks(false, 8);
+        rm.adaptChunks(false, 8);
+        assertEquals(8, rm.getChunks());
+
+        // running out of messages ends the fetch early
+        rm.nextFetch();
+        assertFalse(rm.replyReceived(false));
+        assertTrue(rm.replyReceived(true));
+        rm.adaptChunks(true, 8);
+        assertEquals(4, rm.getChunks());
+
+        rm.nextFetch();
+        assertTrue(rm.replyReceived(true));
+        assertFalse(rm.fetchHasData());
+    }
+}
@@ -2,6 +2,7 @@ package com.dp.blackhole.broker.ftp;
 
 import static org.junit.Assert.*;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import java.io.File;
@@ -14,6 +15,7 @@ import java.nio.ByteBuffer;
 import java.util.Properties;
 
 import org.apache.commons.net.ftp.FTPClient;
+import org.apache.hadoop.conf.Configuration;
 import org.apache.hadoop.io.compress.Compressor;
 import org.junit.After;
 import org.junit.Before;
@@ -27,11 +29,13 @@ import org.mockftpserver.fake.filesystem.UnixFakeFileSystem;
 
 import com.dp.blackhole.broker.Compression;
 import com.dp.blackhole.broker.Compression.Algorithm;
+import com.dp.blackhole.broker.HDFSUpload;
 import com.dp.blackhole.broker.RollIdent;
 import com.dp.blackhole.broker.RollManager;
 import com.dp.blackhole.broker.SimBroker;
 import com.dp.blackhole.broker.storage.Partition;
 import com.dp.blackhole.broker.storage.RollPartition;
+import com.dp.blackhole.broker.storage.StorageManager;
 import com.dp.blackhole.common.Util;
 import com.dp.blackhole.storage.ByteBufferMessageSet;
 import com.dp.blackhole.storage.Message;
@@ -115,6 +119,97 @@ public class TestFTPUpload {
         file.delete();
     }
     
+    @Test
+    public void testMirroredUpload() throws IOException, InterruptedException {
+        RollIdent ident = getRollIdent(MAGIC);
+        Partition p = createPartition();
+        appendData(p);
+        appendData(p);
+        RollPartition roll1 = p.markRollPartition();
+        
+        RollManager mgr = mock(RollManager.class);
+        when(mgr.getParentPath(FTP_BASE_DIR, ident)).thenReturn("/tmp/ftp/" + MAGIC + "/2013-01-01/15");
+        when(mgr.getGZCompressedFileName(ident)).thenReturn("localhost@" + MAGIC + "_2013-01-01.15.gz");
+        String hdfsFile = "/tmp/testFTPUpload/hdfs_" + MAGIC + ".gz";
+        when(mgr.getRollHdfsPath(ident, "gz")).thenReturn(hdfsFile);
+        when(mgr.getTempHdfsPath(ident)).thenReturn(hdfsFile + ".tmp");
+        StorageManager manager = mock(StorageManager.class);
+        when(manager.getPartition(ident.topic, ident.source)).thenReturn(p);
+        
+        // one read of the roll feeds both hdfs and ftp
+        FTPConfigration configration = new FTPConfigration("localhost", fakeFtpServer.getServerControlPort(), "foo", "bar", FTP_BASE_DIR);
+        HDFSUpload upload = new HDFSUpload(mgr, manager,
+                org.apache.hadoop.fs.FileSystem.get(new Configuration()), ident, roll1, "gz");
+        upload.setMirror(new FTPUpload(mgr, configration, ident, roll1, p));
+        upload.run();
+        
+        FileInputStream fis = new FileInputStream(expect);
+        String expectedMD5 = org.apache.commons.codec.digest.DigestUtils.md5Hex(fis);
+        fis.close();
+        assertEquals("md5sum not equals", expectedMD5,
+                org.apache.commons.codec.digest.DigestUtils.md5Hex(new FileInputStream(hdfsFile)));
+        
+        FTPClient ftpClient = new FTPClient();
+        ftpClient.connect("localhost", fakeFtpServer.getServerControlPort());
+        ftpClient.login("foo", "bar");
+        File file = new File("/tmp/real_" + MAGIC + ".gz");
+        OutputStream outputStream = new FileOutputStream(file);
+        assertTrue(ftpClient.retrieveFile(getRealFile(), outputStream));
+        outputStream.close();
+        ftpClient.disconnect();
+        assertEquals("md5sum not equals", expectedMD5,
+                org.apache.commons.codec.digest.DigestUtils.md5Hex(new FileInputStream(file)));
+        file.delete();
+    }
+    
+    @Test
+    public void testMirrorOutlivesHdfsFailure() throws IOException, InterruptedException {
+        RollIdent ident = getRollIdent(MAGIC);
+        Partition p = createPartition();
+        appendData(p);
+        appendData(p);
+        RollPartition roll1 = p.markRollPartition();
+        
+        RollManager mgr = mock(RollManager.class);
+        when(mgr.getParentPath(FTP_BASE_DIR, ident)).thenReturn("/tmp/ftp/" + MAGIC + "/2013-01-01/15");
+        when(mgr.getGZCompressedFileName(ident)).thenReturn("localhost@" + MAGIC + "_2013-01-01.15.gz");
+        // hdfs can not create the tmp file below a regular file
+        File notDir = new File("/tmp/testFTPUpload/notDir");
+        notDir.createNewFile();
+        when(mgr.getRollHdfsPath(ident, "gz")).thenReturn(notDir + "/hdfs.gz");
+        when(mgr.getTempHdfsPath(ident)).thenReturn(notDir + "/hdfs.gz.tmp");
+        StorageManager manager = mock(StorageManager.class);
+        when(manager.getPartition(ident.topic, ident.source)).thenReturn(p);
+        
+        FTPConfigration configration = new FTPConfigration("localhost", fakeFtpServer.getServerControlPort(), "foo", "bar", FTP_BASE_DIR);
+        HDFSUpload upload = new HDFSUpload(mgr, manager,
+                org.apache.hadoop.fs.FileSystem.get(new Configuration()), ident, roll1, "gz");
+        upload.setMirror(new FTPUpload(mgr, configration, ident, roll1, p));
+        upload.run();
+        verify(mgr).reportUpload(ident, "gz", false);
+        
+        FileInputStream fis = new FileInputStream(expect);
+        String expectedMD5 = org.apache.commons.codec.digest.DigestUtils.md5Hex(fis);
+        fis.close();
+        // the ftp upload goes on alone
+        FTPClient ftpClient = new FTPClient();
+        ftpClient.connect("localhost", fakeFtpServer.getServerControlPort());
+        ftpClient.login("foo", "bar");
+        File file = new File("/tmp/real_" + MAGIC + ".gz");
+        boolean success = false;
+        for (int i = 0; i < 50 && !success; i++) {
+            Thread.sleep(100);
+            OutputStream outputStream = new FileOutputStream(file);
+            success = ftpClient.retrieveFile(getRealFile(), outputStream);
+            outputStream.close();
+        }
+        ftpClient.disconnect();
+        assertTrue(success);
+        assertEquals("md5sum not equals", expectedMD5,
+                org.apache.commons.codec.digest.DigestUtils.md5Hex(new FileInputStream(file)));
+        file.delete();
+    }
+    
     public RollIdent getRollIdent(String appName) {
         RollIdent rollIdent = new RollIdent();
         rollIdent.topic = appName;
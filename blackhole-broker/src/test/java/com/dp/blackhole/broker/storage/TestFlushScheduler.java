@@ -0,0 +1,85 @@
+package com.dp.blackhole.broker.storage;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.dp.blackhole.broker.SimBroker;
+import com.dp.blackhole.common.Util;
+import com.dp.blackhole.storage.ByteBufferMessageSet;
+import com.dp.blackhole.storage.Message;
+
+public class TestFlushScheduler {
+    private File testdir = new File("/tmp/testFlushScheduler");
+    private Partition partition;
+    private ConcurrentHashMap<String, ConcurrentHashMap<String, Partition>> storage;
+
+    @Before
+    public void setUp() throws IOException {
+        if (testdir.exists()) {
+            Util.rmr(testdir);
+        }
+        testdir.mkdirs();
+        // the byte threshold is never crossed, only the interval flushes
+        partition = new Partition(testdir.getAbsolutePath(), "test", "localhost-1", 1024 * 1024, 1024 * 1024);
+        storage = new ConcurrentHashMap<String, ConcurrentHashMap<String, Partition>>();
+        storage.put("test", new ConcurrentHashMap<String, Partition>());
+        storage.get("test").put("localhost-1", partition);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        SimBroker.deleteTmpFile("testFlushScheduler");
+    }
+
+    private void append() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(16);
+        new Message("abc".getBytes()).write(buffer);
+        buffer.flip();
+        partition.append(new ByteBufferMessageSet(buffer));
+    }
+
+    @Test
+    public void testFlushWithinInterval() throws IOException, InterruptedException {
+        FlushScheduler flusher = new FlushScheduler(storage, 200, 50);
+        partition.setFlusher(flusher);
+        flusher.start();
+        try {
+            long start = System.currentTimeMillis();
+            append();
+            assertEquals(16, partition.getUnflushSize());
+            while (partition.getUnflushSize() != 0 && System.currentTimeMillis() - start < 5000) {
+                Thread.sleep(10);
+            }
+            assertEquals(0, partition.getUnflushSize());
+            // the interval plus a check and some slack for a slow box
+            assertTrue(System.currentTimeMillis() - start < 200 + 50 + 1000);
+            assertTrue(flusher.getFlushCount() > 0);
+        } finally {
+            flusher.shutdown();
+        }
+    }
+
+    @Test
+    public void testShutdown() throws IOException, InterruptedException {
+        FlushScheduler flusher = new FlushScheduler(storage, 100, 20);
+        partition.setFlusher(flusher);
+        flusher.start();
+        flusher.shutdown();
+        flusher.join(5000);
+        assertFalse(flusher.isAlive());
+
+        long flushed = flusher.getFlushCount();
+        append();
+        Thread.sleep(300);
+        assertEquals(16, partition.getUnflushSize());
+        assertEquals(flushed, flusher.getFlushCount());
+    }
+}
@@ -10,12 +10,16 @@ import java.util.List;
 import org.junit.After;
 import org.junit.Test;
 
+import com.dp.blackhole.broker.ByteBufferChannel;
 import com.dp.blackhole.broker.SimBroker;
 import com.dp.blackhole.broker.storage.Partition;
 import com.dp.blackhole.broker.storage.Segment;
 import com.dp.blackhole.common.Util;
 import com.dp.blackhole.storage.ByteBufferMessageSet;
+import com.dp.blackhole.storage.CompositeMessageSet;
+import com.dp.blackhole.storage.FileMessageSet;
 import com.dp.blackhole.storage.Message;
+import com.dp.blackhole.storage.MessageSet;
 
 public class TestPartition {
     
@@ -74,4 +78,241 @@ public class TestPartition {
         assertEquals(segments.get(1), reloadedPartition.findSegment(2000));
         assertEquals(segments.get(2), reloadedPartition.findSegment(2090));
     }
+    
+    @Test
+    public void testCleanShutdown() throws IOException {
+        File testdir = new File("/tmp/testPartition");
+        if (testdir.exists()) {
+            Util.rmr(testdir);
+        }
+        testdir.mkdirs();
+        
+        ByteBuffer messageBuffer = ByteBuffer.allocate(2048);      
+        for (int i=0; i < 10; i++) {
+            Message message = new Message("123".getBytes());
+            message.write(messageBuffer);
+        }
+        // the last message is partial
+        messageBuffer.limit(150);
+        messageBuffer.rewind();
+        Partition partition = new Partition(testdir.getAbsolutePath(), "test", "localhost-1", 1024, 128);
+        partition.append(new ByteBufferMessageSet(messageBuffer));
+        partition.flush();
+        
+        // verification is skipped when the segment still ends at the checkpointed offset
+        Partition cleanPartition = new Partition(testdir.getAbsolutePath(), "test", "localhost-1", 1024, 128,
+                Segment.DEFAULT_INDEX_INTERVAL, 150);
+        assertEquals(150, cleanPartition.getEndOffset());
+        
+        Partition uncleanPartition = new Partition(testdir.getAbsolutePath(), "test", "localhost-1", 1024, 128,
+                Segment.DEFAULT_INDEX_INTERVAL, 100);
+        assertEquals(144, uncleanPartition.getEndOffset());
+    }
+    
+    @Test
+    public void testPreallocatedRoll() throws IOException {
+        File testdir = new File("/tmp/testPartition");
+        if (testdir.exists()) {
+            Util.rmr(testdir);
+        }
+        testdir.mkdirs();
+        
+        ByteBuffer messageBuffer = ByteBuffer.allocate(2048);      
+        for (int i=0; i < 65; i++) {
+            Message message = new Message("123".getBytes());
+            message.write(messageBuffer);
+        }
+        Partition partition = new Partition(testdir.getAbsolutePath(), "test", "localhost-1", 1024, 128);
+        partition.preallocate();
+        File prealloc = new File("/tmp/testPartition/test/localhost-1/" + Partition.PREALLOCATED_FILE);
+        assertEquals(1024, prealloc.length());
+        
+        messageBuffer.flip();
+        partition.append(new ByteBufferMessageSet(messageBuffer));
+        messageBuffer.limit(144);
+        messageBuffer.rewind();
+        partition.append(new ByteBufferMessageSet(messageBuffer));
+        
+        // the next segment was renamed from the preallocated file
+        assertFalse(prealloc.exists());
+        assertEquals(1040, new File("/tmp/testPartition/test/localhost-1/0.blackhole").length());
+        assertEquals(1024, new File("/tmp/testPartition/test/localhost-1/1040.blackhole").length());
+        assertEquals(1184, partition.getEndOffset());
+        
+        // the zero filled tail is dropped when the segment is verified
+        Partition reloadedPartition = new Partition(testdir.getAbsolutePath(), "test", "localhost-1", 1024, 128);
+        List<Segment> segments = reloadedPartition.getSegments();
+        assertEquals(2, segments.size());
+        assertEquals(1040, segments.get(1).getStartOffset());
+        assertEquals(1184, segments.get(1).getEndOffset());
+        
+        // trimmed before a clean shutdown
+        reloadedPartition.preallocate();
+        reloadedPartition.trim();
+        assertFalse(prealloc.exists());
+        assertEquals(144, new File("/tmp/testPartition/test/localhost-1/1040.blackhole").length());
+    }
+    
+    @Test
+    public void testReadAcrossSegments() throws IOException {
+        File testdir = new File("/tmp/testPartition");
+        if (testdir.exists()) {
+            Util.rmr(testdir);
+        }
+        testdir.mkdirs();
+        
+        ByteBuffer messageBuffer = ByteBuffer.allocate(2048);      
+        for (int i=0; i < 65; i++) {
+            Message message = new Message("123".getBytes());
+            message.write(messageBuffer);
+        }
+        Partition partition = new Partition(testdir.getAbsolutePath(), "test", "localhost-1", 1024, 128);
+        messageBuffer.flip();
+        partition.append(new ByteBufferMessageSet(messageBuffer));
+        messageBuffer.limit(144);
+        messageBuffer.rewind();
+        partition.append(new ByteBufferMessageSet(messageBuffer));
+        assertEquals(2, partition.getSegments().size());
+        
+        // a single segment read stops at the boundary
+        assertEquals(48, partition.read(992, 200).getSize());
+        MessageSet messages = partition.readMessages(992, 200);
+        assertTrue(messages instanceof CompositeMessageSet);
+        assertEquals(192, messages.getSize());
+        
+        ByteBuffer read = ByteBuffer.allocate(messages.getSize());
+        ByteBufferChannel channel = new ByteBufferChannel(read);
+        int sent = 0;
+        while (sent < messages.getSize()) {
+            sent += messages.write(channel, sent, messages.getSize() - sent);
+        }
+        read.flip();
+        assertEquals(192, new ByteBufferMessageSet(read, 992).getValidSize());
+        
+        // reads within a segment are left alone
+        assertTrue(partition.readMessages(1040, 200) instanceof FileMessageSet);
+        assertNull(partition.readMessages(2048, 200));
+    }
+    
+    @Test
+    public void testTruncateAndCleanup() throws IOException {
+        File testdir = new File("/tmp/testPartition");
+        if (testdir.exists()) {
+            Util.rmr(testdir);
+        }
+        testdir.mkdirs();
+        
+        ByteBuffer messageBuffer = ByteBuffer.allocate(2048);      
+        for (int i=0; i < 65; i++) {
+            Message message = new Message("123".getBytes());
+            message.write(messageBuffer);
+        }
+        messageBuffer.flip();
+        Partition partition = new Partition(testdir.getAbsolutePath(), "test", "localhost-1", 1024, 128);
+        for (int i = 0; i < 3; i++) {
+            messageBuffer.rewind();
+            partition.append(new ByteBufferMessageSet(messageBuffer.duplicate()));
+        }
+        List<Segment> before = partition.getSegments();
+        assertEquals(4, before.size());
+        
+        partition.truncate(1040 + 160);
+        List<Segment> segments = partition.getSegments();
+        assertEquals(2, segments.size());
+        assertEquals(1200, partition.getEndOffset());
+        assertFalse(new File("/tmp/testPartition/test/localhost-1/2080.blackhole").exists());
+        // a snapshot taken before is not changed by later updates
+        assertEquals(4, before.size());
+        
+        // only closed segments expire
+        partition.cleanupSegments(Util.getTS() + 1000, 1000);
+        assertEquals(1, partition.getSegments().size());
+        assertEquals(1040, partition.getStartOffset());
+        assertFalse(new File("/tmp/testPartition/test/localhost-1/0.blackhole").exists());
+        assertEquals(partition.getSegments().get(0), partition.findSegment(1100));
+        assertNull(partition.findSegment(100));
+    }
+    
+    @Test
+    public void testRetentionBySize() throws IOException {
+        File testdir = new File("/tmp/testPartition");
+        if (testdir.exists()) {
+            Util.rmr(testdir);
+        }
+        testdir.mkdirs();
+        
+        ByteBuffer messageBuffer = ByteBuffer.allocate(2048);      
+        for (int i=0; i < 65; i++) {
+            Message message = new Message("123".getBytes());
+            message.write(messageBuffer);
+        }
+        messageBuffer.flip();
+        Partition partition = new Partition(testdir.getAbsolutePath(), "test", "localhost-1", 1024, 128);
+        for (int i = 0; i < 4; i++) {
+            messageBuffer.rewind();
+            partition.append(new ByteBufferMessageSet(messageBuffer.duplicate()));
+        }
+        // [0, 1040) [1040, 2080) [2080, 3120) [3120, 4160) [4160, 4160)
+        partition.cleanupSegmentsBySize(2000);
+        assertEquals(2080, partition.getStartOffset());
+        assertFalse(new File("/tmp/testPartition/test/localhost-1/0.blackhole").exists());
+        
+        // uploads finished out of order only count once they are contiguous
+        Segment oldest = partition.getOldestClosedSegment();
+        partition.markUploaded(3120, 4160);
+        assertFalse(partition.isUploaded(oldest));
+        partition.markUploaded(2000, 3120);
+        assertTrue(partition.isUploaded(oldest));
+        assertTrue(partition.isUploaded(partition.getSegments().get(1)));
+        
+        assertTrue(partition.removeOldestSegment(oldest));
+        assertFalse(partition.removeOldestSegment(oldest));
+        assertEquals(3120, partition.getStartOffset());
+    }
+    
+    @Test
+    public void testEntropyHistory() throws IOException {
+        File testdir = new File("/tmp/testPartition");
+        if (testdir.exists()) {
+            Util.rmr(testdir);
+        }
+        testdir.mkdirs();
+        
+        ByteBuffer messageBuffer = ByteBuffer.allocate(2048);      
+        for (int i=0; i < 65; i++) {
+            Message message = new Message("123".getBytes());
+            message.write(messageBuffer);
+        }
+        messageBuffer.flip();
+        Partition partition = new Partition(testdir.getAbsolutePath(), "test", "localhost-1", 1024, 128);
+        assertEquals(-1, partition.getLastEntropy());
+        partition.updateEntropy(1);
+        partition.append(new ByteBufferMessageSet(messageBuffer.duplicate()));
+        partition.updateEntropy(2);
+        partition.append(new ByteBufferMessageSet(messageBuffer.duplicate()));
+        // the current entropy again does not move its start
+        partition.updateEntropy(2);
+        
+        assertEquals(2, partition.getLastEntropy());
+        assertEquals(-1, partition.getEntropyEndOffset(0));
+        assertEquals(1040, partition.getEntropyEndOffset(1));
+        assertEquals(2080, partition.getEntropyEndOffset(2));
+        
+        Partition reloadedPartition = new Partition(testdir.getAbsolutePath(), "test", "localhost-1", 1024, 128);
+        assertEquals(2, reloadedPartition.getLastEntropy());
+        assertEquals(1040, reloadedPartition.getEntropyEndOffset(1));
+        
+        // only the tail written in entropy 2 is dropped
+        reloadedPartition.truncate(1040);
+        assertEquals(1040, reloadedPartition.getEndOffset());
+        assertEquals(0, reloadedPartition.getStartOffset());
+        assertEquals(1, reloadedPartition.getLastEntropy());
+        assertEquals(1040, reloadedPartition.getEntropyEndOffset(1));
+        
+        // entropies numbered anew restart the history
+        reloadedPartition.updateEntropy(0);
+        assertEquals(-1, reloadedPartition.getLastEntropy());
+        assertEquals(-1, reloadedPartition.getEntropyEndOffset(1));
+        assertEquals(1040, reloadedPartition.getEntropyEndOffset(0));
+    }
 }
@@ -88,4 +88,44 @@ public class TestSegment {
         assertFalse(reloadedsegment.contains(1024));
         assertFalse(reloadedsegment.contains(1060));
     }
+    
+    @Test
+    public void testAlignedRead() throws IOException {
+        File testdir = new File("/tmp/testSegment");
+        if (testdir.exists()) {
+            Util.rmr(testdir);
+        }
+        testdir.mkdirs();
+        
+        Segment segment = new Segment(testdir.getAbsolutePath(), 0, false, false, 1024, 128, 64);
+        
+        // 16 bytes per message, 4 messages per append
+        for (int i=0; i < 16; i++) {
+            ByteBuffer messageBuffer = ByteBuffer.allocate(64);
+            for (int j=0; j < 4; j++) {
+                Message message = new Message("123".getBytes());
+                message.write(messageBuffer);
+            }
+            messageBuffer.flip();
+            segment.append(new ByteBufferMessageSet(messageBuffer));
+        }
+        assertEquals(1024, segment.getEndOffset());
+        assertEquals(15, segment.index.entries());
+        
+        assertEquals(96, segment.read(0, 100).getSize());
+        assertEquals(16, segment.read(16, 20).getSize());
+        assertEquals(16, segment.read(0, 10).getSize());
+        assertEquals(496, segment.read(512, 500).getSize());
+        assertEquals(24, segment.read(1000, 100).getSize());
+        segment.flush();
+        
+        Segment reloadedsegment = new Segment(testdir.getAbsolutePath(), 0, false, true, 1024, 128, 64);
+        assertEquals(15, reloadedsegment.index.entries());
+        assertEquals(96, reloadedsegment.read(0, 100).getSize());
+        
+        new File(OffsetIndex.getFilePath(testdir.getAbsolutePath(), 0)).delete();
+        Segment rebuiltsegment = new Segment(testdir.getAbsolutePath(), 0, false, true, 1024, 128, 64);
+        assertEquals(15, rebuiltsegment.index.entries());
+        assertEquals(496, rebuiltsegment.read(512, 500).getSize());
+    }
 }
@@ -0,0 +1,105 @@
+package com.dp.blackhole.broker.storage;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Properties;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.dp.blackhole.broker.SimBroker;
+import com.dp.blackhole.common.Util;
+import com.dp.blackhole.storage.ByteBufferMessageSet;
+import com.dp.blackhole.storage.Message;
+
+public class TestStorageManager {
+    private String[] dirs = {"/tmp/testStorageManager/disk1", "/tmp/testStorageManager/disk2"};
+
+    @Before
+    public void setUp() throws IOException {
+        File testdir = new File("/tmp/testStorageManager");
+        if (testdir.exists()) {
+            Util.rmr(testdir);
+        }
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        SimBroker.deleteTmpFile("testStorageManager");
+    }
+
+    private StorageManager newStorageManager() throws IOException {
+        return new StorageManager(dirs, 1024, 128, Segment.DEFAULT_INDEX_INTERVAL, 2, 1000, false,
+                RetentionPolicy.load(new Properties()));
+    }
+
+    @Test
+    public void testMultipleDirs() throws IOException {
+        StorageManager manager = newStorageManager();
+        for (int i = 0; i < 4; i++) {
+            assertTrue(manager.createPartition("test", "localhost-" + i));
+        }
+        StorageDir disk1 = manager.getStorageDirs().get(0);
+        StorageDir disk2 = manager.getStorageDirs().get(1);
+        // idle partitions are spread evenly
+        assertEquals(2, disk1.getPartitionCount());
+        assertEquals(2, disk2.getPartitionCount());
+        manager.close();
+
+        // reloaded from where they were placed
+        manager = newStorageManager();
+        for (int i = 0; i < 4; i++) {
+            Partition p = manager.getPartition("test", "localhost-" + i);
+            assertNotNull(p);
+            assertTrue(new File(p.getStorageDir().getPath(), "test/localhost-" + i).isDirectory());
+        }
+
+        // a failed dir only takes its own partitions offline
+        disk1 = manager.getStorageDirs().get(0);
+        disk1.fail(new IOException("disk failure"));
+        assertFalse(disk1.isOnline());
+        int online = 0;
+        for (int i = 0; i < 4; i++) {
+            Partition p = manager.getPartition("test", "localhost-" + i);
+            if (p != null) {
+                assertSame(manager.getStorageDirs().get(1), p.getStorageDir());
+                online++;
+            }
+        }
+        assertEquals(2, online);
+
+        // and is not used for new partitions
+        assertTrue(manager.createPartition("test", "localhost-4"));
+        assertSame(manager.getStorageDirs().get(1), manager.getPartition("test", "localhost-4").getStorageDir());
+    }
+
+    @Test
+    public void testEvictCandidate() throws IOException {
+        ByteBuffer messageBuffer = ByteBuffer.allocate(2048);
+        for (int i = 0; i < 65; i++) {
+            new Message("123".getBytes()).write(messageBuffer);
+        }
+        messageBuffer.flip();
+        Partition p = new Partition(dirs[0], "test", "localhost-1", 1024, 128);
+        p.append(new ByteBufferMessageSet(messageBuffer));
+        Segment oldest = p.getOldestClosedSegment();
+        assertNotNull(oldest);
+        oldest.setCloseTimestamp(Util.getTS());
+
+        // neither uploaded nor old enough
+        assertNull(StorageManager.Candidate.of(p, Util.getTS() - 3600 * 1000L));
+        // old enough
+        StorageManager.Candidate c = StorageManager.Candidate.of(p, Util.getTS() + 1);
+        assertNotNull(c);
+        assertFalse(c.uploaded);
+        // uploaded goes regardless of age
+        p.markUploaded(0, oldest.getEndOffset());
+        c = StorageManager.Candidate.of(p, Util.getTS() - 3600 * 1000L);
+        assertNotNull(c);
+        assertTrue(c.uploaded);
+    }
+}
@@ -0,0 +1,60 @@
+package com.dp.blackhole.broker.storage;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.dp.blackhole.broker.SimBroker;
+import com.dp.blackhole.common.Util;
+
+public class TestTimeIndex {
+
+    @After
+    public void tearDown() throws Exception {
+        SimBroker.deleteTmpFile("testTimeIndex");
+    }
+
+    @Test
+    public void testLookup() throws IOException {
+        File testdir = new File("/tmp/testTimeIndex");
+        if (testdir.exists()) {
+            Util.rmr(testdir);
+        }
+        testdir.mkdirs();
+
+        TimeIndex index = new TimeIndex(testdir.getAbsolutePath(), 0, 1000);
+        index.load(0);
+        index.maybeAppend(10000, 0, false);
+        // within the interval
+        index.maybeAppend(10500, 100, false);
+        index.maybeAppend(11000, 200, false);
+        // forced at a roll boundary
+        index.maybeAppend(11200, 300, true);
+        // the clock went backwards
+        index.maybeAppend(9000, 400, true);
+        assertEquals(4, index.entries());
+
+        assertEquals(-1, index.lookup(9999));
+        assertEquals(0, index.lookup(10999));
+        assertEquals(200, index.lookup(11000));
+        assertEquals(400, index.lookup(11200));
+        assertEquals(11000, index.timestampOf(200));
+        assertEquals(-1, index.timestampOf(100));
+        index.close();
+
+        // entries beyond the segment are dropped on reload
+        index = new TimeIndex(testdir.getAbsolutePath(), 0, 1000);
+        index.load(350);
+        assertEquals(3, index.entries());
+        assertEquals(300, index.lookup(Long.MAX_VALUE));
+
+        index.truncateTo(200);
+        assertEquals(1, index.entries());
+        assertEquals(0, index.lookup(Long.MAX_VALUE));
+        index.close();
+    }
+}
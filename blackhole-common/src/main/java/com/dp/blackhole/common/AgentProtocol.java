@@ -6,6 +6,13 @@ import java.io.IOException;
 
 public class AgentProtocol {
     public static final int VERSION_MICOR_BATCH = 0x8;
+    /**
+     * a micro batch recovery head, which the broker answers with the length
+     * and crc32 of the lines of the roll it still holds, 0 and 0 for none;
+     * the agent replies the offset in its file those lines start at, or -1,
+     * and sends the rest of the file only
+     */
+    public static final int VERSION_RANGE_RECOVERY = 0x10;
     // for old version
     public static final int STREAM = 0x1;
     public static final int RECOVERY = 0x2;
@@ -39,12 +46,16 @@ public class AgentProtocol {
         return out;
     }
     
+    public static boolean isMicroBatch(int version) {
+        return version == VERSION_MICOR_BATCH || version == VERSION_RANGE_RECOVERY;
+    }
+    
     /**
      * for compatibility
      */
     public AgentHead recieveHead (DataInputStream in, AgentHead head) throws IOException {
         head.version = in.readInt();
-        if (head.version == VERSION_MICOR_BATCH) {
+        if (isMicroBatch(head.version)) {
             head.ignore = in.readBoolean();
             head.app = Util.readString(in);
             head.source = Util.readString(in);
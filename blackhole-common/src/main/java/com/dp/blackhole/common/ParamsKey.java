@@ -52,6 +52,8 @@ public abstract class ParamsKey {
     
     public static final String COMPRESSION_LZO = "lzo";
     public static final String COMPRESSION_GZ = "gz";
+    public static final String COMPRESSION_LZ4 = "lz4";
+    public static final String COMPRESSION_ZSTD = "zst";
     public static final String LZO_INDEX_SUFFIX = ".index";
     public static final String LZO_TMP_INDEX_SUFFIX = ".index.tmp";
     public static final String COMPRESSION_NONE = "none";
@@ -25,6 +25,7 @@ public class DataMessageTypeFactory implements TypedFactory {
     public static final int MessageAck = 12;
     public static final int ReplicaFetchReq = 13;
     public static final int ReplicaFetchRep = 14;
+    public static final int ReplicaMultiFetchReq = 15;
     
     @Override
     public TypedWrappable getWrappedInstanceFromType(int type) {
@@ -75,6 +76,9 @@ public class DataMessageTypeFactory implements TypedFactory {
         case 14:
             ret = new ReplicaFetchRep();
             break;
+        case 15:
+            ret = new ReplicaMultiFetchReq();
+            break;
         default:
             ret = new UndefinedRequest();
             LOG.error("unknown Message Type: " + type);
@@ -19,6 +19,8 @@ public class FetchReply extends DelegationTypedWrappable {
     private String partition;
     private MessageSet messages;
     private long offset;
+    // the broker held the fetch back waiting for messages
+    private boolean held;
     
     private int size;
     private int sent;
@@ -30,7 +32,16 @@ public class FetchReply extends DelegationTypedWrappable {
     }
     
     public FetchReply(String partition, MessageSet messages, long offset) {
+        this(partition, messages, offset, false);
+    }
+    
+    /**
+     * @param held whether the fetch was held back until messages came or
+     * its max wait passed
+     */
+    public FetchReply(String partition, MessageSet messages, long offset, boolean held) {
         this.partition = partition;
+        this.held = held;
         this.offset = offset;
         this.messages = messages;
         if (messages != null) {
@@ -47,11 +58,12 @@ public class FetchReply extends DelegationTypedWrappable {
         this.head.putInt(size);
         this.head.putLong(this.offset);
         GenUtil.writeString(partition, this.head);
+        this.head.put((byte) (held ? 1 : 0));
         this.head.flip();
     }
 
     private int getHeadSize() {
-        return (Integer.SIZE + Long.SIZE)/8 + GenUtil.getStringSize(partition);
+        return (Integer.SIZE + Long.SIZE)/8 + GenUtil.getStringSize(partition) + 1;
     }
     
     @Override
@@ -67,6 +79,14 @@ public class FetchReply extends DelegationTypedWrappable {
         return partition;
     }
 
+    /**
+     * @return whether the broker held the fetch back, always false from
+     * older brokers, which do not send it
+     */
+    public boolean isHeld() {
+        return held;
+    }
+
     public MessageSet getMessageSet() {
         return messages;
     }
@@ -138,6 +158,7 @@ public class FetchReply extends DelegationTypedWrappable {
                 size = head.getInt();
                 offset = head.getLong();
                 partition = GenUtil.readString(head);
+                held = head.hasRemaining() && head.get() != 0;
                 if (size != 0) {
                     messagesBuf = ByteBuffer.allocate(size);
                 }
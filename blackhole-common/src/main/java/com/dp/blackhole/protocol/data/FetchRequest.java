@@ -10,20 +10,33 @@ public class FetchRequest extends NonDelegationTypedWrappable {
     public String partitionId;
     public long offset;
     public int limit;
+    /**
+     * how long the broker may hold the fetch back until minBytes arrived,
+     * 0 to answer at once; both trail the request, so brokers which do not
+     * know them read the rest of it as before
+     */
+    public int maxWait;
+    public int minBytes;
     
     public FetchRequest() {
     }
     
     public FetchRequest(String topic, String partitionId, long offset, int limit) {
+        this(topic, partitionId, offset, limit, 0, 0);
+    }
+    
+    public FetchRequest(String topic, String partitionId, long offset, int limit, int maxWait, int minBytes) {
         this.topic = topic;
         this.partitionId = partitionId;
         this.offset = offset;
         this.limit = limit;
+        this.maxWait = maxWait;
+        this.minBytes = minBytes;
     }
 
     @Override
     public int getSize() {
-        return GenUtil.getStringSize(topic) + GenUtil.getStringSize(partitionId) + Long.SIZE/8 + Integer.SIZE/8;
+        return GenUtil.getStringSize(topic) + GenUtil.getStringSize(partitionId) + Long.SIZE/8 + Integer.SIZE * 3/8;
     }
 
     @Override
@@ -32,6 +45,11 @@ public class FetchRequest extends NonDelegationTypedWrappable {
         partitionId = GenUtil.readString(buffer);
         offset = buffer.getLong();
         limit = buffer.getInt();
+        // absent in requests of older consumers
+        if (buffer.remaining() >= Integer.SIZE * 2/8) {
+            maxWait = buffer.getInt();
+            minBytes = buffer.getInt();
+        }
     }
 
     @Override
@@ -40,6 +58,8 @@ public class FetchRequest extends NonDelegationTypedWrappable {
         GenUtil.writeString(partitionId, buffer);
         buffer.putLong(offset);
         buffer.putInt(limit);
+        buffer.putInt(maxWait);
+        buffer.putInt(minBytes);
     }
 
     @Override
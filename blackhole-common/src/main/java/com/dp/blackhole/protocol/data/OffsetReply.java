@@ -11,6 +11,8 @@ public class OffsetReply extends NonDelegationTypedWrappable {
     private long offset;
     private String topic;
     private String partition;
+    // append time of the data at offset, -1 if unknown
+    private long timestamp = -1;
     
     public OffsetReply() {}
     
@@ -20,6 +22,11 @@ public class OffsetReply extends NonDelegationTypedWrappable {
         this.offset = offset;
     }
     
+    public OffsetReply(String topic, String partition, long offset, long timestamp) {
+        this(topic, partition, offset);
+        this.timestamp = timestamp;
+    }
+    
     @Override
     public int getType() {
         return DataMessageTypeFactory.OffsetReply;
@@ -30,6 +37,9 @@ public class OffsetReply extends NonDelegationTypedWrappable {
         offset = buffer.getLong();
         topic = Util.readString(buffer);
         partition = Util.readString(buffer);
+        if (buffer.remaining() >= 8) {
+            timestamp = buffer.getLong();
+        }
     }
 
     @Override
@@ -37,11 +47,12 @@ public class OffsetReply extends NonDelegationTypedWrappable {
         buffer.putLong(offset);
         Util.writeString(topic, buffer);
         Util.writeString(partition, buffer);
+        buffer.putLong(timestamp);
     }
 
     @Override
     public int getSize() {
-        return GenUtil.getStringSize(topic) + GenUtil.getStringSize(partition) + Long.SIZE/8;
+        return GenUtil.getStringSize(topic) + GenUtil.getStringSize(partition) + Long.SIZE/8 + Long.SIZE/8;
     }
 
     public long getOffset() {
@@ -55,4 +66,8 @@ public class OffsetReply extends NonDelegationTypedWrappable {
     public String getPartition() {
         return partition;
     }
+    
+    public long getTimestamp() {
+        return timestamp;
+    }
 }
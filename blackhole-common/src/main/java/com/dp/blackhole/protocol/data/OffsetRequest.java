@@ -20,6 +20,11 @@ public class OffsetRequest extends NonDelegationTypedWrappable {
      */
     public static final long EARLIES_OFFSET = -2L;
 
+    /**
+     * reading from the first offset appended not before timestamp
+     */
+    public static final long TIMESTAMP_OFFSET = -3L;
+
     ///////////////////////////////////////////////////////////////////////
     /**
      * message topic
@@ -35,9 +40,15 @@ public class OffsetRequest extends NonDelegationTypedWrappable {
      * autoOffset is one of the below
      * LATES_TTIME: the latest(largest) offset</li>
      * EARLIES_TTIME: the earilest(smallest) offset</li>
+     * TIMESTAMP_OFFSET: the offset appended at timestamp</li>
      */
     public long autoOffset;
 
+    /**
+     * wall-clock millis to seek to, used with TIMESTAMP_OFFSET
+     */
+    public long timestamp;
+
     public OffsetRequest() {}
     /**
      * create a offset request
@@ -50,14 +61,19 @@ public class OffsetRequest extends NonDelegationTypedWrappable {
         this.autoOffset = autoOffset;
     }
 
+    public OffsetRequest(String topic, String partition, long autoOffset, long timestamp) {
+        this(topic, partition, autoOffset);
+        this.timestamp = timestamp;
+    }
+
     @Override
     public String toString() {
-        return "OffsetRequest(topic:" + topic + ", part:" + partition + ", autoOffset:" + autoOffset + ")";
+        return "OffsetRequest(topic:" + topic + ", part:" + partition + ", autoOffset:" + autoOffset + ", timestamp:" + timestamp + ")";
     }
 
     @Override
     public int getSize() {
-        return GenUtil.getStringSize(topic) + GenUtil.getStringSize(partition) + 8;
+        return GenUtil.getStringSize(topic) + GenUtil.getStringSize(partition) + 8 + 8;
     }
 
     @Override
@@ -65,6 +81,10 @@ public class OffsetRequest extends NonDelegationTypedWrappable {
         topic = GenUtil.readString(buffer);
         partition = GenUtil.readString(buffer);
         autoOffset = buffer.getLong();
+        // requests of older clients end here
+        if (buffer.remaining() >= 8) {
+            timestamp = buffer.getLong();
+        }
     }
 
     @Override
@@ -72,6 +92,7 @@ public class OffsetRequest extends NonDelegationTypedWrappable {
         GenUtil.writeString(topic, buffer);
         GenUtil.writeString(partition, buffer);
         buffer.putLong(autoOffset);
+        buffer.putLong(timestamp);
     }
 
     @Override
@@ -6,24 +6,39 @@ import com.dp.blackhole.network.GenUtil;
 import com.dp.blackhole.network.NonDelegationTypedWrappable;
 
 public class RegisterRequest extends NonDelegationTypedWrappable {
+    /** the producer drops messages once written to the socket, the broker sends no MessageAck */
+    public static final int ACK_NONE = 0;
+    /** MessageAck once the leader appended the messages */
+    public static final int ACK_LEADER = 1;
+    /** MessageAck once the in sync followers fetched the messages */
+    public static final int ACK_REPLICATED = 2;
+
     public String topic;
     public String partitionId;
     public long period;
     public String broker;
+    public int ackMode;
     
     public RegisterRequest() {
+        this.ackMode = ACK_REPLICATED;
     }
     
     public RegisterRequest(String topic, String partitionId, long period, String broker) {
+        this(topic, partitionId, period, broker, ACK_REPLICATED);
+    }
+    
+    public RegisterRequest(String topic, String partitionId, long period, String broker, int ackMode) {
         this.topic = topic;
         this.partitionId = partitionId;
         this.period = period;
         this.broker = broker;
+        this.ackMode = ackMode;
     }
     
     @Override
     public int getSize() {
-        return GenUtil.getStringSize(topic) + GenUtil.getStringSize(partitionId) + Long.SIZE/8 + GenUtil.getStringSize(broker);
+        return GenUtil.getStringSize(topic) + GenUtil.getStringSize(partitionId) + Long.SIZE/8 + GenUtil.getStringSize(broker)
+                + Integer.SIZE/8;
     }
 
     @Override
@@ -32,6 +47,10 @@ public class RegisterRequest extends NonDelegationTypedWrappable {
         partitionId = GenUtil.readString(buffer);
         period = buffer.getLong();
         broker = GenUtil.readString(buffer);
+        // absent in requests of older agents, which wait for replication
+        if (buffer.remaining() >= Integer.SIZE/8) {
+            ackMode = buffer.getInt();
+        }
     }
 
     @Override
@@ -40,6 +59,7 @@ public class RegisterRequest extends NonDelegationTypedWrappable {
         GenUtil.writeString(partitionId, buffer);
         buffer.putLong(period);
         GenUtil.writeString(broker, buffer);
+        buffer.putInt(ackMode);
     }
 
     @Override
@@ -24,6 +24,8 @@ public class ReplicaFetchRep extends DelegationTypedWrappable {
     private MessageSet messages;
     private long offset;
     private long id;
+    // the leader held the fetch back waiting for messages
+    private boolean held;
 
     private int size;
     private int sent;
@@ -36,7 +38,17 @@ public class ReplicaFetchRep extends DelegationTypedWrappable {
 
     public ReplicaFetchRep(int entropy, String topic, String partition, String brokerLeader, String brokerReplica,
             long offset, MessageSet messages, long id) {
+        this(entropy, topic, partition, brokerLeader, brokerReplica, offset, messages, id, false);
+    }
+
+    /**
+     * @param held whether the fetch was held back until messages came or
+     * its max wait passed
+     */
+    public ReplicaFetchRep(int entropy, String topic, String partition, String brokerLeader, String brokerReplica,
+            long offset, MessageSet messages, long id, boolean held) {
         this.entropy = entropy;
+        this.held = held;
         this.topic = topic;
         this.partition = partition;
         this.brokerLeader = brokerLeader;
@@ -63,12 +75,13 @@ public class ReplicaFetchRep extends DelegationTypedWrappable {
         GenUtil.writeString(brokerReplica, this.head);
         this.head.putLong(this.offset);
         this.head.putLong(id);
+        this.head.put((byte) (held ? 1 : 0));
         this.head.flip();
     }
 
     private int getHeadSize() {
         return (Integer.SIZE * 2 + Long.SIZE * 2) / 8 + GenUtil.getStringSize(topic) + GenUtil.getStringSize(partition)
-                + GenUtil.getStringSize(brokerLeader) + GenUtil.getStringSize(brokerReplica);
+                + GenUtil.getStringSize(brokerLeader) + GenUtil.getStringSize(brokerReplica) + 1;
     }
 
     public MessageSet getMessageSet() {
@@ -103,6 +116,14 @@ public class ReplicaFetchRep extends DelegationTypedWrappable {
         return this.id;
     }
 
+    /**
+     * @return whether the leader held the fetch back, always false from
+     * older leaders, which do not send it
+     */
+    public boolean isHeld() {
+        return this.held;
+    }
+
     @Override
     public final int getSize() {
         return size;
@@ -143,6 +164,7 @@ public class ReplicaFetchRep extends DelegationTypedWrappable {
                 brokerReplica = GenUtil.readString(head);
                 offset = head.getLong();
                 id = head.getLong();
+                held = head.hasRemaining() && head.get() != 0;
                 if (size != 0) {
                     messagesBuf = ByteBuffer.allocate(size);
                 }
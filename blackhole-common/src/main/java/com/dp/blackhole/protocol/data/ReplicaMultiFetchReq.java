@@ -0,0 +1,164 @@
+package com.dp.blackhole.protocol.data;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.dp.blackhole.network.GenUtil;
+import com.dp.blackhole.network.NonDelegationTypedWrappable;
+
+/**
+ * Fetches of several partitions from one leader in one request. The leader
+ * answers a fetch with up to chunks consecutive ReplicaFetchReps of at most
+ * limit bytes each, carrying the id of the fetch; an empty reply means it
+ * ran out of messages and ends the fetch early. So several replies of a
+ * partition are in flight per round trip, each small enough to be appended
+ * on its own. A fetch finding nothing new may be held back by the leader
+ * for up to maxWait millis until minBytes arrived. lastEntropy, the
+ * entropy of the replica's last message or -1, lets the leader find where
+ * the replica diverged from it.
+ */
+public class ReplicaMultiFetchReq extends NonDelegationTypedWrappable {
+    private String brokerLeader;
+    private String brokerReplica;
+    private int maxWait;
+    private int minBytes;
+    private List<Fetch> fetches;
+
+    public ReplicaMultiFetchReq() {
+        this.fetches = new ArrayList<Fetch>();
+    }
+
+    public ReplicaMultiFetchReq(String brokerLeader, String brokerReplica, int maxWait, int minBytes,
+            List<Fetch> fetches) {
+        this.brokerLeader = brokerLeader;
+        this.brokerReplica = brokerReplica;
+        this.maxWait = maxWait;
+        this.minBytes = minBytes;
+        this.fetches = fetches;
+    }
+
+    public String getBrokerLeader() {
+        return brokerLeader;
+    }
+
+    public String getBrokerReplica() {
+        return brokerReplica;
+    }
+
+    public int getMaxWait() {
+        return maxWait;
+    }
+
+    public int getMinBytes() {
+        return minBytes;
+    }
+
+    public List<Fetch> getFetches() {
+        return fetches;
+    }
+
+    public static class Fetch {
+        public int entropy;
+        public String topic;
+        public String partitionId;
+        public long offset;
+        public int limit;
+        public int chunks;
+        public long id;
+        public int lastEntropy;
+
+        public Fetch() {
+        }
+
+        public Fetch(int entropy, String topic, String partitionId, long offset, int limit, int chunks, long id,
+                int lastEntropy) {
+            this.lastEntropy = lastEntropy;
+            this.entropy = entropy;
+            this.topic = topic;
+            this.partitionId = partitionId;
+            this.offset = offset;
+            this.limit = limit;
+            this.chunks = chunks;
+            this.id = id;
+        }
+
+        int getSize() {
+            return GenUtil.getStringSize(topic) + GenUtil.getStringSize(partitionId) + Long.SIZE * 2 / 8
+                    + Integer.SIZE * 4 / 8;
+        }
+
+        void read(ByteBuffer buffer) {
+            entropy = buffer.getInt();
+            topic = GenUtil.readString(buffer);
+            partitionId = GenUtil.readString(buffer);
+            offset = buffer.getLong();
+            limit = buffer.getInt();
+            chunks = buffer.getInt();
+            id = buffer.getLong();
+            lastEntropy = buffer.getInt();
+        }
+
+        void write(ByteBuffer buffer) {
+            buffer.putInt(entropy);
+            GenUtil.writeString(topic, buffer);
+            GenUtil.writeString(partitionId, buffer);
+            buffer.putLong(offset);
+            buffer.putInt(limit);
+            buffer.putInt(chunks);
+            buffer.putLong(id);
+            buffer.putInt(lastEntropy);
+        }
+
+        @Override
+        public String toString() {
+            return topic + "/" + partitionId + ": " + offset + ", " + chunks + "*" + limit + ", FetchId: " + id;
+        }
+    }
+
+    @Override
+    public int getSize() {
+        int size = GenUtil.getStringSize(brokerLeader) + GenUtil.getStringSize(brokerReplica) + Integer.SIZE * 3 / 8;
+        for (Fetch fetch : fetches) {
+            size += fetch.getSize();
+        }
+        return size;
+    }
+
+    @Override
+    public void read(ByteBuffer buffer) {
+        brokerLeader = GenUtil.readString(buffer);
+        brokerReplica = GenUtil.readString(buffer);
+        maxWait = buffer.getInt();
+        minBytes = buffer.getInt();
+        int count = buffer.getInt();
+        fetches = new ArrayList<Fetch>(count);
+        for (int i = 0; i < count; i++) {
+            Fetch fetch = new Fetch();
+            fetch.read(buffer);
+            fetches.add(fetch);
+        }
+    }
+
+    @Override
+    public void write(ByteBuffer buffer) {
+        GenUtil.writeString(brokerLeader, buffer);
+        GenUtil.writeString(brokerReplica, buffer);
+        buffer.putInt(maxWait);
+        buffer.putInt(minBytes);
+        buffer.putInt(fetches.size());
+        for (Fetch fetch : fetches) {
+            fetch.write(buffer);
+        }
+    }
+
+    @Override
+    public int getType() {
+        return DataMessageTypeFactory.ReplicaMultiFetchReq;
+    }
+
+    @Override
+    public String toString() {
+        return "replica multi fetch request from " + brokerReplica + ": " + fetches;
+    }
+}
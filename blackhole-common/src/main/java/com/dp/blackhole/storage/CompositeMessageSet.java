@@ -0,0 +1,55 @@
+package com.dp.blackhole.storage;
+
+import java.io.IOException;
+import java.nio.channels.GatheringByteChannel;
+import java.util.List;
+
+/**
+ * Consecutive FileMessageSets, e.g. of adjacent segments, sent as one
+ * message set; every part still goes out by transferTo
+ */
+public class CompositeMessageSet implements MessageSet {
+    private FileMessageSet[] parts;
+    private int size;
+
+    public CompositeMessageSet(List<FileMessageSet> parts) {
+        this.parts = parts.toArray(new FileMessageSet[parts.size()]);
+        for (FileMessageSet part : this.parts) {
+            size += part.getSize();
+        }
+    }
+
+    /**
+     * write from offset of the whole set on, moving on to the next part
+     * only when the previous one is sent completely
+     */
+    @Override
+    public int write(GatheringByteChannel channel, long offset, int length) throws IOException {
+        int written = 0;
+        long partStart = 0;
+        for (FileMessageSet part : parts) {
+            long partEnd = partStart + part.getSize();
+            if (offset < partEnd && written < length) {
+                long position = offset - partStart;
+                int toWrite = (int) Math.min(partEnd - offset, length - written);
+                int num = part.write(channel, position, toWrite);
+                written += num;
+                offset += num;
+                if (num < toWrite) {
+                    break;
+                }
+            }
+            partStart = partEnd;
+        }
+        return written;
+    }
+
+    @Override
+    public int getSize() {
+        return size;
+    }
+
+    public int getPartCount() {
+        return parts.length;
+    }
+}
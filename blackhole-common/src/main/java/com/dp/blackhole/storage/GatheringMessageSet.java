@@ -0,0 +1,65 @@
+package com.dp.blackhole.storage;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Several ByteBufferMessageSets written with one gathering write
+ */
+public class GatheringMessageSet implements MessageSet {
+    private ByteBuffer[] buffers;
+    private int size;
+
+    public GatheringMessageSet(List<ByteBufferMessageSet> messageSets) {
+        buffers = new ByteBuffer[messageSets.size()];
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = messageSets.get(i).buffer;
+            size += buffers[i].remaining();
+        }
+    }
+
+    /**
+     * write length bytes from offset within the set
+     */
+    @Override
+    public int write(GatheringByteChannel channel, long offset, int length) throws IOException {
+        if (offset < 0 || length < 0 || offset + length > size) {
+            throw new IllegalArgumentException("write " + length + " bytes at " + offset + " of " + size);
+        }
+        ByteBuffer[] views = slice(offset, length);
+        long written = 0;
+        while (written < length) {
+            long num = channel.write(views);
+            if (num <= 0) {
+                break;
+            }
+            written += num;
+        }
+        return (int) written;
+    }
+
+    private ByteBuffer[] slice(long offset, int length) {
+        List<ByteBuffer> views = new ArrayList<ByteBuffer>(buffers.length);
+        long start = 0;
+        long end = offset + length;
+        for (ByteBuffer buffer : buffers) {
+            long bufferEnd = start + buffer.remaining();
+            if (bufferEnd > offset && start < end) {
+                ByteBuffer view = buffer.duplicate();
+                view.position(buffer.position() + (int) (Math.max(offset, start) - start));
+                view.limit(buffer.position() + (int) (Math.min(end, bufferEnd) - start));
+                views.add(view);
+            }
+            start = bufferEnd;
+        }
+        return views.toArray(new ByteBuffer[views.size()]);
+    }
+
+    @Override
+    public int getSize() {
+        return size;
+    }
+}
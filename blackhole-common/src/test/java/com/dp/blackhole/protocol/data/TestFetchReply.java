@@ -0,0 +1,107 @@
+package com.dp.blackhole.protocol.data;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.dp.blackhole.network.DelegationTypedWrappable;
+import com.dp.blackhole.network.GenUtil;
+import com.dp.blackhole.storage.ByteBufferMessageSet;
+import com.dp.blackhole.storage.Message;
+
+public class TestFetchReply {
+    private File file = new File("/tmp/testFetchReply");
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    private ByteBufferMessageSet messages() {
+        ByteBuffer buffer = ByteBuffer.allocate(16);
+        new Message("abc".getBytes()).write(buffer);
+        buffer.flip();
+        return new ByteBufferMessageSet(buffer, 0);
+    }
+
+    /**
+     * write reply to a file and read it back into empty
+     */
+    private void roundTrip(DelegationTypedWrappable reply, DelegationTypedWrappable empty) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(0);
+            FileChannel channel = raf.getChannel();
+            while (!reply.complete()) {
+                reply.write(channel);
+            }
+            channel.position(0);
+            while (!empty.complete()) {
+                empty.read(channel);
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
+    @Test
+    public void testHeld() throws IOException {
+        FetchReply held = new FetchReply();
+        roundTrip(new FetchReply("localhost-1", messages(), 16, true), held);
+        assertTrue(held.isHeld());
+        assertEquals("localhost-1", held.getPartition());
+        assertEquals(16, held.getOffset());
+        assertEquals(16, held.getSize());
+
+        FetchReply answered = new FetchReply();
+        roundTrip(new FetchReply("localhost-1", messages(), 16), answered);
+        assertFalse(answered.isHeld());
+    }
+
+    @Test
+    public void testWithoutFlag() throws IOException {
+        // the head of a broker which does not send the flag
+        int headSize = (Integer.SIZE + Long.SIZE) / 8 + GenUtil.getStringSize("localhost-1");
+        ByteBuffer old = ByteBuffer.allocate(4 + headSize);
+        old.putInt(headSize);
+        old.putInt(0);
+        old.putLong(16);
+        GenUtil.writeString("localhost-1", old);
+        old.flip();
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        FetchReply reply = new FetchReply();
+        try {
+            FileChannel channel = raf.getChannel();
+            channel.write(old);
+            channel.position(0);
+            while (!reply.complete()) {
+                reply.read(channel);
+            }
+        } finally {
+            raf.close();
+        }
+        assertFalse(reply.isHeld());
+        assertEquals("localhost-1", reply.getPartition());
+        assertEquals(16, reply.getOffset());
+    }
+
+    @Test
+    public void testReplicaHeld() throws IOException {
+        ReplicaFetchRep held = new ReplicaFetchRep();
+        roundTrip(new ReplicaFetchRep(1, "test", "localhost-1", "leader", "follower", 16, messages(), 7, true), held);
+        assertTrue(held.isHeld());
+        assertEquals(7, held.getId());
+        assertEquals(16, held.getOffset());
+
+        ReplicaFetchRep answered = new ReplicaFetchRep();
+        roundTrip(new ReplicaFetchRep(1, "test", "localhost-1", "leader", "follower", 16, messages(), 7), answered);
+        assertFalse(answered.isHeld());
+    }
+}
@@ -0,0 +1,71 @@
+package com.dp.blackhole.storage;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class TestGatheringMessageSet {
+    private File file = new File("/tmp/testGatheringMessageSet");
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    private ByteBufferMessageSet messages(String content) {
+        ByteBuffer buffer = ByteBuffer.allocate(16);
+        new Message(content.getBytes()).write(buffer);
+        buffer.flip();
+        return new ByteBufferMessageSet(buffer);
+    }
+
+    private byte[] write(GatheringMessageSet set, long offset, int length) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(0);
+            FileChannel channel = raf.getChannel();
+            assertEquals(length, set.write(channel, offset, length));
+            byte[] written = new byte[(int) channel.size()];
+            raf.seek(0);
+            raf.readFully(written);
+            return written;
+        } finally {
+            raf.close();
+        }
+    }
+
+    @Test
+    public void testPartialWrite() throws IOException {
+        List<ByteBufferMessageSet> sets = new ArrayList<ByteBufferMessageSet>();
+        sets.add(messages("abc"));
+        sets.add(messages("def"));
+        sets.add(messages("ghi"));
+        GatheringMessageSet set = new GatheringMessageSet(sets);
+        assertEquals(48, set.getSize());
+
+        byte[] all = write(set, 0, 48);
+        assertEquals(48, all.length);
+        // the set can be written again, and a range spanning buffers is cut out of it
+        byte[] part = write(set, 10, 20);
+        assertEquals(20, part.length);
+        for (int i = 0; i < part.length; i++) {
+            assertEquals(all[10 + i], part[i]);
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testWriteBeyondSize() throws IOException {
+        List<ByteBufferMessageSet> sets = new ArrayList<ByteBufferMessageSet>();
+        sets.add(messages("abc"));
+        write(new GatheringMessageSet(sets), 8, 16);
+    }
+}
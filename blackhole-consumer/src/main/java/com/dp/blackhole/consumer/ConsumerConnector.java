@@ -26,6 +26,7 @@ import com.dp.blackhole.common.PBwrap;
 import com.dp.blackhole.common.Util;
 import com.dp.blackhole.consumer.api.Consumer;
 import com.dp.blackhole.consumer.api.ConsumerConfig;
+import com.dp.blackhole.consumer.api.TimestampOffsetStrategy;
 import com.dp.blackhole.network.EntityProcessor;
 import com.dp.blackhole.network.GenClient;
 import com.dp.blackhole.network.HeartBeat;
@@ -36,6 +37,7 @@ import com.dp.blackhole.protocol.control.AssignConsumerPB.AssignConsumer.Partiti
 import com.dp.blackhole.protocol.control.ConsumerRegPB.ConsumerReg;
 import com.dp.blackhole.protocol.control.MessagePB.Message;
 import com.dp.blackhole.protocol.control.MessagePB.Message.MessageType;
+import com.dp.blackhole.protocol.data.OffsetRequest;
 import com.dp.blackhole.storage.MessageAndOffset;
 import com.google.protobuf.InvalidProtocolBufferException;
 
@@ -333,6 +335,10 @@ public class ConsumerConnector implements Runnable {
                     LOG.info("consume from [" + offset + "] for topic:" + topic + " partition:" + partitionName);
                     PartitionTopicInfo info = 
                             new PartitionTopicInfo(topic, partitionName, brokerString, offset, offset);
+                    if (offset == OffsetRequest.TIMESTAMP_OFFSET
+                            && c.getOffsetStrategy() instanceof TimestampOffsetStrategy) {
+                        info.setSeekTimestamp(((TimestampOffsetStrategy) c.getOffsetStrategy()).getTimestamp());
+                    }
                     LOG.debug("create a PartitionTopicInfo: " + info);
                     List<PartitionTopicInfo> partitionList = brokerPartitionInfoMap.get(brokerString);
                     if (partitionList == null) {
@@ -113,11 +113,22 @@ public class Fetcher extends Thread {
         @Override
         public void OnConnected(TransferWrapNonblockingConnection connection) {
             LOG.info("Fetcher " + this + " process connected with " + connection);
+            // partitions seeking by time fetch once their offset is replied
+            for (PartitionTopicInfo info : partitionBlockMap.keySet()) {
+                if (info.getSeekTimestamp() > 0) {
+                    partitionBlockMap.put(info, true);
+                    sendSeekRequest(connection, info);
+                }
+            }
             if (config.isMultiFetch()) {
-                sendMultiFetchRequest(connection);
+                if (!needBlocking()) {
+                    sendMultiFetchRequest(connection);
+                }
             } else {
                 for (PartitionTopicInfo info : partitionBlockMap.keySet()) {
-                    sendFetchRequest(connection, info);
+                    if (info.getSeekTimestamp() <= 0) {
+                        sendFetchRequest(connection, info);
+                    }
                 }
             }
         }
@@ -212,12 +223,20 @@ public class Fetcher extends Thread {
             PartitionTopicInfo info = partitionMap.get(partition);
             if (resetOffset >= 0) {
                 LOG.debug("adjust " + "topic: " + topic + " with offset of " + resetOffset);
+                if (info.getSeekTimestamp() > 0) {
+                    LOG.info("seek " + info + " to " + resetOffset + " appended at " + offsetReply.getTimestamp());
+                    info.setSeekTimestamp(0);
+                }
                 info.updateFetchOffset(resetOffset);
                 info.resetConsumeOffset(resetOffset);
                 partitionBlockMap.put(info, false);
             } else {
                 LOG.warn("received offset " + resetOffset + " < 0, retry send offset request");
-                sendOffsetRequest(from, info);
+                if (info.getSeekTimestamp() > 0) {
+                    sendSeekRequest(from, info);
+                } else {
+                    sendOffsetRequest(from, info);
+                }
                 return;
             }
             
@@ -249,7 +268,8 @@ public class Fetcher extends Thread {
                     LOG.error("Interrupted when enqueue");
                     throw new RuntimeException(e.getMessage(), e);
                 }
-                if (validSize > 0) {
+                // a broker holding the fetch already waited for new messages
+                if (validSize > 0 || fetchReply.isHeld()) {
                     sendFetchRequest(from, info);
                 } else {
                     RetryTask retry = new RetryTask(from, info);
@@ -287,6 +307,13 @@ public class Fetcher extends Thread {
             from.send(new TransferWrap(new OffsetRequest(info.topic, info.partition, offset)));
         }
 
+        private void sendSeekRequest(TransferWrapNonblockingConnection from,
+                PartitionTopicInfo info) {
+            LOG.info("send seek request for " + info + " to " + info.getSeekTimestamp());
+            from.send(new TransferWrap(new OffsetRequest(info.topic, info.partition,
+                    OffsetRequest.TIMESTAMP_OFFSET, info.getSeekTimestamp())));
+        }
+
         private void sendFetchRequest(TransferWrapNonblockingConnection from,
                 PartitionTopicInfo info) {
             LOG.debug("sendFetchRequest " + info.getFetchedOffset());
@@ -296,7 +323,9 @@ public class Fetcher extends Thread {
                             info.topic, 
                             info.partition, 
                             info.getFetchedOffset(), 
-                            config.getFetchSize()))
+                            config.getFetchSize(),
+                            config.getFetchMaxWaitMs(),
+                            config.getFetchMinBytes()))
             );
         }
 
@@ -15,6 +15,9 @@ public class PartitionTopicInfo {
     private final AtomicLong consumedOffsetChanged = new AtomicLong(0);
 
     final String partition;
+
+    // wall-clock millis to seek to before fetching, 0 if none
+    private volatile long seekTimestamp;
     
     public PartitionTopicInfo(String topic,
             String partition,
@@ -71,6 +74,14 @@ public class PartitionTopicInfo {
         fetchedOffset.set(newFetchOffset);
     }
 
+    public long getSeekTimestamp() {
+        return seekTimestamp;
+    }
+
+    public void setSeekTimestamp(long seekTimestamp) {
+        this.seekTimestamp = seekTimestamp;
+    }
+
     @Override
     public int hashCode() {
         final int prime = 31;
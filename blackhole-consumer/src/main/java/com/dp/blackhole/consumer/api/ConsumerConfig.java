@@ -8,6 +8,10 @@ public class ConsumerConfig {
 
     private int fetchSize;
 
+    private int fetchMaxWaitMs;
+
+    private int fetchMinBytes;
+
     private int maxQueuedChunks;
 
     private String autoOffsetReset;
@@ -23,6 +27,8 @@ public class ConsumerConfig {
     /**
      * the properties entry include:<br/>
      * <b>fetch.size</b> the max number of byes of messages to attempt to fetch, default is 1MB<br/>
+     * <b>fetch.wait.max.ms</b> how long the broker may hold a fetch finding no new messages, default is 500<br/>
+     * <b>fetch.min.bytes</b> how many new bytes answer a held fetch, default is 1<br/>
      * <b>queuedchunks.max</b> the max number of messages buffered for consumption, default is 2<br/>
      * <b>autooffset.reset</b> what to do if an offset is out of range, default is reseted to smallest<br/>
      * <b>messages.multiFetch</b> whether or not fetch multiple partition message at once, default is false<br/>
@@ -32,6 +38,8 @@ public class ConsumerConfig {
      */
     public ConsumerConfig() {
         this.fetchSize = 1024 * 1024;//1MB
+        this.fetchMaxWaitMs = 500;
+        this.fetchMinBytes = 1;
         this.maxQueuedChunks = 2;
         this.autoOffsetReset = OffsetRequest.SMALLES_TIME_STRING;
         this.multiFetch = false;
@@ -58,6 +66,14 @@ public class ConsumerConfig {
         this.fetchSize = fetchSize;
     }
 
+    public void setFetchMaxWaitMs(int fetchMaxWaitMs) {
+        this.fetchMaxWaitMs = fetchMaxWaitMs;
+    }
+
+    public void setFetchMinBytes(int fetchMinBytes) {
+        this.fetchMinBytes = fetchMinBytes;
+    }
+
     public void setMaxQueuedChunks(int maxQueuedChunks) {
         this.maxQueuedChunks = maxQueuedChunks;
     }
@@ -79,6 +95,16 @@ public class ConsumerConfig {
         return fetchSize;
     }
 
+    /** max millis the broker holds a fetch back waiting for new messages, 0 to answer at once */
+    public int getFetchMaxWaitMs() {
+        return fetchMaxWaitMs;
+    }
+
+    /** number of new bytes which answer a fetch held back by the broker */
+    public int getFetchMinBytes() {
+        return fetchMinBytes;
+    }
+
     /** max number of messages buffered for consumption */
     public int getMaxQueuedChunks() {
         return maxQueuedChunks;
@@ -0,0 +1,24 @@
+package com.dp.blackhole.consumer.api;
+
+import com.dp.blackhole.protocol.data.OffsetRequest;
+
+/**
+ * consume from the data appended since a wall-clock time, the broker
+ * resolves the offset from its time index
+ */
+public class TimestampOffsetStrategy implements OffsetStrategy {
+    private long timestamp;
+
+    public TimestampOffsetStrategy(long timestamp) {
+        this.timestamp = timestamp;
+    }
+
+    @Override
+    public long getOffset(String topic, String partitionId, long endOffset, long committedOffset) {
+        return OffsetRequest.TIMESTAMP_OFFSET;
+    }
+
+    public long getTimestamp() {
+        return timestamp;
+    }
+}
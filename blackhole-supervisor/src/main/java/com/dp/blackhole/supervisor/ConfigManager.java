@@ -69,6 +69,8 @@ public class ConfigManager {
     public volatile boolean brokerAssignmentLimitEnable;
     public volatile int brokerAssignmentLimitMin;
     
+    public boolean rangeRecoveryEnable;
+    
     public String checkpiontPath;
     public long checkpiontPeriod;
     
@@ -170,6 +172,8 @@ public class ConfigManager {
         sendTimeout = Integer.parseInt(prop.getProperty("msg.send.timeout", "10"));
         getPaaSInstanceURLPerfix = prop.getProperty("supervisor.paas.url");
         brokerAssignmentLimitEnable = Boolean.parseBoolean(prop.getProperty("supervisor.broker-assignment-limit.enable", "false"));
+        // only when every agent runs with agent.recovery.range and every broker can serve it
+        rangeRecoveryEnable = Boolean.parseBoolean(prop.getProperty("supervisor.recovery.range.enable", "false"));
         
         checkpiontPath = prop.getProperty("supervisor.checkpoint.path", "/tmp/checkpoint");
         checkpiontPeriod = Long.parseLong(prop.getProperty("supervisor.checkpoint.period", "60000"));
@@ -1614,8 +1614,12 @@ public class Supervisor {
      * else send recovery message
      */
     private void doRecovery(Stream stream, Stage stage, boolean isFinal) {
-        String broker = null;
-        broker = getBrokerRandom();
+        // with range recovery the broker of the stage may still hold most of
+        // it and the agent sends it the rest only, otherwise spread the load
+        String broker = configManager.rangeRecoveryEnable ? stage.getBrokerHost() : null;
+        if (broker == null || !brokersMapping.containsKey(broker)) {
+            broker = getBrokerRandom();
+        }
 
         if (broker == null || !stream.isActive()) {
             stage.setStatus(Stage.PENDING);
@@ -11,9 +11,12 @@ import org.apache.commons.logging.LogFactory;
 
 import com.dianping.cat.Cat;
 import com.dp.blackhole.common.TopicPartitionKey;
+import com.dp.blackhole.common.Util;
 
 public class BrokerInfo {
     private final Log LOG = LogFactory.getLog(BrokerInfo.class);
+    // entropies count seconds from here, see clockEntropy()
+    private static final long ENTROPY_EPOCH = 1420070400000L;
 
     private TopicPartitionKey tpKey;
     private volatile long offset;
@@ -28,7 +31,7 @@ public class BrokerInfo {
         for (String follower : followers) {
             this.followers.put(follower, new BrokerStatus(follower, false));
         }
-        this.entropy = 0;
+        this.entropy = clockEntropy();
         this.offset = 0L;
     }
 
@@ -203,8 +206,17 @@ public class BrokerInfo {
         return true;
     }
 
+    /**
+     * the entropy is not persisted, starting from the clock keeps it above
+     * the ones brokers saw before a restart of the supervisor, which they
+     * compare it with and keep in their entropy history
+     */
+    private static int clockEntropy() {
+        return (int) ((Util.getTS() - ENTROPY_EPOCH) / 1000);
+    }
+
     private void updateEntropy() {
-        this.entropy++;
+        this.entropy = Math.max(this.entropy + 1, clockEntropy());
     }
 
     private boolean isElectionReady() {